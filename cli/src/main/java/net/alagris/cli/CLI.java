@@ -2,7 +2,7 @@ package net.alagris.cli;
 
 import picocli.CommandLine;
 
-@CommandLine.Command(subcommands = {InteractiveRepl.class,Convert.class})
+@CommandLine.Command(subcommands = {InteractiveRepl.class,Convert.class,EvalFile.class,ConvertDataset.class})
 public class CLI {
 
 
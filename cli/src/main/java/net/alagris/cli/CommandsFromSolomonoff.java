@@ -139,6 +139,44 @@ public class CommandsFromSolomonoff {
 //        debug.accept("Evaluation took " + evaluationTook + " milliseconds + spent "+(evaluationEndIO)+" on I/O");
     }
 
+    static <N, G extends IntermediateGraph<Pos, E, P, N>> ReplCommand<N, G, String> replMem() {
+        return (compiler, logs, debug, args) -> {
+            final String[] parts = args.trim().split("\\s+");
+            final String id = parts[0];
+            if (id.startsWith("@")) {
+                final MemoryFootprint m = compiler.pipelineMemoryFootprint(id.substring(1));
+                return m == null ? "No such pipeline!" : m.toString();
+            } else {
+                final boolean intermediate = parts.length > 1 && parts[1].equals("intermediate");
+                final MemoryFootprint m = compiler.memoryFootprint(id, intermediate);
+                return m == null ? "No such function!" : m.toString();
+            }
+        };
+    }
+
+    static <N, G extends IntermediateGraph<Pos, E, P, N>> ReplCommand<N, G, String> replFusions() {
+        return (compiler, logs, debug, args) -> {
+            String id = args.trim();
+            if (id.startsWith("@")) id = id.substring(1);
+            if (compiler.getPipeline(id) == null) return "No such pipeline!";
+            final StringBuilder sb = new StringBuilder();
+            for (PipelineFusion.Fusion fusion : compiler.appliedFusions(id)) sb.append(fusion).append('\n');
+            return sb.toString();
+        };
+    }
+
+    static <N, G extends IntermediateGraph<Pos, E, P, N>> ReplCommand<N, G, String> replMetrics() {
+        return (compiler, logs, debug, args) -> {
+            if (!(compiler.specs.metrics instanceof Metrics.Recorder))
+                return "Metrics are disabled. Run with --metrics";
+            if (args.trim().equals("reset")) {
+                ((Metrics.Recorder) compiler.specs.metrics).reset();
+                return null;
+            }
+            return compiler.metricsReport();
+        };
+    }
+
     static <N, G extends IntermediateGraph<Pos, E, P, N>> ReplCommand<N, G, String> replParse() {
         return (compiler, logs, debug, args) -> {
             compiler.parse(CharStreams.fromString(args));
@@ -474,6 +512,11 @@ public class CommandsFromSolomonoff {
         };
     }
 
+    /**
+     * Files with this extension are exported and imported in binary format of OpenFst
+     */
+    static final String OPEN_FST_EXTENSION = ".fst";
+
     static <N, G extends IntermediateGraph<Pos, E, P, N>> ReplCommand<N, G, String> replExport() {
         return (compiler, logs, debug, args) -> {
             final String[] parts = args.split(" ",2);
@@ -488,8 +531,13 @@ public class CommandsFromSolomonoff {
                 }
             }else{
                 final LexUnicodeSpecification.Var<N, G> g = compiler.getTransducer(parts[0]);
-                try (FileOutputStream f = new FileOutputStream(parts[1].trim())) {
-                    compiler.specs.compressBinary(g.graph, new DataOutputStream(f));
+                final String path = parts[1].trim();
+                try (FileOutputStream f = new FileOutputStream(path)) {
+                    if (path.endsWith(OPEN_FST_EXTENSION)) {
+                        compiler.specs.exportOpenFst(compiler.getOptimisedTransducer(parts[0]), new BufferedOutputStream(f), false);
+                    } else {
+                        compiler.specs.compressBinary(g.graph, new DataOutputStream(f));
+                    }
                     return null;
                 }
             }
@@ -516,8 +564,11 @@ public class CommandsFromSolomonoff {
                 if(compiler.getTransducer(parts[0])!=null){
                     return parts[0]+" is already defined";
                 }
-                try (FileInputStream f = new FileInputStream(parts[1].trim())) {
-                    final G g = compiler.specs.decompressBinary(Pos.NONE, new DataInputStream(f));
+                final String path = parts[1].trim();
+                try (FileInputStream f = new FileInputStream(path)) {
+                    final G g = path.endsWith(OPEN_FST_EXTENSION)
+                            ? compiler.specs.importOpenFst(Pos.NONE, new BufferedInputStream(f))
+                            : compiler.specs.decompressBinary(Pos.NONE, new DataInputStream(f));
                     compiler.specs.introduceVariable(parts[0],Pos.NONE,g,0,false);
                     return null;
                 }
@@ -545,11 +596,11 @@ public class CommandsFromSolomonoff {
         return (compiler, logs, debug, args) -> {
             args = args.trim();
             if (args.startsWith("@")) {
-                if (compiler.specs.pipelines.remove(args.substring(1)) == null) {
+                if (compiler.specs.removePipeline(args.substring(1)) == null) {
                     debug.accept("No such pipeline?");
                 }
             } else {
-                if (compiler.specs.variableAssignments.remove(args) == null) {
+                if (compiler.specs.removeVariable(args) == null) {
                     debug.accept("No such variable?");
                 }
             }
@@ -561,9 +612,9 @@ public class CommandsFromSolomonoff {
         return (compiler, logs, debug, args) -> {
             args = args.trim();
             if ("pipelines".equals(args)) {
-                compiler.specs.pipelines.clear();
+                compiler.specs.removeAllPipelines();
             } else {
-                compiler.specs.variableAssignments.clear();
+                compiler.specs.removeAllVariables();
             }
             return null;
         };
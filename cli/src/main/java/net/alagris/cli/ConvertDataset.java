@@ -0,0 +1,42 @@
+package net.alagris.cli;
+
+import net.alagris.core.IntSeq;
+import net.alagris.core.Pair;
+import net.alagris.core.learn.BinaryDataset;
+import net.alagris.core.learn.LazyDataset;
+import picocli.CommandLine;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+
+@CommandLine.Command(name = "convert-dataset", description = "Convert text dataset (or output of dataset-generating script) to binary format, which can be loaded much faster by activeLearningFromDataset. Use .bin extension for the output file.")
+public class ConvertDataset implements Callable<Integer> {
+    @CommandLine.Parameters(index = "0", description = "Path to text dataset. If it ends with .py, it will be run as python script and its output will be used")
+    private String input;
+
+    @CommandLine.Parameters(index = "1", description = "Path to produced binary dataset")
+    private String output;
+
+    @CommandLine.Option(names = {"-s", "--separator"}, description = "Separator of input and output in each line")
+    private String separator = "\t";
+
+    @CommandLine.Option(names = {"-a", "--arg"}, description = "Argument passed to the script")
+    private List<String> args = new ArrayList<>();
+
+    @Override
+    public Integer call() throws Exception {
+        final File in = new File(input);
+        final LazyDataset<Pair<IntSeq, IntSeq>> dataset;
+        if (input.endsWith(".py")) {
+            dataset = LazyDataset.loadDatasetFromPython(in, separator, args);
+        } else {
+            dataset = LazyDataset.loadDatasetFromFile(in, separator);
+        }
+        final long begin = System.currentTimeMillis();
+        final long examples = BinaryDataset.convert(dataset, new File(output));
+        System.err.println("Converted " + examples + " examples in " + (System.currentTimeMillis() - begin) + " milliseconds");
+        return 0;
+    }
+}
@@ -0,0 +1,93 @@
+package net.alagris.cli;
+
+import net.alagris.core.IntermediateGraph;
+import net.alagris.core.LexUnicodeSpecification;
+import net.alagris.core.Pos;
+import net.alagris.core.ShardedEvaluator;
+import net.alagris.lib.ArrayBacked;
+import net.alagris.lib.Config;
+import net.alagris.lib.HashMapBacked;
+import net.alagris.lib.Solomonoff;
+import org.antlr.v4.runtime.CharStreams;
+import picocli.CommandLine;
+
+import java.io.File;
+import java.util.concurrent.Callable;
+
+@CommandLine.Command(name = "eval-file", description = "Evaluate every line of (possibly huge) input file in parallel and write results to output file")
+public class EvalFile implements Callable<Integer> {
+
+    @CommandLine.Parameters(index = "0", description = "Solomonoff source file")
+    private String file;
+
+    @CommandLine.Parameters(index = "1", description = "Name of transducer (or pipeline if prefixed with @)")
+    private String transducerName;
+
+    @CommandLine.Parameters(index = "2", description = "Input file with one string per line")
+    private String input;
+
+    @CommandLine.Parameters(index = "3", description = "Output file")
+    private String output;
+
+    @CommandLine.Option(names = {"-j", "--threads"}, description = "Number of worker threads. Defaults to number of available processors")
+    private int threads = Runtime.getRuntime().availableProcessors();
+
+    @CommandLine.Option(names = {"-s", "--shard-size"}, description = "Approximate size of a single shard in bytes")
+    private int shardSize = ShardedEvaluator.DEFAULT_SHARD_SIZE;
+
+    @CommandLine.Option(names = {"-t", "--tabular"}, description = "Use tabular evaluation with output buffer of given size")
+    private Integer tabularBufferSize = null;
+
+    @CommandLine.Option(names = {"-n", "--no-match"}, description = "Line to print when input is rejected. By default rejected lines are skipped")
+    private String noMatch = null;
+
+    @CommandLine.Option(names = {"-b", "--backed-by"}, description = "array, hash")
+    private String backedBy = "array";
+
+    @CommandLine.Option(names = {"-st", "--skip-typechecking"}, description = "typechecker will not be invoked. This may significantly speed-up loading time")
+    private boolean skipTypechecking = false;
+
+    @CommandLine.Option(names = {"--silent"})
+    private boolean silent = false;
+
+    public <N, G extends IntermediateGraph<Pos, LexUnicodeSpecification.E, LexUnicodeSpecification.P, N>>
+    int run(Solomonoff<N, G> compiler) throws Exception {
+        final long parsingBegin = System.currentTimeMillis();
+        compiler.parse(CharStreams.fromFileName(file));
+        final long evaluationBegin = System.currentTimeMillis();
+        final ShardedEvaluator evaluator = new ShardedEvaluator(threads, shardSize, noMatch);
+        final ShardedEvaluator.Stats stats;
+        if (tabularBufferSize == null) {
+            stats = compiler.runFile(transducerName, new File(input), new File(output), evaluator);
+        } else {
+            stats = compiler.runTabularFile(transducerName, new File(input), new File(output), evaluator, tabularBufferSize);
+        }
+        if (stats == null) {
+            System.err.println("Transducer '" + transducerName + "' not found!");
+            return 1;
+        }
+        if (!silent) {
+            final long end = System.currentTimeMillis();
+            System.err.println("Parsing took " + (evaluationBegin - parsingBegin) + " milliseconds. Evaluation took "
+                    + (end - evaluationBegin) + " milliseconds (" + stats + ")");
+        }
+        return 0;
+    }
+
+    @Override
+    public Integer call() throws Exception {
+        final Config config = new Config();
+        if (skipTypechecking) {
+            config.skipTypechecking = true;
+        }
+        switch (backedBy) {
+            case "array":
+                return run(new ArrayBacked(config));
+            case "hash":
+                return run(new HashMapBacked(config));
+            default:
+                System.err.println("Invalid value '" + backedBy + "'! Should be wither 'array' or 'hash'");
+                return 1;
+        }
+    }
+}
@@ -32,6 +32,15 @@ public class InteractiveRepl implements Callable<Integer> {
     @CommandLine.Option(names = {"--ignoreEpsilonUnderKleeneClosure"})
     private boolean ignoreEpsilonUnderKleeneClosure = false;
 
+    @CommandLine.Option(names = {"--metrics"}, description = "collect statistics of evaluation and compilation. They can be printed with /metrics")
+    private boolean metrics = false;
+
+    @CommandLine.Option(names = {"--fuse-pipelines"}, description = "fuse stages of pipelines into automata of at most that many states. Fused stages can be listed with /fusions")
+    private int fusePipelines = 0;
+
+    @CommandLine.Option(names = {"--approximate-merge-candidates"}, description = "ostia_max_overlap and similar inference algorithms only try to merge states with equal outgoing symbols and outputs. Much faster for large samples, but may learn different transducers")
+    private boolean approximateMergeCandidates = false;
+
 
     public <N, G extends IntermediateGraph<Pos, LexUnicodeSpecification.E, LexUnicodeSpecification.P, N>>
     int run(Solomonoff<N, G> compiler) throws Exception {
@@ -77,6 +86,15 @@ public class InteractiveRepl implements Callable<Integer> {
         if(skipTypechecking){
             config.skipTypechecking = true;
         }
+        if(metrics){
+            config.setMetrics(new Metrics.Recorder());
+        }
+        if(fusePipelines>0){
+            config.setPipelineFusionMaxStates(fusePipelines);
+        }
+        if(approximateMergeCandidates){
+            config.setApproximateMergeCandidates(true);
+        }
         switch (backedBy) {
             case "array":
                 return run(new ArrayBacked(config));
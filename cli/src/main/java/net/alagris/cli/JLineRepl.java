@@ -162,6 +162,10 @@ public class JLineRepl {
                             list.add(new Candidate("pipelines"));
                             return;
                         }
+                        case Repl.PREFIX + Repl.METRICS: {
+                            list.add(new Candidate("reset"));
+                            return;
+                        }
                         case Repl.PREFIX + Repl.RAND_SAMPLE:
                             if (parsedLine.wordIndex() == 1) {
                                 vars(list, prefix);
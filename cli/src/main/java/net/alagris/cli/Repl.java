@@ -57,6 +57,8 @@ public class Repl<N, G extends IntermediateGraph<Pos, LexUnicodeSpecification.E,
     public static final String RAND_SAMPLE = "rand_sample";
     public static final String VIS = "vis";
     public static final String EXIT = "exit";
+    public static final String METRICS = "metrics";
+    public static final String FUSIONS = "fusions";
 
 
     public Repl(Solomonoff<N, G> compiler) {
@@ -82,7 +84,9 @@ public class Repl<N, G extends IntermediateGraph<Pos, LexUnicodeSpecification.E,
         registerCommand(SUBMATCH_FILE, "Extracts all submatches from a file", "[ID] [GROUP_INDEX] [FILE]", CommandsFromSolomonoff.replSubmatchFile());
         registerCommand(EVAL_TABULAR, "Evaluates transducer (or entire pipeline) on requested input using tabular method instead of hashmaps (works faster at the cost of extra memory consumption)", "[BUFFER_SIZE] [ID] [STRING_LITERAL/FILE_PATH/stdin]", CommandsFromSolomonoff.replEval(true));
         registerCommand("", "Feeds given string to the compiler. This is only useful when making one-liners in Bash scripts but its pointless to run from within REPL console.", "[CODE]", CommandsFromSolomonoff.replParse());
-        registerCommand(MEM, "Shows RAM memory usage of transducer. This requires running with -javaagent.", "[ID]", CommandsFromJamm.replMem());
+        registerCommand(MEM, "Estimates RAM memory retained by transducer (or entire pipeline), broken down into transitions, outputs and metadata. " +
+                "Passing 'intermediate' measures the intermediate graph instead of the optimised one", "[ID] [intermediate]", CommandsFromSolomonoff.replMem());
+        registerCommand(FUSIONS, "Lists stages of pipeline that were fused together. Requires running with --fuse-pipelines", "[@ID]", CommandsFromSolomonoff.replFusions());
         registerCommand(LS, "Lists all currently defined transducers", "", CommandsFromSolomonoff.replList());
         registerCommand(SIZE, "Size of transducer is the number of its states", "[ID]", CommandsFromSolomonoff.replSize());
         registerCommand("equal",
@@ -90,11 +94,12 @@ public class Repl<N, G extends IntermediateGraph<Pos, LexUnicodeSpecification.E,
                 CommandsFromSolomonoff.replEqual());
         registerCommand(IS_DET, "Tests whether transducer is deterministic", "[ID]", CommandsFromSolomonoff.replIsDeterministic());
         registerCommand(IS_FUNC, "Tests whether transducer is functional", "[ID]", CommandsFromSolomonoff.replIsFunctional());
-        registerCommand(EXPORT, "Exports transducer or pipeline to binary file", "[ID] [FILE_PATH]",
+        registerCommand(EXPORT, "Exports transducer or pipeline to binary file. Transducers are written in OpenFst format if FILE_PATH ends with .fst", "[ID] [FILE_PATH]",
                 CommandsFromSolomonoff.replExport());
-        registerCommand(IMPORT, "Imports transducer or pipeline from binary file and assigns it to a new variable name", "[ID] [FILE_PATH]",
+        registerCommand(IMPORT, "Imports transducer or pipeline from binary file and assigns it to a new variable name. Transducers are read in OpenFst format if FILE_PATH ends with .fst", "[ID] [FILE_PATH]",
                 CommandsFromSolomonoff.replImport());
         registerCommand(EVAL, "Evaluates transducer (or entire pipeline) on requested input", "[ID] [STRING_LITERAL/FILE_PATH/stdin]", CommandsFromSolomonoff.replEval(false));
+        registerCommand(METRICS, "Prints statistics of evaluation and compilation. Requires running with --metrics. Pass 'reset' to clear collected statistics", "[reset]", CommandsFromSolomonoff.replMetrics());
         registerCommand(UNSET, "Removes a previously defined variable (if exists)", "[ID]", CommandsFromSolomonoff.replUnset());
         registerCommand(UNSET_ALL, "Removes all previously defined variable (if any)", "", CommandsFromSolomonoff.replUnsetAll());
         registerCommand(FUNCS, "Lists all available external functions. Those starting with @ are pipeline functions.", "", CommandsFromSolomonoff.replFuncs());
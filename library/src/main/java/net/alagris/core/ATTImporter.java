@@ -0,0 +1,520 @@
+package net.alagris.core;
+
+import net.alagris.core.LexUnicodeSpecification.E;
+import net.alagris.core.LexUnicodeSpecification.P;
+import net.alagris.core.Specification.Range;
+import net.alagris.core.Specification.RangedGraph;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Fast importer of transducers written in AT&amp;T (OpenFst text) format. The meaning of lines is the same as in
+ * {@link LexUnicodeSpecification#importATT(String, Iterator, char)}. Every line is either an arc
+ * {@code source target input [weight [output]]} or a final state {@code source<sep><sep>[<sep>weight [output]]}.
+ * Final states written as {@code source [weight]}, like OpenFst does, are accepted too.
+ * <br>
+ * Unlike {@link Specification#importATT}, which reads lines one by one and keys states by strings,
+ * the file is memory-mapped and split at newline boundaries into shards (see {@link ShardedEvaluator}),
+ * which are parsed in parallel straight from bytes into primitive arrays. Numeric state names are used as
+ * numeric identifiers (only non-numeric names are interned as strings). Identical output strings are interned,
+ * so that every distinct output is decoded only once and shared by all the arcs that print it. Parsed arcs can be
+ * turned directly into a {@link RangedGraph} without building any intermediate graph.
+ */
+public final class ATTImporter {
+
+    /**
+     * Marks final state lines in the array of targets
+     */
+    private static final int FINAL = Integer.MIN_VALUE;
+    private static final int MIN_SHARD_SIZE = 1 << 16;
+    private static final int MAX_SHARD_SIZE = 1 << 30;
+
+    /**
+     * Parsed shards in the order of the file. After parsing is finished, state identifiers are dense indices
+     * (in order of first occurrence) and outputs are indices into {@link ATTImporter#outputs}
+     */
+    private final ArrayList<Shard> shards;
+    private final ArrayList<Pos> indexToState;
+    private final ArrayList<IntSeq> outputs;
+    /**
+     * Dense index of the source state of the first line, or -1 if first line is not an arc nor final state
+     */
+    private final int initial;
+
+    private ATTImporter(ArrayList<Shard> shards, ArrayList<Pos> indexToState, ArrayList<IntSeq> outputs, int initial) {
+        this.shards = shards;
+        this.indexToState = indexToState;
+        this.outputs = outputs;
+        this.initial = initial;
+    }
+
+    public int stateCount() {
+        return indexToState.size();
+    }
+
+    /**
+     * Number of arcs and final state lines
+     */
+    public long arcCount() {
+        long arcs = 0;
+        for (Shard shard : shards) arcs += shard.size;
+        return arcs;
+    }
+
+    /**
+     * Number of distinct output strings
+     */
+    public int outputCount() {
+        return outputs.size();
+    }
+
+    /**
+     * @param separator must be an ASCII character
+     * @param threads   number of shards parsed in parallel
+     */
+    public static ATTImporter parse(File file, char separator, int threads) throws IOException, CompilationError {
+        if (separator >= 0x80) throw new IllegalArgumentException("Separator '" + separator + "' is not ASCII");
+        final String fileName = file.getPath();
+        final ArrayList<Shard> shards = new ArrayList<>();
+        try (FileChannel in = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            final long size = in.size();
+            if (size > 0) {
+                final int shardSize = (int) Math.max(MIN_SHARD_SIZE, Math.min(MAX_SHARD_SIZE, size / (Math.max(1, threads) * 4L)));
+                final ArrayList<Long> boundaries = ShardedEvaluator.findShardBoundaries(in, size, shardSize);
+                for (int i = 0; i + 1 < boundaries.size(); i++) {
+                    final long begin = boundaries.get(i);
+                    shards.add(new Shard(in.map(FileChannel.MapMode.READ_ONLY, begin, boundaries.get(i + 1) - begin), (byte) separator));
+                }
+            }
+            if (threads <= 1 || shards.size() <= 1) {
+                for (Shard shard : shards) shard.parse();
+            } else {
+                final ExecutorService pool = Executors.newFixedThreadPool(threads);
+                try {
+                    final ArrayList<Future<?>> futures = new ArrayList<>(shards.size());
+                    for (Shard shard : shards) futures.add(pool.submit(shard::parse));
+                    for (Future<?> f : futures) f.get();
+                } catch (InterruptedException e) {
+                    throw new InterruptedIOException("Import of " + fileName + " was interrupted");
+                } catch (ExecutionException e) {
+                    final Throwable cause = e.getCause();
+                    if (cause instanceof RuntimeException) throw (RuntimeException) cause;
+                    if (cause instanceof Error) throw (Error) cause;
+                    throw new IOException(cause);
+                } finally {
+                    pool.shutdownNow();
+                }
+            }
+        }
+        return link(fileName, shards);
+    }
+
+    /**
+     * Sequentially (in the order of lines) assigns dense indices to states and deduplicates outputs among shards.
+     */
+    private static ATTImporter link(String fileName, ArrayList<Shard> shards) throws CompilationError {
+        final Linker linker = new Linker(fileName);
+        final ArrayList<IntSeq> outputs = new ArrayList<>();
+        final HashMap<IntSeq, Integer> outputToIndex = new HashMap<>();
+        int initial = -1;
+        int lineOffset = 0;
+        for (Shard shard : shards) {
+            if (shard.errorLine != -1) {
+                throw new CompilationError.ParseException(new Pos(fileName, -1, -1),
+                        "'" + shard.errorText + "' at row " + (lineOffset + shard.errorLine) + " is not a valid " + shard.errorWhat + "!");
+            }
+            final int[] outputRemap = new int[shard.outputs.size()];
+            for (int i = 0; i < outputRemap.length; i++) {
+                outputRemap[i] = outputToIndex.computeIfAbsent(shard.outputs.get(i), k -> {
+                    outputs.add(k);
+                    return outputs.size() - 1;
+                });
+            }
+            for (int i = 0; i < shard.size; i++) {
+                final int line = lineOffset + shard.line[i];
+                shard.src[i] = linker.dense(shard, shard.src[i], line);
+                if (shard.tgt[i] != FINAL) shard.tgt[i] = linker.dense(shard, shard.tgt[i], line);
+                if (shard.out[i] != -1) shard.out[i] = outputRemap[shard.out[i]];
+                if (line == 1) initial = shard.src[i];
+            }
+            lineOffset += shard.lines;
+            shard.names = null;
+            shard.outputs = null;
+        }
+        return new ATTImporter(shards, linker.indexToState, outputs, initial);
+    }
+
+    /**
+     * Maps state identifiers of shards to dense indices
+     */
+    private static final class Linker {
+        final String fileName;
+        final ArrayList<Pos> indexToState = new ArrayList<>();
+        final HashMap<String, Integer> nameToIndex = new HashMap<>();
+        final HashMap<Integer, Integer> largeNumberToIndex = new HashMap<>();
+        int[] numberToIndex = new int[1024];
+
+        Linker(String fileName) {
+            this.fileName = fileName;
+            Arrays.fill(numberToIndex, -1);
+        }
+
+        int dense(Shard shard, int id, int line) {
+            if (id < 0) {
+                return nameToIndex.computeIfAbsent(shard.names.get(-1 - id), k -> newState(line));
+            } else if (id < (1 << 24)) {
+                if (id >= numberToIndex.length) {
+                    final int prevLen = numberToIndex.length;
+                    numberToIndex = Arrays.copyOf(numberToIndex, Math.max(id + 1, prevLen * 2));
+                    Arrays.fill(numberToIndex, prevLen, numberToIndex.length, -1);
+                }
+                if (numberToIndex[id] == -1) numberToIndex[id] = newState(line);
+                return numberToIndex[id];
+            } else {
+                return largeNumberToIndex.computeIfAbsent(id, k -> newState(line));
+            }
+        }
+
+        private int newState(int line) {
+            indexToState.add(new Pos(fileName, line, 0));
+            return indexToState.size() - 1;
+        }
+    }
+
+    private IntSeq output(int out) {
+        return out == -1 ? IntSeq.Epsilon : outputs.get(out);
+    }
+
+    /**
+     * Builds optimised graph directly from parsed arcs. The result is equivalent to
+     * {@link Specification#optimiseGraph} of {@link ATTImporter#toGraph}.
+     */
+    public RangedGraph<Pos, Integer, E, P> toRangedGraph(LexUnicodeSpecification<?, ?> specs) {
+        final int states = indexToState.size();
+        final int[] begin = new int[states + 1];
+        for (Shard shard : shards) {
+            for (int i = 0; i < shard.size; i++) {
+                if (shard.tgt[i] != FINAL) begin[shard.src[i] + 1]++;
+            }
+        }
+        for (int s = 0; s < states; s++) begin[s + 1] += begin[s];
+        final int[] filled = Arrays.copyOf(begin, states);
+        final RangedGraph.Trans<E>[] transitions = new RangedGraph.Trans[begin[states]];
+        final ArrayList<P> accepting = Util.filledArrayList(states, null);
+        for (Shard shard : shards) {
+            for (int i = 0; i < shard.size; i++) {
+                if (shard.tgt[i] == FINAL) {
+                    accepting.set(shard.src[i], new P(output(shard.out[i]), shard.weight[i]));
+                } else {
+                    final E e = new E(shard.from[i], shard.to[i], output(shard.out[i]), shard.weight[i]);
+                    transitions[filled[shard.src[i]]++] = new RangedGraph.Trans<>(e, shard.tgt[i]);
+                }
+            }
+        }
+        final ArrayList<ArrayList<Range<Integer, List<RangedGraph.Trans<E>>>>> graph = new ArrayList<>(states);
+        for (int s = 0; s < states; s++) {
+            graph.add(specs.mergeRangedEdges(Arrays.asList(transitions).subList(begin[s], begin[s + 1]).iterator(),
+                    t -> t.edge.getFromExclusive(), t -> t.edge.getToInclusive(),
+                    ArrayList::new, Collections.emptyList()));
+        }
+        return new RangedGraph<>(graph, accepting, new ArrayList<>(indexToState), initial);
+    }
+
+    /**
+     * Builds intermediate graph from parsed arcs. The result is the same as that of {@link Specification#importATT}.
+     */
+    public <N, G extends IntermediateGraph<Pos, E, P, N>> G toGraph(LexUnicodeSpecification<N, G> specs) {
+        final G g = specs.createEmptyGraph();
+        final ArrayList<N> vertices = new ArrayList<>(indexToState.size());
+        for (Pos meta : indexToState) vertices.add(g.create(meta));
+        for (Shard shard : shards) {
+            for (int i = 0; i < shard.size; i++) {
+                final N source = vertices.get(shard.src[i]);
+                if (shard.tgt[i] == FINAL) {
+                    g.setFinalEdge(source, new P(output(shard.out[i]), shard.weight[i]));
+                } else {
+                    g.add(source, new E(shard.from[i], shard.to[i], output(shard.out[i]), shard.weight[i]), vertices.get(shard.tgt[i]));
+                }
+            }
+        }
+        if (initial != -1) {
+            final N init = vertices.get(initial);
+            g.useStateOutgoingEdgesAsInitial(init, specs::cloneFullEdge);
+            g.setEpsilon(specs.clonePartialEdge(g.getFinalEdge(init)));
+        }
+        return g;
+    }
+
+    /**
+     * Lines of a single shard parsed into primitive arrays. Until {@link ATTImporter#link} is done,
+     * state identifiers are either non-negative numeric names or -1-k for k-th interned name of the shard,
+     * while outputs are indices into {@link Shard#outputs}. Output -1 stands for empty string.
+     */
+    private static final class Shard {
+        private final ByteBuffer buf;
+        private final byte separator;
+        int size = 0;
+        int lines = 0;
+        int[] src = new int[64], tgt = new int[64], from = new int[64], to = new int[64],
+                weight = new int[64], out = new int[64], line = new int[64];
+        ArrayList<String> names = new ArrayList<>();
+        private final HashMap<String, Integer> nameToId = new HashMap<>();
+        ArrayList<IntSeq> outputs = new ArrayList<>();
+        /**
+         * Open addressing table of interned outputs. Holds index of output plus one or 0 for empty slots.
+         */
+        private int[] outputTable = new int[64];
+        private int[] outputBegin = new int[32], outputLength = new int[32];
+        int errorLine = -1;
+        String errorText, errorWhat;
+        private final int[] fieldBegin = new int[5], fieldEnd = new int[5];
+
+        Shard(ByteBuffer buf, byte separator) {
+            this.buf = buf;
+            this.separator = separator;
+        }
+
+        void parse() {
+            final int limit = buf.limit();
+            int pos = 0;
+            while (pos < limit) {
+                int end = pos;
+                while (end < limit && buf.get(end) != '\n') end++;
+                lines++;
+                int lineEnd = end;
+                if (lineEnd > pos && buf.get(lineEnd - 1) == '\r') lineEnd--;
+                if (lineEnd > pos && buf.get(pos) != '#') {
+                    if (!parseLine(pos, lineEnd)) return;
+                }
+                pos = end + 1;
+            }
+        }
+
+        private boolean parseLine(int begin, int end) {
+            int fields = 0;
+            fieldBegin[0] = begin;
+            for (int i = begin; i < end && fields < 4; i++) {
+                if (buf.get(i) == separator) {
+                    fieldEnd[fields++] = i;
+                    fieldBegin[fields] = i + 1;
+                }
+            }
+            fieldEnd[fields++] = end;
+            if (size == src.length) grow();
+            line[size] = lines;
+            src[size] = stateId(fieldBegin[0], fieldEnd[0]);
+            final int weightField, outputField;
+            if (fields < 3) {
+                tgt[size] = FINAL;
+                weightField = fields == 2 ? 1 : -1;
+                outputField = -1;
+            } else {
+                weightField = fields > 3 ? 3 : -1;
+                outputField = fields > 4 ? 4 : -1;
+                if (fieldBegin[1] == fieldEnd[1] && fieldBegin[2] == fieldEnd[2]) {
+                    tgt[size] = FINAL;
+                } else {
+                    tgt[size] = stateId(fieldBegin[1], fieldEnd[1]);
+                    if (!parseRange(fieldBegin[2], fieldEnd[2])) return false;
+                }
+            }
+            if (weightField == -1 || fieldBegin[weightField] == fieldEnd[weightField]) {
+                weight[size] = 0;
+            } else {
+                final long w = parseInt(fieldBegin[weightField], fieldEnd[weightField]);
+                if (w == Long.MIN_VALUE) return error(fieldBegin[weightField], fieldEnd[weightField], "weight");
+                weight[size] = (int) w;
+            }
+            out[size] = outputField == -1 ? -1 : internOutput(fieldBegin[outputField], fieldEnd[outputField]);
+            size++;
+            return true;
+        }
+
+        private void grow() {
+            final int len = src.length * 2;
+            src = Arrays.copyOf(src, len);
+            tgt = Arrays.copyOf(tgt, len);
+            from = Arrays.copyOf(from, len);
+            to = Arrays.copyOf(to, len);
+            weight = Arrays.copyOf(weight, len);
+            out = Arrays.copyOf(out, len);
+            line = Arrays.copyOf(line, len);
+        }
+
+        private boolean error(int begin, int end, String what) {
+            errorLine = lines;
+            errorText = decode(begin, end);
+            errorWhat = what;
+            return false;
+        }
+
+        private int stateId(int begin, int end) {
+            final int len = end - begin;
+            if (len > 0 && len <= 9 && (len == 1 || buf.get(begin) != '0')) {
+                int id = 0;
+                int i = begin;
+                for (; i < end; i++) {
+                    final int digit = buf.get(i) - '0';
+                    if (digit < 0 || digit > 9) break;
+                    id = id * 10 + digit;
+                }
+                if (i == end) return id;
+            }
+            return -1 - nameToId.computeIfAbsent(decode(begin, end), k -> {
+                names.add(k);
+                return names.size() - 1;
+            });
+        }
+
+        /**
+         * Input is either a single symbol, a pair of symbols or a pair of numbers separated by dash.
+         */
+        private boolean parseRange(int begin, int end) {
+            int symbols = 0;
+            for (int i = begin; i < end; i++) {
+                if ((buf.get(i) & 0xC0) != 0x80) symbols++;
+            }
+            final int a, b;
+            if (symbols == 1) {
+                final int symbol = codePointAt(begin);
+                from[size] = symbol - 1;
+                to[size] = symbol;
+                return true;
+            } else if (symbols == 2) {
+                a = codePointAt(begin);
+                int second = begin + 1;
+                while ((buf.get(second) & 0xC0) == 0x80) second++;
+                b = codePointAt(second);
+            } else {
+                int dash = begin;
+                while (dash < end && buf.get(dash) != '-') dash++;
+                if (dash == end) return error(begin, end, "range");
+                final long l = parseInt(begin, dash);
+                final long r = parseInt(dash + 1, end);
+                if (l == Long.MIN_VALUE || r == Long.MIN_VALUE) return error(begin, end, "range");
+                a = (int) l;
+                b = (int) r;
+            }
+            if (Integer.compareUnsigned(a, b) <= 0) {
+                from[size] = a - 1;
+                to[size] = b;
+            } else {
+                from[size] = b - 1;
+                to[size] = a;
+            }
+            return true;
+        }
+
+        private int codePointAt(int i) {
+            final int b = buf.get(i) & 0xff;
+            if (b < 0x80) return b;
+            final int continuationBytes;
+            int codepoint;
+            if ((b & 0xE0) == 0xC0) {
+                codepoint = b & 0x1F;
+                continuationBytes = 1;
+            } else if ((b & 0xF0) == 0xE0) {
+                codepoint = b & 0x0F;
+                continuationBytes = 2;
+            } else if ((b & 0xF8) == 0xF0) {
+                codepoint = b & 0x07;
+                continuationBytes = 3;
+            } else {
+                return 0xFFFD;
+            }
+            for (int j = 1; j <= continuationBytes; j++) {
+                if (i + j >= buf.limit()) return 0xFFFD;
+                final int c = buf.get(i + j) & 0xff;
+                if ((c & 0xC0) != 0x80) return 0xFFFD;
+                codepoint = (codepoint << 6) | (c & 0x3F);
+            }
+            return codepoint;
+        }
+
+        /**
+         * Same as {@link Integer#parseInt} but without allocating strings.
+         *
+         * @return Long.MIN_VALUE if the number is malformed
+         */
+        private long parseInt(int begin, int end) {
+            if (begin == end) return Long.MIN_VALUE;
+            boolean negative = false;
+            int i = begin;
+            final byte sign = buf.get(i);
+            if (sign == '-' || sign == '+') {
+                negative = sign == '-';
+                if (++i == end) return Long.MIN_VALUE;
+            }
+            long n = 0;
+            for (; i < end; i++) {
+                final int digit = buf.get(i) - '0';
+                if (digit < 0 || digit > 9) return Long.MIN_VALUE;
+                n = n * 10 + digit;
+                if (n > (long) Integer.MAX_VALUE + 1) return Long.MIN_VALUE;
+            }
+            if (negative) n = -n;
+            return n > Integer.MAX_VALUE ? Long.MIN_VALUE : n;
+        }
+
+        private int internOutput(int begin, int end) {
+            if (begin == end) return -1;
+            int hash = 0;
+            for (int i = begin; i < end; i++) hash = 31 * hash + buf.get(i);
+            final int mask = outputTable.length - 1;
+            int slot = (hash ^ (hash >>> 16)) & mask;
+            while (outputTable[slot] != 0) {
+                final int candidate = outputTable[slot] - 1;
+                if (equalBytes(outputBegin[candidate], outputLength[candidate], begin, end - begin)) return candidate;
+                slot = (slot + 1) & mask;
+            }
+            final int idx = outputs.size();
+            outputs.add(new IntSeq(decode(begin, end)));
+            if (idx == outputBegin.length) {
+                outputBegin = Arrays.copyOf(outputBegin, idx * 2);
+                outputLength = Arrays.copyOf(outputLength, idx * 2);
+            }
+            outputBegin[idx] = begin;
+            outputLength[idx] = end - begin;
+            outputTable[slot] = idx + 1;
+            if (outputs.size() * 2 > outputTable.length) rehashOutputs();
+            return idx;
+        }
+
+        private void rehashOutputs() {
+            outputTable = new int[outputTable.length * 2];
+            final int mask = outputTable.length - 1;
+            for (int idx = 0; idx < outputs.size(); idx++) {
+                int hash = 0;
+                for (int i = outputBegin[idx], end = i + outputLength[idx]; i < end; i++) hash = 31 * hash + buf.get(i);
+                int slot = (hash ^ (hash >>> 16)) & mask;
+                while (outputTable[slot] != 0) slot = (slot + 1) & mask;
+                outputTable[slot] = idx + 1;
+            }
+        }
+
+        private boolean equalBytes(int beginA, int lenA, int beginB, int lenB) {
+            if (lenA != lenB) return false;
+            for (int i = 0; i < lenA; i++) {
+                if (buf.get(beginA + i) != buf.get(beginB + i)) return false;
+            }
+            return true;
+        }
+
+        private String decode(int begin, int end) {
+            final byte[] bytes = new byte[end - begin];
+            for (int i = 0; i < bytes.length; i++) bytes[i] = buf.get(begin + i);
+            return new String(bytes, StandardCharsets.UTF_8);
+        }
+    }
+}
@@ -0,0 +1,71 @@
+package net.alagris.core;
+
+/**
+ * Outcome of {@link LexUnicodeSpecification#evaluateBeam}. Besides the output it tells whether
+ * the superposition had to be pruned, how much and (if verification was requested) whether pruning
+ * made the output differ from exact evaluation. This is meant for tuning the beam width.
+ */
+public final class BeamResult {
+
+    public enum Status {
+        /**
+         * No state was pruned, so the output is exactly the same as that of
+         * {@link LexUnicodeSpecification#evaluate(Specification.RangedGraph, Seq)}
+         */
+        EXACT,
+        /**
+         * Some states were pruned. The output is the best one among the surviving states
+         * (or null if none of them accepted the input).
+         */
+        PRUNED,
+        /**
+         * Evaluation was aborted because it exceeded its time or expansion budget. The output is partial. It
+         * is the output of the best path through the first {@link BeamResult#consumed} symbols, without the final output.
+         */
+        OUT_OF_BUDGET
+    }
+
+    /**
+     * null if input was rejected
+     */
+    public final IntSeq output;
+    public final Status status;
+    /**
+     * Number of input symbols consumed before the evaluation finished or was aborted
+     */
+    public final int consumed;
+    /**
+     * Total number of states dropped from superposition
+     */
+    public final long prunedStates;
+    /**
+     * Largest width of superposition seen before pruning
+     */
+    public final int maxWidth;
+    /**
+     * True if exact evaluation was run after pruning in order to check the output
+     */
+    public final boolean verified;
+    /**
+     * True if the output was verified and found to differ from exact evaluation
+     */
+    public final boolean changedByPruning;
+
+    public BeamResult(IntSeq output, Status status, int consumed, long prunedStates, int maxWidth,
+                      boolean verified, boolean changedByPruning) {
+        this.output = output;
+        this.status = status;
+        this.consumed = consumed;
+        this.prunedStates = prunedStates;
+        this.maxWidth = maxWidth;
+        this.verified = verified;
+        this.changedByPruning = changedByPruning;
+    }
+
+    @Override
+    public String toString() {
+        return status + " output=" + (output == null ? "null" : IntSeq.toUnicodeString(output))
+                + ", consumed=" + consumed + ", prunedStates=" + prunedStates + ", maxWidth=" + maxWidth
+                + (verified ? ", changedByPruning=" + changedByPruning : "");
+    }
+}
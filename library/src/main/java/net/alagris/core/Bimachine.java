@@ -0,0 +1,476 @@
+package net.alagris.core;
+
+import net.alagris.core.LexUnicodeSpecification.E;
+import net.alagris.core.LexUnicodeSpecification.P;
+import net.alagris.core.Specification.PowersetState;
+import net.alagris.core.Specification.Range;
+import net.alagris.core.Specification.RangedGraph;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Nondeterministic transducer compiled into a bimachine, that is, a pair of deterministic automata and an output
+ * function. The left automaton is the powerset DFA of the transducer and reads input left-to-right. The right
+ * automaton reads input right-to-left and its state summarises the remaining suffix. Every right state is a
+ * selection, which assigns to every left state the state of original transducer, through which the path chosen by
+ * {@link LexUnicodeSpecification#evaluate(RangedGraph, Seq)} would pass, if the prefix led to that left state.
+ * The selection of the empty suffix picks the final state with the highest final weight and every transition of
+ * the right automaton picks, for every selected state, its predecessor reached by the transition of highest
+ * weight (exactly like the superposition does). Hence the output of i-th symbol is a function of
+ * the left state before it, the symbol and the right state after it.
+ * <br>
+ * Evaluation first runs the right automaton over the whole input (which remembers one integer per input symbol)
+ * and then runs the left automaton, emitting the output on the fly. There is no backtracking, no allocation besides
+ * one integer array and the output, and it takes strictly linear time regardless of how many states
+ * the superposition would hold. The result is the same as that of
+ * {@link LexUnicodeSpecification#evaluate(RangedGraph, Seq)} unless it depends on how
+ * {@link LexUnicodeSpecification.DeltaAmbiguityHandler} resolves ambiguities.
+ * <br>
+ * Input symbols are partitioned into classes, which are the coarsest ranges that no transition of the left automaton
+ * distinguishes. Both powerset constructions might blow up exponentially, hence {@link Bimachine#compile} gives up
+ * above a given number of states. Instances are immutable and can be shared by many threads.
+ */
+public final class Bimachine {
+
+    private final int reflect;
+    /**
+     * Inclusive upper bounds of classes of input symbols
+     */
+    private final int[] classEnds;
+    /**
+     * For every left state and class, the target left state or -1 if the class leads nowhere
+     */
+    private final int[][] leftTargets;
+    /**
+     * For every left state, class and index of original state in the target left state,
+     * the index of its best predecessor in the source left state
+     */
+    private final int[][][] predecessors;
+    /**
+     * Same as {@link Bimachine#predecessors} but holds the transition from the predecessor
+     */
+    private final E[][][] predecessorEdges;
+    /**
+     * For every left state, the final edge of the original state with highest final weight or null if none is accepting
+     */
+    private final P[] finalEdges;
+    /**
+     * For every right state and class, the target right state or -1 if the class leads to a suffix that
+     * is not accepted from any left state
+     */
+    private final int[][] rightTargets;
+    /**
+     * For every right state and left state, the index of selected original state within the left state
+     * or -1 if the suffix is not accepted from that left state
+     */
+    private final int[][] selections;
+
+    private Bimachine(int reflect, int[] classEnds, int[][] leftTargets, int[][][] predecessors,
+                      E[][][] predecessorEdges, P[] finalEdges, int[][] rightTargets, int[][] selections) {
+        this.reflect = reflect;
+        this.classEnds = classEnds;
+        this.leftTargets = leftTargets;
+        this.predecessors = predecessors;
+        this.predecessorEdges = predecessorEdges;
+        this.finalEdges = finalEdges;
+        this.rightTargets = rightTargets;
+        this.selections = selections;
+    }
+
+    /**
+     * @param maxStates maximal number of states of each of the two automata
+     * @return null if any of the powerset constructions yields more than maxStates states
+     * @throws Budget.Exceeded if both automata together exceed the {@link LexUnicodeSpecification#budget() budget}
+     */
+    public static Bimachine compile(LexUnicodeSpecification<?, ?> specs, RangedGraph<Pos, Integer, E, P> graph, int maxStates) {
+        final Budget.Scope budget = specs.budget().enter(Budget.Phase.POWERSET);
+        //left automaton
+        final ArrayList<PowersetState> leftStates = new ArrayList<>();
+        final HashMap<PowersetState, Integer> leftStateToIndex = new HashMap<>();
+        final ArrayList<ArrayList<Range<Integer, List<RangedGraph.BiTrans<E>>>>> leftRanges = new ArrayList<>();
+        if (graph.initial != -1) {
+            final PowersetState init = new PowersetState(graph.initial);
+            leftStates.add(init);
+            leftStateToIndex.put(init, 0);
+            budget.states(1);
+        }
+        //symbols are compared as unsigned integers, just like in LexUnicodeSpecification#compare
+        final TreeSet<Integer> ends = new TreeSet<>(Integer::compareUnsigned);
+        for (int i = 0; i < leftStates.size(); i++) {
+            final ArrayList<Range<Integer, List<RangedGraph.BiTrans<E>>>> ranges = specs.powersetTransitions(graph, leftStates.get(i).states,
+                    (source, transitions) -> {
+                        final ArrayList<RangedGraph.BiTrans<E>> bi = new ArrayList<>(transitions.size());
+                        for (RangedGraph.Trans<E> tr : transitions) bi.add(new RangedGraph.BiTrans<>(source, tr));
+                        return bi;
+                    });
+            budget.edges(ranges.size());
+            for (Range<Integer, List<RangedGraph.BiTrans<E>>> range : ranges) {
+                ends.add(range.input());
+                if (range.edges().isEmpty()) continue;
+                final PowersetState target = new PowersetState(new ArrayList<>(range.edges()));
+                if (!leftStateToIndex.containsKey(target)) {
+                    if (leftStates.size() >= maxStates) return null;
+                    leftStateToIndex.put(target, leftStates.size());
+                    leftStates.add(target);
+                    budget.states(1);
+                }
+            }
+            leftRanges.add(ranges);
+        }
+        final int size = leftStates.size();
+        final int[] classEnds = new int[ends.size()];
+        int c = 0;
+        for (int end : ends) classEnds[c++] = end;
+        final int[][] leftTargets = new int[size][classEnds.length];
+        final int[][][] predecessors = new int[size][classEnds.length][];
+        final E[][][] predecessorEdges = new E[size][classEnds.length][];
+        final P[] finalEdges = new P[size];
+        final int[] initialSelection = new int[size];
+        for (int d = 0; d < size; d++) {
+            final int[] states = leftStates.get(d).states;
+            initialSelection[d] = -1;
+            for (int k = 0; k < states.length; k++) {
+                final P fin = graph.accepting.get(states[k]);
+                if (fin != null && (finalEdges[d] == null || finalEdges[d].weight < fin.weight)) {
+                    initialSelection[d] = k;
+                    finalEdges[d] = fin;
+                }
+            }
+        }
+        for (int d = 0; d < size; d++) {
+            final int[] sourceStates = leftStates.get(d).states;
+            final ArrayList<Range<Integer, List<RangedGraph.BiTrans<E>>>> ranges = leftRanges.get(d);
+            //classes refine ranges of every left state, so both are visited in the same order
+            int r = -1;
+            int[] pred = null;
+            E[] predEdge = null;
+            int target = -1;
+            for (c = 0; c < classEnds.length; c++) {
+                if (r == -1 || Integer.compareUnsigned(ranges.get(r).input(), classEnds[c]) < 0) {
+                    r++;
+                    final Range<Integer, List<RangedGraph.BiTrans<E>>> range = ranges.get(r);
+                    assert Integer.compareUnsigned(classEnds[c], range.input()) <= 0;
+                    if (range.edges().isEmpty()) {
+                        target = -1;
+                        pred = null;
+                        predEdge = null;
+                    } else {
+                        target = leftStateToIndex.get(new PowersetState(new ArrayList<>(range.edges())));
+                        final int[] targetStates = leftStates.get(target).states;
+                        pred = new int[targetStates.length];
+                        predEdge = new E[targetStates.length];
+                        for (RangedGraph.BiTrans<E> tr : range.edges()) {
+                            final int k = Arrays.binarySearch(targetStates, tr.targetState);
+                            assert k >= 0;
+                            //exactly like in deltaSuperposition, the transition of highest weight wins
+                            if (predEdge[k] == null || predEdge[k].weight < tr.edge.weight) {
+                                predEdge[k] = tr.edge;
+                                pred[k] = Arrays.binarySearch(sourceStates, tr.sourceState);
+                                assert pred[k] >= 0;
+                            }
+                        }
+                    }
+                }
+                leftTargets[d][c] = target;
+                predecessors[d][c] = pred;
+                predecessorEdges[d][c] = predEdge;
+            }
+        }
+        //right automaton
+        final ArrayList<int[]> selections = new ArrayList<>();
+        final HashMap<IntSeq, Integer> selectionToIndex = new HashMap<>();
+        final ArrayList<int[]> rightTargets = new ArrayList<>();
+        if (!isDead(initialSelection)) {
+            selections.add(initialSelection);
+            selectionToIndex.put(new IntSeq(initialSelection), 0);
+            budget.states(1);
+        }
+        for (int i = 0; i < selections.size(); i++) {
+            final int[] selection = selections.get(i);
+            final int[] targets = new int[classEnds.length];
+            budget.edges(classEnds.length);
+            for (c = 0; c < classEnds.length; c++) {
+                final int[] previous = new int[size];
+                for (int d = 0; d < size; d++) {
+                    final int t = leftTargets[d][c];
+                    final int k = t == -1 ? -1 : selection[t];
+                    previous[d] = k == -1 ? -1 : predecessors[d][c][k];
+                }
+                if (isDead(previous)) {
+                    targets[c] = -1;
+                } else {
+                    final Integer existing = selectionToIndex.get(new IntSeq(previous));
+                    if (existing == null) {
+                        if (selections.size() >= maxStates) return null;
+                        selectionToIndex.put(new IntSeq(previous), selections.size());
+                        targets[c] = selections.size();
+                        selections.add(previous);
+                        budget.states(1);
+                    } else {
+                        targets[c] = existing;
+                    }
+                }
+            }
+            rightTargets.add(targets);
+        }
+        return new Bimachine(specs.reflect(), classEnds, leftTargets, predecessors, predecessorEdges, finalEdges,
+                rightTargets.toArray(new int[0][]), selections.toArray(new int[0][]));
+    }
+
+    private static boolean isDead(int[] selection) {
+        for (int k : selection) if (k != -1) return false;
+        return true;
+    }
+
+    /**
+     * Number of states of the left (powerset) automaton
+     */
+    public int size() {
+        return leftTargets.length;
+    }
+
+    /**
+     * Number of states of the right automaton
+     */
+    public int rightSize() {
+        return selections.length;
+    }
+
+    private int classOf(int symbol) {
+        int lo = 0, hi = classEnds.length - 1;
+        while (lo < hi) {
+            final int mid = (lo + hi) >>> 1;
+            if (Integer.compareUnsigned(classEnds[mid], symbol) < 0) lo = mid + 1;
+            else hi = mid;
+        }
+        return lo;
+    }
+
+    /**
+     * Right-to-left pass over input[from..to) starting in given right state. The visited right states are stored at
+     * indices relative to from, so that rightStates[i-from] is the state reached before reading i-th symbol.
+     *
+     * @return the right state reached at the beginning or -1 if the suffix is rejected from all left states
+     */
+    private int runRight(Seq<Integer> input, int from, int to, int r, int[] rightStates) {
+        rightStates[to - from] = r;
+        for (int i = to - 1; i >= from; i--) {
+            r = rightTargets[r][classOf(input.get(i))];
+            if (r == -1) return -1;
+            rightStates[i - from] = r;
+        }
+        return r;
+    }
+
+    /**
+     * Left-to-right pass that emits output of input[from..to). The right states must have been
+     * computed by {@link Bimachine#runRight} and the input must be accepted.
+     *
+     * @return the left state reached at the end
+     */
+    private int runLeft(Seq<Integer> input, int from, int to, int l, int[] rightStates, IntArrayBuilder output) {
+        for (int i = from; i < to; i++) {
+            final int symbol = input.get(i);
+            final int c = classOf(symbol);
+            final int target = leftTargets[l][c];
+            final E edge = predecessorEdges[l][c][selections[rightStates[i + 1 - from]][target]];
+            for (int j = 0; j < edge.getOut().size(); j++) {
+                final int out = edge.getOut().get(j);
+                output.add(out == reflect ? symbol : out);
+            }
+            l = target;
+        }
+        return l;
+    }
+
+    private void emitFinal(P fin, IntArrayBuilder output) {
+        for (int j = 0; j < fin.out.size(); j++) {
+            final int out = fin.out.get(j);
+            if (out != reflect) output.add(out);
+        }
+    }
+
+    private static final class IntArrayBuilder {
+        int[] array;
+        int size = 0;
+
+        IntArrayBuilder(int capacity) {
+            array = new int[Math.max(capacity, 4)];
+        }
+
+        void add(int value) {
+            if (size == array.length) array = Arrays.copyOf(array, size * 2);
+            array[size++] = value;
+        }
+
+        int[] toArray() {
+            return size == array.length ? array : Arrays.copyOf(array, size);
+        }
+    }
+
+    /**
+     * @return null if input is rejected
+     */
+    public IntSeq evaluate(Seq<Integer> input) {
+        if (selections.length == 0) return null;
+        final int n = input.size();
+        final int[] rightStates = new int[n + 1];
+        final int r = runRight(input, 0, n, 0, rightStates);
+        if (r == -1 || selections[r][0] == -1) return null;
+        final IntArrayBuilder output = new IntArrayBuilder(n);
+        final int l = runLeft(input, 0, n, 0, rightStates, output);
+        emitFinal(finalEdges[l], output);
+        return new IntSeq(output.toArray());
+    }
+
+    /**
+     * Speculative data-parallel evaluation of a single huge input. The input is split into chunks and
+     * for every chunk the mapping from its plausible entry states (those reachable by the symbol that is read just before
+     * the chunk) to exit states is computed in parallel, for both automata. All entry states are simulated at once and
+     * the runs that converge into the same state are merged, which in practice happens within a few symbols,
+     * so the speculation costs little more than a single run. Mappings are then stitched sequentially (right automaton
+     * from the end and left automaton from the beginning). Finally, every chunk reruns the right automaton from its
+     * known exit state and emits its output in parallel. Only the per-chunk arrays of the chunks currently
+     * being processed are held in memory.
+     *
+     * @return the same as {@link Bimachine#evaluate}
+     */
+    public IntSeq evaluateParallel(Seq<Integer> input, int chunks, ExecutorService executor) throws InterruptedException {
+        if (selections.length == 0) return null;
+        final int n = input.size();
+        chunks = Math.max(1, Math.min(chunks, n / 1024));
+        if (chunks == 1) return evaluate(input);
+        final int[] bounds = new int[chunks + 1];
+        for (int c = 0; c <= chunks; c++) bounds[c] = (int) ((long) n * c / chunks);
+        //right mappings
+        final ArrayList<Callable<int[][]>> rightTasks = new ArrayList<>(chunks);
+        for (int c = 0; c < chunks; c++) {
+            final int from = bounds[c], to = bounds[c + 1];
+            rightTasks.add(() -> mapAll(input, from, to, false,
+                    to == n ? new int[]{0} : plausibleEntries(rightTargets, classOf(input.get(to)))));
+        }
+        final List<int[][]> rightMaps = invokeAll(executor, rightTasks);
+        final int[] rightEntries = new int[chunks + 1];
+        for (int c = chunks - 1; c >= 0; c--) {
+            rightEntries[c] = exit(rightMaps.get(c), rightEntries[c + 1]);
+            if (rightEntries[c] == -1) return null;
+        }
+        if (selections[rightEntries[0]][0] == -1) return null;
+        //left mappings
+        final ArrayList<Callable<int[][]>> leftTasks = new ArrayList<>(chunks);
+        for (int c = 0; c < chunks; c++) {
+            final int from = bounds[c], to = bounds[c + 1];
+            leftTasks.add(() -> mapAll(input, from, to, true,
+                    from == 0 ? new int[]{0} : plausibleEntries(leftTargets, classOf(input.get(from - 1)))));
+        }
+        final List<int[][]> leftMaps = invokeAll(executor, leftTasks);
+        final int[] leftEntries = new int[chunks + 1];
+        for (int c = 0; c < chunks; c++) {
+            leftEntries[c + 1] = exit(leftMaps.get(c), leftEntries[c]);
+            //accepted input never leads to dead left state
+            assert leftEntries[c + 1] != -1;
+        }
+        final P fin = finalEdges[leftEntries[chunks]];
+        assert fin != null;
+        //outputs
+        final ArrayList<Callable<int[]>> outputTasks = new ArrayList<>(chunks);
+        for (int c = 0; c < chunks; c++) {
+            final int from = bounds[c], to = bounds[c + 1], leftEntry = leftEntries[c], rightEntry = rightEntries[c + 1];
+            final P chunkFin = c == chunks - 1 ? fin : null;
+            outputTasks.add(() -> {
+                final int[] rightStates = new int[to - from + 1];
+                runRight(input, from, to, rightEntry, rightStates);
+                final IntArrayBuilder output = new IntArrayBuilder(to - from);
+                runLeft(input, from, to, leftEntry, rightStates, output);
+                if (chunkFin != null) emitFinal(chunkFin, output);
+                return output.toArray();
+            });
+        }
+        final List<int[]> outputs = invokeAll(executor, outputTasks);
+        int size = 0;
+        for (int[] o : outputs) size += o.length;
+        final int[] output = new int[size];
+        int offset = 0;
+        for (int[] o : outputs) {
+            System.arraycopy(o, 0, output, offset, o.length);
+            offset += o.length;
+        }
+        return new IntSeq(output);
+    }
+
+    private static <T> List<T> invokeAll(ExecutorService executor, List<Callable<T>> tasks) throws InterruptedException {
+        final ArrayList<T> results = new ArrayList<>(tasks.size());
+        for (Future<T> f : executor.invokeAll(tasks)) {
+            try {
+                results.add(f.get());
+            } catch (ExecutionException e) {
+                throw new RuntimeException(e.getCause());
+            }
+        }
+        return results;
+    }
+
+    private static int exit(int[][] map, int entry) {
+        final int i = Arrays.binarySearch(map[0], entry);
+        assert i >= 0;
+        return map[1][i];
+    }
+
+    /**
+     * Sorted states that can be reached by reading a symbol of given class from any state
+     *
+     * @param targets transition table of either of the two automata
+     */
+    private static int[] plausibleEntries(int[][] targets, int symbolClass) {
+        final boolean[] reachable = new boolean[targets.length];
+        int count = 0;
+        for (int[] stateTargets : targets) {
+            final int t = stateTargets[symbolClass];
+            if (t != -1 && !reachable[t]) {
+                reachable[t] = true;
+                count++;
+            }
+        }
+        final int[] entries = new int[count];
+        for (int d = 0, i = 0; d < targets.length; d++) {
+            if (reachable[d]) entries[i++] = d;
+        }
+        return entries;
+    }
+
+    /**
+     * Runs all entry states over input[from..to) at once (in either direction), merging runs that converge.
+     *
+     * @return pair of arrays: sorted entry states and their respective exit states (-1 if rejected)
+     */
+    private int[][] mapAll(Seq<Integer> input, int from, int to, boolean leftToRight, int[] entries) {
+        final int[][] targets = leftToRight ? leftTargets : rightTargets;
+        final int[] slotOf = new int[entries.length];
+        int[] current = entries.clone();
+        for (int i = 0; i < slotOf.length; i++) slotOf[i] = i;
+        int distinct = current.length;
+        final int[] marker = new int[targets.length + 1];
+        final int[] remap = new int[current.length];
+        for (int step = 0; step < to - from && distinct > 0; step++) {
+            final int symbolClass = classOf(input.get(leftToRight ? from + step : to - 1 - step));
+            int merged = 0;
+            for (int s = 0; s < distinct; s++) {
+                final int d = current[s] == -1 ? -1 : targets[current[s]][symbolClass];
+                if (marker[d + 1] == 0) {
+                    marker[d + 1] = ++merged;
+                    current[merged - 1] = d;
+                }
+                remap[s] = marker[d + 1] - 1;
+            }
+            for (int s = 0; s < merged; s++) marker[current[s] + 1] = 0;
+            if (merged < distinct) {
+                for (int e = 0; e < slotOf.length; e++) slotOf[e] = remap[slotOf[e]];
+                distinct = merged;
+            }
+        }
+        final int[] exits = new int[entries.length];
+        for (int e = 0; e < entries.length; e++) exits[e] = current[slotOf[e]];
+        return new int[][]{entries, exits};
+    }
+}
@@ -0,0 +1,148 @@
+package net.alagris.core;
+
+/**
+ * Limits on resources consumed by a single run of an expensive algorithm (powerset construction, composition,
+ * product, generation of strings or inference of transducers). Those algorithms may build automata of exponential
+ * (or at least quadratic) size and a single unfortunate definition could otherwise exhaust memory or run forever.
+ * Each run {@link #enter enters} its own {@link Scope}, which counts created states and edges and periodically
+ * polls the clock. Once any limit is exceeded, or the budget is {@link #cancel() cancelled} (possibly from another
+ * thread), the algorithm is aborted by throwing {@link Exceeded}. Limits are disabled when not positive.
+ * <br>
+ * Memory is not measured directly. It is estimated from the number of states and edges created so far.
+ */
+public final class Budget {
+
+    public enum Phase {
+        POWERSET, COMPOSE, PRODUCT, GENERATE, LEARN
+    }
+
+    public enum Resource {
+        STATES, EDGES, TIME, MEMORY, CANCELLED
+    }
+
+    /**
+     * Approximate number of bytes retained by a single state (its object, the entry in a hash map from
+     * tuples of original states and a list of transitions)
+     */
+    public static final long STATE_BYTES = 64;
+    /**
+     * Approximate number of bytes retained by a single edge (its object and the reference to it)
+     */
+    public static final long EDGE_BYTES = 48;
+    /**
+     * The clock is polled only once per that many steps, because {@link System#nanoTime()} is not free
+     */
+    private static final int TICKS_PER_CLOCK_POLL = 256;
+
+    public final long maxStates;
+    public final long maxEdges;
+    public final long maxNanos;
+    public final long maxBytes;
+    private volatile boolean cancelled = false;
+
+    public Budget(long maxStates, long maxEdges, long maxNanos, long maxBytes) {
+        this.maxStates = maxStates;
+        this.maxEdges = maxEdges;
+        this.maxNanos = maxNanos;
+        this.maxBytes = maxBytes;
+    }
+
+    public static Budget unlimited() {
+        return new Budget(0, 0, 0, 0);
+    }
+
+    /**
+     * Requests all algorithms running under this budget to abort as soon as possible. All algorithms started
+     * afterwards abort immediately, until the budget is {@link #reset()}.
+     */
+    public void cancel() {
+        cancelled = true;
+    }
+
+    public void reset() {
+        cancelled = false;
+    }
+
+    public boolean isCancelled() {
+        return cancelled;
+    }
+
+    public Scope enter(Phase phase) {
+        final Scope scope = new Scope(phase);
+        scope.check();
+        return scope;
+    }
+
+    /**
+     * Resources consumed by a single run of some algorithm. Scopes are not thread-safe, but every run has its own.
+     */
+    public final class Scope {
+        public final Phase phase;
+        private final long begin = System.nanoTime();
+        private long states = 0;
+        private long edges = 0;
+        private int ticks = 0;
+
+        private Scope(Phase phase) {
+            this.phase = phase;
+        }
+
+        /**
+         * Records creation of new states
+         */
+        public void states(long n) {
+            states += n;
+            if (maxStates > 0 && states > maxStates) throw new Exceeded(phase, Resource.STATES, maxStates);
+            check();
+        }
+
+        /**
+         * Records creation of new edges
+         */
+        public void edges(long n) {
+            edges += n;
+            if (maxEdges > 0 && edges > maxEdges) throw new Exceeded(phase, Resource.EDGES, maxEdges);
+            check();
+        }
+
+        /**
+         * Should be called regularly by long-running loops that do not create any states nor edges
+         */
+        public void check() {
+            if (cancelled) throw new Exceeded(phase, Resource.CANCELLED, 0);
+            if (maxBytes > 0 && estimatedBytes() > maxBytes) throw new Exceeded(phase, Resource.MEMORY, maxBytes);
+            if (maxNanos > 0 && ++ticks % TICKS_PER_CLOCK_POLL == 0 && System.nanoTime() - begin > maxNanos) {
+                throw new Exceeded(phase, Resource.TIME, maxNanos);
+            }
+        }
+
+        public long estimatedBytes() {
+            return states * STATE_BYTES + edges * EDGE_BYTES;
+        }
+
+        public long elapsedNanos() {
+            return System.nanoTime() - begin;
+        }
+    }
+
+    /**
+     * Thrown from within the aborted algorithm. It is unchecked, because it may need to pass through
+     * lambdas and callbacks. {@link ParserListener} converts it into {@link CompilationError.BudgetExceeded}.
+     */
+    public static final class Exceeded extends RuntimeException {
+        public final Phase phase;
+        public final Resource resource;
+        /**
+         * The limit that was exceeded (nanoseconds for {@link Resource#TIME}, bytes for {@link Resource#MEMORY})
+         */
+        public final long limit;
+
+        public Exceeded(Phase phase, Resource resource, long limit) {
+            super(resource == Resource.CANCELLED ? phase + " was cancelled"
+                    : phase + " exceeded the limit of " + limit + " " + resource.name().toLowerCase());
+            this.phase = phase;
+            this.resource = resource;
+            this.limit = limit;
+        }
+    }
+}
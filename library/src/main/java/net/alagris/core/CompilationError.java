@@ -340,4 +340,20 @@ public class CompilationError extends Exception {
             this.pos = pos;
         }
     }
+
+    public static class BudgetExceeded extends CompilationError {
+        public final Pos pos;
+        public final String variable;
+        public final Budget.Phase phase;
+        public final Budget.Resource resource;
+
+        public BudgetExceeded(Pos pos, String variable, Budget.Exceeded cause) {
+            super((variable == null ? "Compilation" : "Compilation of " + variable + " at " + pos)
+                    + " aborted: " + cause.getMessage(), cause);
+            this.pos = pos;
+            this.variable = variable;
+            this.phase = cause.phase;
+            this.resource = cause.resource;
+        }
+    }
 }
@@ -187,7 +187,7 @@ public interface FuncArg<G, O> {
 
     public static <G> FuncArg.Informant<G,IntSeq> loadInformantFromFile(File f,String separator) throws FileNotFoundException {
         final Informant<G,IntSeq> a = new Informant<>();
-        try (Scanner sc = new Scanner(f)) {
+        try (Scanner sc = new Scanner(f, "UTF-8")) {
             while (sc.hasNextLine()) {
                 a.add(parseDatasetLine(sc.nextLine(),separator));
             }
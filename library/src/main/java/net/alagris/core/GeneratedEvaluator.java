@@ -0,0 +1,248 @@
+package net.alagris.core;
+
+import net.alagris.core.LexUnicodeSpecification.E;
+import net.alagris.core.LexUnicodeSpecification.P;
+import net.alagris.core.Specification.Range;
+import net.alagris.core.Specification.RangedGraph;
+
+import javax.tools.*;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.URI;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+
+/**
+ * Deterministic transducer compiled into a dedicated Java class. Every state becomes a method that selects
+ * the outgoing range by a tree of integer comparisons and appends the output of transition symbol by symbol, while
+ * the main loop dispatches between states with a single switch. Such code does not go through any
+ * interfaces, boxed ranges or lists of transitions, so JIT can fully specialise it. The source is compiled at
+ * runtime with the system Java compiler and loaded by its own class loader, hence the class is unloaded together
+ * with the evaluator. The generated class depends only on JDK classes.
+ * <br>
+ * If the transducer is nondeterministic, too large, or the Java compiler is not available (the
+ * program runs on JRE), the evaluator falls back to {@link LexUnicodeSpecification#evaluate(RangedGraph, Seq)}.
+ * Instances are immutable and can be shared by many threads.
+ */
+public final class GeneratedEvaluator {
+
+    /**
+     * States with more ranges than that would generate methods exceeding the JVM limit on method size
+     */
+    public static final int MAX_RANGES_PER_STATE = 512;
+    /**
+     * Outputs longer than that are stored in arrays instead of being inlined into the code
+     */
+    private static final int MAX_INLINED_OUTPUT = 8;
+    private static final String PACKAGE = "net.alagris.generated";
+    private static final AtomicInteger CLASS_COUNTER = new AtomicInteger();
+
+    private final LexUnicodeSpecification<?, ?> specs;
+    private final RangedGraph<?, Integer, E, P> graph;
+    /**
+     * Null if the evaluator falls back to generic evaluation
+     */
+    private final Function<int[], int[]> generated;
+
+    private GeneratedEvaluator(LexUnicodeSpecification<?, ?> specs, RangedGraph<?, Integer, E, P> graph,
+                               Function<int[], int[]> generated) {
+        this.specs = specs;
+        this.graph = graph;
+        this.generated = generated;
+    }
+
+    /**
+     * @param maxStates transducers with more states are not generated
+     */
+    public static GeneratedEvaluator compile(LexUnicodeSpecification<?, ?> specs, RangedGraph<?, Integer, E, P> graph, int maxStates) {
+        return new GeneratedEvaluator(specs, graph, generate(specs, graph, maxStates));
+    }
+
+    /**
+     * @return true if evaluation runs through generated class and false if it falls back to generic evaluation
+     */
+    public boolean isGenerated() {
+        return generated != null;
+    }
+
+    /**
+     * @return null if input is rejected
+     */
+    public IntSeq evaluate(Seq<Integer> input) {
+        if (generated == null) return specs.evaluate(graph, input);
+        final int[] in = new int[input.size()];
+        for (int i = 0; i < in.length; i++) in[i] = input.get(i);
+        final int[] out = generated.apply(in);
+        return out == null ? null : new IntSeq(out);
+    }
+
+    private static Function<int[], int[]> generate(LexUnicodeSpecification<?, ?> specs, RangedGraph<?, Integer, E, P> graph, int maxStates) {
+        if (graph.size() > maxStates || graph.isDeterministic() != null) return null;
+        for (ArrayList<Range<Integer, List<RangedGraph.Trans<E>>>> ranges : graph.graph) {
+            if (ranges.size() > MAX_RANGES_PER_STATE) return null;
+        }
+        final JavaCompiler compiler = ToolProvider.getSystemJavaCompiler();
+        if (compiler == null) return null;
+        final String simpleName = "Transducer" + CLASS_COUNTER.incrementAndGet();
+        final ArrayList<int[]> arrays = new ArrayList<>();
+        final String source = source(specs.reflect(), graph, simpleName, arrays);
+        final int[][] finals = new int[graph.size()][];
+        for (int state = 0; state < finals.length; state++) {
+            final P fin = graph.accepting.get(state);
+            if (fin != null) finals[state] = withoutReflections(specs.reflect(), fin.out);
+        }
+        try {
+            final Class<?> cls = compileAndLoad(compiler, PACKAGE + "." + simpleName, source);
+            if (cls == null) return null;
+            @SuppressWarnings("unchecked") final Function<int[], int[]> f = (Function<int[], int[]>) cls
+                    .getConstructor(int[][].class, int[][].class)
+                    .newInstance(arrays.toArray(new int[0][]), finals);
+            return f;
+        } catch (ReflectiveOperationException | IOException e) {
+            return null;
+        }
+    }
+
+    private static int[] withoutReflections(int reflect, IntSeq out) {
+        int len = 0;
+        for (int i = 0; i < out.size(); i++) if (out.at(i) != reflect) len++;
+        final int[] arr = new int[len];
+        len = 0;
+        for (int i = 0; i < out.size(); i++) if (out.at(i) != reflect) arr[len++] = out.at(i);
+        return arr;
+    }
+
+    /**
+     * Symbols are compared as unsigned integers. Flipping the sign bit makes signed comparison equivalent.
+     */
+    private static String flipped(int symbol) {
+        return String.format("0x%08x", symbol ^ Integer.MIN_VALUE);
+    }
+
+    static String source(int reflect, RangedGraph<?, Integer, E, P> graph, String simpleName, ArrayList<int[]> arrays) {
+        final StringBuilder sb = new StringBuilder();
+        sb.append("package ").append(PACKAGE).append(";\n");
+        sb.append("public final class ").append(simpleName).append(" implements java.util.function.Function<int[], int[]> {\n");
+        sb.append("  private static final class Out {\n");
+        sb.append("    int[] a = new int[16];\n");
+        sb.append("    int n = 0;\n");
+        sb.append("    void put(int s) { if (n == a.length) a = java.util.Arrays.copyOf(a, n * 2); a[n++] = s; }\n");
+        sb.append("    void putAll(int[] arr, int c) { for (int s : arr) put(s == ").append(reflect).append(" ? c : s); }\n");
+        sb.append("  }\n");
+        sb.append("  private final int[][] outs;\n");
+        sb.append("  private final int[][] finals;\n");
+        sb.append("  public ").append(simpleName).append("(int[][] outs, int[][] finals) { this.outs = outs; this.finals = finals; }\n");
+        sb.append("  public int[] apply(int[] in) {\n");
+        sb.append("    final Out o = new Out();\n");
+        sb.append("    int s = ").append(graph.initial).append(";\n");
+        sb.append("    for (int i = 0; i < in.length && s != -1; i++) {\n");
+        sb.append("      final int c = in[i];\n");
+        sb.append("      switch (s) {\n");
+        for (int state = 0; state < graph.size(); state++) {
+            sb.append("        case ").append(state).append(": s = s").append(state).append("(c, o); break;\n");
+        }
+        sb.append("        default: s = -1;\n");
+        sb.append("      }\n");
+        sb.append("    }\n");
+        sb.append("    if (s == -1 || finals[s] == null) return null;\n");
+        sb.append("    for (int f : finals[s]) o.put(f);\n");
+        sb.append("    return java.util.Arrays.copyOf(o.a, o.n);\n");
+        sb.append("  }\n");
+        for (int state = 0; state < graph.size(); state++) {
+            final ArrayList<Range<Integer, List<RangedGraph.Trans<E>>>> ranges = graph.graph.get(state);
+            sb.append("  private int s").append(state).append("(int c, Out o) {\n");
+            sb.append("    final int x = c ^ 0x80000000;\n");
+            appendRanges(sb, reflect, ranges, 0, ranges.size() - 1, "    ", arrays);
+            sb.append("  }\n");
+        }
+        sb.append("}\n");
+        return sb.toString();
+    }
+
+    /**
+     * Binary search over inclusive upper bounds of ranges lo..hi unrolled into nested conditions
+     */
+    private static void appendRanges(StringBuilder sb, int reflect, ArrayList<Range<Integer, List<RangedGraph.Trans<E>>>> ranges,
+                                     int lo, int hi, String indent, ArrayList<int[]> arrays) {
+        if (lo == hi) {
+            final List<RangedGraph.Trans<E>> edges = ranges.get(lo).edges();
+            if (edges.isEmpty() || edges.get(0).targetState == -1) {
+                sb.append(indent).append("return -1;\n");
+                return;
+            }
+            final RangedGraph.Trans<E> tr = edges.get(0);
+            final IntSeq out = tr.edge.getOut();
+            if (out.size() > MAX_INLINED_OUTPUT) {
+                sb.append(indent).append("o.putAll(outs[").append(arrays.size()).append("], c);\n");
+                final int[] arr = new int[out.size()];
+                for (int i = 0; i < arr.length; i++) arr[i] = out.at(i);
+                arrays.add(arr);
+            } else {
+                for (int i = 0; i < out.size(); i++) {
+                    final int symbol = out.at(i);
+                    sb.append(indent).append("o.put(").append(symbol == reflect ? "c" : String.valueOf(symbol)).append(");\n");
+                }
+            }
+            sb.append(indent).append("return ").append(tr.targetState).append(";\n");
+            return;
+        }
+        final int mid = (lo + hi) >>> 1;
+        sb.append(indent).append("if (x <= ").append(flipped(ranges.get(mid).input())).append(") {\n");
+        appendRanges(sb, reflect, ranges, lo, mid, indent + "  ", arrays);
+        sb.append(indent).append("} else {\n");
+        appendRanges(sb, reflect, ranges, mid + 1, hi, indent + "  ", arrays);
+        sb.append(indent).append("}\n");
+    }
+
+    /**
+     * Compiles the source in memory and defines all resulting classes (including nested ones) in a fresh class loader
+     *
+     * @return null if compilation failed (for instance because the generated code exceeded some limit of JVM)
+     */
+    private static Class<?> compileAndLoad(JavaCompiler compiler, String className, String source) throws ClassNotFoundException, IOException {
+        final HashMap<String, ByteArrayOutputStream> classes = new HashMap<>();
+        final JavaFileObject sourceFile = new SimpleJavaFileObject(
+                URI.create("string:///" + className.replace('.', '/') + JavaFileObject.Kind.SOURCE.extension),
+                JavaFileObject.Kind.SOURCE) {
+            @Override
+            public CharSequence getCharContent(boolean ignoreEncodingErrors) {
+                return source;
+            }
+        };
+        final StandardJavaFileManager standard = compiler.getStandardFileManager(null, null, null);
+        final JavaFileManager inMemory = new ForwardingJavaFileManager<StandardJavaFileManager>(standard) {
+            @Override
+            public JavaFileObject getJavaFileForOutput(Location location, String name, JavaFileObject.Kind kind, FileObject sibling) {
+                return new SimpleJavaFileObject(URI.create("mem:///" + name.replace('.', '/') + kind.extension), kind) {
+                    @Override
+                    public OutputStream openOutputStream() {
+                        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+                        classes.put(name, bytes);
+                        return bytes;
+                    }
+                };
+            }
+        };
+        final DiagnosticCollector<JavaFileObject> diagnostics = new DiagnosticCollector<>();
+        final Boolean success;
+        try {
+            success = compiler.getTask(null, inMemory, diagnostics,
+                    Arrays.asList("-g:none", "-proc:none"), null, Collections.singletonList(sourceFile)).call();
+        } finally {
+            inMemory.close();
+        }
+        if (success == null || !success) return null;
+        final ClassLoader loader = new ClassLoader(GeneratedEvaluator.class.getClassLoader()) {
+            @Override
+            protected Class<?> findClass(String name) throws ClassNotFoundException {
+                final ByteArrayOutputStream bytes = classes.get(name);
+                if (bytes == null) throw new ClassNotFoundException(name);
+                final byte[] b = bytes.toByteArray();
+                return defineClass(name, b, 0, b.length);
+            }
+        };
+        return loader.loadClass(className);
+    }
+}
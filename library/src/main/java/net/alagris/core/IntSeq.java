@@ -213,7 +213,7 @@ public final class IntSeq implements Seq<Integer>, Comparable<IntSeq>, List<Inte
 	}
 	public int indexOf(int offset, int j) {
 		int i = offset+this.offset;
-		while (i < size())
+		while (i < endExclusive)
 			if (arr[i] == j)
 				return i - this.offset;
 			else
@@ -225,7 +225,7 @@ public final class IntSeq implements Seq<Integer>, Comparable<IntSeq>, List<Inte
 	public int lastIndexOf(Object o) {
 		int j = (int) o;
 		int i = endExclusive;
-		while (--i >= 0)
+		while (--i >= offset)
 			if (arr[i] == j)
 				return i - offset;
 		return -1;
@@ -374,7 +374,7 @@ public final class IntSeq implements Seq<Integer>, Comparable<IntSeq>, List<Inte
 	public <T> T[] toArray(T[] a) {
 		Integer[] e = new Integer[size()];
 		for (int i = offset; i < endExclusive; i++)
-			e[i] = arr[i];
+			e[i - offset] = arr[i];
 		return (T[]) e;
 	}
 
@@ -513,7 +513,7 @@ public final class IntSeq implements Seq<Integer>, Comparable<IntSeq>, List<Inte
 
 			@Override
 			public Integer next() {
-				return arr[--i];
+				return arr[offset + --i];
 			}
 		};
 	}
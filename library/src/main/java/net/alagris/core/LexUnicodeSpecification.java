@@ -36,8 +36,48 @@ public abstract class LexUnicodeSpecification<N, G extends IntermediateGraph<Pos
     public final HashMap<String, ExternalFunction<G>> externalFunc = new HashMap<>();
     public final HashMap<String, ExternalPipeline<G>> externalPips = new HashMap<>();
     public final HashMap<String, Var<N, G>> variableAssignments = new HashMap<>();
+    /**
+     * Number of variables that hold each graph. References to variables do not copy graphs eagerly.
+     * Instead, the same graph may be shared by many variables and it is copied only right before it
+     * would be mutated (copy-on-write).
+     */
+    private final IdentityHashMap<G, Integer> graphOwners = new IdentityHashMap<>();
     public final HashMap<String, Pipeline<Pos, Integer, E, P, N, G>> pipelines = new HashMap<>();
     public final DeltaAmbiguityHandler deltaAmbiguityHandler;
+    public final Metrics metrics;
+    private final long mergeFinalLeavesThreshold;
+    private final int beamWidth;
+    private final long beamBudgetNanos;
+    private final long beamBudgetExpansions;
+    private final boolean beamVerify;
+    private final int importThreads;
+    /**
+     * If true, every optimised and decompressed graph stores its outputs in its own {@link OutputArena}.
+     * Arenas are not shared between graphs, so that the outputs are released together with their graph
+     * (when its variable is redefined or removed).
+     */
+    private final boolean internOutputs;
+    /**
+     * If true, states of variables and pipelines do not keep their own source positions
+     * (see {@link #stripMetadata(Specification.RangedGraph, Pos)}).
+     */
+    private final boolean releaseMode;
+    /**
+     * Budget of {@link PipelineFusion}. Fusion is disabled if not positive.
+     */
+    private final int pipelineFusionMaxStates;
+    /**
+     * Fusions applied by {@link PipelineFusion} to every registered pipeline
+     */
+    private final HashMap<String, List<PipelineFusion.Fusion>> appliedFusions = new HashMap<>();
+    /**
+     * Limits on expensive algorithms. It can be cancelled from another thread in order to abort compilation.
+     */
+    private final Budget budget;
+    /**
+     * See {@link Config#approximateMergeCandidates}
+     */
+    private final boolean approximateMergeCandidates;
 
     public void setVariableRedefinitionCallback(VarRedefinitionCallback<N, G> variableRedefinitionCallback) {
         this.variableRedefinitionCallback = variableRedefinitionCallback;
@@ -108,6 +148,28 @@ public abstract class LexUnicodeSpecification<N, G extends IntermediateGraph<Pos
         deltaAmbiguityHandler = config.deltaAmbiguityHandler;
         skipTypechecking = config.skipTypechecking;
         this.eagerCopy = config.eagerCopy;
+        metrics = config.metrics;
+        approximateMergeCandidates = config.approximateMergeCandidates;
+        mergeFinalLeavesThreshold = config.mergeFinalLeavesThreshold;
+        beamWidth = config.beamWidth;
+        beamBudgetNanos = config.beamBudgetNanos;
+        beamBudgetExpansions = config.beamBudgetExpansions;
+        beamVerify = config.beamVerify;
+        importThreads = config.importThreads;
+        internOutputs = config.internOutputs;
+        releaseMode = config.releaseMode;
+        pipelineFusionMaxStates = config.pipelineFusionMaxStates;
+        budget = new Budget(config.budgetMaxStates, config.budgetMaxEdges,
+                config.budgetMaxMillis * 1000000, config.budgetMaxBytes);
+    }
+
+    @Override
+    public Budget budget() {
+        return budget;
+    }
+
+    public boolean approximateMergeCandidates() {
+        return approximateMergeCandidates;
     }
 
     @Override
@@ -148,10 +210,43 @@ public abstract class LexUnicodeSpecification<N, G extends IntermediateGraph<Pos
         if (variable.optimal == null) {
             variable.optimal = optimiseGraph(variable.graph);
             reduceEdges(variable.pos, variable.optimal);
+            internOutputs(variable.optimal);
+            if (releaseMode) stripMetadata(variable.optimal, variable.pos);
         }
         return variable.optimal;
     }
 
+    /**
+     * @return new arena for outputs of a single graph or null if interning is disabled
+     */
+    private OutputArena newOutputArena() {
+        return internOutputs ? new OutputArena() : null;
+    }
+
+    private static IntSeq internOutput(OutputArena outputArena, IntSeq out) {
+        return outputArena == null ? out : outputArena.intern(out);
+    }
+
+    /**
+     * Replaces outputs of all edges and final edges with their canonical instances
+     * (see {@link OutputArena}). Does nothing if interning is disabled. Edges may be shared with
+     * intermediate graphs, which is safe because the outputs remain equal.
+     */
+    public void internOutputs(RangedGraph<?, Integer, E, P> g) {
+        final OutputArena outputArena = newOutputArena();
+        if (outputArena == null) return;
+        for (ArrayList<Range<Integer, List<RangedGraph.Trans<E>>>> ranges : g.graph) {
+            for (Range<Integer, List<RangedGraph.Trans<E>>> range : ranges) {
+                for (RangedGraph.Trans<E> tr : range.edges()) {
+                    tr.edge.out = outputArena.intern(tr.edge.out);
+                }
+            }
+        }
+        for (P fin : g.accepting) {
+            if (fin != null) fin.out = outputArena.intern(fin.out);
+        }
+    }
+
 
     @Override
     public void typecheckInputOnly(Pos typePos, String name, G in) throws CompilationError {
@@ -262,6 +357,21 @@ public abstract class LexUnicodeSpecification<N, G extends IntermediateGraph<Pos
         return edge.weight;
     }
 
+    @Override
+    public final IntSeq partialOutput(P edge) {
+        return edge.out;
+    }
+
+    @Override
+    public final Integer partialWeight(P edge) {
+        return edge.weight;
+    }
+
+    @Override
+    public long mergeFinalLeavesThreshold() {
+        return mergeFinalLeavesThreshold;
+    }
+
     @Override
     public final P multiplyPartialEdges(P edge, P edge2) {
         return new P(multiplyOutputs(edge.out, edge2.out), multiplyWeights(edge.weight, edge2.weight));
@@ -354,8 +464,12 @@ public abstract class LexUnicodeSpecification<N, G extends IntermediateGraph<Pos
 
     @Override
     public Var<N, G> introduceVariable(String name, Pos pos, G graph, int groupIndex, boolean alwaysCopy) throws CompilationError {
+        //a graph shared with another variable has been stripped already and must not be relabeled
+        if (releaseMode && !isOwnedByVariable(graph)) stripMetadata(graph, pos);
         final Var<N, G> g = new Var<>(graph, name, pos, groupIndex, alwaysCopy);
         final Var<N, G> prev = variableAssignments.put(name, g);
+        graphOwners.merge(graph, 1, Integer::sum);
+        if (prev != null) releaseGraph(prev.graph);
 
         if (prev != null) variableRedefinitionCallback.redefined(prev, g, pos);
         return g;
@@ -366,21 +480,43 @@ public abstract class LexUnicodeSpecification<N, G extends IntermediateGraph<Pos
         return variableAssignments.get(var);
     }
 
+    /**
+     * Variables declared with alwaysCopy are not removed. Their graph is then still owned
+     * by the variable (see {@link LexUnicodeSpecification#isOwnedByVariable}) and will be copied lazily.
+     */
     @Override
     public Var<N, G> consumeVariable(String varId) {
-        class Ref {
-            Var<N, G> meta;
+        final Var<N, G> meta = variableAssignments.get(varId);
+        if (meta != null && !meta.alwaysCopy) {
+            variableAssignments.remove(varId);
+            releaseGraph(meta.graph);
         }
-        final Ref ref = new Ref();
-        variableAssignments.compute(varId, (k, meta) -> {
-            ref.meta = meta;
-            if (meta != null && meta.alwaysCopy) {
-                return new Var<N, G>(deepClone(meta.graph), meta.name, meta.pos, meta.groupIndex, true);
-            } else {
-                return null;
-            }
-        });
-        return ref.meta;
+        return meta;
+    }
+
+    /**
+     * Removes variable without using it.
+     *
+     * @return the removed variable or null if there was no such variable
+     */
+    public Var<N, G> removeVariable(String varId) {
+        final Var<N, G> meta = variableAssignments.remove(varId);
+        if (meta != null) releaseGraph(meta.graph);
+        return meta;
+    }
+
+    public void removeAllVariables() {
+        variableAssignments.clear();
+        graphOwners.clear();
+    }
+
+    private void releaseGraph(G graph) {
+        graphOwners.computeIfPresent(graph, (g, owners) -> owners == 1 ? null : owners - 1);
+    }
+
+    @Override
+    public boolean isOwnedByVariable(G graph) {
+        return graphOwners.containsKey(graph);
     }
 
     @Override
@@ -704,6 +840,7 @@ public abstract class LexUnicodeSpecification<N, G extends IntermediateGraph<Pos
         final Pair<HashMap<PowersetState, IdxAndTrans<Integer, E, RangedGraph.BiTrans<E>>>, RangedGraph<Pos, Integer, E, P>> p = powersetWithSuperstates(
                 g, (i, trs) -> Util.mapListLazy(trs, tr -> new RangedGraph.BiTrans<>(i, tr)));
         final RangedGraph<Pos, Integer, E, P> powersetGraph = p.r();
+        final Budget.Scope budget = budget().enter(Budget.Phase.GENERATE);
         final ArrayList<Range<Integer, List<RangedGraph.BiTrans<E>>>>[] nfaTransPerPowersetState = new ArrayList[p.l()
                 .size()];
         for (Entry<PowersetState, IdxAndTrans<Integer, E, RangedGraph.BiTrans<E>>> entry : p.l().entrySet()) {
@@ -740,6 +877,7 @@ public abstract class LexUnicodeSpecification<N, G extends IntermediateGraph<Pos
             final ComputationBranch computationBranch = computationTree.poll();
             assert computationBranch != null;
             final int numOfPoppedComputationBranches = computationBranch.backtracksPerState.size();
+            budget.states(numOfPoppedComputationBranches);
             final Iterator<Entry<Integer, Carry<Y>>> iter = computationBranch.backtracksPerState.entrySet().iterator();
             BacktrackingNode acceptedTrace = null;
             int acceptedState = -1;
@@ -1124,11 +1262,19 @@ public abstract class LexUnicodeSpecification<N, G extends IntermediateGraph<Pos
     }
 
     /**
-     * Performs evaluation and uses hashtags outputs as reflections of input
+     * Performs evaluation and uses hashtags outputs as reflections of input. Statistics are reported
+     * to {@link LexUnicodeSpecification#metrics}
      */
     public IntSeq evaluate(Specification.RangedGraph<?, Integer, E, P> graph, int initial, Seq<Integer> input) {
-        final BacktrackingHead head = evaluate(graph, initial, input.iterator());
-        return head == null ? null : collect(head, input);
+        final Metrics.Evaluation evaluation = metrics.begin(graph);
+        final HashMap<Integer, BacktrackingNode> thisSuperposition = new HashMap<>();
+        if (initial != -1)
+            thisSuperposition.put(initial, null);
+        final BacktrackingHead head = bestFinal(graph, deltaSuperpositionTransitive(graph, input.iterator(),
+                thisSuperposition, new HashMap<>(), evaluation));
+        final IntSeq out = head == null ? null : collect(head, input);
+        evaluation.end(out != null);
+        return out;
     }
 
     @Override
@@ -1295,7 +1441,16 @@ public abstract class LexUnicodeSpecification<N, G extends IntermediateGraph<Pos
     public BacktrackingHead evaluate(RangedGraph<?, Integer, E, P> graph, int initial, Iterator<Integer> input) {
 
         final HashMap<Integer, BacktrackingNode> thisList = deltaSuperpositionTransitiveFromInitial(graph, initial, input, new HashMap<>(), new HashMap<>());
-        final Iterator<Map.Entry<Integer, BacktrackingNode>> iter = thisList.entrySet().iterator();
+        return bestFinal(graph, thisList);
+    }
+
+    /**
+     * Chooses the accepting state with highest final weight among all states of superposition.
+     *
+     * @return null if none of the states is accepting
+     */
+    public BacktrackingHead bestFinal(RangedGraph<?, Integer, E, P> graph, HashMap<Integer, BacktrackingNode> superposition) {
+        final Iterator<Map.Entry<Integer, BacktrackingNode>> iter = superposition.entrySet().iterator();
         if (iter.hasNext()) {
             Map.Entry<Integer, BacktrackingNode> first = iter.next();
             P bestFinalEdge = graph.accepting.get(first.getKey());
@@ -1330,6 +1485,14 @@ public abstract class LexUnicodeSpecification<N, G extends IntermediateGraph<Pos
      * @throws IndexOutOfBoundsException if the outputBuffer is too small
      */
     public int evaluateTabular(RangedGraph<?, Integer, E, P> graph, byte[] stateToIndex, int[] outputBuffer, int initial, Seq<Integer> input) {
+        if (!metrics.isEnabled()) return evaluateTabularUnmetered(graph, stateToIndex, outputBuffer, initial, input);
+        final long begin = System.nanoTime();
+        final int outLen = evaluateTabularUnmetered(graph, stateToIndex, outputBuffer, initial, input);
+        metrics.evaluated(graph, System.nanoTime() - begin, input.size(), -1, outLen != -1);
+        return outLen;
+    }
+
+    private int evaluateTabularUnmetered(RangedGraph<?, Integer, E, P> graph, byte[] stateToIndex, int[] outputBuffer, int initial, Seq<Integer> input) {
         assert stateToIndex.length >= graph.size();
         class BcktrckinNode {
             int prevIndex;
@@ -1449,6 +1612,7 @@ public abstract class LexUnicodeSpecification<N, G extends IntermediateGraph<Pos
                         prev.prev = stateAndNode.getValue();
                     } else if (prev.edge.weight == transition.edge.weight
                             && !prev.edge.out.equals(transition.edge.out)) {
+                        metrics.ambiguityResolved();
                         deltaAmbiguityHandler.resolve(prev, transition);
                     }
                     return prev;
@@ -1469,9 +1633,17 @@ public abstract class LexUnicodeSpecification<N, G extends IntermediateGraph<Pos
     public HashMap<Integer, BacktrackingNode> deltaSuperpositionTransitive(RangedGraph<?, Integer, E, P> graph, Iterator<Integer> input,
                                                                            HashMap<Integer, BacktrackingNode> thisSuperposition,
                                                                            HashMap<Integer, BacktrackingNode> nextSuperposition) {
+        return deltaSuperpositionTransitive(graph, input, thisSuperposition, nextSuperposition, Metrics.Evaluation.NONE);
+    }
+
+    public HashMap<Integer, BacktrackingNode> deltaSuperpositionTransitive(RangedGraph<?, Integer, E, P> graph, Iterator<Integer> input,
+                                                                           HashMap<Integer, BacktrackingNode> thisSuperposition,
+                                                                           HashMap<Integer, BacktrackingNode> nextSuperposition,
+                                                                           Metrics.Evaluation evaluation) {
         while (input.hasNext() && !thisSuperposition.isEmpty()) {
             final int in = input.next();
             deltaSuperposition(graph, in, thisSuperposition, nextSuperposition);
+            evaluation.step(nextSuperposition.size());
             final HashMap<Integer, BacktrackingNode> tmp = thisSuperposition;
             thisSuperposition = nextSuperposition;
             nextSuperposition = tmp;
@@ -1480,6 +1652,187 @@ public abstract class LexUnicodeSpecification<N, G extends IntermediateGraph<Pos
         return thisSuperposition;
     }
 
+    /**
+     * Evaluates many inputs at once. Inputs are visited in lexicographic order and the superposition
+     * reached after every prefix is kept on a stack, so each distinct prefix shared by consecutive inputs
+     * is evaluated only once. This pays off for batches of similar strings (paths, codes, word lists).
+     * Superpositions of previous columns are never mutated by {@link LexUnicodeSpecification#deltaSuperposition},
+     * therefore resuming from any saved column yields the exact same result as evaluating from scratch.
+     *
+     * @return outputs in the same order as inputs (null for rejected inputs)
+     */
+    public IntSeq[] evaluateBatch(RangedGraph<?, Integer, E, P> graph, List<? extends Seq<Integer>> inputs) {
+        final IntSeq[] outputs = new IntSeq[inputs.size()];
+        if (metrics.isEnabled()) {
+            for (int i = 0; i < outputs.length; i++) outputs[i] = evaluate(graph, inputs.get(i));
+            return outputs;
+        }
+        final Integer[] order = new Integer[outputs.length];
+        for (int i = 0; i < order.length; i++) order[i] = i;
+        Arrays.sort(order, (a, b) -> compareLexicographically(inputs.get(a), inputs.get(b)));
+        //columns.get(d) is the superposition after reading first d symbols of previous input
+        final ArrayList<HashMap<Integer, BacktrackingNode>> columns = new ArrayList<>();
+        columns.add(new HashMap<>());
+        if (graph.initial != -1) columns.get(0).put(graph.initial, null);
+        Seq<Integer> prev = null;
+        int computed = 0;//number of valid columns (minus one)
+        for (int idx : order) {
+            final Seq<Integer> input = inputs.get(idx);
+            int depth = prev == null ? 0 : Math.min(commonPrefixLength(prev, input), computed);
+            while (depth < input.size() && !columns.get(depth).isEmpty()) {
+                if (columns.size() == depth + 1) columns.add(new HashMap<>());
+                final HashMap<Integer, BacktrackingNode> next = columns.get(depth + 1);
+                next.clear();
+                deltaSuperposition(graph, input.get(depth), columns.get(depth), next);
+                depth++;
+            }
+            computed = depth;
+            prev = input;
+            if (depth == input.size()) {
+                final BacktrackingHead head = bestFinal(graph, columns.get(depth));
+                outputs[idx] = head == null ? null : collect(head, input);
+            }
+        }
+        return outputs;
+    }
+
+    /**
+     * Same as {@link LexUnicodeSpecification#evaluateBeam(RangedGraph, Seq, int, long, long, boolean)} with
+     * the settings taken from {@link Config}
+     */
+    public BeamResult evaluateBeam(RangedGraph<?, Integer, E, P> graph, Seq<Integer> input) {
+        return evaluateBeam(graph, input, beamWidth, beamBudgetNanos, beamBudgetExpansions, beamVerify);
+    }
+
+    /**
+     * Beam-pruned evaluation for highly ambiguous transducers, whose superposition could otherwise grow to
+     * thousands of states. After every symbol only the beamWidth states with the highest accumulated weight
+     * (sum of weights of all edges on the path chosen by {@link LexUnicodeSpecification#deltaSuperposition}) are kept.
+     * Ties are broken in favour of smaller state indices, so that the result is deterministic.
+     *
+     * @param beamWidth        if not positive, no pruning takes place
+     * @param budgetNanos      if positive, evaluation is aborted (with partial result) once it runs longer
+     * @param budgetExpansions if positive, evaluation is aborted (with partial result) once the total number of
+     *                         expanded states of superposition exceeds it. Unlike time, this budget is deterministic.
+     * @param verify           if true and some states were pruned, the exact evaluation is run as well in order to
+     *                         report whether pruning changed the output
+     */
+    public BeamResult evaluateBeam(RangedGraph<?, Integer, E, P> graph, Seq<Integer> input, int beamWidth,
+                                   long budgetNanos, long budgetExpansions, boolean verify) {
+        final long begin = System.nanoTime();
+        HashMap<Integer, BacktrackingNode> thisSuperposition = new HashMap<>();
+        HashMap<Integer, BacktrackingNode> nextSuperposition = new HashMap<>();
+        IdentityHashMap<BacktrackingNode, Long> thisWeights = new IdentityHashMap<>();
+        IdentityHashMap<BacktrackingNode, Long> nextWeights = new IdentityHashMap<>();
+        if (graph.initial != -1)
+            thisSuperposition.put(graph.initial, null);
+        int consumed = 0;
+        long expansions = 0;
+        long pruned = 0;
+        int maxWidth = thisSuperposition.size();
+        while (consumed < input.size() && !thisSuperposition.isEmpty()) {
+            if ((budgetExpansions > 0 && expansions + thisSuperposition.size() > budgetExpansions)
+                    || (budgetNanos > 0 && System.nanoTime() - begin > budgetNanos)) {
+                final IntSeq partial = collectPartial(thisSuperposition, thisWeights, input, consumed);
+                if (metrics.isEnabled())
+                    metrics.evaluated(graph, System.nanoTime() - begin, consumed, expansions, false);
+                return new BeamResult(partial, BeamResult.Status.OUT_OF_BUDGET, consumed, pruned, maxWidth, false, false);
+            }
+            expansions += thisSuperposition.size();
+            deltaSuperposition(graph, input.get(consumed), thisSuperposition, nextSuperposition);
+            nextWeights.clear();
+            for (BacktrackingNode node : nextSuperposition.values()) {
+                nextWeights.put(node, accumulatedWeight(thisWeights, node.prev) + node.edge.weight);
+            }
+            maxWidth = Math.max(maxWidth, nextSuperposition.size());
+            if (beamWidth > 0 && nextSuperposition.size() > beamWidth) {
+                pruned += prune(nextSuperposition, nextWeights, beamWidth);
+            }
+            final HashMap<Integer, BacktrackingNode> tmp = thisSuperposition;
+            thisSuperposition = nextSuperposition;
+            nextSuperposition = tmp;
+            nextSuperposition.clear();
+            final IdentityHashMap<BacktrackingNode, Long> tmpWeights = thisWeights;
+            thisWeights = nextWeights;
+            nextWeights = tmpWeights;
+            consumed++;
+        }
+        final IntSeq out;
+        if (consumed < input.size()) {
+            out = null;
+        } else {
+            final BacktrackingHead head = bestFinal(graph, thisSuperposition);
+            out = head == null ? null : collect(head, input);
+        }
+        if (metrics.isEnabled())
+            metrics.evaluated(graph, System.nanoTime() - begin, consumed, expansions, out != null);
+        if (pruned == 0) {
+            return new BeamResult(out, BeamResult.Status.EXACT, consumed, 0, maxWidth, false, false);
+        }
+        final boolean changed = verify && !Objects.equals(out, evaluate(graph, input));
+        return new BeamResult(out, BeamResult.Status.PRUNED, consumed, pruned, maxWidth, verify, changed);
+    }
+
+    private static long accumulatedWeight(IdentityHashMap<BacktrackingNode, Long> weights, BacktrackingNode node) {
+        return node == null ? 0 : weights.get(node);
+    }
+
+    /**
+     * Keeps only beamWidth states with the highest accumulated weight
+     *
+     * @return number of removed states
+     */
+    private static int prune(HashMap<Integer, BacktrackingNode> superposition,
+                             IdentityHashMap<BacktrackingNode, Long> weights, int beamWidth) {
+        final ArrayList<Map.Entry<Integer, BacktrackingNode>> entries = new ArrayList<>(superposition.entrySet());
+        entries.sort((a, b) -> {
+            final int c = Long.compare(weights.get(b.getValue()), weights.get(a.getValue()));
+            return c != 0 ? c : Integer.compare(a.getKey(), b.getKey());
+        });
+        for (int i = beamWidth; i < entries.size(); i++) {
+            final Map.Entry<Integer, BacktrackingNode> removed = entries.get(i);
+            weights.remove(removed.getValue());
+            superposition.remove(removed.getKey());
+        }
+        return entries.size() - beamWidth;
+    }
+
+    /**
+     * Output of the path with highest accumulated weight among the first consumed symbols of input
+     */
+    private IntSeq collectPartial(HashMap<Integer, BacktrackingNode> superposition,
+                                  IdentityHashMap<BacktrackingNode, Long> weights,
+                                  Seq<Integer> input, int consumed) {
+        BacktrackingNode best = null;
+        long bestWeight = Long.MIN_VALUE;
+        for (BacktrackingNode node : superposition.values()) {
+            final long w = accumulatedWeight(weights, node);
+            if (best == null || w > bestWeight) {
+                best = node;
+                bestWeight = w;
+            }
+        }
+        final int[] prefix = new int[consumed];
+        for (int i = 0; i < consumed; i++) prefix[i] = input.get(i);
+        return collect(new BacktrackingHead(best, new P(IntSeq.Epsilon, 0)), new IntSeq(prefix));
+    }
+
+    private static int compareLexicographically(Seq<Integer> a, Seq<Integer> b) {
+        final int len = Math.min(a.size(), b.size());
+        for (int i = 0; i < len; i++) {
+            final int c = Integer.compare(a.get(i), b.get(i));
+            if (c != 0) return c;
+        }
+        return Integer.compare(a.size(), b.size());
+    }
+
+    private static int commonPrefixLength(Seq<Integer> a, Seq<Integer> b) {
+        final int len = Math.min(a.size(), b.size());
+        int i = 0;
+        while (i < len && a.get(i).equals(b.get(i))) i++;
+        return i;
+    }
+
     public ParserListener<Var<N, G>, Pos, E, P, Integer, IntSeq, Integer, N, G> makeParser() {
         return new ParserListener<>(this, !eagerCopy);
     }
@@ -1512,7 +1865,41 @@ public abstract class LexUnicodeSpecification<N, G extends IntermediateGraph<Pos
         return optimiseGraph(variableAssignments.get(varId).graph);
     }
 
+    @Override
+    public RangedGraph<Pos, Integer, E, P> optimiseGraph(G graph,
+                                                         Function<N, Object> shouldContinuePerState,
+                                                         BiFunction<N, E, Object> shouldContinuePerEdge) {
+        if (!metrics.isEnabled())
+            return Specification.super.optimiseGraph(graph, shouldContinuePerState, shouldContinuePerEdge);
+        final long begin = System.nanoTime();
+        final RangedGraph<Pos, Integer, E, P> optimal = Specification.super.optimiseGraph(graph, shouldContinuePerState, shouldContinuePerEdge);
+        metrics.compilePhase(Metrics.Phase.OPTIMISE_GRAPH, System.nanoTime() - begin);
+        return optimal;
+    }
+
+    @Override
+    public void checkFunctionality(RangedGraph<Pos, Integer, E, P> g, Pos pos)
+            throws CompilationError.WeightConflictingFinal, CompilationError.WeightConflictingToThirdState {
+        final long begin = metrics.isEnabled() ? System.nanoTime() : 0;
+        try {
+            Specification.super.checkFunctionality(g, pos);
+        } finally {
+            if (metrics.isEnabled())
+                metrics.compilePhase(Metrics.Phase.CHECK_FUNCTIONALITY, System.nanoTime() - begin);
+        }
+    }
+
     public void pseudoMinimize(Pos pos, G graph) throws CompilationError.PseudoMinimisationNondeterminism {
+        final long begin = metrics.isEnabled() ? System.nanoTime() : 0;
+        try {
+            pseudoMinimizeUnmetered(pos, graph);
+        } finally {
+            if (metrics.isEnabled())
+                metrics.compilePhase(Metrics.Phase.PSEUDO_MINIMIZE, System.nanoTime() - begin);
+        }
+    }
+
+    private void pseudoMinimizeUnmetered(Pos pos, G graph) throws CompilationError.PseudoMinimisationNondeterminism {
 //		assert isStronglyFunctional(optimiseGraph(graph))==null:isStronglyFunctional(optimiseGraph(graph));
         BiFunction<N, Collection<Map.Entry<E, N>>, Integer> hash = (vertex, transitions) -> {
             ArrayList<Map.Entry<E, N>> edges = new ArrayList<>(transitions.size());
@@ -1629,14 +2016,103 @@ public abstract class LexUnicodeSpecification<N, G extends IntermediateGraph<Pos
         return pipelines.get(name);
     }
 
+    /**
+     * Removes pipeline together with the record of its fusions.
+     *
+     * @param name should not contain the @ sign
+     * @return the removed pipeline or null if there was no such pipeline
+     */
+    public Pipeline<Pos, Integer, E, P, N, G> removePipeline(String name) {
+        appliedFusions.remove(name);
+        return pipelines.remove(name);
+    }
+
+    public void removeAllPipelines() {
+        pipelines.clear();
+        appliedFusions.clear();
+    }
+
+    /**
+     * @param name should not contain the @ sign
+     * @return fusions applied to the pipeline when it was registered (empty if there were none or there is no
+     * such pipeline)
+     */
+    public List<PipelineFusion.Fusion> appliedFusions(String name) {
+        return appliedFusions.getOrDefault(name, Collections.emptyList());
+    }
+
 
     @Override
     public void registerNewPipeline(Pipeline<Pos, Integer, E, P, N, G> pipeline, String name)
             throws CompilationError.DuplicateFunction {
+        final ArrayList<PipelineFusion.Fusion> fusions = new ArrayList<>();
+        if (pipelineFusionMaxStates > 0) {
+            pipeline = PipelineFusion.fuse(this, name, pipeline, pipelineFusionMaxStates, fusions::add);
+        }
         final Pipeline<Pos, Integer, E, P, N, G> prev = pipelines.put(name, pipeline);
         if (prev != null) {
             throw new CompilationError.DuplicateFunction(prev.meta(), pipeline.meta(), '@' + name);
         }
+        if (!fusions.isEmpty()) appliedFusions.put(name, Collections.unmodifiableList(fusions));
+        if (releaseMode) {
+            //stages of referenced pipelines are stripped again, but with their own (unchanged) positions
+            Pipeline.foldAutomata(pipeline, null, (x, aut) -> {
+                stripMetadata(aut.g, aut.meta);
+                return x;
+            });
+            Pipeline.foldAssertions(pipeline, null, (x, assertion) -> {
+                if (assertion.g != null) stripMetadata(assertion.g, assertion.meta);
+                return x;
+            });
+        }
+    }
+
+    /**
+     * Converts transducer back to intermediate graph. Edges that span many ranges are added only once.
+     */
+    public G toIntermediateGraph(RangedGraph<Pos, Integer, E, P> r) {
+        final G g = createEmptyGraph();
+        final ArrayList<N> vertices = new ArrayList<>(r.size());
+        for (int state = 0; state < r.size(); state++) {
+            final N vertex = g.create(r.state(state));
+            final P fin = r.getFinalEdge(state);
+            if (fin != null) g.setFinalEdge(vertex, clonePartialEdge(fin));
+            vertices.add(vertex);
+        }
+        for (int state = 0; state < r.size(); state++) {
+            final Set<E> added = Collections.newSetFromMap(new IdentityHashMap<>());
+            for (Range<Integer, List<RangedGraph.Trans<E>>> range : r.graph.get(state)) {
+                for (RangedGraph.Trans<E> tr : range.edges()) {
+                    if (tr.targetState != -1 && added.add(tr.edge)) {
+                        g.add(vertices.get(state), cloneFullEdge(tr.edge), vertices.get(tr.targetState));
+                    }
+                }
+            }
+        }
+        if (r.initial == -1) return g;
+        final N init = vertices.get(r.initial);
+        g.useStateOutgoingEdgesAsInitial(init, this::cloneFullEdge);
+        g.setEpsilon(clonePartialEdge(r.getFinalEdge(r.initial)));
+        return g;
+    }
+
+    /**
+     * Replaces source positions of all vertices with a single position. The transducer works the same way but error
+     * messages and visualisations can only point to the given position. Positions of individual states make up
+     * a large part of memory occupied by big transducers, while they are only needed during development.
+     */
+    public void stripMetadata(RangedGraph<Pos, Integer, E, P> g, Pos source) {
+        Collections.fill(g.indexToState, source);
+    }
+
+    /**
+     * Replaces source positions of all vertices with a single position.
+     * See {@link #stripMetadata(Specification.RangedGraph, Pos)}.
+     */
+    public void stripMetadata(G g, Pos source) {
+        for (N vertex : g.collectVertexSet(new HashSet<>(), n -> null, (n, e) -> null)) {
+            g.setState(vertex, source);
+        }
     }
 
     public G loadDict(NullTermIter<Pair<IntSeq, IntSeq>> dict, Pos state, File stringsFile)
@@ -1754,6 +2230,7 @@ public abstract class LexUnicodeSpecification<N, G extends IntermediateGraph<Pos
     }
 
     public RangedGraph<Pos, Integer, E, P> decompressBinaryRanged(Pos meta, DataInputStream in) throws IOException {
+        final OutputArena outputArena = newOutputArena();
         final int initial = in.readInt();// init
         final int size = in.readInt();
         final ArrayList<ArrayList<Range<Integer, List<RangedGraph.Trans<E>>>>> graph = new ArrayList<>();
@@ -1772,7 +2249,7 @@ public abstract class LexUnicodeSpecification<N, G extends IntermediateGraph<Pos
                     final int fromExclusive = in.readInt();
                     final int toInclusive = in.readInt();
                     final int weight = in.readInt();
-                    final IntSeq out = IntSeq.read(in);// out
+                    final IntSeq out = internOutput(outputArena, IntSeq.read(in));// out
                     final E e = new E(fromExclusive, toInclusive, out, weight);
                     final RangedGraph.Trans<E> trans = new RangedGraph.Trans<>(e, targetState);
                     edges.add(trans);
@@ -1784,20 +2261,21 @@ public abstract class LexUnicodeSpecification<N, G extends IntermediateGraph<Pos
         int finVertex;
         while ((finVertex = in.readInt()) != -1) {
             final int weight = in.readInt();
-            final IntSeq out = IntSeq.read(in);// out
+            final IntSeq out = internOutput(outputArena, IntSeq.read(in));// out
             accepting.set(finVertex, new P(out, weight));
         }
         return new RangedGraph<>(graph, accepting, indexToState, initial);
     }
 
     public G decompressBinary(Pos meta, DataInputStream in) throws IOException {
+        final OutputArena outputArena = newOutputArena();
         final G g = createEmptyGraph();
         final int size = in.readInt();// size
         final ArrayList<N> indexToVertex = Util.filledArrayListFunc(size, i -> g.create(meta));
         final boolean isEpsilon = in.readBoolean();
         if (isEpsilon) {
             final int epsWeight = in.readInt();// weight
-            final IntSeq epsOut = new IntSeq(in.readUTF());// out
+            final IntSeq epsOut = internOutput(outputArena, new IntSeq(in.readUTF()));// out
             final P eps = createPartialEdge(epsOut, epsWeight);
             g.setEpsilon(eps);
         }
@@ -1808,7 +2286,7 @@ public abstract class LexUnicodeSpecification<N, G extends IntermediateGraph<Pos
                 final int to = in.readInt();// to
                 final int targetIdx = in.readInt();// target
                 final int weight = in.readInt();// weight
-                final IntSeq out = new IntSeq(in.readUTF());// out
+                final IntSeq out = internOutput(outputArena, new IntSeq(in.readUTF()));// out
                 final E edge = createFullEdge(from, to, createPartialEdge(out, weight));
                 g.add(vertex, edge, indexToVertex.get(targetIdx));
             }
@@ -1821,7 +2299,7 @@ public abstract class LexUnicodeSpecification<N, G extends IntermediateGraph<Pos
             final int idx = in.readInt(); // target
             final N initState = indexToVertex.get(idx);
             final int initWeight = in.readInt();// weight
-            final IntSeq out = new IntSeq(in.readUTF());// out
+            final IntSeq out = internOutput(outputArena, new IntSeq(in.readUTF()));// out
             final E edge = createFullEdge(from, to, createPartialEdge(out, initWeight));
             g.addInitialEdge(initState, edge);
         }
@@ -1830,7 +2308,7 @@ public abstract class LexUnicodeSpecification<N, G extends IntermediateGraph<Pos
             final int idx = in.readInt(); // source
             final N vertex = indexToVertex.get(idx);
             final int finalWeight = in.readInt();// weight
-            final IntSeq out = new IntSeq(in.readUTF());// out
+            final IntSeq out = internOutput(outputArena, new IntSeq(in.readUTF()));// out
             final P edge = createPartialEdge(out, finalWeight);
             g.setFinalEdge(vertex, edge);
         }
@@ -1842,11 +2320,7 @@ public abstract class LexUnicodeSpecification<N, G extends IntermediateGraph<Pos
     }
 
     public G subtractNondet(G lhs, G rhs) {
-        RangedGraph<Pos, Integer, E, P> o = optimiseGraph(rhs);
-        if (null != o.isDeterministic()) {
-            o = powerset(o);
-        }
-        return subtract(optimiseGraph(lhs), o);
+        return subtractNondet(optimiseGraph(lhs), optimiseGraph(rhs));
     }
 
     /**
@@ -1860,16 +2334,166 @@ public abstract class LexUnicodeSpecification<N, G extends IntermediateGraph<Pos
      */
     public G subtract(RangedGraph<Pos, Integer, E, P> lhs, RangedGraph<Pos, Integer, E, P> rhs) {
         assert rhs.isDeterministic() == null;
-        final Pair<G, HashMap<IntPair, ? extends StateProduct<N>>> g = product(lhs, rhs, (lv, rv) -> lv,
-                (fromExclusive, toInclusive, le, re) -> le == null ? null
-                        : new E(fromExclusive, toInclusive, le.out, le.weight),
-                (finL, finR) -> finR == null ? finL : null);
-        final HashSet<N> states = new HashSet<>(g.r().size());
-        for (StateProduct<N> state : g.r().values()) {
-            states.add(state.product());
+        return subtractNondet(lhs, rhs);
+    }
+
+    /**
+     * Works just like {@link LexUnicodeSpecification#subtract(RangedGraph, RangedGraph)} but the rhs automaton
+     * may be nondeterministic. Instead of determinising the entire rhs and then building the full product,
+     * the product is explored from its initial state and pairs the lhs states with subsets of rhs states.
+     * The subsets are determinised lazily, only when they are reached, so the rhs powerset states that never meet
+     * the lhs are never built. Pairs that cannot lead to any accepting state are not materialised at all. The lhs states
+     * that cannot reach acceptance are never explored, and the remaining dead-ends are found on the explored
+     * (index-based) product before any vertex of the resulting graph is created.
+     */
+    public G subtractNondet(RangedGraph<Pos, Integer, E, P> lhs, RangedGraph<Pos, Integer, E, P> rhs) {
+        final Budget.Scope budget = budget().enter(Budget.Phase.POWERSET);
+        final boolean[] lhsLive = coaccessible(lhs);
+        final PowersetState rhsSink = new PowersetState();
+        /**Lazily determinised rhs. For every reached subset it holds the subsets reachable over consecutive ranges*/
+        final HashMap<PowersetState, ArrayList<Range<Integer, PowersetState>>> rhsDfa = new HashMap<>();
+        final HashMap<PowersetState, Boolean> rhsAccepting = new HashMap<>();
+        class LRState {
+            final int l;
+            final PowersetState r;
+            final int index;
+            final ArrayList<Pair<E, LRState>> outgoing = new ArrayList<>();
+            final ArrayList<LRState> incoming = new ArrayList<>();
+
+            LRState(int l, PowersetState r, int index) {
+                this.l = l;
+                this.r = r;
+                this.index = index;
+            }
         }
-        trim(g.l(), states, states::contains);
-        return g.l();
+        final HashMap<Pair<Integer, PowersetState>, LRState> pairs = new HashMap<>();
+        final ArrayList<LRState> explored = new ArrayList<>();
+        final Stack<LRState> toVisit = new Stack<>();
+        final Function<Pair<Integer, PowersetState>, LRState> visit = k -> {
+            budget.states(1);
+            final LRState s = new LRState(k.l(), k.r(), explored.size());
+            explored.add(s);
+            toVisit.push(s);
+            return s;
+        };
+        if (lhs.initial != -1 && lhsLive[lhs.initial]) {
+            pairs.computeIfAbsent(Pair.of(lhs.initial, rhs.initial == -1 ? rhsSink : new PowersetState(rhs.initial)), visit);
+        }
+        while (!toVisit.isEmpty()) {
+            final LRState source = toVisit.pop();
+            final ArrayList<Range<Integer, PowersetState>> rhsTrans = rhsDfa.computeIfAbsent(source.r, r -> {
+                final ArrayList<Range<Integer, PowersetState>> dfaTrans = new ArrayList<>();
+                if (r.states.length == 0) {
+                    dfaTrans.add(new RangeImpl<>(maximal(), rhsSink));
+                } else {
+                    for (Range<Integer, List<RangedGraph.Trans<E>>> range : powersetTransitions(rhs, r.states, (i, e) -> e)) {
+                        dfaTrans.add(new RangeImpl<>(range.input(), new PowersetState(range.edges())));
+                    }
+                }
+                budget.states(1);
+                budget.edges(dfaTrans.size());
+                return dfaTrans;
+            });
+            final ArrayList<Range<Integer, List<RangedGraph.Trans<E>>>> lhsTrans = lhs.graph.get(source.l);
+            int fromExclusive = minimal();
+            int li = 0, ri = 0;
+            while (li < lhsTrans.size() && ri < rhsTrans.size()) {
+                final Range<Integer, List<RangedGraph.Trans<E>>> lRange = lhsTrans.get(li);
+                final Range<Integer, PowersetState> rRange = rhsTrans.get(ri);
+                final int toInclusive = compare(lRange.input(), rRange.input()) < 0 ? lRange.input() : rRange.input();
+                for (RangedGraph.Trans<E> le : lRange.edges()) {
+                    if (!lhsLive[le.targetState]) continue;
+                    final LRState target = pairs.computeIfAbsent(Pair.of(le.targetState, rRange.edges()), visit);
+                    source.outgoing.add(Pair.of(new E(fromExclusive, toInclusive, le.edge.out, le.edge.weight), target));
+                    target.incoming.add(source);
+                    budget.edges(1);
+                }
+                if (lRange.input() == toInclusive) li++;
+                if (rRange.input() == toInclusive) ri++;
+                fromExclusive = toInclusive;
+            }
+        }
+        /**Trim the explored product by walking it backwards from accepting pairs*/
+        final P[] fin = new P[explored.size()];
+        final boolean[] live = new boolean[explored.size()];
+        for (LRState s : explored) {
+            final P finL = lhs.getFinalEdge(s.l);
+            if (finL == null) continue;
+            final boolean finR = rhsAccepting.computeIfAbsent(s.r, r -> {
+                for (int state : r.states) if (rhs.isAccepting(state)) return true;
+                return false;
+            });
+            if (finR) continue;
+            fin[s.index] = finL;
+            if (!live[s.index]) {
+                live[s.index] = true;
+                toVisit.push(s);
+            }
+        }
+        while (!toVisit.isEmpty()) {
+            for (LRState incoming : toVisit.pop().incoming) {
+                if (!live[incoming.index]) {
+                    live[incoming.index] = true;
+                    toVisit.push(incoming);
+                }
+            }
+        }
+        final G g = createEmptyGraph();
+        final N init;
+        if (explored.isEmpty() || !live[0]) {
+            init = g.create(lhs.initial == -1 ? null : lhs.state(lhs.initial));
+        } else {
+            final ArrayList<N> vertices = Util.filledArrayList(explored.size(), null);
+            for (LRState s : explored) {
+                if (live[s.index]) {
+                    final N n = g.create(lhs.state(s.l));
+                    vertices.set(s.index, n);
+                    if (fin[s.index] != null) g.setFinalEdge(n, fin[s.index]);
+                }
+            }
+            for (LRState s : explored) {
+                if (!live[s.index]) continue;
+                for (Pair<E, LRState> edge : s.outgoing) {
+                    if (live[edge.r().index]) g.add(vertices.get(s.index), edge.l(), vertices.get(edge.r().index));
+                }
+            }
+            init = vertices.get(0);
+        }
+        g.useStateOutgoingEdgesAsInitial(init, this::cloneFullEdge);
+        g.setEpsilon(g.removeFinalEdge(init));
+        return g;
+    }
+
+    /**
+     * @return for every state whether some accepting state can be reached from it
+     */
+    static boolean[] coaccessible(RangedGraph<?, Integer, E, P> g) {
+        final ArrayList<ArrayList<Integer>> reversed = new ArrayList<>(g.size());
+        for (int state = 0; state < g.size(); state++) reversed.add(new ArrayList<>());
+        for (int state = 0; state < g.size(); state++) {
+            for (Range<Integer, List<RangedGraph.Trans<E>>> range : g.graph.get(state)) {
+                for (RangedGraph.Trans<E> tr : range.edges()) {
+                    reversed.get(tr.targetState).add(state);
+                }
+            }
+        }
+        final boolean[] live = new boolean[g.size()];
+        final Stack<Integer> toVisit = new Stack<>();
+        for (int state = 0; state < g.size(); state++) {
+            if (g.isAccepting(state)) {
+                live[state] = true;
+                toVisit.push(state);
+            }
+        }
+        while (!toVisit.isEmpty()) {
+            for (int source : reversed.get(toVisit.pop())) {
+                if (!live[source]) {
+                    live[source] = true;
+                    toVisit.push(source);
+                }
+            }
+        }
+        return live;
     }
 
     public G compose(G lhs, G rhs, Pos pos) {
@@ -1991,8 +2615,16 @@ public abstract class LexUnicodeSpecification<N, G extends IntermediateGraph<Pos
         return areEquivalent(lhs, rhs, e -> IntQueue.asQueue(e.getOut()), p -> IntQueue.asQueue(p.getOut()), IntQueue::new);
     }
 
-    public G importATT(File file, char separator) throws FileNotFoundException {
-        try (Scanner sc = new Scanner(file)) {
+    /**
+     * Imports AT&amp;T file using {@link ATTImporter}, which parses it in parallel. Falls back to line-by-line
+     * parsing only if the separator is not ASCII.
+     */
+    public G importATT(File file, char separator) throws IOException, CompilationError {
+        if (separator < 0x80) {
+            return ATTImporter.parse(file, separator, importThreads).toGraph(this);
+        }
+        //decoded as UTF-8, just like by ATTImporter
+        try (Scanner sc = new Scanner(file, "UTF-8")) {
             return importATT(file.getPath(), new Iterator<String>() {
                 @Override
                 public boolean hasNext() {
@@ -2007,6 +2639,31 @@ public abstract class LexUnicodeSpecification<N, G extends IntermediateGraph<Pos
         }
     }
 
+    /**
+     * Same as {@link LexUnicodeSpecification#importATT(File, char)} followed by {@link Specification#optimiseGraph}
+     * but the optimised graph is built directly from parsed arcs (unless the separator is not ASCII).
+     */
+    public RangedGraph<Pos, Integer, E, P> importOptimisedATT(File file, char separator) throws IOException, CompilationError {
+        if (separator >= 0x80) {
+            return optimiseGraph(importATT(file, separator));
+        }
+        return ATTImporter.parse(file, separator, importThreads).toRangedGraph(this);
+    }
+
+    /**
+     * Reads binary file of OpenFst (see {@link OpenFst})
+     */
+    public G importOpenFst(Pos meta, InputStream in) throws IOException {
+        return OpenFst.read(this, meta, in);
+    }
+
+    /**
+     * Writes binary file of OpenFst (see {@link OpenFst})
+     */
+    public void exportOpenFst(RangedGraph<Pos, Integer, E, P> g, OutputStream out, boolean constFst) throws IOException {
+        OpenFst.write(this, g, out, constFst);
+    }
+
     public G importATT(String file, Iterable<Pair<IntSeq, IntSeq>> informant, char separator) throws FileNotFoundException {
         try (Scanner sc = new Scanner(file)) {
             return importATT(file, Util.mapIterLazy(informant.iterator(), p -> IntSeq.toUnicodeString(p.l())), separator);
@@ -0,0 +1,214 @@
+package net.alagris.core;
+
+import net.alagris.core.LexUnicodeSpecification.E;
+import net.alagris.core.LexUnicodeSpecification.P;
+import net.alagris.core.Specification.Range;
+import net.alagris.core.Specification.RangedGraph;
+
+import java.util.*;
+
+/**
+ * Analytic estimate of memory retained by compiled transducers, intermediate graphs and pipelines.
+ * Unlike measuring with an instrumentation agent, the object graph is not walked reflectively. Instead, sizes
+ * of objects are derived from the known layout of classes of this library, assuming 64-bit JVM with
+ * compressed pointers (12 bytes of object header, 4 bytes per reference and alignment to 8 bytes).
+ * Objects shared between many edges (interned outputs, edges spanning many ranges, cached boxed
+ * integers, positions) are counted only once. The estimate is split into components:
+ * <ul>
+ *     <li>transitions - lists of ranges, transitions, edges and final edges (and nodes of pipelines),</li>
+ *     <li>outputs - instances of {@link IntSeq} printed by edges and their arrays,</li>
+ *     <li>metadata - states with their source positions.</li>
+ * </ul>
+ * A single footprint may accumulate many graphs, in which case objects shared between them are not counted twice.
+ * <br>
+ * Shallow sizes of individual objects are exact for the assumed layout (tests compare them with sizes reported by jamm).
+ * The total is nevertheless an underestimate. Backing arrays of {@link ArrayList} are counted as if they had
+ * no spare capacity (they may be up to 1.5 times larger) and objects shared with the rest of the program
+ * (file names of positions, symbol tables of pipelines) are not counted at all.
+ */
+public final class MemoryFootprint {
+
+    private static final int HEADER = 12;
+    private static final int REF = 4;
+    static final long RANGED_GRAPH = objectBytes(3, 1);
+    static final long ARRAY_LIST = objectBytes(1, 2);
+    static final long RANGE = objectBytes(2, 0);
+    static final long TRANS = objectBytes(1, 1);
+    static final long EDGE = objectBytes(1, 3);
+    static final long FINAL_EDGE = objectBytes(1, 1);
+    static final long POS = objectBytes(1, 2);
+    static final long BOXED_INTEGER = objectBytes(0, 1);
+    static final long HASH_MAP_NODE = objectBytes(3, 1);
+    static final long PAIR = objectBytes(2, 0);
+    static final long ARRAY_VERTEX = objectBytes(3, 2);
+
+    private final Set<Object> visited = Collections.newSetFromMap(new IdentityHashMap<>());
+    private final Set<IntSeq> outputInstances = Collections.newSetFromMap(new IdentityHashMap<>());
+    private final Set<int[]> outputArrays = Collections.newSetFromMap(new IdentityHashMap<>());
+    private long transitions = 0;
+    private long outputs = 0;
+    private long metadata = 0;
+
+    public long transitions() {
+        return transitions;
+    }
+
+    public long outputs() {
+        return outputs;
+    }
+
+    public long metadata() {
+        return metadata;
+    }
+
+    public long total() {
+        return transitions + outputs + metadata;
+    }
+
+    @Override
+    public String toString() {
+        return total() + " bytes (transitions=" + transitions + ", outputs=" + outputs + ", metadata=" + metadata + ")";
+    }
+
+    public static MemoryFootprint of(RangedGraph<?, Integer, E, P> g) {
+        return new MemoryFootprint().add(g);
+    }
+
+    public static <N> MemoryFootprint of(IntermediateGraph<Pos, E, P, N> g) {
+        return new MemoryFootprint().add(g);
+    }
+
+    public static MemoryFootprint of(Pipeline<Pos, Integer, E, P, ?, ?> pipeline) {
+        return new MemoryFootprint().add(pipeline);
+    }
+
+    static long objectBytes(int refs, int ints) {
+        return align(HEADER + (long) REF * refs + 4L * ints);
+    }
+
+    static long referenceArrayBytes(int length) {
+        return align(16 + (long) REF * length);
+    }
+
+    private static long align(long bytes) {
+        return (bytes + 7) & ~7L;
+    }
+
+    /**
+     * Backing array of {@link ArrayList} is usually larger than its size, but the capacity is not known.
+     */
+    private static long listBytes(List<?> list) {
+        return list.isEmpty() ? ARRAY_LIST : ARRAY_LIST + referenceArrayBytes(list.size());
+    }
+
+    private long edge(E e) {
+        if (e == null || !visited.add(e)) return 0;
+        outputs += OutputArena.measure(e.getOut(), outputInstances, outputArrays);
+        return EDGE;
+    }
+
+    private long finalEdge(P p) {
+        if (p == null || !visited.add(p)) return 0;
+        outputs += OutputArena.measure(p.getOut(), outputInstances, outputArrays);
+        return FINAL_EDGE;
+    }
+
+    private void state(Object meta) {
+        if (meta != null && visited.add(meta)) {
+            //every position has two integers and a file name shared by all positions of the same file
+            metadata += meta instanceof Pos ? POS : objectBytes(0, 0);
+        }
+    }
+
+    private long boxed(Integer input) {
+        return visited.add(input) ? BOXED_INTEGER : 0;
+    }
+
+    public MemoryFootprint add(RangedGraph<?, Integer, E, P> g) {
+        if (!visited.add(g)) return this;
+        transitions += RANGED_GRAPH;
+        transitions += listBytes(g.graph);
+        for (List<Range<Integer, List<RangedGraph.Trans<E>>>> ranges : g.graph) {
+            transitions += listBytes(ranges);
+            for (Range<Integer, List<RangedGraph.Trans<E>>> range : ranges) {
+                transitions += RANGE + boxed(range.input());
+                final List<RangedGraph.Trans<E>> trans = range.edges();
+                if (visited.add(trans)) {
+                    transitions += listBytes(trans);
+                    for (RangedGraph.Trans<E> tr : trans) {
+                        if (visited.add(tr)) transitions += TRANS + edge(tr.edge);
+                    }
+                }
+            }
+        }
+        transitions += listBytes(g.accepting);
+        for (P fin : g.accepting) transitions += finalEdge(fin);
+        metadata += listBytes(g.indexToState);
+        for (Object meta : g.indexToState) state(meta);
+        return this;
+    }
+
+    /**
+     * All intermediate graphs are estimated as if they were backed by {@link ArrayIntermediateGraph}, whose vertices
+     * are lists of entries, each holding an edge and its target.
+     */
+    public <N> MemoryFootprint add(IntermediateGraph<Pos, E, P, N> g) {
+        if (!visited.add(g)) return this;
+        final HashSet<N> vertices = g.collectVertexSet(new HashSet<>(), n -> null, (n, e) -> null);
+        for (N vertex : vertices) {
+            final Collection<Map.Entry<E, N>> outgoing = g.outgoing(vertex);
+            transitions += ARRAY_VERTEX + referenceArrayBytes(outgoing.size());
+            for (Map.Entry<E, N> entry : outgoing) transitions += PAIR + edge(entry.getKey());
+            state(g.getState(vertex));
+        }
+        for (Map.Entry<E, N> init : g.allInitialEdges().entrySet()) {
+            transitions += HASH_MAP_NODE + edge(init.getKey());
+        }
+        for (Map.Entry<N, P> fin : g.allFinalEdges().entrySet()) {
+            transitions += HASH_MAP_NODE + finalEdge(fin.getValue());
+        }
+        transitions += finalEdge(g.getEpsilon());
+        return this;
+    }
+
+    public MemoryFootprint add(Pipeline<Pos, Integer, E, P, ?, ?> pipeline) {
+        final Stack<Pipeline<Pos, Integer, E, P, ?, ?>> stack = new Stack<>();
+        stack.push(pipeline);
+        while (!stack.isEmpty()) {
+            final Pipeline<Pos, Integer, E, P, ?, ?> p = stack.pop();
+            if (!visited.add(p)) continue;
+            state(p.meta());
+            if (p instanceof Pipeline.Automaton) {
+                transitions += objectBytes(2, 0);
+                add(((Pipeline.Automaton<Pos, Integer, E, P, ?, ?>) p).g);
+            } else if (p instanceof Pipeline.Assertion) {
+                transitions += objectBytes(2, 1);
+                //non-runtime assertions of decompressed pipelines have no graph
+                final RangedGraph<Pos, Integer, E, P> g = ((Pipeline.Assertion<Pos, Integer, E, P, ?, ?>) p).g;
+                if (g != null) add(g);
+            } else if (p instanceof Pipeline.Alternative) {
+                transitions += objectBytes(3, 0);
+                stack.push(((Pipeline.Alternative<Pos, Integer, E, P, ?, ?>) p).lhs);
+                stack.push(((Pipeline.Alternative<Pos, Integer, E, P, ?, ?>) p).rhs);
+            } else if (p instanceof Pipeline.Composition) {
+                transitions += objectBytes(3, 0);
+                stack.push(((Pipeline.Composition<Pos, Integer, E, P, ?, ?>) p).lhs);
+                stack.push(((Pipeline.Composition<Pos, Integer, E, P, ?, ?>) p).rhs);
+            } else if (p instanceof Pipeline.Submatch) {
+                final HashMap<Integer, ? extends Pipeline<Pos, Integer, E, P, ?, ?>> handlers =
+                        ((Pipeline.Submatch<Pos, Integer, E, P, ?, ?>) p).submatchHandler;
+                //the node, its hash map with table and one entry per handler
+                transitions += objectBytes(2, 0) + objectBytes(3, 4) + referenceArrayBytes(handlers.size() * 2)
+                        + handlers.size() * HASH_MAP_NODE;
+                for (Map.Entry<Integer, ? extends Pipeline<Pos, Integer, E, P, ?, ?>> e : handlers.entrySet()) {
+                    transitions += boxed(e.getKey());
+                    stack.push(e.getValue());
+                }
+            } else {
+                //external functions are opaque
+                transitions += objectBytes(2, 0);
+            }
+        }
+        return this;
+    }
+}
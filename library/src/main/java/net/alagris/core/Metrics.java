@@ -0,0 +1,285 @@
+package net.alagris.core;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Optional instrumentation of evaluation and compilation. By default {@link Metrics#DISABLED} is used, which
+ * does nothing and reports {@link Metrics#isEnabled()} as false, so that the evaluation
+ * does not even measure time. Use {@link Recorder} to collect actual statistics.
+ * All implementations must be thread-safe, because evaluation may run concurrently.
+ */
+public interface Metrics {
+
+    enum Phase {
+        PARSE, OPTIMISE_GRAPH, PSEUDO_MINIMIZE, CHECK_FUNCTIONALITY
+    }
+
+    /**
+     * If false then none of the remaining methods will be called on hot paths
+     */
+    boolean isEnabled();
+
+    /**
+     * Called once for every evaluation of a transducer.
+     *
+     * @param transducer           the evaluated graph. It is used only as identity key
+     * @param nanos                time spent on evaluation (including collecting output)
+     * @param steps                number of input symbols consumed before the superposition became empty
+     * @param backtrackingTableSize total number of backtracking nodes created, which is also the sum of
+     *                             superposition widths over all steps. It's -1 if it was not measured.
+     * @param accepted             false if the input was rejected
+     */
+    void evaluated(Object transducer, long nanos, int steps, long backtrackingTableSize, boolean accepted);
+
+    /**
+     * Called every time {@link LexUnicodeSpecification.DeltaAmbiguityHandler} is fired
+     */
+    void ambiguityResolved();
+
+    void compilePhase(Phase phase, long nanos);
+
+    /**
+     * Starts measuring a single evaluation of a transducer. The evaluation loop reports every step to the
+     * returned object and {@link Evaluation#end} finally calls {@link Metrics#evaluated}.
+     */
+    default Evaluation begin(Object transducer) {
+        return isEnabled() ? new Evaluation(this, transducer) : Evaluation.NONE;
+    }
+
+    /**
+     * Statistics of a single evaluation. It is used only by the thread that performs the evaluation.
+     */
+    class Evaluation {
+        /**
+         * Does nothing and does not even measure time
+         */
+        public static final Evaluation NONE = new Evaluation(DISABLED, null) {
+            @Override
+            public void step(int superpositionWidth) {
+            }
+
+            @Override
+            public void end(boolean accepted) {
+            }
+        };
+        private final Metrics metrics;
+        private final Object transducer;
+        private final long begin;
+        private int steps = 0;
+        private long backtrackingTableSize = 0;
+
+        private Evaluation(Metrics metrics, Object transducer) {
+            this.metrics = metrics;
+            this.transducer = transducer;
+            this.begin = metrics.isEnabled() ? System.nanoTime() : 0;
+        }
+
+        /**
+         * Called after consuming every input symbol
+         *
+         * @param superpositionWidth number of backtracking nodes created for this symbol
+         */
+        public void step(int superpositionWidth) {
+            steps++;
+            backtrackingTableSize += superpositionWidth;
+        }
+
+        public void end(boolean accepted) {
+            metrics.evaluated(transducer, System.nanoTime() - begin, steps, backtrackingTableSize, accepted);
+        }
+    }
+
+    Metrics DISABLED = new Metrics() {
+        @Override
+        public boolean isEnabled() {
+            return false;
+        }
+
+        @Override
+        public Evaluation begin(Object transducer) {
+            return Evaluation.NONE;
+        }
+
+        @Override
+        public void evaluated(Object transducer, long nanos, int steps, long backtrackingTableSize, boolean accepted) {
+        }
+
+        @Override
+        public void ambiguityResolved() {
+        }
+
+        @Override
+        public void compilePhase(Phase phase, long nanos) {
+        }
+    };
+
+    /**
+     * Histogram with logarithmic buckets (8 sub-buckets per power of two). Percentiles are thus
+     * accurate up to 12.5%.
+     */
+    class Histogram {
+        private static final int SUB_BITS = 3;
+        private final AtomicLongArray buckets = new AtomicLongArray(64 << SUB_BITS);
+        private final LongAdder count = new LongAdder();
+        private final LongAdder sum = new LongAdder();
+        private final LongAccumulator max = new LongAccumulator(Math::max, 0);
+
+        static int bucket(long value) {
+            if (value < (1 << SUB_BITS)) return (int) Math.max(value, 0);
+            final int exp = 63 - Long.numberOfLeadingZeros(value);
+            final int mantissa = (int) (value >>> (exp - SUB_BITS)) & ((1 << SUB_BITS) - 1);
+            return ((exp - SUB_BITS + 1) << SUB_BITS) | mantissa;
+        }
+
+        /**
+         * The smallest value that falls into given bucket
+         */
+        static long lowerBound(int bucket) {
+            if (bucket < (1 << SUB_BITS)) return bucket;
+            final int exp = (bucket >>> SUB_BITS) + SUB_BITS - 1;
+            final long mantissa = bucket & ((1 << SUB_BITS) - 1);
+            return (1L << exp) | (mantissa << (exp - SUB_BITS));
+        }
+
+        public void record(long value) {
+            buckets.incrementAndGet(bucket(value));
+            count.increment();
+            sum.add(value);
+            max.accumulate(value);
+        }
+
+        public long count() {
+            return count.sum();
+        }
+
+        public long sum() {
+            return sum.sum();
+        }
+
+        public long max() {
+            return max.get();
+        }
+
+        public double mean() {
+            final long c = count();
+            return c == 0 ? 0 : sum() / (double) c;
+        }
+
+        /**
+         * @param p between 0 and 1
+         */
+        public long percentile(double p) {
+            final long c = count();
+            if (c == 0) return 0;
+            final long rank = (long) Math.ceil(p * c);
+            long seen = 0;
+            for (int i = 0; i < buckets.length(); i++) {
+                seen += buckets.get(i);
+                if (seen >= rank && seen > 0) return Math.min(lowerBound(i), max());
+            }
+            return max();
+        }
+    }
+
+    class TransducerStats {
+        public final LongAdder evaluations = new LongAdder();
+        public final LongAdder rejections = new LongAdder();
+        public final LongAdder steps = new LongAdder();
+        public final LongAdder backtrackingNodes = new LongAdder();
+        public final Histogram latencyNanos = new Histogram();
+        public final Histogram backtrackingTableSize = new Histogram();
+
+        /**
+         * Average number of states in superposition per consumed input symbol
+         */
+        public double averageSuperpositionWidth() {
+            final long s = steps.sum();
+            return s == 0 ? 0 : backtrackingNodes.sum() / (double) s;
+        }
+
+        @Override
+        public String toString() {
+            return "evaluations=" + evaluations.sum() +
+                    ", rejections=" + rejections.sum() +
+                    ", latency[ns] p50=" + latencyNanos.percentile(0.5) +
+                    " p90=" + latencyNanos.percentile(0.9) +
+                    " p99=" + latencyNanos.percentile(0.99) +
+                    " max=" + latencyNanos.max() +
+                    ", avgSuperpositionWidth=" + String.format("%.2f", averageSuperpositionWidth()) +
+                    ", backtrackingTableSize mean=" + String.format("%.1f", backtrackingTableSize.mean()) +
+                    " max=" + backtrackingTableSize.max();
+        }
+    }
+
+    /**
+     * Thread-safe implementation of metrics that keeps all statistics in memory. Transducers
+     * are distinguished by identity.
+     */
+    class Recorder implements Metrics {
+        private final Map<Object, TransducerStats> perTransducer = Collections.synchronizedMap(new IdentityHashMap<>());
+        private final ConcurrentHashMap<Phase, Histogram> phases = new ConcurrentHashMap<>();
+        public final LongAdder ambiguityResolutions = new LongAdder();
+
+        @Override
+        public boolean isEnabled() {
+            return true;
+        }
+
+        @Override
+        public void evaluated(Object transducer, long nanos, int steps, long backtrackingTableSize, boolean accepted) {
+            final TransducerStats s = stats(transducer);
+            s.evaluations.increment();
+            if (!accepted) s.rejections.increment();
+            s.latencyNanos.record(nanos);
+            if (backtrackingTableSize >= 0) {
+                s.steps.add(steps);
+                s.backtrackingNodes.add(backtrackingTableSize);
+                s.backtrackingTableSize.record(backtrackingTableSize);
+            }
+        }
+
+        @Override
+        public void ambiguityResolved() {
+            ambiguityResolutions.increment();
+        }
+
+        @Override
+        public void compilePhase(Phase phase, long nanos) {
+            phases.computeIfAbsent(phase, k -> new Histogram()).record(nanos);
+        }
+
+        public TransducerStats stats(Object transducer) {
+            return perTransducer.computeIfAbsent(transducer, k -> new TransducerStats());
+        }
+
+        /**
+         * @return null if the transducer was never evaluated
+         */
+        public TransducerStats statsIfPresent(Object transducer) {
+            return perTransducer.get(transducer);
+        }
+
+        /**
+         * @return total time (in nanoseconds) spent in given phase of compilation
+         */
+        public long phaseNanos(Phase phase) {
+            final Histogram h = phases.get(phase);
+            return h == null ? 0 : h.sum();
+        }
+
+        public long phaseCount(Phase phase) {
+            final Histogram h = phases.get(phase);
+            return h == null ? 0 : h.count();
+        }
+
+        public void reset() {
+            perTransducer.clear();
+            phases.clear();
+            ambiguityResolutions.reset();
+        }
+    }
+}
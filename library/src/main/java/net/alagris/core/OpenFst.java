@@ -0,0 +1,623 @@
+package net.alagris.core;
+
+import net.alagris.core.LexUnicodeSpecification.E;
+import net.alagris.core.LexUnicodeSpecification.P;
+import net.alagris.core.Specification.Range;
+import net.alagris.core.Specification.RangedGraph;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Reader and writer of binary files of OpenFst (vector and const FSTs with standard arcs).
+ * No native library is needed. OpenFst labels single symbols, while transducers of Solomonoff have ranges of symbols
+ * on input and strings on output. Hence the following mapping is used:
+ * <ul>
+ *     <li>input range consisting of a single unicode character is labelled with its code point. Other ranges get labels
+ *     above {@link Character#MAX_CODE_POINT} and the input symbol table names them {@code [from-to]} (inclusive, decimal)</li>
+ *     <li>output strings longer than one symbol are spelled by chains of arcs with epsilon inputs. So are the outputs of
+ *     final states. Reflected symbol (see {@link LexUnicodeSpecification#reflect()}) is written as {@code <reflect>} and other
+ *     symbols that are not unicode characters as {@code <number>} in output symbol table</li>
+ *     <li>weights are negated, because tropical semiring minimizes costs, while Solomonoff maximizes weights.
+ *     Reading rounds costs to integers</li>
+ * </ul>
+ * When reading files produced by other tools, symbols of the symbol tables are used instead of labels
+ * (every output symbol is spelled as the string of its name, every input symbol must be a single character or a range)
+ * and input epsilons are removed. Files without symbol tables are assumed to be labelled with code points.
+ * Files are always little-endian.
+ */
+public final class OpenFst {
+
+    static final int FST_MAGIC = 2125659606;
+    static final int SYMBOL_TABLE_MAGIC = 2125658996;
+    static final int HAS_ISYMBOLS = 1;
+    static final int HAS_OSYMBOLS = 2;
+    static final int IS_ALIGNED = 4;
+    /**
+     * Property bits kExpanded and kMutable. All other properties are left unknown
+     */
+    static final long EXPANDED = 1, MUTABLE = 2;
+    static final int FILE_VERSION = 2;
+    static final String VECTOR = "vector", CONST = "const", STANDARD = "standard";
+    static final String EPSILON_SYMBOL = "<eps>", REFLECT_SYMBOL = "<reflect>";
+    private static final Pattern RANGE_SYMBOL = Pattern.compile("\\[([0-9]+)-([0-9]+)]");
+    private static final Pattern NUMBER_SYMBOL = Pattern.compile("<([0-9]+)>");
+    /**
+     * First label that is not a code point
+     */
+    private static final int SPECIAL_LABEL = Character.MAX_CODE_POINT + 1;
+
+    private OpenFst() {
+    }
+
+    /**
+     * Arcs in OpenFst numbering of states, grouped by source states once {@link Arcs#sort} is called
+     */
+    private static final class Arcs {
+        int states = 0;
+        float[] finalCost = new float[16];
+        int size = 0;
+        int[] src = new int[16], ilabel = new int[16], olabel = new int[16], next = new int[16];
+        float[] cost = new float[16];
+        int[] begin;
+
+        int newState(float finalCost) {
+            if (states == this.finalCost.length) this.finalCost = Arrays.copyOf(this.finalCost, states * 2);
+            this.finalCost[states] = finalCost;
+            return states++;
+        }
+
+        void add(int source, int in, int out, float c, int target) {
+            if (size == src.length) {
+                final int len = size * 2;
+                src = Arrays.copyOf(src, len);
+                ilabel = Arrays.copyOf(ilabel, len);
+                olabel = Arrays.copyOf(olabel, len);
+                next = Arrays.copyOf(next, len);
+                cost = Arrays.copyOf(cost, len);
+            }
+            src[size] = source;
+            ilabel[size] = in;
+            olabel[size] = out;
+            cost[size] = c;
+            next[size] = target;
+            size++;
+        }
+
+        /**
+         * Stable counting sort by source state
+         */
+        void sort() {
+            begin = new int[states + 1];
+            for (int i = 0; i < size; i++) begin[src[i] + 1]++;
+            for (int s = 0; s < states; s++) begin[s + 1] += begin[s];
+            final int[] filled = Arrays.copyOf(begin, states);
+            final int[] in = new int[size], out = new int[size], nxt = new int[size];
+            final float[] c = new float[size];
+            for (int i = 0; i < size; i++) {
+                final int j = filled[src[i]]++;
+                in[j] = ilabel[i];
+                out[j] = olabel[i];
+                nxt[j] = next[i];
+                c[j] = cost[i];
+            }
+            for (int s = 0; s < states; s++) {
+                for (int j = begin[s]; j < begin[s + 1]; j++) src[j] = s;
+            }
+            ilabel = in;
+            olabel = out;
+            next = nxt;
+            cost = c;
+        }
+    }
+
+    /**
+     * @param constFst whether to write const FST instead of vector FST.
+     */
+    public static void write(LexUnicodeSpecification<?, ?> specs, RangedGraph<?, Integer, E, P> g,
+                             OutputStream stream, boolean constFst) throws IOException {
+        final TreeMap<Integer, String> isymbols = new TreeMap<>();
+        final TreeMap<Integer, String> osymbols = new TreeMap<>();
+        isymbols.put(0, EPSILON_SYMBOL);
+        osymbols.put(0, EPSILON_SYMBOL);
+        final HashMap<Long, Integer> rangeToLabel = new HashMap<>();
+        final HashMap<Integer, Integer> outputToLabel = new HashMap<>();
+        final Arcs arcs = new Arcs();
+        for (int state = 0; state < g.size(); state++) {
+            arcs.newState(Float.POSITIVE_INFINITY);
+        }
+        for (int state = 0; state < g.size(); state++) {
+            int fromExclusive = specs.minimal();
+            for (Range<Integer, List<RangedGraph.Trans<E>>> range : g.graph.get(state)) {
+                final int toInclusive = range.input();
+                if (!range.edges().isEmpty()) {
+                    final int in;
+                    if (fromExclusive + 1 == toInclusive && toInclusive > 0 && Character.isValidCodePoint(toInclusive)) {
+                        in = toInclusive;
+                        isymbols.put(in, new String(Character.toChars(in)));
+                    } else {
+                        final long key = ((long) fromExclusive << 32) | (toInclusive & 0xFFFFFFFFL);
+                        final int fromInclusive = fromExclusive + 1;
+                        in = rangeToLabel.computeIfAbsent(key, k -> {
+                            final int label = SPECIAL_LABEL + rangeToLabel.size();
+                            isymbols.put(label, "[" + Integer.toUnsignedString(fromInclusive) + "-" + Integer.toUnsignedString(toInclusive) + "]");
+                            return label;
+                        });
+                    }
+                    for (RangedGraph.Trans<E> tr : range.edges()) {
+                        spell(specs, arcs, osymbols, outputToLabel, state, in, tr.edge.getOut(), -tr.edge.weight, tr.targetState);
+                    }
+                }
+                fromExclusive = toInclusive;
+            }
+            final P fin = g.getFinalEdge(state);
+            if (fin != null) {
+                if (fin.out.size() == 0) {
+                    arcs.finalCost[state] = -fin.weight;
+                } else {
+                    final int end = arcs.newState(0);
+                    spell(specs, arcs, osymbols, outputToLabel, state, 0, fin.out, -fin.weight, end);
+                }
+            }
+        }
+        arcs.sort();
+        final LEOutput out = new LEOutput(stream);
+        out.writeInt(FST_MAGIC);
+        out.writeString(constFst ? CONST : VECTOR);
+        out.writeString(STANDARD);
+        out.writeInt(FILE_VERSION);
+        out.writeInt(HAS_ISYMBOLS | HAS_OSYMBOLS);
+        out.writeLong(constFst ? EXPANDED : EXPANDED | MUTABLE);
+        out.writeLong(g.initial);
+        out.writeLong(arcs.states);
+        out.writeLong(arcs.size);
+        writeSymbols(out, "input", isymbols);
+        writeSymbols(out, "output", osymbols);
+        if (constFst) {
+            for (int s = 0; s < arcs.states; s++) {
+                int inputEpsilons = 0, outputEpsilons = 0;
+                for (int j = arcs.begin[s]; j < arcs.begin[s + 1]; j++) {
+                    if (arcs.ilabel[j] == 0) inputEpsilons++;
+                    if (arcs.olabel[j] == 0) outputEpsilons++;
+                }
+                out.writeFloat(arcs.finalCost[s]);
+                out.writeInt(arcs.begin[s]);
+                out.writeInt(arcs.begin[s + 1] - arcs.begin[s]);
+                out.writeInt(inputEpsilons);
+                out.writeInt(outputEpsilons);
+            }
+            for (int j = 0; j < arcs.size; j++) writeArc(out, arcs, j);
+        } else {
+            for (int s = 0; s < arcs.states; s++) {
+                out.writeFloat(arcs.finalCost[s]);
+                out.writeLong(arcs.begin[s + 1] - arcs.begin[s]);
+                for (int j = arcs.begin[s]; j < arcs.begin[s + 1]; j++) writeArc(out, arcs, j);
+            }
+        }
+        out.flush();
+    }
+
+    private static void writeArc(LEOutput out, Arcs arcs, int j) throws IOException {
+        out.writeInt(arcs.ilabel[j]);
+        out.writeInt(arcs.olabel[j]);
+        out.writeFloat(arcs.cost[j]);
+        out.writeInt(arcs.next[j]);
+    }
+
+    /**
+     * Adds arc that reads input label and then as many epsilon-input arcs as necessary to print the entire output
+     */
+    private static void spell(LexUnicodeSpecification<?, ?> specs, Arcs arcs, TreeMap<Integer, String> osymbols,
+                              HashMap<Integer, Integer> outputToLabel,
+                              int source, int in, IntSeq output, float cost, int target) {
+        int from = source;
+        int label = in;
+        for (int i = 0; i + 1 < output.size(); i++) {
+            final int mid = arcs.newState(Float.POSITIVE_INFINITY);
+            arcs.add(from, label, outputLabel(specs, osymbols, outputToLabel, output.get(i)), cost, mid);
+            from = mid;
+            label = 0;
+            cost = 0;
+        }
+        final int last = output.size() == 0 ? 0 : outputLabel(specs, osymbols, outputToLabel, output.get(output.size() - 1));
+        arcs.add(from, label, last, cost, target);
+    }
+
+    private static int outputLabel(LexUnicodeSpecification<?, ?> specs, TreeMap<Integer, String> osymbols,
+                                   HashMap<Integer, Integer> outputToLabel, int symbol) {
+        if (symbol != specs.reflect() && symbol > 0 && Character.isValidCodePoint(symbol)) {
+            osymbols.put(symbol, new String(Character.toChars(symbol)));
+            return symbol;
+        }
+        return outputToLabel.computeIfAbsent(symbol, k -> {
+            final int label = SPECIAL_LABEL + outputToLabel.size();
+            osymbols.put(label, symbol == specs.reflect() ? REFLECT_SYMBOL : "<" + Integer.toUnsignedString(symbol) + ">");
+            return label;
+        });
+    }
+
+    private static void writeSymbols(LEOutput out, String name, TreeMap<Integer, String> symbols) throws IOException {
+        out.writeInt(SYMBOL_TABLE_MAGIC);
+        out.writeString(name);
+        out.writeLong(symbols.lastKey() + 1L);
+        out.writeLong(symbols.size());
+        for (Map.Entry<Integer, String> symbol : symbols.entrySet()) {
+            out.writeString(symbol.getValue());
+            out.writeLong(symbol.getKey());
+        }
+    }
+
+    /**
+     * Reads vector or const FST with standard arcs. States that are only reachable through input epsilons
+     * are not present in the resulting graph.
+     *
+     * @param meta meta-data assigned to all states
+     */
+    public static <N, G extends IntermediateGraph<Pos, E, P, N>> G read(LexUnicodeSpecification<N, G> specs, Pos meta,
+                                                                          InputStream stream) throws IOException {
+        final LEInput in = new LEInput(stream);
+        if (in.readInt() != FST_MAGIC) throw new IOException("Not an OpenFst binary file");
+        final String fstType = in.readString();
+        final String arcType = in.readString();
+        if (!VECTOR.equals(fstType) && !CONST.equals(fstType))
+            throw new IOException("Unsupported FST type '" + fstType + "'. Only " + VECTOR + " and " + CONST + " are supported");
+        if (!STANDARD.equals(arcType))
+            throw new IOException("Unsupported arc type '" + arcType + "'. Only " + STANDARD + " is supported");
+        in.readInt();//version
+        final int flags = in.readInt();
+        in.readLong();//properties
+        final long start = in.readLong();
+        final long numStates = in.readLong();
+        final long numArcs = in.readLong();
+        if (numStates < -1 || numStates > Integer.MAX_VALUE - 8 || numArcs > Integer.MAX_VALUE - 8
+                || (numStates == -1 && CONST.equals(fstType)))
+            throw new IOException("Unsupported number of states " + numStates + " or arcs " + numArcs);
+        final HashMap<Integer, String> isymbols = (flags & HAS_ISYMBOLS) != 0 ? readSymbols(in) : null;
+        final HashMap<Integer, String> osymbols = (flags & HAS_OSYMBOLS) != 0 ? readSymbols(in) : null;
+        final Arcs arcs = new Arcs();
+        if (CONST.equals(fstType)) {
+            if ((flags & IS_ALIGNED) != 0) in.align(16);
+            final int[] pos = new int[(int) numStates], narcs = new int[(int) numStates];
+            for (int s = 0; s < numStates; s++) {
+                arcs.newState(in.readFloat());
+                pos[s] = in.readInt();
+                narcs[s] = in.readInt();
+                in.readInt();//input epsilons
+                in.readInt();//output epsilons
+            }
+            if ((flags & IS_ALIGNED) != 0) in.align(16);
+            final int[] owner = new int[(int) Math.max(0, numArcs)];
+            for (int s = 0; s < numStates; s++) {
+                for (int j = pos[s]; j < pos[s] + narcs[s]; j++) owner[j] = s;
+            }
+            for (int j = 0; j < numArcs; j++) {
+                readArc(in, arcs, owner[j]);
+            }
+        } else {
+            //vector FSTs written to streams that cannot seek have unknown number of states
+            for (int s = 0; numStates == -1 ? !in.atEnd() : s < numStates; s++) {
+                arcs.newState(in.readFloat());
+                final long n = in.readLong();
+                for (long j = 0; j < n; j++) readArc(in, arcs, s);
+            }
+        }
+        arcs.sort();
+        return toGraph(specs, meta, arcs, (int) start, isymbols, osymbols);
+    }
+
+    private static void readArc(LEInput in, Arcs arcs, int source) throws IOException {
+        final int ilabel = in.readInt();
+        final int olabel = in.readInt();
+        final float cost = in.readFloat();
+        final int next = in.readInt();
+        arcs.add(source, ilabel, olabel, cost, next);
+    }
+
+    private static HashMap<Integer, String> readSymbols(LEInput in) throws IOException {
+        if (in.readInt() != SYMBOL_TABLE_MAGIC) throw new IOException("Malformed symbol table");
+        in.readString();//name
+        in.readLong();//available key
+        final long size = in.readLong();
+        final HashMap<Integer, String> symbols = new HashMap<>();
+        for (long i = 0; i < size; i++) {
+            final String symbol = in.readString();
+            symbols.put((int) in.readLong(), symbol);
+        }
+        return symbols;
+    }
+
+    /**
+     * State reached through input epsilons together with the output and weight accumulated on the way
+     */
+    private static final class Reach {
+        final int state;
+        final IntSeq out;
+        final int weight;
+
+        Reach(int state, IntSeq out, int weight) {
+            this.state = state;
+            this.out = out;
+            this.weight = weight;
+        }
+    }
+
+    private static <N, G extends IntermediateGraph<Pos, E, P, N>> G toGraph(LexUnicodeSpecification<N, G> specs, Pos meta,
+                                                                             Arcs arcs, int start,
+                                                                             HashMap<Integer, String> isymbols,
+                                                                             HashMap<Integer, String> osymbols) throws IOException {
+        final G g = specs.createEmptyGraph();
+        if (start < 0) return g;
+        final HashMap<Integer, IntSeq> outputs = new HashMap<>();
+        final HashMap<Integer, Long> inputs = new HashMap<>();
+        final boolean[] hasEpsilon = new boolean[arcs.states];
+        for (int j = 0; j < arcs.size; j++) {
+            if (arcs.ilabel[j] == 0 && arcs.cost[j] != Float.POSITIVE_INFINITY) hasEpsilon[arcs.src[j]] = true;
+        }
+        checkEpsilonCycles(arcs, hasEpsilon);
+        final ArrayList<N> vertices = Util.filledArrayList(arcs.states, null);
+        final Stack<Integer> toCreate = new Stack<>();
+        vertices.set(start, g.create(meta));
+        toCreate.push(start);
+        final ArrayList<Reach> closure = new ArrayList<>();
+        while (!toCreate.isEmpty()) {
+            final int state = toCreate.pop();
+            final N vertex = vertices.get(state);
+            closure(arcs, hasEpsilon, state, closure, osymbols, outputs, specs);
+            P fin = null;
+            for (Reach reach : closure) {
+                final float finalCost = arcs.finalCost[reach.state];
+                if (finalCost != Float.POSITIVE_INFINITY) {
+                    final int w = reach.weight + weight(finalCost);
+                    if (fin == null || fin.weight < w) fin = new P(reach.out, w);
+                }
+                for (int j = arcs.begin[reach.state]; j < arcs.begin[reach.state + 1]; j++) {
+                    if (arcs.ilabel[j] == 0 || arcs.cost[j] == Float.POSITIVE_INFINITY) continue;
+                    final Long range = inputs.get(arcs.ilabel[j]);
+                    final long fromTo = range == null ? inputRange(specs, arcs.ilabel[j], isymbols, inputs) : range;
+                    final int target = arcs.next[j];
+                    if (vertices.get(target) == null) {
+                        vertices.set(target, g.create(meta));
+                        toCreate.push(target);
+                    }
+                    final IntSeq out = reach.out.concat(output(arcs.olabel[j], osymbols, outputs, specs));
+                    g.add(vertex, new E((int) (fromTo >>> 32), (int) fromTo, out, reach.weight + weight(arcs.cost[j])), vertices.get(target));
+                }
+            }
+            if (fin != null) g.setFinalEdge(vertex, fin);
+        }
+        final N init = vertices.get(start);
+        g.useStateOutgoingEdgesAsInitial(init, specs::cloneFullEdge);
+        g.setEpsilon(specs.clonePartialEdge(g.getFinalEdge(init)));
+        return g;
+    }
+
+    private static int weight(float cost) {
+        return (int) Math.round(-(double) cost);
+    }
+
+    /**
+     * Collects all states reachable through input epsilons (including the state itself). If some state is reachable
+     * in many ways, the one with the highest weight is kept.
+     */
+    private static void closure(Arcs arcs, boolean[] hasEpsilon, int state, ArrayList<Reach> closure,
+                                HashMap<Integer, String> osymbols, HashMap<Integer, IntSeq> outputs,
+                                LexUnicodeSpecification<?, ?> specs) throws IOException {
+        closure.clear();
+        final Reach self = new Reach(state, IntSeq.Epsilon, 0);
+        if (!hasEpsilon[state]) {
+            closure.add(self);
+            return;
+        }
+        final HashMap<Integer, Reach> best = new HashMap<>();
+        final Stack<Reach> toVisit = new Stack<>();
+        toVisit.push(self);
+        while (!toVisit.isEmpty()) {
+            final Reach r = toVisit.pop();
+            final Reach prev = best.get(r.state);
+            if (prev != null && prev.weight >= r.weight) continue;
+            best.put(r.state, r);
+            if (!hasEpsilon[r.state]) continue;
+            for (int j = arcs.begin[r.state]; j < arcs.begin[r.state + 1]; j++) {
+                if (arcs.ilabel[j] != 0 || arcs.cost[j] == Float.POSITIVE_INFINITY) continue;
+                toVisit.push(new Reach(arcs.next[j], r.out.concat(output(arcs.olabel[j], osymbols, outputs, specs)),
+                        r.weight + weight(arcs.cost[j])));
+            }
+        }
+        closure.addAll(best.values());
+    }
+
+    private static void checkEpsilonCycles(Arcs arcs, boolean[] hasEpsilon) throws IOException {
+        final byte[] color = new byte[arcs.states];//0 unvisited, 1 on stack, 2 done
+        final int[] stack = new int[arcs.states];
+        final int[] arcIdx = new int[arcs.states];
+        for (int root = 0; root < arcs.states; root++) {
+            if (!hasEpsilon[root] || color[root] != 0) continue;
+            int depth = 0;
+            stack[0] = root;
+            arcIdx[0] = arcs.begin[root];
+            color[root] = 1;
+            while (depth >= 0) {
+                final int s = stack[depth];
+                if (arcIdx[depth] == arcs.begin[s + 1]) {
+                    color[s] = 2;
+                    depth--;
+                    continue;
+                }
+                final int j = arcIdx[depth]++;
+                if (arcs.ilabel[j] != 0 || arcs.cost[j] == Float.POSITIVE_INFINITY) continue;
+                final int t = arcs.next[j];
+                if (color[t] == 1) throw new IOException("Cycles of input epsilons are not supported (state " + t + ")");
+                if (color[t] == 0) {
+                    color[t] = 1;
+                    stack[++depth] = t;
+                    arcIdx[depth] = arcs.begin[t];
+                }
+            }
+        }
+    }
+
+    /**
+     * @return exclusive beginning of range in higher 32 bits and inclusive end in lower 32 bits
+     */
+    private static long inputRange(LexUnicodeSpecification<?, ?> specs, int label, HashMap<Integer, String> isymbols,
+                                   HashMap<Integer, Long> cache) throws IOException {
+        final int fromInclusive, toInclusive;
+        if (isymbols == null) {
+            fromInclusive = toInclusive = label;
+        } else {
+            final String symbol = isymbols.get(label);
+            if (symbol == null) throw new IOException("Input label " + label + " is missing in symbol table");
+            final Matcher m = RANGE_SYMBOL.matcher(symbol);
+            if (symbol.codePointCount(0, symbol.length()) == 1) {
+                fromInclusive = toInclusive = symbol.codePointAt(0);
+            } else if (m.matches()) {
+                fromInclusive = Integer.parseUnsignedInt(m.group(1));
+                toInclusive = Integer.parseUnsignedInt(m.group(2));
+            } else {
+                throw new IOException("Input symbol '" + symbol + "' is neither a single character nor a range");
+            }
+        }
+        if (specs.compare(fromInclusive, specs.minimal()) <= 0 || specs.compare(toInclusive, specs.maximal()) > 0
+                || specs.compare(fromInclusive, toInclusive) > 0) {
+            throw new IOException("Input label " + label + " is out of range");
+        }
+        final long fromTo = ((long) (fromInclusive - 1) << 32) | (toInclusive & 0xFFFFFFFFL);
+        cache.put(label, fromTo);
+        return fromTo;
+    }
+
+    private static IntSeq output(int label, HashMap<Integer, String> osymbols, HashMap<Integer, IntSeq> cache,
+                                 LexUnicodeSpecification<?, ?> specs) throws IOException {
+        if (label == 0) return IntSeq.Epsilon;
+        final IntSeq cached = cache.get(label);
+        if (cached != null) return cached;
+        final IntSeq out;
+        if (osymbols == null) {
+            out = new IntSeq(label);
+        } else {
+            final String symbol = osymbols.get(label);
+            if (symbol == null) throw new IOException("Output label " + label + " is missing in symbol table");
+            final Matcher m = NUMBER_SYMBOL.matcher(symbol);
+            if (REFLECT_SYMBOL.equals(symbol)) {
+                out = new IntSeq(specs.reflect());
+            } else if (m.matches()) {
+                out = new IntSeq(Integer.parseUnsignedInt(m.group(1)));
+            } else {
+                out = new IntSeq(symbol);
+            }
+        }
+        cache.put(label, out);
+        return out;
+    }
+
+    /**
+     * Little-endian input that keeps track of position (needed for alignment of const FSTs)
+     */
+    private static final class LEInput {
+        private final InputStream in;
+        private final byte[] buf = new byte[1 << 16];
+        private int pos = 0, len = 0;
+        private long position = 0;
+
+        LEInput(InputStream in) {
+            this.in = in;
+        }
+
+        boolean atEnd() throws IOException {
+            if (pos == len) {
+                len = Math.max(0, in.read(buf));
+                pos = 0;
+            }
+            return len == 0;
+        }
+
+        int read() throws IOException {
+            if (pos == len) {
+                len = in.read(buf);
+                pos = 0;
+                if (len <= 0) {
+                    len = 0;
+                    throw new EOFException();
+                }
+            }
+            position++;
+            return buf[pos++] & 0xFF;
+        }
+
+        int readInt() throws IOException {
+            return read() | (read() << 8) | (read() << 16) | (read() << 24);
+        }
+
+        long readLong() throws IOException {
+            return (readInt() & 0xFFFFFFFFL) | ((long) readInt() << 32);
+        }
+
+        float readFloat() throws IOException {
+            return Float.intBitsToFloat(readInt());
+        }
+
+        String readString() throws IOException {
+            final int length = readInt();
+            if (length < 0) throw new IOException("Malformed string");
+            final byte[] bytes = new byte[length];
+            for (int i = 0; i < length; i++) bytes[i] = (byte) read();
+            return new String(bytes, StandardCharsets.UTF_8);
+        }
+
+        void align(int alignment) throws IOException {
+            while (position % alignment != 0) read();
+        }
+    }
+
+    private static final class LEOutput {
+        private final OutputStream out;
+        private final byte[] buf = new byte[1 << 16];
+        private int len = 0;
+
+        LEOutput(OutputStream out) {
+            this.out = out;
+        }
+
+        void write(int b) throws IOException {
+            if (len == buf.length) {
+                out.write(buf, 0, len);
+                len = 0;
+            }
+            buf[len++] = (byte) b;
+        }
+
+        void writeInt(int i) throws IOException {
+            write(i);
+            write(i >>> 8);
+            write(i >>> 16);
+            write(i >>> 24);
+        }
+
+        void writeLong(long l) throws IOException {
+            writeInt((int) l);
+            writeInt((int) (l >>> 32));
+        }
+
+        void writeFloat(float f) throws IOException {
+            writeInt(Float.floatToRawIntBits(f));
+        }
+
+        void writeString(String s) throws IOException {
+            final byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+            writeInt(bytes.length);
+            for (byte b : bytes) write(b);
+        }
+
+        void flush() throws IOException {
+            out.write(buf, 0, len);
+            len = 0;
+            out.flush();
+        }
+    }
+}
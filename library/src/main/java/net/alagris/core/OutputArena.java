@@ -0,0 +1,180 @@
+package net.alagris.core;
+
+import net.alagris.core.LexUnicodeSpecification.E;
+import net.alagris.core.LexUnicodeSpecification.P;
+import net.alagris.core.Specification.Range;
+import net.alagris.core.Specification.RangedGraph;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Hash-consed storage of output strings. Every distinct output is stored only once and all edges that print it
+ * share the same {@link IntSeq} instance. The symbols of short outputs are copied into large shared blocks
+ * (every interned {@link IntSeq} is just a view with offset into some block), so that outputs that are used together
+ * are also stored together in memory. Most edges print epsilon or one of a few strings, hence interning
+ * saves the majority of memory occupied by outputs. Because {@link IntSeq} is immutable, sharing is safe.
+ * Interning is thread-safe.
+ * <br>
+ * Every interned output pins the entire block it points into. Therefore an arena should serve a single graph
+ * (and be dropped once all of its outputs are interned), so that the blocks are released together with the graph.
+ * Blocks start small and double in size up to the maximal block size, so small graphs do not pin large blocks.
+ */
+public final class OutputArena {
+
+    public static final int DEFAULT_BLOCK_SIZE = 1 << 14;
+    static final int FIRST_BLOCK_SIZE = 1 << 6;
+
+    private final HashMap<IntSeq, IntSeq> interned = new HashMap<>();
+    private final int blockSize;
+    private int[] block;
+    private int used;
+    private long pooledSymbols = 0;
+    private long allocatedBytes = 0;
+
+    public OutputArena(int blockSize) {
+        assert blockSize > 0;
+        this.blockSize = blockSize;
+    }
+
+    public OutputArena() {
+        this(DEFAULT_BLOCK_SIZE);
+    }
+
+    /**
+     * @return canonical instance equal to the given output
+     */
+    public synchronized IntSeq intern(IntSeq out) {
+        if (out.isEmpty()) return IntSeq.Epsilon;
+        final IntSeq prev = interned.get(out);
+        if (prev != null) return prev;
+        final int len = out.size();
+        final IntSeq pooled;
+        if (len > blockSize / 4) {
+            final int[] own = new int[len];
+            for (int i = 0; i < len; i++) own[i] = out.at(i);
+            allocatedBytes += arrayBytes(len);
+            pooled = new IntSeq(own);
+        } else {
+            if (block == null || used + len > block.length) {
+                final int size = Math.min(blockSize, Math.max(len, block == null ? FIRST_BLOCK_SIZE : block.length * 2));
+                block = new int[size];
+                used = 0;
+                allocatedBytes += arrayBytes(size);
+            }
+            for (int i = 0; i < len; i++) block[used + i] = out.at(i);
+            pooled = new IntSeq(block, used, len);
+            used += len;
+        }
+        pooledSymbols += len;
+        allocatedBytes += INT_SEQ_BYTES;
+        interned.put(pooled, pooled);
+        return pooled;
+    }
+
+    /**
+     * Number of distinct outputs
+     */
+    public synchronized int size() {
+        return interned.size();
+    }
+
+    public synchronized long pooledSymbols() {
+        return pooledSymbols;
+    }
+
+    /**
+     * Estimated number of bytes allocated by the arena (without the hash table)
+     */
+    public synchronized long allocatedBytes() {
+        return allocatedBytes;
+    }
+
+    /**
+     * Approximate size of object header and fields of {@link IntSeq} (with compressed pointers)
+     */
+    static final int INT_SEQ_BYTES = 32;
+
+    static long arrayBytes(int length) {
+        return (16 + 4L * length + 7) & ~7L;
+    }
+
+    /**
+     * Memory occupied by outputs of a graph
+     */
+    public static final class Report {
+        /**
+         * Number of outputs of edges and final edges (every edge is counted as many times as the ranges it spans)
+         */
+        public final long outputs;
+        /**
+         * Number of distinct instances of {@link IntSeq}
+         */
+        public final long instances;
+        /**
+         * Number of distinct arrays backing those instances
+         */
+        public final long arrays;
+        /**
+         * Estimated bytes retained by all those instances and arrays
+         */
+        public final long bytes;
+
+        Report(long outputs, long instances, long arrays, long bytes) {
+            this.outputs = outputs;
+            this.instances = instances;
+            this.arrays = arrays;
+            this.bytes = bytes;
+        }
+
+        @Override
+        public String toString() {
+            return "outputs=" + outputs + ", instances=" + instances + ", arrays=" + arrays + ", bytes=" + bytes;
+        }
+    }
+
+    /**
+     * Measures how much memory the outputs of graph occupy. Instances (and arrays) shared by many edges are
+     * counted only once. Outputs that are views into larger arrays (such as the blocks of arena)
+     * are counted only by the symbols they cover.
+     */
+    public static Report measure(RangedGraph<?, Integer, E, P> g) {
+        final Set<IntSeq> instances = Collections.newSetFromMap(new IdentityHashMap<>());
+        final Set<int[]> arrays = Collections.newSetFromMap(new IdentityHashMap<>());
+        long outputs = 0;
+        long bytes = 0;
+        for (List<Range<Integer, List<RangedGraph.Trans<E>>>> ranges : g.graph) {
+            for (Range<Integer, List<RangedGraph.Trans<E>>> range : ranges) {
+                for (RangedGraph.Trans<E> tr : range.edges()) {
+                    outputs++;
+                    bytes += measure(tr.edge.getOut(), instances, arrays);
+                }
+            }
+        }
+        for (P fin : g.accepting) {
+            if (fin != null) {
+                outputs++;
+                bytes += measure(fin.getOut(), instances, arrays);
+            }
+        }
+        return new Report(outputs, instances.size(), arrays.size(), bytes);
+    }
+
+    static long measure(IntSeq out, Set<IntSeq> instances, Set<int[]> arrays) {
+        long bytes = 0;
+        if (instances.add(out)) {
+            bytes += INT_SEQ_BYTES;
+            final int[] arr = out.unsafe();
+            if (out.size() < arr.length) {
+                arrays.add(arr);
+                bytes += 4L * out.size();
+            } else if (arrays.add(arr)) {
+                bytes += arrayBytes(arr.length);
+            }
+        }
+        return bytes;
+    }
+}
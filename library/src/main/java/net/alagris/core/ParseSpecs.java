@@ -50,6 +50,12 @@ public interface ParseSpecs<Var, V, E, P, A, O extends Seq<A>, W, N, G extends I
      */
     Var borrowVariable(String var);
 
+    /**
+     * Tells whether the graph is still owned by some variable. Such graph can be read freely but it has to
+     * be copied (see {@link Specification#deepClone}) before it is mutated.
+     */
+    boolean isOwnedByVariable(G graph);
+
     Specification<V, E, P, A, O, W, N, G> specification();
 
     void typecheckInputOnly(Pos pos, String funcName, G in) throws CompilationError;
@@ -19,9 +19,19 @@ public class ParserListener<Var, V, E, P, A, O extends Seq<A>, W, N, G extends I
     public static class AutomatonAndGroup<G>{
         G g;
         int groupIndex;
+        /**
+         * If true, then the graph still belongs to some variable and it must be copied before it is mutated.
+         * This way referencing a variable (with exponential or alwaysCopy) costs nothing until the
+         * copy is actually modified.
+         */
+        boolean shared;
         public AutomatonAndGroup(G g, int groupIndex){
+            this(g, groupIndex, false);
+        }
+        public AutomatonAndGroup(G g, int groupIndex, boolean shared){
             this.g = g;
             this.groupIndex = groupIndex;
+            this.shared = shared;
         }
     }
     public final Stack<AutomatonAndGroup<G>> automata = new Stack<>();
@@ -31,6 +41,10 @@ public class ParserListener<Var, V, E, P, A, O extends Seq<A>, W, N, G extends I
      */
     public final boolean exponentialMeansCopy;
     private String currFuncName;
+    /**
+     * Position of the definition of {@link #currFuncName}. Reported when some {@link Budget} is exceeded
+     */
+    private Pos currFuncPos;
 
     public ParserListener(ParseSpecs<Var, V, E, P, A, O, W, N, G> specs, boolean exponentialMeansCopy) {
         this.specs = specs;
@@ -46,8 +60,19 @@ public class ParserListener<Var, V, E, P, A, O extends Seq<A>, W, N, G extends I
         }
     }
 
+    /**
+     * Materializes the copy of shared graph (if it wasn't done yet), so that it can be safely mutated
+     */
+    public G own(AutomatonAndGroup<G> a) {
+        if (a.shared) {
+            a.g = specs.specification().deepClone(a.g);
+            a.shared = false;
+        }
+        return a.g;
+    }
+
     public AutomatonAndGroup<G> unionAndGroup(Pos pos, AutomatonAndGroup<G> lhs, AutomatonAndGroup<G> rhs) throws CompilationError {
-        lhs.g = union(pos,lhs.g,rhs.g);
+        lhs.g = union(pos,own(lhs),own(rhs));
         lhs.groupIndex = Math.max(lhs.groupIndex,rhs.groupIndex);
         return lhs;
     }
@@ -57,7 +82,7 @@ public class ParserListener<Var, V, E, P, A, O extends Seq<A>, W, N, G extends I
     }
 
     public AutomatonAndGroup<G> concatAndGroup( AutomatonAndGroup<G> lhs, AutomatonAndGroup<G> rhs) {
-        lhs.g = concat(lhs.g,rhs.g);
+        lhs.g = concat(own(lhs),own(rhs));
         lhs.groupIndex = Math.max(lhs.groupIndex,rhs.groupIndex);
         return lhs;
     }
@@ -71,7 +96,7 @@ public class ParserListener<Var, V, E, P, A, O extends Seq<A>, W, N, G extends I
     }
 
     public AutomatonAndGroup<G> kleeneAndGroup(Pos pos, AutomatonAndGroup<G> lhs) throws CompilationError {
-        lhs.g = kleene(pos,lhs.g);
+        lhs.g = kleene(pos,own(lhs));
         return lhs;
     }
 
@@ -84,7 +109,7 @@ public class ParserListener<Var, V, E, P, A, O extends Seq<A>, W, N, G extends I
     }
 
     public AutomatonAndGroup<G> kleeneSemigroupAndGroup(Pos pos, AutomatonAndGroup<G> lhs) throws CompilationError {
-        lhs.g = kleeneSemigroup(pos,lhs.g);
+        lhs.g = kleeneSemigroup(pos,own(lhs));
         return lhs;
     }
 
@@ -96,7 +121,7 @@ public class ParserListener<Var, V, E, P, A, O extends Seq<A>, W, N, G extends I
         }
     }
     public AutomatonAndGroup<G> kleeneOptionalAndGroup(Pos pos, AutomatonAndGroup<G> lhs) throws CompilationError {
-        lhs.g = kleeneOptional(pos,lhs.g);
+        lhs.g = kleeneOptional(pos,own(lhs));
         return lhs;
     }
     public G product(G nested, O out) {
@@ -107,7 +132,9 @@ public class ParserListener<Var, V, E, P, A, O extends Seq<A>, W, N, G extends I
         return specs.specification().leftActionOnGraph(specs.specification().partialWeightedEdge(weight), nested);
     }
     public AutomatonAndGroup<G> weightBeforeAndGroup(W weight, AutomatonAndGroup<G> nested) {
-        nested.g = weightBefore(weight,nested.g);
+        //grammar allows empty list of weights after every element. Neutral weight would needlessly copy shared graph
+        if (weight.equals(specs.specification().weightNeutralElement())) return nested;
+        nested.g = weightBefore(weight,own(nested));
         return nested;
     }
 
@@ -116,7 +143,8 @@ public class ParserListener<Var, V, E, P, A, O extends Seq<A>, W, N, G extends I
     }
 
     public AutomatonAndGroup<G> weightAfterAndGroup( AutomatonAndGroup<G> nested,W weight) {
-        nested.g = weightAfter(nested.g,weight);
+        if (weight.equals(specs.specification().weightNeutralElement())) return nested;
+        nested.g = weightAfter(own(nested),weight);
         return nested;
     }
 
@@ -143,7 +171,7 @@ public class ParserListener<Var, V, E, P, A, O extends Seq<A>, W, N, G extends I
 
     public Var var(Pos pos, String id, boolean makeCopy) throws CompilationError {
 
-        Var g = (makeCopy == exponentialMeansCopy) ? specs.copyVariable(id) : specs.consumeVariable(id);
+        Var g = (makeCopy == exponentialMeansCopy) ? specs.borrowVariable(id) : specs.consumeVariable(id);
         if (g == null) {
             throw new CompilationError.MissingTransducer(pos, id);
         } else {
@@ -406,6 +434,7 @@ public class ParserListener<Var, V, E, P, A, O extends Seq<A>, W, N, G extends I
     @Override
     public void enterFuncDef(FuncDefContext ctx) {
         currFuncName = ctx.ID().getText();
+        currFuncPos = new Pos(ctx.ID().getSymbol());
     }
 
     @Override
@@ -422,6 +451,9 @@ public class ParserListener<Var, V, E, P, A, O extends Seq<A>, W, N, G extends I
             }
         } catch (CompilationError e) {
             throw new RuntimeException(e);
+        } finally {
+            currFuncName = null;
+            currFuncPos = null;
         }
     }
 
@@ -466,6 +498,7 @@ public class ParserListener<Var, V, E, P, A, O extends Seq<A>, W, N, G extends I
     public void enterPipelineDef(PipelineDefContext ctx) {
         assert pipelines.isEmpty();
         currFuncName = ctx.ID().getText();
+        currFuncPos = new Pos(ctx.ID().getSymbol());
     }
 
     @Override
@@ -479,6 +512,7 @@ public class ParserListener<Var, V, E, P, A, O extends Seq<A>, W, N, G extends I
             throw new RuntimeException(compilationError);
         }
         currFuncName = null;
+        currFuncPos = null;
         assert pipelines.isEmpty();
     }
 
@@ -870,7 +904,19 @@ public class ParserListener<Var, V, E, P, A, O extends Seq<A>, W, N, G extends I
     public void exitMealyAtomicVarID(MealyAtomicVarIDContext ctx) {
         try {
             final Var g = var(new Pos(ctx.start), ctx.ID().getText(), ctx.exponential != null);
-            automata.push(new AutomatonAndGroup<>(specs.getGraph(g),specs.getMaxGroupIndex(g)));
+            final G graph = specs.getGraph(g);
+            boolean shared = specs.isOwnedByVariable(graph);
+            if (!shared) {
+                //the variable has just been consumed but earlier references to it may still
+                //wait on the stack with their copies not yet materialized
+                for (AutomatonAndGroup<G> a : automata) {
+                    if (a.shared && a.g == graph) {
+                        shared = true;
+                        break;
+                    }
+                }
+            }
+            automata.push(new AutomatonAndGroup<>(graph, specs.getMaxGroupIndex(g), shared));
         } catch (CompilationError e) {
             throw new RuntimeException(e);
         }
@@ -908,7 +954,7 @@ public class ParserListener<Var, V, E, P, A, O extends Seq<A>, W, N, G extends I
             } else if (child instanceof MealyUnionContext) {
                 final AutomatonAndGroup<G> expr = automata.get(automata.size() - expressions + exprIdx);
                 exprIdx++;
-                args.add(new FuncArg.Expression<>(expr.g));
+                args.add(new FuncArg.Expression<>(own(expr)));
                 maxGroup = Math.max(maxGroup,expr.groupIndex);
             } else if (child instanceof TerminalNode) {
                 final TerminalNode terminal = (TerminalNode) child;
@@ -967,7 +1013,7 @@ public class ParserListener<Var, V, E, P, A, O extends Seq<A>, W, N, G extends I
         }else{
             specs.handleNonDecreasingGroupIndex( group,g.groupIndex,pos);
         }
-        final G g2 = specs.specification().leftActionOnGraph(partial, g.g);
+        final G g2 = specs.specification().leftActionOnGraph(partial, own(g));
         final G g3 = specs.specification().rightActionOnGraph(g2, partial);
         g.g = g3;
         automata.push(g);
@@ -1087,6 +1133,9 @@ public class ParserListener<Var, V, E, P, A, O extends Seq<A>, W, N, G extends I
         try {
             ParseTreeWalker.DEFAULT.walk(this, parser.start());
             assert automata.isEmpty();
+        } catch (Budget.Exceeded e) {
+            automata.clear();
+            throw new CompilationError.BudgetExceeded(currFuncPos, currFuncName, e);
         } catch (RuntimeException e) {
             automata.clear();
             if (e.getCause() instanceof CompilationError) {
@@ -1094,6 +1143,10 @@ public class ParserListener<Var, V, E, P, A, O extends Seq<A>, W, N, G extends I
             } else {
                 throw e;
             }
+        } finally {
+            //the walk might have been aborted in the middle of some definition
+            currFuncName = null;
+            currFuncPos = null;
         }
     }
 
@@ -1101,6 +1154,9 @@ public class ParserListener<Var, V, E, P, A, O extends Seq<A>, W, N, G extends I
         try {
             ParseTreeWalker.DEFAULT.walk(this, parser.repl());
             assert automata.isEmpty();
+        } catch (Budget.Exceeded e) {
+            automata.clear();
+            throw new CompilationError.BudgetExceeded(currFuncPos, currFuncName, e);
         } catch (RuntimeException e) {
             automata.clear();
             if (e.getCause() instanceof CompilationError) {
@@ -1108,6 +1164,10 @@ public class ParserListener<Var, V, E, P, A, O extends Seq<A>, W, N, G extends I
             } else {
                 throw e;
             }
+        } finally {
+            //the walk might have been aborted in the middle of some definition
+            currFuncName = null;
+            currFuncPos = null;
         }
     }
 
@@ -394,13 +394,24 @@ public interface Pipeline<V, In, E, P, N, G extends IntermediateGraph<V, E, P, N
 
     public static <V, In, Out, W, E, P, N, G extends IntermediateGraph<V, E, P, N>, Y> Y
     foldAutomata(Pipeline<V, In, E, P, N, G> pipeline, Y initial, BiFunction<Y, Automaton<V, In, E, P, N, G>, Y> fold) {
+        return foldStages(pipeline, initial, (y, p) -> p instanceof Automaton ? fold.apply(y, (Automaton<V, In, E, P, N, G>) p) : y);
+    }
+
+    public static <V, In, Out, W, E, P, N, G extends IntermediateGraph<V, E, P, N>, Y> Y
+    foldAssertions(Pipeline<V, In, E, P, N, G> pipeline, Y initial, BiFunction<Y, Assertion<V, In, E, P, N, G>, Y> fold) {
+        return foldStages(pipeline, initial, (y, p) -> p instanceof Assertion ? fold.apply(y, (Assertion<V, In, E, P, N, G>) p) : y);
+    }
+
+    /**
+     * Folds all stages that are not made of other stages (automata, assertions and external functions)
+     */
+    public static <V, In, Out, W, E, P, N, G extends IntermediateGraph<V, E, P, N>, Y> Y
+    foldStages(Pipeline<V, In, E, P, N, G> pipeline, Y initial, BiFunction<Y, Pipeline<V, In, E, P, N, G>, Y> fold) {
         final Stack<Pipeline<V, In, E, P, N, G>> stack = new Stack<>();
         stack.push(pipeline);
         while (!stack.isEmpty()) {
             final Pipeline<V, In, E, P, N, G> p = stack.pop();
-            if (p instanceof Automaton) {
-                initial = fold.apply(initial, (Automaton<V, In, E, P, N, G>) p);
-            } else if (p instanceof Alternative) {
+            if (p instanceof Alternative) {
                 final Alternative<V, In, E, P, N, G> alt = (Alternative<V, In, E, P, N, G>) p;
                 stack.push(alt.lhs);
                 stack.push(alt.rhs);
@@ -413,6 +424,8 @@ public interface Pipeline<V, In, E, P, N, G extends IntermediateGraph<V, E, P, N
                 for (Pipeline<V, In, E, P, N, G> e : alt.submatchHandler.values()) {
                     stack.push(e);
                 }
+            } else {
+                initial = fold.apply(initial, p);
             }
         }
         return initial;
@@ -0,0 +1,160 @@
+package net.alagris.core;
+
+import net.alagris.core.LexUnicodeSpecification.E;
+import net.alagris.core.LexUnicodeSpecification.P;
+import net.alagris.core.Specification.RangedGraph;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.function.Consumer;
+
+/**
+ * Optimisation pass over registered pipelines. Chains of adjacent {@link Pipeline.Automaton} stages are fused into a
+ * single transducer with {@link LexUnicodeSpecification#compose}, and {@link Pipeline.Assertion} stages are folded
+ * into the automaton that follows them (runtime assertions by product, the others are simply dropped,
+ * because evaluation of pipeline never checks them anyway). Fused pipelines do not materialise intermediate
+ * sequences and perform fewer stages of dispatch.
+ * <br>
+ * Fusion never changes the results of pipeline. Only deterministic automata are composed with their successor,
+ * because weights of the first transducer would otherwise get mixed with those of the second one.
+ * The product of sizes of both automata (which bounds the number of states of the result) must fit within the budget
+ * and the result must remain strongly functional. Otherwise the stages are left as they are.
+ */
+public final class PipelineFusion {
+
+    public enum Kind {
+        /**
+         * Two automata composed into one
+         */
+        COMPOSITION,
+        /**
+         * Runtime assertion intersected with the following automaton
+         */
+        ASSERTION_PRODUCT,
+        /**
+         * Assertion without the runtime keyword (which is never checked) dropped in front of the following automaton
+         */
+        ASSERTION_DROPPED
+    }
+
+    /**
+     * Record of a single applied fusion
+     */
+    public static final class Fusion {
+        public final String pipeline;
+        public final Kind kind;
+        public final Pos lhs, rhs;
+        public final int states;
+
+        Fusion(String pipeline, Kind kind, Pos lhs, Pos rhs, int states) {
+            this.pipeline = pipeline;
+            this.kind = kind;
+            this.lhs = lhs;
+            this.rhs = rhs;
+            this.states = states;
+        }
+
+        @Override
+        public String toString() {
+            return "@" + pipeline + ": " + kind + " of " + lhs + " and " + rhs + " into " + states + " states";
+        }
+    }
+
+    private PipelineFusion() {
+    }
+
+    /**
+     * @param maxStates upper bound on the number of states of every fused automaton
+     * @param report    called for every applied fusion
+     * @return fused pipeline (the original one is left intact)
+     */
+    public static <N, G extends IntermediateGraph<Pos, E, P, N>> Pipeline<Pos, Integer, E, P, N, G> fuse(
+            LexUnicodeSpecification<N, G> specs, String name, Pipeline<Pos, Integer, E, P, N, G> pipeline,
+            int maxStates, Consumer<Fusion> report) {
+        if (pipeline instanceof Pipeline.Alternative) {
+            final Pipeline.Alternative<Pos, Integer, E, P, N, G> alt = (Pipeline.Alternative<Pos, Integer, E, P, N, G>) pipeline;
+            final Pipeline<Pos, Integer, E, P, N, G> lhs = fuse(specs, name, alt.lhs, maxStates, report);
+            final Pipeline<Pos, Integer, E, P, N, G> rhs = fuse(specs, name, alt.rhs, maxStates, report);
+            return lhs == alt.lhs && rhs == alt.rhs ? alt : new Pipeline.Alternative<>(alt.meta, lhs, rhs);
+        } else if (pipeline instanceof Pipeline.Submatch) {
+            final Pipeline.Submatch<Pos, Integer, E, P, N, G> sub = (Pipeline.Submatch<Pos, Integer, E, P, N, G>) pipeline;
+            final HashMap<Integer, Pipeline<Pos, Integer, E, P, N, G>> handlers = new HashMap<>();
+            boolean changed = false;
+            for (Map.Entry<Integer, Pipeline<Pos, Integer, E, P, N, G>> handler : sub.submatchHandler.entrySet()) {
+                final Pipeline<Pos, Integer, E, P, N, G> fused = fuse(specs, name, handler.getValue(), maxStates, report);
+                changed |= fused != handler.getValue();
+                handlers.put(handler.getKey(), fused);
+            }
+            return changed ? new Pipeline.Submatch<>(sub.meta, handlers) : sub;
+        } else if (pipeline instanceof Pipeline.Composition) {
+            final Pipeline.Composition<Pos, Integer, E, P, N, G> comp = (Pipeline.Composition<Pos, Integer, E, P, N, G>) pipeline;
+            final Pipeline<Pos, Integer, E, P, N, G> lhs = fuse(specs, name, comp.lhs, maxStates, report);
+            final Pipeline<Pos, Integer, E, P, N, G> rhs = fuse(specs, name, comp.rhs, maxStates, report);
+            final Pipeline<Pos, Integer, E, P, N, G> next = rhs instanceof Pipeline.Composition ?
+                    ((Pipeline.Composition<Pos, Integer, E, P, N, G>) rhs).lhs : rhs;
+            final Pipeline.Automaton<Pos, Integer, E, P, N, G> fused = next instanceof Pipeline.Automaton ?
+                    fuseStages(specs, name, lhs, (Pipeline.Automaton<Pos, Integer, E, P, N, G>) next, maxStates, report) : null;
+            if (fused == null) {
+                return lhs == comp.lhs && rhs == comp.rhs ? comp : new Pipeline.Composition<>(comp.meta, lhs, rhs);
+            } else if (rhs instanceof Pipeline.Composition) {
+                //the fused automaton might be fused with the next one as well
+                final Pipeline<Pos, Integer, E, P, N, G> rest = ((Pipeline.Composition<Pos, Integer, E, P, N, G>) rhs).rhs;
+                return fuse(specs, name, new Pipeline.Composition<>(comp.meta, fused, rest), maxStates, report);
+            } else {
+                return fused;
+            }
+        } else {
+            return pipeline;
+        }
+    }
+
+    /**
+     * @return null if stages cannot be fused
+     */
+    private static <N, G extends IntermediateGraph<Pos, E, P, N>> Pipeline.Automaton<Pos, Integer, E, P, N, G> fuseStages(
+            LexUnicodeSpecification<N, G> specs, String name, Pipeline<Pos, Integer, E, P, N, G> lhs,
+            Pipeline.Automaton<Pos, Integer, E, P, N, G> rhs, int maxStates, Consumer<Fusion> report) {
+        final Kind kind;
+        final G fused;
+        final RangedGraph<Pos, Integer, E, P> l;
+        if (lhs instanceof Pipeline.Assertion) {
+            final Pipeline.Assertion<Pos, Integer, E, P, N, G> assertion = (Pipeline.Assertion<Pos, Integer, E, P, N, G>) lhs;
+            if (!assertion.runtime) {
+                report.accept(new Fusion(name, Kind.ASSERTION_DROPPED, assertion.meta, rhs.meta, rhs.g.size()));
+                return rhs;
+            }
+            l = assertion.g;
+            if (!fits(l, rhs.g, maxStates) || l.isDeterministic() != null) return null;
+            kind = Kind.ASSERTION_PRODUCT;
+            fused = specs.product(l, rhs.g, (a, b) -> b,
+                    (from, to, a, b) -> a == null || b == null ? null : new E(from, to, b.getOut(), b.weight),
+                    (a, b) -> a == null || b == null ? null : new P(b.out, b.weight)).l();
+        } else if (lhs instanceof Pipeline.Automaton) {
+            l = ((Pipeline.Automaton<Pos, Integer, E, P, N, G>) lhs).g;
+            if (!fits(l, rhs.g, maxStates) || l.isDeterministic() != null) return null;
+            if (specs.isStronglyFunctional(rhs.g) != null) return null;
+            kind = Kind.COMPOSITION;
+            //lhs is deterministic, so all paths of composition share the same lhs weights and only rhs weights matter
+            fused = specs.compose(specs.toIntermediateGraph(l), rhs.g, 0, lhs.meta());
+        } else {
+            return null;
+        }
+        final RangedGraph<Pos, Integer, E, P> optimal = specs.optimiseGraph(fused);
+        try {
+            specs.reduceEdges(lhs.meta(), optimal);
+        } catch (CompilationError.EdgeReductionNondeterminism e) {
+            return null;
+        }
+        if (optimal.size() > maxStates || specs.isStronglyFunctional(optimal) != null) return null;
+        specs.internOutputs(optimal);
+        report.accept(new Fusion(name, kind, lhs.meta(), rhs.meta, optimal.size()));
+        return new Pipeline.Automaton<>(optimal, lhs.meta());
+    }
+
+    /**
+     * Every state of composition or product is a pair of states (or sink states)
+     */
+    private static boolean fits(RangedGraph<?, Integer, E, P> lhs, RangedGraph<?, Integer, E, P> rhs, int maxStates) {
+        return (long) (lhs.size() + 1) * (rhs.size() + 1) <= maxStates;
+    }
+}
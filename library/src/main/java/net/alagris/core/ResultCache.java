@@ -0,0 +1,121 @@
+package net.alagris.core;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+
+/**
+ * Bounded cache of evaluation results keyed by input. Real-world inputs usually follow
+ * Zipf's law, so a relatively small cache of recently used inputs answers most of the queries
+ * without running the transducer at all. The cache is split into independently locked segments, each
+ * of which evicts its least recently used entry when full. Rejected inputs (null outputs) are cached as well.
+ * It is safe to use the cache from many threads. Two threads that miss the same input at the same time
+ * might both evaluate it, which is harmless because evaluation is deterministic.
+ * Inputs must not be mutated after they were passed to the cache.
+ */
+public final class ResultCache<V> {
+
+    private static final Object REJECTED = new Object();
+
+    private static final class Segment extends LinkedHashMap<IntSeq, Object> {
+        private final int capacity;
+        private final LongAdder evictions;
+
+        Segment(int capacity, LongAdder evictions) {
+            super(16, 0.75f, true);
+            this.capacity = capacity;
+            this.evictions = evictions;
+        }
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<IntSeq, Object> eldest) {
+            if (size() > capacity) {
+                evictions.increment();
+                return true;
+            }
+            return false;
+        }
+    }
+
+    private final Segment[] segments;
+    private final int capacity;
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+
+    /**
+     * @param capacity maximal number of cached results (approximately, because each segment is bounded separately)
+     */
+    public ResultCache(int capacity) {
+        if (capacity <= 0) throw new IllegalArgumentException("Cache capacity must be positive but was " + capacity);
+        this.capacity = capacity;
+        int segmentCount = 1;
+        while (segmentCount < 16 && segmentCount * 64 < capacity) segmentCount *= 2;
+        segments = new Segment[segmentCount];
+        final int perSegment = (capacity + segmentCount - 1) / segmentCount;
+        for (int i = 0; i < segmentCount; i++) segments[i] = new Segment(perSegment, evictions);
+    }
+
+    private Segment segment(IntSeq input) {
+        final int h = input.hashCode() * 0x9E3779B9;
+        return segments[(h >>> 16) & (segments.length - 1)];
+    }
+
+    /**
+     * Returns cached output or evaluates the input and caches the result.
+     */
+    @SuppressWarnings("unchecked")
+    public V get(IntSeq input, Function<IntSeq, V> evaluate) {
+        final Segment segment = segment(input);
+        Object cached;
+        synchronized (segment) {
+            cached = segment.get(input);
+        }
+        if (cached != null) {
+            hits.increment();
+            return cached == REJECTED ? null : (V) cached;
+        }
+        misses.increment();
+        final V out = evaluate.apply(input);
+        synchronized (segment) {
+            segment.put(input, out == null ? REJECTED : out);
+        }
+        return out;
+    }
+
+    public void clear() {
+        for (Segment segment : segments) {
+            synchronized (segment) {
+                segment.clear();
+            }
+        }
+    }
+
+    public int capacity() {
+        return capacity;
+    }
+
+    public long hits() {
+        return hits.sum();
+    }
+
+    public long misses() {
+        return misses.sum();
+    }
+
+    public long evictions() {
+        return evictions.sum();
+    }
+
+    public double hitRate() {
+        final long h = hits(), m = misses();
+        return h + m == 0 ? 0 : (double) h / (h + m);
+    }
+
+    @Override
+    public String toString() {
+        return "hits=" + hits() + ", misses=" + misses() + ", evictions=" + evictions()
+                + ", hitRate=" + String.format("%.3f", hitRate());
+    }
+}
@@ -0,0 +1,287 @@
+package net.alagris.core;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.*;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+/**
+ * Evaluates every line of a (possibly very large) UTF-8 file. The input file is memory-mapped and split into
+ * shards at newline boundaries. Shards are evaluated in parallel and each worker thread
+ * obtains its own evaluation context from the supplier (this matters for tabular evaluation, where
+ * stateToIndex and outputBuffer cannot be shared). Results are gathered in the original order of lines
+ * and written to output file by a single writer. At most a bounded number of shards is kept in memory
+ * at any time, so the input can be much larger than available heap.
+ */
+public class ShardedEvaluator {
+
+    /**
+     * Default size of a single shard in bytes. Shards are always cut at newline boundaries, so
+     * actual size may be slightly larger
+     */
+    public static final int DEFAULT_SHARD_SIZE = 1 << 24;
+
+    public final int threads;
+    public final int shardSize;
+    /**
+     * Line written to output whenever evaluation of an input line returns no match. If null,
+     * such lines are skipped (this is consistent with how REPL eval works)
+     */
+    public final String noMatch;
+
+    public ShardedEvaluator(int threads, int shardSize, String noMatch) {
+        assert threads > 0;
+        assert shardSize > 0;
+        this.threads = threads;
+        this.shardSize = shardSize;
+        this.noMatch = noMatch;
+    }
+
+    public ShardedEvaluator(int threads) {
+        this(threads, DEFAULT_SHARD_SIZE, null);
+    }
+
+    public static class Stats {
+        public long lines;
+        public long noMatches;
+        public long bytesRead;
+        public long bytesWritten;
+        public int shards;
+
+        @Override
+        public String toString() {
+            return "lines=" + lines + ", noMatches=" + noMatches + ", shards=" + shards
+                    + ", bytesRead=" + bytesRead + ", bytesWritten=" + bytesWritten;
+        }
+    }
+
+    private static class ShardResult {
+        final byte[] out;
+        final int outLen;
+        final long lines;
+        final long noMatches;
+
+        private ShardResult(byte[] out, int outLen, long lines, long noMatches) {
+            this.out = out;
+            this.outLen = outLen;
+            this.lines = lines;
+            this.noMatches = noMatches;
+        }
+    }
+
+    /**
+     * Finds offsets at which shards begin. Every offset (except for 0) immediately follows some '\n'.
+     * The last element is always the size of file.
+     */
+    static ArrayList<Long> findShardBoundaries(FileChannel in, long size, int shardSize) throws IOException {
+        final ArrayList<Long> boundaries = new ArrayList<>();
+        boundaries.add(0L);
+        final ByteBuffer probe = ByteBuffer.allocate(4096);
+        long candidate = shardSize;
+        while (candidate < size) {
+            long newline = -1;
+            long pos = candidate - 1;
+            while (newline == -1 && pos < size) {
+                probe.clear();
+                final int read = in.read(probe, pos);
+                if (read <= 0) break;
+                for (int i = 0; i < read; i++) {
+                    if (probe.get(i) == '\n') {
+                        newline = pos + i;
+                        break;
+                    }
+                }
+                pos += read;
+            }
+            if (newline == -1 || newline + 1 >= size) break;
+            final long begin = newline + 1;
+            if (begin - boundaries.get(boundaries.size() - 1) > Integer.MAX_VALUE) {
+                throw new IOException("Line starting before offset " + begin + " is too long to be mapped");
+            }
+            boundaries.add(begin);
+            candidate = begin + shardSize;
+        }
+        if (size - boundaries.get(boundaries.size() - 1) > Integer.MAX_VALUE) {
+            throw new IOException("Line ending at offset " + size + " is too long to be mapped");
+        }
+        boundaries.add(size);
+        return boundaries;
+    }
+
+    /**
+     * Evaluates all lines of input file and writes the outputs (one per line) to output file.
+     *
+     * @param contextFactory is invoked once per worker thread. The returned function
+     *                       is never shared between threads.
+     */
+    public Stats evaluate(File input, File output, Supplier<Function<IntSeq, Seq<Integer>>> contextFactory) throws IOException, InterruptedException {
+        final Stats stats = new Stats();
+        final ExecutorService pool = Executors.newFixedThreadPool(threads);
+        final ThreadLocal<Function<IntSeq, Seq<Integer>>> contexts = ThreadLocal.withInitial(contextFactory);
+        try (FileChannel in = FileChannel.open(input.toPath(), StandardOpenOption.READ);
+             FileChannel out = FileChannel.open(output.toPath(), StandardOpenOption.WRITE,
+                     StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            final long size = in.size();
+            stats.bytesRead = size;
+            final ArrayList<Long> boundaries = findShardBoundaries(in, size, shardSize);
+            stats.shards = boundaries.size() - 1;
+            final ArrayDeque<Future<ShardResult>> pending = new ArrayDeque<>();
+            final int maxPending = threads * 2;
+            for (int shard = 0; shard < stats.shards; shard++) {
+                final long begin = boundaries.get(shard);
+                final MappedByteBuffer mapped = in.map(FileChannel.MapMode.READ_ONLY, begin, boundaries.get(shard + 1) - begin);
+                pending.add(pool.submit(() -> evaluateShard(mapped, contexts.get())));
+                if (pending.size() >= maxPending) {
+                    gather(pending, out, stats, threads);
+                }
+            }
+            while (!pending.isEmpty()) {
+                gather(pending, out, stats, pending.size());
+            }
+        } catch (ExecutionException e) {
+            final Throwable cause = e.getCause();
+            if (cause instanceof IOException) throw (IOException) cause;
+            if (cause instanceof RuntimeException) throw (RuntimeException) cause;
+            if (cause instanceof Error) throw (Error) cause;
+            throw new IOException(cause);
+        } finally {
+            pool.shutdownNow();
+        }
+        return stats;
+    }
+
+    /**
+     * Waits for (at most) n oldest shards and writes them all with a single gathering write.
+     */
+    private static void gather(ArrayDeque<Future<ShardResult>> pending, FileChannel out, Stats stats, int n) throws InterruptedException, ExecutionException, IOException {
+        final ByteBuffer[] buffers = new ByteBuffer[Math.min(n, pending.size())];
+        for (int i = 0; i < buffers.length; i++) {
+            final ShardResult r = pending.poll().get();
+            stats.lines += r.lines;
+            stats.noMatches += r.noMatches;
+            stats.bytesWritten += r.outLen;
+            buffers[i] = ByteBuffer.wrap(r.out, 0, r.outLen);
+        }
+        long remaining = 0;
+        for (ByteBuffer b : buffers) remaining += b.remaining();
+        while (remaining > 0) {
+            remaining -= out.write(buffers);
+        }
+    }
+
+    private ShardResult evaluateShard(ByteBuffer shard, Function<IntSeq, Seq<Integer>> eval) {
+        final Utf8Out out = new Utf8Out(shard.remaining() + 16);
+        final byte[] noMatchBytes = noMatch == null ? null : noMatch.getBytes(StandardCharsets.UTF_8);
+        int[] line = new int[256];
+        long lines = 0;
+        long noMatches = 0;
+        while (shard.hasRemaining()) {
+            int len = 0;
+            while (shard.hasRemaining()) {
+                final int b = shard.get() & 0xff;
+                if (b == '\n') break;
+                final int codepoint;
+                if (b < 0x80) {
+                    codepoint = b;
+                } else if ((b & 0xE0) == 0xC0) {
+                    codepoint = decodeTail(shard, b & 0x1F, 1);
+                } else if ((b & 0xF0) == 0xE0) {
+                    codepoint = decodeTail(shard, b & 0x0F, 2);
+                } else if ((b & 0xF8) == 0xF0) {
+                    codepoint = decodeTail(shard, b & 0x07, 3);
+                } else {
+                    codepoint = 0xFFFD;
+                }
+                if (len == line.length) line = Arrays.copyOf(line, len * 2);
+                line[len++] = codepoint;
+            }
+            if (len > 0 && line[len - 1] == '\r') len--;
+            lines++;
+            final Seq<Integer> result = eval.apply(new IntSeq(line, 0, len));
+            if (result == null) {
+                noMatches++;
+                if (noMatchBytes != null) {
+                    out.write(noMatchBytes);
+                    out.write('\n');
+                }
+            } else {
+                for (int i = 0; i < result.size(); i++) {
+                    out.writeCodepoint(result.get(i));
+                }
+                out.write('\n');
+            }
+        }
+        return new ShardResult(out.buf, out.len, lines, noMatches);
+    }
+
+    /**
+     * Decodes continuation bytes of UTF-8 sequence. Malformed sequences yield U+FFFD.
+     */
+    private static int decodeTail(ByteBuffer shard, int codepoint, int continuationBytes) {
+        for (int i = 0; i < continuationBytes; i++) {
+            if (!shard.hasRemaining()) return 0xFFFD;
+            final int b = shard.get(shard.position()) & 0xff;
+            if ((b & 0xC0) != 0x80) return 0xFFFD;
+            shard.get();
+            codepoint = (codepoint << 6) | (b & 0x3F);
+        }
+        return codepoint;
+    }
+
+    private static class Utf8Out {
+        byte[] buf;
+        int len;
+
+        Utf8Out(int capacity) {
+            buf = new byte[capacity];
+        }
+
+        void ensure(int extra) {
+            if (len + extra > buf.length) {
+                buf = Arrays.copyOf(buf, Math.max(buf.length * 2, len + extra));
+            }
+        }
+
+        void write(int b) {
+            ensure(1);
+            buf[len++] = (byte) b;
+        }
+
+        void write(byte[] bytes) {
+            ensure(bytes.length);
+            System.arraycopy(bytes, 0, buf, len, bytes.length);
+            len += bytes.length;
+        }
+
+        void writeCodepoint(int c) {
+            if (c < 0 || c > Character.MAX_CODE_POINT) {
+                throw new IllegalArgumentException("Integer " + c + " is not a valid unicode and cannot be written");
+            }
+            ensure(4);
+            if (c < 0x80) {
+                buf[len++] = (byte) c;
+            } else if (c < 0x800) {
+                buf[len++] = (byte) (0xC0 | (c >> 6));
+                buf[len++] = (byte) (0x80 | (c & 0x3F));
+            } else if (c < 0x10000) {
+                buf[len++] = (byte) (0xE0 | (c >> 12));
+                buf[len++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+                buf[len++] = (byte) (0x80 | (c & 0x3F));
+            } else {
+                buf[len++] = (byte) (0xF0 | (c >> 18));
+                buf[len++] = (byte) (0x80 | ((c >> 12) & 0x3F));
+                buf[len++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+                buf[len++] = (byte) (0x80 | (c & 0x3F));
+            }
+        }
+    }
+}
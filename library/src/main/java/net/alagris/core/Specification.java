@@ -52,6 +52,10 @@ public interface Specification<V, E, P, In, Out, W, N, G extends IntermediateGra
 
     W weight(E edge);
 
+    Out partialOutput(P edge);
+
+    W partialWeight(P edge);
+
     /**
      * Group multiplication in set of partial edges (the multiplication itself is not partial!).
      */
@@ -192,6 +196,13 @@ public interface Specification<V, E, P, In, Out, W, N, G extends IntermediateGra
 
     V metaInfoNone();
 
+    /**
+     * Limits imposed on powerset construction, composition and product of automata. Unlimited by default.
+     */
+    default Budget budget() {
+        return Budget.unlimited();
+    }
+
     /**
      * it takes terminal node associated with particular string literal that will be
      * used to build Product node in AST.
@@ -406,6 +417,68 @@ public interface Specification<V, E, P, In, Out, W, N, G extends IntermediateGra
         return g.getEpsilon() == null && (g.allInitialEdges().isEmpty() || g.allFinalEdges().isEmpty());
     }
 
+    /**
+     * Concatenation and Kleene closure connect every final vertex with every initial vertex. If the number
+     * of such connections would exceed this threshold, the graph is first compacted with
+     * {@link Specification#mergeFinalLeaves}. Return {@link Long#MAX_VALUE} to disable it.
+     */
+    default long mergeFinalLeavesThreshold() {
+        return Long.MAX_VALUE;
+    }
+
+    /**
+     * Merges all final vertices that have no outgoing edges and equal final edges (the same
+     * output and weight) into a single vertex. Such vertices have exactly the same right language, so
+     * the transducer stays exactly the same, while the number of final vertices drops. This matters for
+     * union of many words (like <tt>'word1'|'word2'|...|'word20000'</tt>), where every word ends in
+     * a separate final vertex. Concatenating it (or putting under Kleene closure) would otherwise
+     * connect every one of them with every initial vertex.
+     *
+     * @return number of vertices that were merged into some other vertex (and thus removed from graph)
+     */
+    default int mergeFinalLeaves(G graph) {
+        final HashMap<Pair<W, Out>, N> representatives = new HashMap<>();
+        final HashMap<N, N> mergedInto = new HashMap<>();
+        for (Map.Entry<N, P> fin : (Iterable<Map.Entry<N, P>>) graph::iterateFinalEdges) {
+            if (graph.size(fin.getKey()) == 0) {
+                final Pair<W, Out> key = Pair.of(partialWeight(fin.getValue()), partialOutput(fin.getValue()));
+                final N representative = representatives.putIfAbsent(key, fin.getKey());
+                if (representative != null) {
+                    mergedInto.put(fin.getKey(), representative);
+                }
+            }
+        }
+        if (mergedInto.isEmpty()) return 0;
+        graph.removeFinalEdgeIf(fin -> mergedInto.containsKey(fin.getKey()));
+        graph.allInitialEdges().replaceAll((edge, target) -> mergedInto.getOrDefault(target, target));
+        final ArrayList<Map.Entry<E, N>> redirected = new ArrayList<>();
+        for (N vertex : graph.collectVertexSet(new HashSet<>(), n -> null, (n, e) -> null)) {
+            for (Map.Entry<E, N> edge : graph.outgoing(vertex)) {
+                if (mergedInto.containsKey(edge.getValue())) {
+                    redirected.add(edge);
+                }
+            }
+            if (!redirected.isEmpty()) {
+                graph.removeEdgeIf(vertex, edge -> mergedInto.containsKey(edge.getValue()));
+                for (Map.Entry<E, N> edge : redirected) {
+                    graph.add(vertex, edge.getKey(), mergedInto.get(edge.getValue()));
+                }
+                redirected.clear();
+            }
+        }
+        return mergedInto.size();
+    }
+
+    /**
+     * Invokes {@link Specification#mergeFinalLeaves} if connecting final vertices with
+     * given number of initial vertices would exceed {@link Specification#mergeFinalLeavesThreshold}
+     */
+    default void mergeFinalLeavesIfTooMany(G graph, int initialEdges) {
+        if ((long) graph.allFinalEdges().size() * initialEdges > mergeFinalLeavesThreshold()) {
+            mergeFinalLeaves(graph);
+        }
+    }
+
     /**
      * The two graphs should have no vertices in common. After running this method
      * the left graph will contain concatenated contents of both graphs and the right
@@ -416,6 +489,7 @@ public interface Specification<V, E, P, In, Out, W, N, G extends IntermediateGra
     default G concat(G lhs, G rhs) {
         if (isEmpty(lhs)) return lhs;
         if (isEmpty(rhs)) return rhs;
+        mergeFinalLeavesIfTooMany(lhs, rhs.allInitialEdges().size());
         for (Map.Entry<N, P> fin : (Iterable<Map.Entry<N, P>>) () -> lhs.iterateFinalEdges()) {
             for (Map.Entry<E, N> init : (Iterable<Map.Entry<E, N>>) () -> rhs.iterateInitialEdges()) {
                 lhs.add(fin.getKey(), leftAction(fin.getValue(), init.getKey()), init.getValue());
@@ -446,6 +520,7 @@ public interface Specification<V, E, P, In, Out, W, N, G extends IntermediateGra
      * Perform operation of Kleene closure (0 or more repetition) on graph.
      */
     default G kleene(G graph, Function<P, P> kleeneEpsilon) {
+        mergeFinalLeavesIfTooMany(graph, graph.allInitialEdges().size());
         for (Map.Entry<N, P> fin : (Iterable<Map.Entry<N, P>>) () -> graph.iterateFinalEdges()) {
             for (Map.Entry<E, N> init : (Iterable<Map.Entry<E, N>>) () -> graph.iterateInitialEdges()) {
                 graph.add(fin.getKey(), leftAction(fin.getValue(), init.getKey()), init.getValue());
@@ -472,6 +547,7 @@ public interface Specification<V, E, P, In, Out, W, N, G extends IntermediateGra
      * Perform operation of semigroup Kleene closure (1 or more repetition) on graph.
      */
     default G kleeneSemigroup(G graph, Function<P, P> kleeneEpsilon) {
+        mergeFinalLeavesIfTooMany(graph, graph.allInitialEdges().size());
         for (Map.Entry<N, P> fin : (Iterable<Map.Entry<N, P>>) () -> graph.iterateFinalEdges()) {
             for (Map.Entry<E, N> init : (Iterable<Map.Entry<E, N>>) () -> graph.iterateInitialEdges()) {
                 graph.add(fin.getKey(), leftAction(fin.getValue(), init.getKey()), init.getValue());
@@ -1071,6 +1147,7 @@ public interface Specification<V, E, P, In, Out, W, N, G extends IntermediateGra
                                                                                                                                                    BiFunction<Integer, List<RangedGraph.Trans<E>>, List<T>> stateAndTransitionsToT) {
 
 
+        final Budget.Scope budget = budget().enter(Budget.Phase.POWERSET);
         final Stack<PowersetState> toVisit = new Stack<>();
         final HashMap<PowersetState, IdxAndTrans<In, E, T>> powersetStateToIndex = new HashMap<>();
         final PowersetState initPS = new PowersetState(g.initial);
@@ -1098,7 +1175,10 @@ public interface Specification<V, E, P, In, Out, W, N, G extends IntermediateGra
                 if (target.states.length == 0) {
                     trans = Collections.emptyList();
                 } else {
-                    final IdxAndTrans<In, E, T> targetIndex = powersetStateToIndex.computeIfAbsent(target, k -> new IdxAndTrans<>(powersetStateToIndex.size()));
+                    final IdxAndTrans<In, E, T> targetIndex = powersetStateToIndex.computeIfAbsent(target, k -> {
+                        budget.states(1);
+                        return new IdxAndTrans<>(powersetStateToIndex.size());
+                    });
                     if (targetIndex.dfaTrans == null)
                         toVisit.add(target);
                     trans = Util.singeltonArrayList(new RangedGraph.Trans<>(edge, targetIndex.index));
@@ -1106,6 +1186,7 @@ public interface Specification<V, E, P, In, Out, W, N, G extends IntermediateGra
                 source.dfaTrans.add(new RangeImpl<>(range.input(), trans));
                 beginExclusive = endInclusive;
             }
+            budget.edges(powersetTrans.size());
         }
 
         final ArrayList<ArrayList<Range<In, List<RangedGraph.Trans<E>>>>> graph = Util.filledArrayList(powersetStateToIndex.size(), null);
@@ -1916,6 +1997,7 @@ public interface Specification<V, E, P, In, Out, W, N, G extends IntermediateGra
                                                                          BiFunction<V, V, V> metaProduct,
                                                                          EdgeProduct<In, E> edgeProduct,
                                                                          BiFunction<P, P, P> outputProduct) {
+        final Budget.Scope budget = budget().enter(Budget.Phase.PRODUCT);
         final G product = createEmptyGraph();
         final boolean omitSinkState = null == outputProduct.apply(lhs.getFinalEdge(-1), rhs.getFinalEdge(-1));
         class LRProduct implements StateProduct<N> {
@@ -1926,6 +2008,7 @@ public interface Specification<V, E, P, In, Out, W, N, G extends IntermediateGra
             LRProduct(int l, int r) {
                 this.l = l;
                 this.r = r;
+                budget.states(1);
                 this.p = product.create(metaProduct.apply(lhs.state(l), rhs.state(r)));
                 assert !(omitSinkState && l == -1 && r == -1);
                 final P fin = outputProduct.apply(lhs.getFinalEdge(l), rhs.getFinalEdge(r));
@@ -1963,6 +2046,7 @@ public interface Specification<V, E, P, In, Out, W, N, G extends IntermediateGra
                 final int tR = rEdge == null ? -1 : rEdge.getValue();
                 if (omitSinkState && tL == -1 && tR == -1) return null;
                 final LRProduct target = crossProductToNew.computeIfAbsent(new IntPair(tL, tR), k -> new LRProduct(tL, tR));
+                budget.edges(1);
                 product.add(source.p, edgeP, target.p);
             }
             return null;
@@ -1984,6 +2068,7 @@ public interface Specification<V, E, P, In, Out, W, N, G extends IntermediateGra
                       ComposeSuperposition<In, E, Pair<W, Out>> compose,
                       BiFunction<P, Integer, Pair<W, Out>> evaluateRhsFromGivenStartpoint,
                       BiFunction<Pair<W, Out>, Pair<W, Out>, Pair<W, Out>> union) {
+        final Budget.Scope budget = budget().enter(Budget.Phase.COMPOSE);
         final N initL = lhs.makeUniqueInitialState(initialState);
         lhs.setFinalEdge(initL, lhs.getEpsilon());
         final int initR = rhs.initial;
@@ -2024,6 +2109,7 @@ public interface Specification<V, E, P, In, Out, W, N, G extends IntermediateGra
                     if (targetR == -1) continue;
                     final Pair<N, Integer> target = Pair.of(targetL, targetR);
                     final N composedTarget = crossProductToNew.computeIfAbsent(target, k -> {
+                        budget.states(1);
                         final N newComposed = composed.create(lhs.getState(targetL));
                         toVisit.push(new LRComposed(targetL, targetR, newComposed));
                         return newComposed;
@@ -2035,6 +2121,7 @@ public interface Specification<V, E, P, In, Out, W, N, G extends IntermediateGra
                             final E composedE = createFullEdge(fromExclusive, toExclusive,
                                     createPartialEdge(range.edges().r(),
                                             composeLhsAndRhsEdgeWeights.apply(weightL, range.edges().l())));
+                            budget.edges(1);
                             composed.add(lrc.composed, composedE, composedTarget);
                         }
                         fromExclusive = toExclusive;
@@ -0,0 +1,251 @@
+package net.alagris.core;
+
+import net.alagris.core.LexUnicodeSpecification.BacktrackingHead;
+import net.alagris.core.LexUnicodeSpecification.BacktrackingNode;
+import net.alagris.core.LexUnicodeSpecification.E;
+import net.alagris.core.LexUnicodeSpecification.P;
+import net.alagris.core.Specification.RangedGraph;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.StringReader;
+import java.io.UncheckedIOException;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Finds all non-overlapping leftmost-longest matches of a transducer inside a (possibly endless) text
+ * and replaces every match with the output that the transducer produces for it. Text that is not
+ * matched is copied verbatim. Unlike {@link Trie#replaceAll}, which restarts the search from every single position,
+ * the transducer is run over the text once, as if it was prefixed with Σ*. The superposition holds at most one
+ * thread per state and every thread remembers the position at which it started. When two threads meet in the same
+ * state, the one that started earlier wins (it is the one that could yield the leftmost match), while threads that
+ * started at the same position are compared by weights exactly like in {@link LexUnicodeSpecification#deltaSuperposition}.
+ * Among matches that start at the same position, the longest is chosen, and among matches of the same length
+ * the one with the highest final weight. Empty matches are ignored. Ambiguities are resolved arbitrarily.
+ * <br>
+ * The text is consumed as a stream and only the symbols that might still become part of some match are buffered.
+ * Text that does not take part in any match is read exactly once. After every replacement, the lookahead that
+ * was read past the end of the match (never longer than the longest partial match) is scanned again, because
+ * threads that were started inside of the replaced match are no longer valid.
+ * <br>
+ * Instances are immutable and can be shared by many threads.
+ */
+public final class StreamingReplacer {
+
+    private final LexUnicodeSpecification<?, ?> specs;
+    private final RangedGraph<?, Integer, E, P> graph;
+
+    public StreamingReplacer(LexUnicodeSpecification<?, ?> specs, RangedGraph<?, Integer, E, P> graph) {
+        this.specs = specs;
+        this.graph = graph;
+    }
+
+    /**
+     * @return number of performed replacements
+     */
+    public long replaceAll(Reader in, Appendable out) throws IOException {
+        final Scan scan = new Scan(out);
+        final char[] chunk = new char[8192];
+        char highSurrogate = 0;
+        int read;
+        while ((read = in.read(chunk)) != -1) {
+            for (int i = 0; i < read; i++) {
+                final char c = chunk[i];
+                if (highSurrogate != 0) {
+                    if (Character.isLowSurrogate(c)) {
+                        scan.feed(Character.toCodePoint(highSurrogate, c));
+                        highSurrogate = 0;
+                        continue;
+                    }
+                    scan.feed(highSurrogate);
+                    highSurrogate = 0;
+                }
+                if (Character.isHighSurrogate(c)) {
+                    highSurrogate = c;
+                } else {
+                    scan.feed(c);
+                }
+            }
+        }
+        if (highSurrogate != 0) scan.feed(highSurrogate);
+        scan.finish();
+        return scan.replacements;
+    }
+
+    public String replaceAll(CharSequence text) {
+        final StringBuilder sb = new StringBuilder(text.length());
+        try {
+            replaceAll(new StringReader(text.toString()), sb);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return sb.toString();
+    }
+
+    private static final class Attempt {
+        /**
+         * Absolute position of the first symbol consumed by this attempt
+         */
+        final long start;
+        final BacktrackingNode node;
+
+        Attempt(long start, BacktrackingNode node) {
+            this.start = start;
+            this.node = node;
+        }
+    }
+
+    /**
+     * Mutable state of a single replaceAll call
+     */
+    private final class Scan {
+        private final Appendable out;
+        private int[] buffer = new int[256];
+        /**
+         * buffer[head] holds the symbol at absolute position base. Symbols before base are already written out
+         */
+        private int head = 0, tail = 0;
+        private long base = 0;
+        /**
+         * All symbols before this absolute position were already fed to threads
+         */
+        private long scanned = 0;
+        private HashMap<Integer, Attempt> attempts = new HashMap<>();
+        private HashMap<Integer, Attempt> nextAttempts = new HashMap<>();
+        private long minAttemptStart = Long.MAX_VALUE;
+        private long matchStart = -1, matchEnd = -1;
+        private BacktrackingNode matchNode;
+        private P matchFinal;
+        long replacements = 0;
+
+        Scan(Appendable out) {
+            this.out = out;
+        }
+
+        void feed(int symbol) throws IOException {
+            if (tail == buffer.length) {
+                if (head > buffer.length / 2) {
+                    System.arraycopy(buffer, head, buffer, 0, tail - head);
+                } else {
+                    final int[] grown = new int[buffer.length * 2];
+                    System.arraycopy(buffer, head, grown, 0, tail - head);
+                    buffer = grown;
+                }
+                tail -= head;
+                head = 0;
+            }
+            buffer[tail++] = symbol;
+            advance();
+        }
+
+        void finish() throws IOException {
+            advance();
+            while (matchStart != -1) {
+                //no more input, hence threads that started before the match have no chance to match anything
+                commit();
+                advance();
+            }
+            flush(base + (tail - head));
+        }
+
+        private void advance() throws IOException {
+            final long end = base + (tail - head);
+            while (scanned < end) {
+                step(buffer[head + (int) (scanned - base)]);
+                scanned++;
+                if (matchStart != -1) {
+                    if (minAttemptStart > matchStart) {
+                        commit();
+                    } else {
+                        flush(minAttemptStart);
+                    }
+                } else {
+                    flush(Math.min(minAttemptStart, scanned));
+                }
+            }
+        }
+
+        private void step(int symbol) {
+            if (matchStart == -1 && graph.initial != -1) {
+                //threads started later than pending match could never win, so there is no point in starting them
+                attempts.putIfAbsent(graph.initial, new Attempt(scanned, null));
+            }
+            nextAttempts.clear();
+            for (Map.Entry<Integer, Attempt> stateAndAttempt : attempts.entrySet()) {
+                final Attempt attempt = stateAndAttempt.getValue();
+                if (matchStart != -1 && attempt.start > matchStart) continue;
+                for (RangedGraph.Trans<E> transition : specs.binarySearch(graph, stateAndAttempt.getKey(), symbol)) {
+                    final Attempt prev = nextAttempts.get(transition.targetState);
+                    if (prev == null || attempt.start < prev.start
+                            || (attempt.start == prev.start && prev.node.edge.weight < transition.edge.weight)) {
+                        nextAttempts.put(transition.targetState, new Attempt(attempt.start, new BacktrackingNode(attempt.node, transition.edge)));
+                    }
+                }
+            }
+            final HashMap<Integer, Attempt> tmp = attempts;
+            attempts = nextAttempts;
+            nextAttempts = tmp;
+            minAttemptStart = Long.MAX_VALUE;
+            for (Map.Entry<Integer, Attempt> stateAndAttempt : attempts.entrySet()) {
+                final Attempt attempt = stateAndAttempt.getValue();
+                minAttemptStart = Math.min(minAttemptStart, attempt.start);
+                final P fin = graph.accepting.get(stateAndAttempt.getKey());
+                if (fin == null) continue;
+                final boolean better;
+                if (matchStart == -1 || attempt.start < matchStart) {
+                    better = true;
+                } else if (attempt.start == matchStart) {
+                    better = matchEnd < scanned + 1 || matchFinal.weight < fin.weight;
+                } else {
+                    better = false;
+                }
+                if (better) {
+                    matchStart = attempt.start;
+                    matchEnd = scanned + 1;
+                    matchNode = attempt.node;
+                    matchFinal = fin;
+                }
+            }
+        }
+
+        /**
+         * Writes out the pending match and rewinds scanning to the end of the match
+         */
+        private void commit() throws IOException {
+            flush(matchStart);
+            final int len = (int) (matchEnd - matchStart);
+            final IntSeq matched = new IntSeq(buffer, head, len);
+            final IntSeq replacement = specs.collect(new BacktrackingHead(matchNode, matchFinal), matched);
+            assert replacement != null;
+            for (int symbol : replacement) write(symbol);
+            head += len;
+            base = matchEnd;
+            scanned = matchEnd;
+            attempts.clear();
+            minAttemptStart = Long.MAX_VALUE;
+            matchStart = matchEnd = -1;
+            matchNode = null;
+            matchFinal = null;
+            replacements++;
+        }
+
+        /**
+         * Copies verbatim all buffered symbols before the given absolute position
+         */
+        private void flush(long until) throws IOException {
+            while (base < until) {
+                write(buffer[head++]);
+                base++;
+            }
+        }
+
+        private void write(int codePoint) throws IOException {
+            if (Character.isBmpCodePoint(codePoint)) {
+                out.append((char) codePoint);
+            } else {
+                out.append(Character.highSurrogate(codePoint)).append(Character.lowSurrogate(codePoint));
+            }
+        }
+    }
+}
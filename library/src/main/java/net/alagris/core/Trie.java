@@ -47,6 +47,11 @@ public class Trie<In, Out> {
     }
 
 
+    /**
+     * Restarts the search at every position of input, which takes O(n*m) time.
+     * @deprecated use {@link StreamingReplacer}, which scans the text in a single pass with a compiled transducer
+     */
+    @Deprecated
     public static <In,Out extends Iterable<In>> ArrayList<In> replaceAll(Seq<In> input, Trie<In,Out> dict) {
         final ArrayList<In> ints = new ArrayList<>();
         for (int i = 0; i < input.size(); i++) {
@@ -0,0 +1,173 @@
+package net.alagris.core.learn;
+
+import java.util.Arrays;
+import java.util.function.IntConsumer;
+
+/**
+ * All pairs of states for exact {@link OSTIAArbitraryOrder} kept in an indexed max-heap ordered by score.
+ * Every pair is identified by its lower triangle index, so no object is allocated per pair, pairs of
+ * any state can be enumerated in order to rescore them and the heap never needs to be re-sorted as a whole.
+ * Unlike {@link CandidatePairs}, the score of every pair is stored, so that a pair is only ever rescored when one of
+ * its states is affected by some merge (exactly as the original algorithm did). Memory is quadratic in the number
+ * of states. Ties between equal scores are broken in favour of smaller lower triangle indices.
+ */
+final class AllCandidatePairs {
+    /**
+     * Position of pairs that will never be candidates again
+     */
+    private static final int DEAD = -2;
+    /**
+     * Position of pairs that are temporarily outside of heap (popped but still alive)
+     */
+    private static final int OUT = -1;
+    private final int states;
+    private final int[] score;
+    private final int[] pos;
+    private final int[] heap;
+    private int heapSize = 0;
+
+    AllCandidatePairs(int states) {
+        final long total = (long) states * (states - 1) / 2;
+        if (total > Integer.MAX_VALUE - 8) {
+            throw new IllegalArgumentException("Too many candidate pairs (" + total + "). Enable approximate merge candidates");
+        }
+        this.states = states;
+        score = new int[(int) total];
+        pos = new int[(int) total];
+        heap = new int[(int) total];
+        Arrays.fill(pos, OUT);
+    }
+
+    int size() {
+        return score.length;
+    }
+
+    /**
+     * The state of higher index
+     */
+    int row(int id) {
+        int r = (int) ((1 + Math.sqrt(1 + 8.0 * id)) / 2);
+        while ((long) r * (r - 1) / 2 > id) r--;
+        while ((long) (r + 1) * r / 2 <= id) r++;
+        return r;
+    }
+
+    /**
+     * The state of lower index
+     */
+    int col(int id) {
+        final int r = row(id);
+        return id - (int) ((long) r * (r - 1) / 2);
+    }
+
+    private static int id(int stateA, int stateB) {
+        return stateA > stateB ? (int) ((long) stateA * (stateA - 1) / 2) + stateB
+                : (int) ((long) stateB * (stateB - 1) / 2) + stateA;
+    }
+
+    /**
+     * Enumerates identifiers of all pairs that contain given state
+     */
+    void forEachPairOf(int state, IntConsumer f) {
+        for (int other = 0; other < states; other++) {
+            if (other != state) f.accept(id(state, other));
+        }
+    }
+
+    int score(int id) {
+        return score[id];
+    }
+
+    boolean isDead(int id) {
+        return pos[id] == DEAD;
+    }
+
+    void kill(int id) {
+        if (pos[id] >= 0) removeAt(pos[id]);
+        pos[id] = DEAD;
+    }
+
+    /**
+     * Updates score of a living pair. Score -1 means that the pair is not a candidate anymore.
+     */
+    void setScore(int id, int newScore) {
+        assert newScore >= -1 : newScore;
+        if (pos[id] == DEAD) return;
+        if (newScore == -1) {
+            kill(id);
+            return;
+        }
+        final int prev = score[id];
+        score[id] = newScore;
+        if (pos[id] >= 0) {
+            if (newScore > prev) siftUp(pos[id]);
+            else siftDown(pos[id]);
+        }
+    }
+
+    /**
+     * Inserts a living pair back into the heap (if it is not there already)
+     */
+    void push(int id) {
+        if (pos[id] != OUT) return;
+        heap[heapSize] = id;
+        pos[id] = heapSize;
+        siftUp(heapSize++);
+    }
+
+    /**
+     * Removes the pair with highest score from heap. It stays alive.
+     *
+     * @return -1 if heap is empty
+     */
+    int pop() {
+        if (heapSize == 0) return -1;
+        final int top = heap[0];
+        removeAt(0);
+        return top;
+    }
+
+    private void removeAt(int i) {
+        final int removed = heap[i];
+        pos[removed] = OUT;
+        heapSize--;
+        if (i < heapSize) {
+            heap[i] = heap[heapSize];
+            pos[heap[i]] = i;
+            siftDown(i);
+            siftUp(i);
+        }
+    }
+
+    private boolean before(int idA, int idB) {
+        return score[idA] > score[idB] || (score[idA] == score[idB] && idA < idB);
+    }
+
+    private void siftUp(int i) {
+        final int id = heap[i];
+        while (i > 0) {
+            final int parent = (i - 1) >>> 1;
+            if (!before(id, heap[parent])) break;
+            heap[i] = heap[parent];
+            pos[heap[i]] = i;
+            i = parent;
+        }
+        heap[i] = id;
+        pos[id] = i;
+    }
+
+    private void siftDown(int i) {
+        final int id = heap[i];
+        while (true) {
+            int child = 2 * i + 1;
+            if (child >= heapSize) break;
+            if (child + 1 < heapSize && before(heap[child + 1], heap[child])) child++;
+            if (!before(heap[child], id)) break;
+            heap[i] = heap[child];
+            pos[heap[i]] = i;
+            i = child;
+        }
+        heap[i] = id;
+        pos[id] = i;
+    }
+}
@@ -0,0 +1,218 @@
+package net.alagris.core.learn;
+
+import net.alagris.core.IntSeq;
+import net.alagris.core.Pair;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * Compact binary format of datasets. Once a text dataset (or the output of some script) is converted, it can
+ * be iterated many times without any parsing. The layout of file is
+ * <pre>
+ * int magic, int version, long numberOfExamples, long numberOfCodepoints, long offsetsPosition
+ * int[numberOfCodepoints] packed codepoints of all inputs and outputs
+ * long[2*numberOfExamples+1] offsets (input of i-th example lies between offsets[2i] and offsets[2i+1],
+ *                            output lies between offsets[2i+1] and offsets[2i+2])
+ * byte[numberOfExamples] 1 if output is present, 0 if the example is negative (output is null)
+ * </pre>
+ * All numbers are big-endian.
+ */
+public class BinaryDataset implements LazyDataset<Pair<IntSeq, IntSeq>> {
+
+    public static final int MAGIC = 0x534F4C44;
+    public static final int VERSION = 1;
+    static final int HEADER_SIZE = 4 + 4 + 8 + 8 + 8;
+    /**
+     * Memory-mapped codepoints are split into regions of this many ints. Offsets are read in chunks of
+     * this many longs (and flags of this many bytes), because a single mapping cannot exceed 2GB.
+     */
+    private static final int REGION_BITS = 27;
+    private static final int REGION_MASK = (1 << REGION_BITS) - 1;
+
+    private final long size;
+    private final long[] offsets;
+    private final byte[] hasOutput;
+    /**
+     * Examples are materialized only once when the dataset is loaded to heap. Every
+     * pass over the dataset then iterates them without any allocation.
+     */
+    private final ArrayList<Pair<IntSeq, IntSeq>> examples;
+    /**
+     * Used instead of examples when the dataset is memory-mapped
+     */
+    private final IntBuffer[] regions;
+    private long next;
+
+    /**
+     * @param memoryMapped if false, the whole dataset is loaded to heap and every
+     *                     pass over it is allocation-free. If true, the codepoints stay in a memory-mapped file and
+     *                     each example is copied out of it on demand. This allows for datasets larger than heap.
+     */
+    public BinaryDataset(File file, boolean memoryMapped) throws IOException {
+        try (FileChannel ch = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            final ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            while (header.hasRemaining()) {
+                if (ch.read(header, header.position()) < 0) throw new IOException("Corrupted file (header too short)");
+            }
+            header.flip();
+            if (header.getInt() != MAGIC) throw new IOException("Not a binary dataset " + file);
+            final int version = header.getInt();
+            if (version != VERSION) throw new IOException("Unsupported version " + version + " of binary dataset");
+            size = header.getLong();
+            final long codepoints = header.getLong();
+            final long offsetsPosition = header.getLong();
+            if (size * 2 + 1 > Integer.MAX_VALUE) throw new IOException("Too many examples " + size);
+            offsets = new long[(int) (size * 2 + 1)];
+            hasOutput = new byte[(int) size];
+            for (int filled = 0; filled < offsets.length; ) {
+                final int len = Math.min(offsets.length - filled, 1 << REGION_BITS);
+                ch.map(FileChannel.MapMode.READ_ONLY, offsetsPosition + filled * 8L, len * 8L).asLongBuffer().get(offsets, filled, len);
+                filled += len;
+            }
+            final long flagsPosition = offsetsPosition + offsets.length * 8L;
+            for (int filled = 0; filled < hasOutput.length; ) {
+                final int len = Math.min(hasOutput.length - filled, 1 << REGION_BITS);
+                ch.map(FileChannel.MapMode.READ_ONLY, flagsPosition + filled, len).get(hasOutput, filled, len);
+                filled += len;
+            }
+            if (memoryMapped) {
+                final int regionCount = (int) ((codepoints + (1L << REGION_BITS) - 1) >>> REGION_BITS);
+                regions = new IntBuffer[regionCount];
+                for (int r = 0; r < regionCount; r++) {
+                    final long begin = (long) r << REGION_BITS;
+                    final long len = Math.min(1L << REGION_BITS, codepoints - begin);
+                    final MappedByteBuffer mapped = ch.map(FileChannel.MapMode.READ_ONLY, HEADER_SIZE + begin * 4, len * 4);
+                    regions[r] = mapped.order(ByteOrder.BIG_ENDIAN).asIntBuffer();
+                }
+                examples = null;
+            } else {
+                if (codepoints > Integer.MAX_VALUE - 8)
+                    throw new IOException("Dataset has too many codepoints (" + codepoints + ") to fit in heap. Load it as memory-mapped instead");
+                final int[] arr = new int[(int) codepoints];
+                int filled = 0;
+                while (filled < arr.length) {
+                    final int len = Math.min(arr.length - filled, 1 << REGION_BITS);
+                    ch.map(FileChannel.MapMode.READ_ONLY, HEADER_SIZE + filled * 4L, len * 4L).asIntBuffer().get(arr, filled, len);
+                    filled += len;
+                }
+                examples = new ArrayList<>((int) size);
+                for (int i = 0; i < size; i++) {
+                    final int inBegin = (int) offsets[2 * i];
+                    final int outBegin = (int) offsets[2 * i + 1];
+                    final int outEnd = (int) offsets[2 * i + 2];
+                    final IntSeq in = new IntSeq(inBegin, outBegin, arr);
+                    final IntSeq out = hasOutput[i] == 0 ? null : new IntSeq(outBegin, outEnd, arr);
+                    examples.add(Pair.of(in, out));
+                }
+                regions = null;
+            }
+        }
+    }
+
+    public long size() {
+        return size;
+    }
+
+    @Override
+    public void close() {
+    }
+
+    @Override
+    public void begin() {
+        next = 0;
+    }
+
+    /**
+     * When the dataset is memory-mapped, input and output of every example are copied out with a single bulk
+     * read into one array, which both sequences share. The returned sequences are not reused between calls,
+     * because consumers (such as builders of prefix tree transducers) keep references to them.
+     */
+    @Override
+    public Pair<IntSeq, IntSeq> next() {
+        if (next >= size) return null;
+        final int i = (int) next++;
+        if (examples != null) return examples.get(i);
+        final long inBegin = offsets[2 * i];
+        final long outBegin = offsets[2 * i + 1];
+        final long outEnd = hasOutput[i] == 0 ? outBegin : offsets[2 * i + 2];
+        final int[] arr = new int[(int) (outEnd - inBegin)];
+        copy(inBegin, arr);
+        final int inLen = (int) (outBegin - inBegin);
+        final IntSeq in = new IntSeq(0, inLen, arr);
+        final IntSeq out = hasOutput[i] == 0 ? null : new IntSeq(inLen, arr.length, arr);
+        return Pair.of(in, out);
+    }
+
+    private void copy(long fromInclusive, int[] arr) {
+        for (int filled = 0; filled < arr.length; ) {
+            final long idx = fromInclusive + filled;
+            final IntBuffer region = regions[(int) (idx >>> REGION_BITS)];
+            region.position((int) (idx & REGION_MASK));
+            final int len = Math.min(arr.length - filled, region.remaining());
+            region.get(arr, filled, len);
+            filled += len;
+        }
+    }
+
+    /**
+     * Converts any dataset (for instance one produced by a python script or parsed from text file) to binary format.
+     * This needs to be done only once.
+     *
+     * @return number of converted examples
+     */
+    public static long convert(LazyDataset<Pair<IntSeq, IntSeq>> source, File destination) throws Exception {
+        long codepoints = 0;
+        int examples = 0;
+        long[] offsets = new long[1024];
+        final ByteArrayOutputStream hasOutput = new ByteArrayOutputStream();
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(destination), 1 << 16))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeLong(0);//placeholders, the header is rewritten at the end
+            out.writeLong(0);
+            out.writeLong(0);
+            source.begin();
+            try {
+                Pair<IntSeq, IntSeq> example;
+                while ((example = source.next()) != null) {
+                    if (2 * examples + 2 >= offsets.length) offsets = Arrays.copyOf(offsets, offsets.length * 2);
+                    offsets[2 * examples] = codepoints;
+                    codepoints += write(out, example.l());
+                    offsets[2 * examples + 1] = codepoints;
+                    if (example.r() == null) {
+                        hasOutput.write(0);
+                    } else {
+                        hasOutput.write(1);
+                        codepoints += write(out, example.r());
+                    }
+                    examples++;
+                }
+            } finally {
+                source.close();
+            }
+            offsets[2 * examples] = codepoints;
+            for (int i = 0; i <= 2 * examples; i++) out.writeLong(offsets[i]);
+            hasOutput.writeTo(out);
+        }
+        try (RandomAccessFile raf = new RandomAccessFile(destination, "rw")) {
+            raf.seek(8);
+            raf.writeLong(examples);
+            raf.writeLong(codepoints);
+            raf.writeLong(HEADER_SIZE + codepoints * 4);
+        }
+        return examples;
+    }
+
+    private static int write(DataOutputStream out, IntSeq seq) throws IOException {
+        for (int i = 0; i < seq.size(); i++) out.writeInt(seq.at(i));
+        return seq.size();
+    }
+}
@@ -0,0 +1,201 @@
+package net.alagris.core.learn;
+
+import java.util.Arrays;
+import java.util.HashMap;
+
+/**
+ * Candidate pairs of states for {@link OSTIAArbitraryOrder}. States are partitioned into buckets (by some
+ * signature) and only the pairs within the same bucket are candidates. With a single bucket all pairs are candidates.
+ * Pairs are not stored. Instead every state (row) remembers only its best partner among the states
+ * of lower index (columns) in the same bucket, and the rows are kept in an indexed max-heap ordered by the score
+ * of their best pairs. Hence memory is linear in the number of states, no matter how large the buckets are, and
+ * the heap never needs to be re-sorted as a whole. Pairs are scored lazily by {@link PairScore} when a row needs to
+ * find its best partner again (because the partner was affected by some merge, or the pair was rejected).
+ * Ties between equal scores are broken in favour of smaller lower triangle indices of pairs.
+ */
+final class CandidatePairs {
+
+    interface PairScore {
+        /**
+         * @param row state of higher index
+         * @param col state of lower index
+         * @return -1 if the pair is not a candidate (anymore)
+         */
+        int score(int row, int col);
+    }
+
+    private final PairScore scoring;
+    private final int[] bucketOf;
+    /**
+     * States of every bucket in ascending order
+     */
+    private final int[][] members;
+    private final int[] best;
+    private final int[] bestScore;
+    private final int[] pos;
+    private final int[] heap;
+    private int heapSize = 0;
+
+    /**
+     * @param signatures signature of every state. States with equal signatures land in the same bucket.
+     *                   Initially no row has any candidate. Call {@link #rescore} for each of them.
+     */
+    CandidatePairs(Object[] signatures, PairScore scoring) {
+        this.scoring = scoring;
+        final HashMap<Object, Integer> buckets = new HashMap<>();
+        bucketOf = new int[signatures.length];
+        int[] bucketSizes = new int[4];
+        for (int s = 0; s < signatures.length; s++) {
+            final int b = buckets.computeIfAbsent(signatures[s], k -> buckets.size());
+            if (b == bucketSizes.length) bucketSizes = Arrays.copyOf(bucketSizes, b * 2);
+            bucketOf[s] = b;
+            bucketSizes[b]++;
+        }
+        members = new int[buckets.size()][];
+        for (int b = 0; b < members.length; b++) members[b] = new int[bucketSizes[b]];
+        final int[] filled = new int[members.length];
+        for (int s = 0; s < signatures.length; s++) {
+            members[bucketOf[s]][filled[bucketOf[s]]++] = s;
+        }
+        best = new int[signatures.length];
+        bestScore = new int[signatures.length];
+        pos = new int[signatures.length];
+        heap = new int[signatures.length];
+        Arrays.fill(best, -1);
+        Arrays.fill(bestScore, -1);
+        Arrays.fill(pos, -1);
+    }
+
+    /**
+     * @return the row of the best pair or -1 if there are no candidates left
+     */
+    int peek() {
+        return heapSize == 0 ? -1 : heap[0];
+    }
+
+    /**
+     * The best partner (column) of a row
+     */
+    int col(int row) {
+        return best[row];
+    }
+
+    int score(int row) {
+        return bestScore[row];
+    }
+
+    /**
+     * Scores all pairs of the row and finds its best partner again
+     */
+    void rescore(int row) {
+        best[row] = -1;
+        bestScore[row] = -1;
+        for (int col : members[bucketOf[row]]) {
+            if (col >= row) break;
+            offer(row, col);
+        }
+        update(row);
+    }
+
+    /**
+     * Should be called after a merge that has affected the given states. All pairs that contain them
+     * are rescored and so are the rows whose best partner was affected.
+     *
+     * @param affected flag for every state (indexed like signatures)
+     * @param list     the states whose flag is set
+     */
+    void rescore(boolean[] affected, int[] list, int listSize) {
+        final boolean[] bucketDone = new boolean[members.length];
+        for (int i = 0; i < listSize; i++) {
+            final int b = bucketOf[list[i]];
+            if (bucketDone[b]) continue;
+            bucketDone[b] = true;
+            final int[] bucket = members[b];
+            for (int row : bucket) {
+                if (affected[row] || (best[row] != -1 && affected[best[row]])) {
+                    rescore(row);
+                } else {
+                    boolean changed = false;
+                    for (int col : bucket) {
+                        if (col >= row) break;
+                        if (affected[col]) changed |= offer(row, col);
+                    }
+                    if (changed) update(row);
+                }
+            }
+        }
+    }
+
+    private boolean offer(int row, int col) {
+        final int score = scoring.score(row, col);
+        assert score >= -1 : score;
+        if (score > bestScore[row] || (score == bestScore[row] && score != -1 && col < best[row])) {
+            bestScore[row] = score;
+            best[row] = col;
+            return true;
+        }
+        return false;
+    }
+
+    private void update(int row) {
+        if (best[row] == -1) {
+            if (pos[row] >= 0) removeAt(pos[row]);
+        } else if (pos[row] >= 0) {
+            siftDown(pos[row]);
+            siftUp(pos[row]);
+        } else {
+            heap[heapSize] = row;
+            pos[row] = heapSize;
+            siftUp(heapSize++);
+        }
+    }
+
+    private void removeAt(int i) {
+        final int removed = heap[i];
+        pos[removed] = -1;
+        heapSize--;
+        if (i < heapSize) {
+            heap[i] = heap[heapSize];
+            pos[heap[i]] = i;
+            siftDown(i);
+            siftUp(i);
+        }
+    }
+
+    private static long triangleIndex(int row, int col) {
+        return (long) row * (row - 1) / 2 + col;
+    }
+
+    private boolean before(int rowA, int rowB) {
+        return bestScore[rowA] > bestScore[rowB] || (bestScore[rowA] == bestScore[rowB]
+                && triangleIndex(rowA, best[rowA]) < triangleIndex(rowB, best[rowB]));
+    }
+
+    private void siftUp(int i) {
+        final int row = heap[i];
+        while (i > 0) {
+            final int parent = (i - 1) >>> 1;
+            if (!before(row, heap[parent])) break;
+            heap[i] = heap[parent];
+            pos[heap[i]] = i;
+            i = parent;
+        }
+        heap[i] = row;
+        pos[row] = i;
+    }
+
+    private void siftDown(int i) {
+        final int row = heap[i];
+        while (true) {
+            int child = 2 * i + 1;
+            if (child >= heapSize) break;
+            if (child + 1 < heapSize && before(heap[child + 1], heap[child])) child++;
+            if (!before(heap[child], row)) break;
+            heap[i] = heap[child];
+            pos[heap[i]] = i;
+            i = child;
+        }
+        heap[i] = row;
+        pos[row] = i;
+    }
+}
@@ -0,0 +1,70 @@
+package net.alagris.core.learn;
+
+/**
+ * Set of (unordered) pairs of state indices that are known to be impossible to merge.
+ * It's an open-addressing hash set of longs, so that storing a pair does not allocate anything
+ * and memory does not grow quadratically with the number of states (as a triangle matrix would).
+ * The caller is responsible for ensuring that incompatibility is permanent, that is,
+ * once two states cannot be merged, no other merge can make them mergeable again.
+ */
+final class IncompatiblePairs {
+    private long[] table = new long[1024];
+    private int size = 0;
+    private int hits = 0;
+
+    private static long key(int a, int b) {
+        assert a != b;
+        assert a >= 0 && b >= 0;
+        return a < b ? ((long) a << 32) | b : ((long) b << 32) | a;
+    }
+
+    private static int hash(long key) {
+        final long h = key * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32));
+    }
+
+    public boolean contains(int a, int b) {
+        final long key = key(a, b);//key is never 0 because a!=b
+        final int mask = table.length - 1;
+        for (int i = hash(key) & mask; table[i] != 0; i = (i + 1) & mask) {
+            if (table[i] == key) {
+                hits++;
+                return true;
+            }
+        }
+        return false;
+    }
+
+    public void add(int a, int b) {
+        if ((size + 1) * 2 > table.length) {
+            final long[] old = table;
+            table = new long[old.length * 2];
+            for (long key : old) {
+                if (key != 0) insert(table, key);
+            }
+        }
+        if (insert(table, key(a, b))) size++;
+    }
+
+    private static boolean insert(long[] table, long key) {
+        final int mask = table.length - 1;
+        int i = hash(key) & mask;
+        while (table[i] != 0) {
+            if (table[i] == key) return false;
+            i = (i + 1) & mask;
+        }
+        table[i] = key;
+        return true;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Number of times {@link IncompatiblePairs#contains} saved a merge attempt
+     */
+    public int hits() {
+        return hits;
+    }
+}
@@ -120,7 +120,7 @@ public interface LazyDataset<O> {
             @Override
             public void begin() throws Exception {
                 close();
-                sc = new Scanner(f);
+                sc = new Scanner(f, "UTF-8");
             }
 
             @Override
@@ -132,4 +132,28 @@ public interface LazyDataset<O> {
             }
         };
     }
+
+    /**
+     * Loads dataset produced by {@link BinaryDataset#convert}. The file is read only once, when
+     * the dataset is iterated for the first time. See {@link BinaryDataset#BinaryDataset(File, boolean)}.
+     */
+    public static LazyDataset<Pair<IntSeq,IntSeq>> loadDatasetFromBinary(File f, boolean memoryMapped) {
+        return new LazyDataset<Pair<IntSeq, IntSeq>>() {
+            BinaryDataset dataset;
+            @Override
+            public void close() {
+            }
+
+            @Override
+            public void begin() throws Exception {
+                if (dataset == null) dataset = new BinaryDataset(f, memoryMapped);
+                dataset.begin();
+            }
+
+            @Override
+            public Pair<IntSeq, IntSeq> next() {
+                return dataset.next();
+            }
+        };
+    }
 }
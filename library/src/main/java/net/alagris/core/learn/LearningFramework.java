@@ -5,7 +5,11 @@ import net.alagris.lib.LearnLibCompatibility;
 
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Objects;
+import java.util.concurrent.*;
 import java.util.function.Consumer;
+import java.util.function.Predicate;
+import java.util.stream.IntStream;
 
 public interface LearningFramework<H, V, E, P, In, O, N, G extends IntermediateGraph<V, E, P, N>> {
 
@@ -20,6 +24,25 @@ public interface LearningFramework<H, V, E, P, In, O, N, G extends IntermediateG
 
     Specification.RangedGraph<V, In, E, P> optimiseHypothesis(H hypothesis);
 
+    /**
+     * Prepares hypothesis for testing many examples. The returned predicate must be thread-safe, because
+     * it's called concurrently by {@link LearningFramework#activeLearning}. Implementations are encouraged to compile
+     * hypothesis into immutable optimised graph, which is both faster to evaluate and safe to share between threads.
+     */
+    default Predicate<Pair<O, O>> compileTester(H hypothesis) {
+        return example -> testHypothesis(hypothesis, example);
+    }
+
+    /**
+     * Tester suitable for {@link LearningFramework#compileTester} of frameworks, whose hypotheses can be
+     * compiled to intermediate graphs. The graph is optimised once and then shared by all threads.
+     */
+    static <N, G extends IntermediateGraph<Pos, LexUnicodeSpecification.E, LexUnicodeSpecification.P, N>>
+    Predicate<Pair<IntSeq, IntSeq>> optimisedTester(LexUnicodeSpecification<N, G> specs, G compiledHypothesis) {
+        final Specification.RangedGraph<Pos, Integer, LexUnicodeSpecification.E, LexUnicodeSpecification.P> optimised = specs.optimiseGraph(compiledHypothesis);
+        return example -> Objects.equals(specs.evaluate(optimised, example.l()), example.r());
+    }
+
 
     public static final String[] ALGORITHMS = {"rpni","rpni_edsm","rpni_mdl","rpni_mealy","ostia","ostia_max_overlap"};
 
@@ -59,41 +82,91 @@ public interface LearningFramework<H, V, E, P, In, O, N, G extends IntermediateG
     }
 
 
+    /**
+     * Number of examples read from dataset at once by {@link LearningFramework#activeLearning}
+     */
+    public static final int DEFAULT_CHUNK_SIZE = 4096;
+
+    static <H, V, E, P, In, O, N, G extends IntermediateGraph<V, E, P, N>> G activeLearning(
+            LearningFramework<H, V, E, P, In, O, N, G> framework,
+            FuncArg.Informant<G, O> examplesSeenSoFar,
+            LazyDataset<Pair<O, O>> dataset,
+            int batchSize,
+            Consumer<String> log) throws Exception {
+        return activeLearning(framework, examplesSeenSoFar, dataset, batchSize, DEFAULT_CHUNK_SIZE, log);
+    }
+
+    /**
+     * The dataset is read in chunks by a separate thread, so that the next chunk is
+     * prefetched while the current one is being tested and hypothesis is being relearned. Examples of each chunk are tested
+     * in parallel against the tester returned by {@link LearningFramework#compileTester}. Counterexamples are then processed
+     * sequentially in the order of dataset. Whenever a new hypothesis is learned, the remaining part of chunk is
+     * tested again, so the outcome is the same as if all examples were tested one by one.
+     */
     static <H, V, E, P, In, O, N, G extends IntermediateGraph<V, E, P, N>> G activeLearning(
             LearningFramework<H, V, E, P, In, O, N, G> framework,
             FuncArg.Informant<G, O> examplesSeenSoFar,
             LazyDataset<Pair<O, O>> dataset,
             int batchSize,
+            int chunkSize,
             Consumer<String> log) throws Exception {
+        assert chunkSize > 0;
         final ArrayList<Pair<O, O>> counterexamples = new ArrayList<>();
         int iteration = 1;
         final long beginInit = System.currentTimeMillis();
         H hypothesis = framework.makeHypothesis(examplesSeenSoFar);
+        Predicate<Pair<O, O>> tester = framework.compileTester(hypothesis);
         log.accept("Learning iteration "+iteration+" took "+(System.currentTimeMillis()-beginInit)+" miliseconds and used "+examplesSeenSoFar.size()+" examples");
         int totalNumberOfExamples;
+        final ExecutorService prefetcher = Executors.newSingleThreadExecutor(r -> {
+            final Thread t = new Thread(r, "dataset-prefetch");
+            t.setDaemon(true);
+            return t;
+        });
+        final Callable<ArrayList<Pair<O, O>>> readChunk = () -> {
+            final ArrayList<Pair<O, O>> chunk = new ArrayList<>(chunkSize);
+            Pair<O, O> example;
+            while (chunk.size() < chunkSize && (example = dataset.next()) != null) {
+                chunk.add(example);
+            }
+            return chunk;
+        };
         try {
             outer:
             while (true) {
                 totalNumberOfExamples = 0;
                 boolean hadCounterexample = false;
-                Pair<O, O> newExample;
-                dataset.begin();
-                while ((newExample = dataset.next()) != null) {
-                    if (Thread.interrupted()) break outer;
-                    if (!framework.testHypothesis(hypothesis, newExample)) {
-                        hadCounterexample = true;
-                        counterexamples.add(newExample);
-                        log.accept("New counterexample " + newExample);
-                        if (counterexamples.size() >= batchSize) {
-                            examplesSeenSoFar.addAll(counterexamples);
-                            counterexamples.clear();
-                            iteration++;
-                            final long begin = System.currentTimeMillis();
-                            hypothesis = framework.makeHypothesis(examplesSeenSoFar);
-                            log.accept("Learning iteration " + iteration + " took " + (System.currentTimeMillis() - begin) + " miliseconds and used " + examplesSeenSoFar.size() + " examples");
+                prefetcher.submit(() -> {
+                    dataset.begin();
+                    return null;
+                }).get();
+                Future<ArrayList<Pair<O, O>>> nextChunk = prefetcher.submit(readChunk);
+                while (nextChunk != null) {
+                    final ArrayList<Pair<O, O>> chunk = nextChunk.get();
+                    //dataset must not be queried again after it returned null
+                    nextChunk = chunk.size() < chunkSize ? null : prefetcher.submit(readChunk);
+                    final boolean[] passed = new boolean[chunk.size()];
+                    testInParallel(tester, chunk, passed, 0);
+                    for (int i = 0; i < chunk.size(); i++) {
+                        if (Thread.interrupted()) break outer;
+                        if (!passed[i]) {
+                            final Pair<O, O> newExample = chunk.get(i);
+                            hadCounterexample = true;
+                            counterexamples.add(newExample);
+                            log.accept("New counterexample " + newExample);
+                            if (counterexamples.size() >= batchSize) {
+                                examplesSeenSoFar.addAll(counterexamples);
+                                counterexamples.clear();
+                                iteration++;
+                                final long begin = System.currentTimeMillis();
+                                hypothesis = framework.makeHypothesis(examplesSeenSoFar);
+                                tester = framework.compileTester(hypothesis);
+                                log.accept("Learning iteration " + iteration + " took " + (System.currentTimeMillis() - begin) + " miliseconds and used " + examplesSeenSoFar.size() + " examples");
+                                testInParallel(tester, chunk, passed, i + 1);
+                            }
                         }
+                        totalNumberOfExamples++;
                     }
-                    totalNumberOfExamples++;
                 }
                 if (counterexamples.size() > 0) {
                     examplesSeenSoFar.addAll(counterexamples);
@@ -101,6 +174,7 @@ public interface LearningFramework<H, V, E, P, In, O, N, G extends IntermediateG
                     iteration++;
                     final long begin = System.currentTimeMillis();
                     hypothesis = framework.makeHypothesis(examplesSeenSoFar);
+                    tester = framework.compileTester(hypothesis);
                     log.accept("Learning iteration " + iteration + " took " + (System.currentTimeMillis() - begin) + " miliseconds and used " + examplesSeenSoFar.size() + " examples");
                 }
                 if (!hadCounterexample) {//all examples passed correctly. Nothing more to learn
@@ -121,8 +195,18 @@ public interface LearningFramework<H, V, E, P, In, O, N, G extends IntermediateG
             }
             return framework.compileHypothesis(hypothesis);
         }finally {
+            prefetcher.shutdownNow();
+            //the prefetching thread might be in the middle of reading a chunk
+            prefetcher.awaitTermination(1, TimeUnit.MINUTES);
             dataset.close();
         }
     }
 
+    /**
+     * Tests examples with indices from fromInclusive till the end of chunk in parallel and stores results in passed
+     */
+    static <O> void testInParallel(Predicate<Pair<O, O>> tester, ArrayList<Pair<O, O>> chunk, boolean[] passed, int fromInclusive) {
+        IntStream.range(fromInclusive, chunk.size()).parallel().forEach(i -> passed[i] = tester.test(chunk.get(i)));
+    }
+
 }
@@ -33,8 +33,18 @@ public class OSTIA {
 
 
     public static void ostia(State transducer) {
+        ostia(transducer, Budget.unlimited().enter(Budget.Phase.LEARN));
+    }
+
+    /**
+     * @param budget checked before every attempted merge. If it gets exceeded, {@link Budget.Exceeded} is thrown
+     *               and the transducer is left partially merged (some blue subtrees were never folded), which
+     *               is not the result of OSTIA and might not even be consistent with the sample. It must be discarded then.
+     */
+    public static void ostia(State transducer, Budget.Scope budget) {
         final Queue<Blue> blue = new LinkedList<>();
         final Set<State> red = new LinkedHashSet<>();
+        final FoldContext ctx = new FoldContext();
         assert OSTIAState.isTree(transducer);
         red.add(transducer);
         addBlueStates(transducer, blue);
@@ -52,7 +62,8 @@ public class OSTIA {
             assert disjoint(blue, red);
 
             for (State redState : red) {
-                if (null!=ostiaMerge(next, redState, blue, red)) {
+                budget.check();
+                if (ostiaMerge(next, redState, blue, red, ctx)) {
                     assert disjoint(blue, red);
                     assert uniqueItems(blue);
                     continue blue;
@@ -71,112 +82,171 @@ public class OSTIA {
     }
 
 
-    public static Map<State, StateCopy> ostiaMerge(Blue blue, State redState, Queue<Blue> blueToVisit, Set<State> red) {
-        final Map<State, StateCopy> merged = new HashMap<>();
-        final List<Blue> reachedBlueStates = new ArrayList<>();
-        if (ostiaFold(redState, null, blue.parent, blue.symbol, merged, reachedBlueStates)) {
+    /**
+     * Identifiers of fields recorded in {@link UndoLog}. Non-negative identifiers stand for
+     * the slot in {@link State#transitions} array.
+     */
+    private static final int STATE_OUT = -1;
+    private static final int STATE_KIND = -2;
+    private static final int EDGE_OUT = -3;
+    private static final int EDGE_KNOWN = -4;
+    private static final int EDGE_TARGET = -5;
+
+    private static void undo(Object owner, int field, Object oldValue) {
+        switch (field) {
+            case STATE_OUT:
+                ((State) owner).out = (IntQueue) oldValue;
+                break;
+            case STATE_KIND:
+                ((State) owner).kind = (OSTIAState.Kind) oldValue;
+                break;
+            case EDGE_OUT:
+                ((Edge) owner).out = (IntQueue) oldValue;
+                break;
+            case EDGE_KNOWN:
+                ((Edge) owner).isKnown = (Boolean) oldValue;
+                break;
+            case EDGE_TARGET:
+                ((Edge) owner).target = (State) oldValue;
+                break;
+            default:
+                ((State) owner).transitions[field] = (Edge) oldValue;
+        }
+    }
 
-            for (Map.Entry<State, StateCopy> mergedRedState : merged.entrySet()) {
-                assert mergedRedState.getKey() == mergedRedState.getValue().original;
-                mergedRedState.getValue().assign();
-            }
-            for (Blue reachedBlueCandidate : reachedBlueStates) {
+    /**
+     * Everything that is needed to attempt merges. It is reused by all merge attempts, so that
+     * failed attempts (which are the vast majority) allocate almost nothing.
+     */
+    public static class FoldContext {
+        final UndoLog log = new UndoLog(OSTIA::undo);
+        final ArrayList<Blue> reachedBlueStates = new ArrayList<>();
+        /**
+         * All states that took part in the last successful merge (both red and blue ones).
+         * It is collected only if requested, because most variants of OSTIA don't need it
+         */
+        final @Nullable Set<State> touched;
+
+        public FoldContext(boolean collectTouchedStates) {
+            touched = collectTouchedStates ? new HashSet<>() : null;
+        }
+
+        public FoldContext() {
+            this(false);
+        }
+
+        void touch(State s) {
+            if (touched != null) touched.add(s);
+        }
+    }
+
+    /**
+     * Merges blue state into red state in-place. If the merge is not possible, all
+     * modifications are rolled back and the transducer remains unchanged.
+     *
+     * @return true if the merge succeeded
+     */
+    public static boolean ostiaMerge(Blue blue, State redState, Queue<Blue> blueToVisit, Set<State> red, FoldContext ctx) {
+        assert ctx.log.size() == 0;
+        ctx.reachedBlueStates.clear();
+        if (ctx.touched != null) ctx.touched.clear();
+        if (ostiaFold(redState, null, blue.parent, blue.symbol, ctx)) {
+            ctx.log.commit();
+            for (Blue reachedBlueCandidate : ctx.reachedBlueStates) {
                 if (red.contains(reachedBlueCandidate.parent)) {
                     assert !contains(blueToVisit, reachedBlueCandidate.state());
                     blueToVisit.add(reachedBlueCandidate);
                 }
             }
-            return merged;
+            return true;
         }
-        return null;
+        ctx.log.rollback(0);
+        return false;
     }
 
+    /**
+     * Folds the blue state (and its entire subtree) into the red state. Every modified field is recorded
+     * in the undo log of the context. In case of failure the transducer is left in some inconsistent state
+     * and the caller must roll the log back.
+     */
     public static boolean ostiaFold(State red,
                                      @Nullable IntQueue pushedBack,
                                      State blueParent,
                                      int symbolIncomingToBlue,
-                                     Map<State, StateCopy> mergedStates,
-                                     List<Blue> reachedBlueStates) {
+                                     FoldContext ctx) {
+        final UndoLog log = ctx.log;
         final Edge incomingTransition = blueParent.transitions[symbolIncomingToBlue];
         assert incomingTransition != null;
         final State blueState = incomingTransition.target;
         assert red != blueState;
-        assert !mergedStates.containsKey(blueState);
-
-        final StateCopy mergedRedState = mergedStates.computeIfAbsent(red, StateCopy::new);
-        final StateCopy mergedBlueState = new StateCopy(blueState);
-        final Edge mergedIncomingTransition =
-                mergedStates.computeIfAbsent(blueParent, StateCopy::new).transitions[symbolIncomingToBlue];
-        assert mergedIncomingTransition != null;
-        mergedIncomingTransition.target = red;
-
-        final StateCopy prevBlue = mergedStates.put(blueState, mergedBlueState);
-        assert prevBlue == null;
-
-        mergedBlueState.prepend(pushedBack);
-        if (mergedBlueState.kind == OSTIAState.Kind.ACCEPTING) {
-            if (mergedRedState.kind == OSTIAState.Kind.UNKNOWN) {
-                mergedRedState.out = mergedBlueState.out;
-                mergedRedState.kind = OSTIAState.Kind.ACCEPTING;
-            } else if (mergedRedState.kind == OSTIAState.Kind.REJECTING) {
+        ctx.touch(red);
+        ctx.touch(blueParent);
+        ctx.touch(blueState);
+        log.record(incomingTransition, EDGE_TARGET, blueState);
+        incomingTransition.target = red;
+
+        prepend(blueState, pushedBack, log);
+        if (blueState.kind == OSTIAState.Kind.ACCEPTING) {
+            if (red.kind == OSTIAState.Kind.UNKNOWN) {
+                log.record(red, STATE_OUT, red.out);
+                log.record(red, STATE_KIND, red.kind);
+                red.out = blueState.out;
+                red.kind = OSTIAState.Kind.ACCEPTING;
+            } else if (red.kind == OSTIAState.Kind.REJECTING) {
                 return false;
-            } else if (!IntQueue.equals(mergedRedState.out, mergedBlueState.out)) {
+            } else if (!IntQueue.equals(red.out, blueState.out)) {
                 return false;
             }
-        } else if (mergedBlueState.kind == OSTIAState.Kind.REJECTING) {
-            if (mergedRedState.kind == OSTIAState.Kind.ACCEPTING) {
+        } else if (blueState.kind == OSTIAState.Kind.REJECTING) {
+            if (red.kind == OSTIAState.Kind.ACCEPTING) {
                 return false;
-            } else if (mergedRedState.kind == OSTIAState.Kind.UNKNOWN) {
-                mergedRedState.kind = OSTIAState.Kind.REJECTING;
+            } else if (red.kind == OSTIAState.Kind.UNKNOWN) {
+                log.record(red, STATE_KIND, red.kind);
+                red.kind = OSTIAState.Kind.REJECTING;
             }
         }
-        for (int i = 0; i < mergedRedState.transitions.length; i++) {
-            final Edge transitionBlue = mergedBlueState.transitions[i];
+        for (int i = 0; i < red.transitions.length; i++) {
+            final Edge transitionBlue = blueState.transitions[i];
             if (transitionBlue != null) {
-                final Edge transitionRed = mergedRedState.transitions[i];
+                final Edge transitionRed = red.transitions[i];
                 if (transitionRed == null) {
-                    mergedRedState.transitions[i] = new Edge(transitionBlue);
-                    reachedBlueStates.add(new Blue(red, i));
+                    //The blue state is discarded after successful merge, so its edge
+                    //can be moved to red state without copying
+                    log.record(red, i, null);
+                    red.transitions[i] = transitionBlue;
+                    ctx.reachedBlueStates.add(new Blue(red, i));
                 } else {
                     if (transitionRed.isKnown) {
                         IntQueue commonPrefixRed = transitionRed.out;
                         IntQueue commonPrefixBlue = transitionBlue.out;
-                        IntQueue commonPrefixBluePrev = null;
                         while (commonPrefixBlue != null && commonPrefixRed != null &&
                                 commonPrefixBlue.value == commonPrefixRed.value) {
-                            commonPrefixBluePrev = commonPrefixBlue;
                             commonPrefixBlue = commonPrefixBlue.next;
                             commonPrefixRed = commonPrefixRed.next;
                         }
-                        assert commonPrefixBluePrev == null || commonPrefixBluePrev.next == commonPrefixBlue;
                         if (commonPrefixRed == null) {//check if no leftover output remains on red edge
-                            if (commonPrefixBluePrev == null) {
-                                transitionBlue.out = null;
-                            } else {
-                                commonPrefixBluePrev.next = null;
-                            }
-                            assert Objects.equals(Optional.ofNullable(mergedBlueState.transitions[i]).map(e -> e.target),
-                                    Optional.ofNullable(blueState.transitions[i]).map(e -> e.target));
+                            //The output of blue edge need not be truncated to the common prefix,
+                            //because the blue state is discarded anyway
                             if (!ostiaFold(transitionRed.target,
                                     commonPrefixBlue,
                                     blueState,
                                     i,
-                                    mergedStates,
-                                    reachedBlueStates)) {
+                                    ctx)) {
                                 return false;
                             }
                         } else {
                             return false;
                         }
                     } else {
+                        log.record(transitionRed, EDGE_KNOWN, transitionRed.isKnown);
+                        log.record(transitionRed, EDGE_OUT, transitionRed.out);
                         transitionRed.isKnown = transitionBlue.isKnown;
                         transitionRed.out = transitionBlue.out;
                         if (!ostiaFold(transitionRed.target,
                                 null,
                                 blueState,
                                 i,
-                                mergedStates,
-                                reachedBlueStates)) {
+                                ctx)) {
                             return false;
                         }
                     }
@@ -186,6 +256,24 @@ public class OSTIA {
         return true;
     }
 
+    /**
+     * Pushes the prefix back onto all outgoing edges (and state output). The queues
+     * are never modified in-place (only copied), so that undo log only needs to remember fields.
+     */
+    private static void prepend(State state, @Nullable IntQueue prefix, UndoLog log) {
+        if (prefix == null) return;
+        for (@Nullable Edge edge : state.transitions) {
+            if (edge != null) {
+                log.record(edge, EDGE_OUT, edge.out);
+                edge.out = IntQueue.copyAndConcat(prefix, edge.out);
+            }
+        }
+        if (state.kind == OSTIAState.Kind.ACCEPTING) {
+            log.record(state, STATE_OUT, state.out);
+            state.out = IntQueue.copyAndConcat(prefix, state.out);
+        }
+    }
+
 
     // Assertion methods
 
@@ -277,50 +365,6 @@ public class OSTIA {
         }
     }
 
-    static class StateCopy extends StateParent {
-
-        final State original;
-
-        StateCopy(State original) {
-            super.out = IntQueue.copyAndConcat(original.out, null);
-            super.transitions = copyTransitions(original.transitions);
-            this.original = original;
-            this.kind = original.kind;
-        }
-
-        private static @Nullable Edge[] copyTransitions(@Nullable Edge[] transitions) {
-            final @Nullable Edge[] copy = new Edge[transitions.length];
-            for (int i = 0; i < copy.length; i++) {
-                @Nullable Edge edge = transitions[i];
-                copy[i] = edge == null ? null : new Edge(edge);
-            }
-            return copy;
-        }
-
-        void assign() {
-            original.out = out;
-            original.kind = kind;
-            original.transitions = transitions;
-        }
-
-        /**
-         * The IntQueue is consumed and should not be reused after calling this method.
-         */
-        void prepend(@Nullable IntQueue prefix) {
-            for (@Nullable Edge edge : transitions) {
-                if (edge != null) {
-                    edge.out = IntQueue.copyAndConcat(prefix, edge.out);
-                }
-            }
-            if (kind == OSTIAState.Kind.ACCEPTING) {//UNKNOWN
-//                out = prefix;
-//                kind = ACCEPTING;
-//            } else {
-                out = IntQueue.copyAndConcat(prefix, out);
-            }
-        }
-    }
-
     public static class State extends StateParent implements OSTIAState<Edge, State> {
 
         public final IntSeq shortest;
@@ -4,6 +4,7 @@ import net.alagris.core.*;
 import net.alagris.lib.ExternalFunctionsFromSolomonoff;
 
 import java.util.Objects;
+import java.util.function.Predicate;
 
 public abstract class OSTIAAbstractFramework<C,N, G extends IntermediateGraph<Pos, LexUnicodeSpecification.E, LexUnicodeSpecification.P, N>>
         implements LearningFramework<Pair<OSTIAArbitraryOrder.State<C>, IntEmbedding>, Pos, LexUnicodeSpecification.E, LexUnicodeSpecification.P, Integer,IntSeq, N, G> {
@@ -24,6 +25,11 @@ public abstract class OSTIAAbstractFramework<C,N, G extends IntermediateGraph<Po
         return Objects.equals(OSTIAArbitraryOrder.run(hypothesis.l(), Util.mapIterLazy(newUnseenExample.l().iterator(),hypothesis.r()::embed)), newUnseenExample.r());
     }
 
+    @Override
+    public Predicate<Pair<IntSeq, IntSeq>> compileTester(Pair<OSTIAArbitraryOrder.State<C>, IntEmbedding> hypothesis) {
+        return LearningFramework.optimisedTester(specs, compileHypothesis(hypothesis));
+    }
+
     @Override
     public G compileHypothesis(Pair<OSTIAArbitraryOrder.State<C>, IntEmbedding> hypothesis) {
         return specs.convertCustomGraphToIntermediate(OSTIAState.asGraph(specs, hypothesis.l(), hypothesis.r()::retrieve, x -> Pos.NONE));
@@ -42,7 +48,7 @@ public abstract class OSTIAAbstractFramework<C,N, G extends IntermediateGraph<Po
 
         @Override
         public Pair<OSTIAArbitraryOrder.State<OSTIAArbitraryOrder.StatePTT>, IntEmbedding> makeHypothesis(FuncArg.Informant<G, IntSeq> text) {
-            return ExternalFunctionsFromSolomonoff.inferOSTIAMaxOverlap(text, scoring,policy);
+            return ExternalFunctionsFromSolomonoff.inferOSTIAMaxOverlap(text, scoring, policy, specs.budget(), specs.approximateMergeCandidates());
         }
     }
 
@@ -54,7 +60,7 @@ public abstract class OSTIAAbstractFramework<C,N, G extends IntermediateGraph<Po
 
         @Override
         public Pair<OSTIAArbitraryOrder.State<OSTIAArbitraryOrder.StatePTT>, IntEmbedding> makeHypothesis(FuncArg.Informant<G, IntSeq> text) {
-            return ExternalFunctionsFromSolomonoff.compressOSTIAMaxOverlap(text, scoring,policy);
+            return ExternalFunctionsFromSolomonoff.compressOSTIAMaxOverlap(text, scoring, policy, specs.budget(), specs.approximateMergeCandidates());
         }
     }
 
@@ -67,7 +73,7 @@ public abstract class OSTIAAbstractFramework<C,N, G extends IntermediateGraph<Po
 
         @Override
         public Pair<OSTIAArbitraryOrder.State<Void>, IntEmbedding> makeHypothesis(FuncArg.Informant<G, IntSeq> text) {
-            return ExternalFunctionsFromSolomonoff.inferOSTIAMaxDeepOverlap(text, scoring,policy);
+            return ExternalFunctionsFromSolomonoff.inferOSTIAMaxDeepOverlap(text, scoring, policy, specs.budget(), specs.approximateMergeCandidates());
         }
     }
 
@@ -79,7 +85,7 @@ public abstract class OSTIAAbstractFramework<C,N, G extends IntermediateGraph<Po
 
         @Override
         public Pair<OSTIAArbitraryOrder.State<Void>, IntEmbedding> makeHypothesis(FuncArg.Informant<G, IntSeq> text) {
-            return ExternalFunctionsFromSolomonoff.inferOSTIAMaxDeepOverlap(text.filterOutNegative(), scoring,policy);
+            return ExternalFunctionsFromSolomonoff.inferOSTIAMaxDeepOverlap(text.filterOutNegative(), scoring, policy, specs.budget(), specs.approximateMergeCandidates());
         }
     }
 }
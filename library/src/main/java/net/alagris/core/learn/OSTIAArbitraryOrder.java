@@ -8,6 +8,7 @@ import org.checkerframework.checker.nullness.qual.Nullable;
 import java.util.*;
 import java.util.function.BiConsumer;
 import java.util.function.BiFunction;
+import java.util.function.Function;
 
 public class OSTIAArbitraryOrder {
 
@@ -25,19 +26,21 @@ public class OSTIAArbitraryOrder {
 
 
     private static class Index {
-        final int stateIndices;
+        final int row;
+        final int col;
         int score;
 
-        private Index(int stateIndices) {
-            this.stateIndices = stateIndices;
+        private Index(int row, int col, int score) {
+            this.row = row;
+            this.col = col;
+            this.score = score;
         }
 
         <C> Pair<State<C>, State<C>> state(ArrayList<State<C>> states) {
-            IntPair i = MatrixIndexing.lowerTriagleCell(stateIndices);
-            State<C> row = states.get(i.l);
-            State<C> col = states.get(i.r);
-            assert row.index == i.l;
-            assert col.index == i.r;
+            State<C> row = states.get(this.row);
+            State<C> col = states.get(this.col);
+            assert row.index == this.row;
+            assert col.index == this.col;
             return Pair.of(row, col);
         }
     }
@@ -87,58 +90,277 @@ public class OSTIAArbitraryOrder {
         return (idx, states) -> idx.score >= minScoreIncl;
     }
 
+    /**
+     * Every pair of states is a candidate for merging
+     */
+    public static <C> Function<State<C>, Object> SIGNATURE_ALL_PAIRS() {
+        return s -> Boolean.TRUE;
+    }
+
+    /**
+     * Only states with the same set of outgoing symbols are candidates for merging. Merges may extend
+     * the set of outgoing symbols, so some merges that all pairs would find are missed, but
+     * states with the same local shape are usually the ones that would score the highest.
+     */
+    public static <C> Function<State<C>, Object> SIGNATURE_OUTGOING_SYMBOLS() {
+        return s -> outgoingSymbols(s, false);
+    }
+
+    /**
+     * Like {@link #SIGNATURE_OUTGOING_SYMBOLS} but additionally states must agree on the first symbol printed
+     * by every outgoing edge and the first symbol of their own output (if any). This splits the leaves of
+     * prefix tree transducers (which have no outgoing symbols at all) by their outputs, so that buckets stay small.
+     * It is the signature used by inference when approximate candidates are enabled in configuration.
+     */
+    public static <C> Function<State<C>, Object> SIGNATURE_OUTGOING_SYMBOLS_AND_OUTPUTS() {
+        return s -> outgoingSymbols(s, true);
+    }
+
+    private static <C> IntSeq outgoingSymbols(State<C> s, boolean outputs) {
+        int count = 0;
+        for (Edge<C> e : s.transitions) if (e != null) count++;
+        final int[] symbols = new int[outputs ? 2 * count + 1 : count];
+        count = 0;
+        for (int symbol = 0; symbol < s.transitions.length; symbol++) {
+            final Edge<C> e = s.transitions[symbol];
+            if (e != null) {
+                symbols[count++] = symbol;
+                if (outputs) symbols[count++] = e.out == null ? -1 : e.out.value;
+            }
+        }
+        if (outputs) symbols[count] = s.out == null ? -1 : s.out.value;
+        return new IntSeq(symbols);
+    }
+
     public static <C> State<C> ostia(State<C> transducer, ScoringFunction<C> scoring, MergingPolicy<C> policy, BiFunction<C, C, C> merge) {
+        return ostia(transducer, scoring, policy, merge, false, Budget.unlimited().enter(Budget.Phase.LEARN));
+    }
+
+    /**
+     * Variant used by inference.
+     *
+     * @param approximate if false, all pairs of states are candidates and their scores are stored
+     *                    (see {@link #ostiaAllPairs}). The result is exact but memory is quadratic in the number of states.
+     *                    Otherwise only pairs of equal {@link #SIGNATURE_OUTGOING_SYMBOLS_AND_OUTPUTS} are candidates
+     *                    and they are scored lazily
+     *                    (see {@link #ostia(State, ScoringFunction, MergingPolicy, BiFunction, Function, Budget.Scope)}),
+     *                    so memory is linear but the result may differ.
+     */
+    public static <C> State<C> ostia(State<C> transducer, ScoringFunction<C> scoring, MergingPolicy<C> policy,
+                                     BiFunction<C, C, C> merge, boolean approximate, Budget.Scope budget) {
+        return approximate ? ostia(transducer, scoring, policy, merge, SIGNATURE_OUTGOING_SYMBOLS_AND_OUTPUTS(), budget)
+                : ostiaAllPairs(transducer, scoring, policy, merge, budget);
+    }
+
+    /**
+     * Repeatedly merges the pair of states with the highest score. All pairs are kept in
+     * {@link AllCandidatePairs} together with their scores and after every successful merge only the pairs
+     * that contain some state touched by the merge ({@link FoldContext#mutated}) are rescored. This yields
+     * the same result as {@link #ostiaExhaustive}.
+     *
+     * @param budget checked before every attempted merge and while scoring. If it gets exceeded,
+     *               {@link Budget.Exceeded} is thrown and the transducer is left partially merged.
+     *               It must be discarded then.
+     * @throws IllegalArgumentException if there are too many pairs to be stored
+     */
+    public static <C> State<C> ostiaAllPairs(State<C> transducer, ScoringFunction<C> scoring, MergingPolicy<C> policy,
+                                             BiFunction<C, C, C> merge, Budget.Scope budget) {
         final ArrayList<State<C>> states = OSTIAState.indexAllStates(transducer, (i, s) -> s.index = i);
-        final int triangle = MatrixIndexing.lowerTriangleSize(states.size());
-        final ArrayList<Index> score = new ArrayList<>(triangle);
-        for (int i = 0; i < triangle; i++) {
-            score.add(new Index(i));
+        final AllCandidatePairs candidates = new AllCandidatePairs(states.size());
+        for (int row = 1; row < states.size(); row++) {
+            budget.check();
+            for (int col = 0; col < row; col++) {
+                final int id = (int) ((long) row * (row - 1) / 2) + col;
+                candidates.setScore(id, scoring.score(states.get(row), states.get(col), states));
+                candidates.push(id);
+            }
         }
-        final FoldContext<C> ctx = new FoldContext<>(score, states);
-        outer:
-        while (true) {
+        final FoldContext<C> ctx = new FoldContext<>(states);
+        //pairs rejected by merging policy. They might be accepted after rescoring
+        int[] deferred = new int[16];
+        int deferredSize = 0;
+        int id;
+        while ((id = candidates.pop()) != -1) {
+            budget.check();
+            final State<C> a = states.get(candidates.row(id));
+            final State<C> b = states.get(candidates.col(id));
+            assert a.transitions != null && b.transitions != null;
+            if (!policy.shouldMerge(new Index(a.index, b.index, candidates.score(id)), states)) {
+                if (deferredSize == deferred.length) deferred = Arrays.copyOf(deferred, deferredSize * 2);
+                deferred[deferredSize++] = id;
+                continue;
+            }
+            ctx.mergedWith.clear();
+            ctx.mutated.clear();
+            assert validateGraph(transducer, ctx);
+            if (ostiaMerge(a, b, ctx, merge)) {
+                transducer = ctx.mergeDestination(transducer);
+                assert transducer.isInitial;
+                assert transducer.incoming != null;
+                assert transducer.transitions != null;
+                assert validateGraph(transducer, ctx);
+                for (State<C> merged : ctx.mergedWith.keySet()) {
+                    candidates.forEachPairOf(merged.index, candidates::kill);
+                }
+                for (State<C> mutated : ctx.mutated.keySet()) {
+                    if (mutated.transitions == null) continue;
+                    budget.check();
+                    candidates.forEachPairOf(mutated.index, pair -> {
+                        if (candidates.isDead(pair)) return;
+                        final State<C> row = states.get(candidates.row(pair));
+                        final State<C> col = states.get(candidates.col(pair));
+                        candidates.setScore(pair, scoring.score(row, col, states));
+                    });
+                }
+                for (int i = 0; i < deferredSize; i++) candidates.push(deferred[i]);
+                deferredSize = 0;
+            } else {
+                ctx.incompatible.add(a.index, b.index);
+                candidates.kill(id);
+            }
+        }
+        assert validateGraph(transducer, ctx);
+        return transducer;
+    }
 
+    /**
+     * Repeatedly merges the pair of states with the highest score. Candidate pairs are kept in
+     * {@link CandidatePairs}, which needs memory linear in the number of states, because scores are not stored
+     * but computed lazily. After every successful merge the pairs that contain some state touched by the merge
+     * ({@link FoldContext#mutated}) are rescored, and so is every state whose best partner was touched. Hence some
+     * pairs get fresh scores where {@link #ostiaAllPairs} would still use the stored ones (prefix tree
+     * outputs are shared and may change in place), so even with {@link #SIGNATURE_ALL_PAIRS} the order of merges
+     * may differ.
+     *
+     * @param signature only states of equal signature are considered for merging. It should be computed
+     *                  from properties that no merge can make compatible (otherwise some good merges might be missed),
+     *                  but it is up to the caller to choose between precision and time, which is quadratic in size
+     *                  of the largest bucket.
+     * @param budget    checked before every attempted merge and while scoring. If it gets exceeded,
+     *                  {@link Budget.Exceeded} is thrown and the transducer is left partially merged.
+     *                  It must be discarded then.
+     */
+    public static <C> State<C> ostia(State<C> transducer, ScoringFunction<C> scoring, MergingPolicy<C> policy,
+                                     BiFunction<C, C, C> merge, Function<State<C>, Object> signature, Budget.Scope budget) {
+        final ArrayList<State<C>> states = OSTIAState.indexAllStates(transducer, (i, s) -> s.index = i);
+        final Object[] signatures = new Object[states.size()];
+        for (int i = 0; i < signatures.length; i++) signatures[i] = signature.apply(states.get(i));
+        final FoldContext<C> ctx = new FoldContext<>(states);
+        //pairs rejected by merging policy. They might be accepted after the next merge
+        final IncompatiblePairs[] deferred = {new IncompatiblePairs()};
+        final CandidatePairs candidates = new CandidatePairs(signatures, (row, col) -> {
+            final State<C> a = states.get(row);
+            final State<C> b = states.get(col);
+            if (a.transitions == null || b.transitions == null) return -1;
+            if (ctx.incompatible.contains(row, col) || deferred[0].contains(row, col)) return -1;
+            return scoring.score(a, b, states);
+        });
+        for (int row = 0; row < signatures.length; row++) {
+            budget.check();
+            candidates.rescore(row);
+        }
+        int[] deferredRows = new int[16];
+        int deferredSize = 0;
+        final boolean[] affected = new boolean[states.size()];
+        int[] affectedList = new int[16];
+        int row;
+        while ((row = candidates.peek()) != -1) {
+            budget.check();
+            final State<C> a = states.get(row);
+            final State<C> b = states.get(candidates.col(row));
+            assert a.transitions != null && b.transitions != null;
+            if (!policy.shouldMerge(new Index(a.index, b.index, candidates.score(row)), states)) {
+                deferred[0].add(a.index, b.index);
+                if (deferredSize == deferredRows.length) deferredRows = Arrays.copyOf(deferredRows, deferredSize * 2);
+                deferredRows[deferredSize++] = row;
+                candidates.rescore(row);
+                continue;
+            }
+            ctx.mergedWith.clear();
+            ctx.mutated.clear();
             assert validateGraph(transducer, ctx);
-            score.removeIf(i -> {
+            if (ostiaMerge(a, b, ctx, merge)) {
+                transducer = ctx.mergeDestination(transducer);
+                assert transducer.isInitial;
+                assert transducer.incoming != null;
+                assert transducer.transitions != null;
+                assert validateGraph(transducer, ctx);
+                int affectedSize = 0;
+                final ArrayList<State<C>> touched = new ArrayList<>(ctx.mergedWith.keySet());
+                touched.addAll(ctx.mutated.keySet());
+                for (State<C> s : touched) {
+                    if (affected[s.index]) continue;
+                    affected[s.index] = true;
+                    if (affectedSize == affectedList.length) affectedList = Arrays.copyOf(affectedList, affectedSize * 2);
+                    affectedList[affectedSize++] = s.index;
+                }
+                if (deferredSize > 0) {
+                    deferred[0] = new IncompatiblePairs();
+                    for (int i = 0; i < deferredSize; i++) candidates.rescore(deferredRows[i]);
+                    deferredSize = 0;
+                }
+                candidates.rescore(affected, affectedList, affectedSize);
+                for (int i = 0; i < affectedSize; i++) affected[affectedList[i]] = false;
+            } else {
+                ctx.incompatible.add(a.index, b.index);
+                candidates.rescore(row);
+            }
+        }
+//        LearnLibCompatibility.visualize(tr.specs.convertCustomGraphToRanged(asGraph(tr.specs, transducer, i -> i + 1, i -> i), LexUnicodeSpecification.E::getToExclsuive));
+        assert validateGraph(transducer, ctx);
+        return transducer;
+    }
+
+
+    /**
+     * Straightforward version of {@link #ostia(State, ScoringFunction, MergingPolicy, BiFunction, Function, Budget.Scope)}
+     * that considers all pairs, keeps them in a single list and re-sorts the entire list after every merge.
+     * It needs quadratic memory and time per merge, so it should only serve as a reference for testing.
+     */
+    public static <C> State<C> ostiaExhaustive(State<C> transducer, ScoringFunction<C> scoring, MergingPolicy<C> policy,
+                                               BiFunction<C, C, C> merge) {
+        final ArrayList<State<C>> states = OSTIAState.indexAllStates(transducer, (i, s) -> s.index = i);
+        final ArrayList<Index> pairs = new ArrayList<>();
+        for (int row = 1; row < states.size(); row++) {
+            for (int col = 0; col < row; col++) {
+                pairs.add(new Index(row, col, scoring.score(states.get(row), states.get(col), states)));
+            }
+        }
+        //ties are broken in favour of lower triangle index, just like in the heap
+        final Comparator<Index> order = Comparator.<Index>comparingInt(i -> -i.score)
+                .thenComparingLong(i -> (long) i.row * (i.row - 1) / 2 + i.col);
+        final FoldContext<C> ctx = new FoldContext<>(states);
+        outer:
+        while (true) {
+            pairs.removeIf(i -> {
                 final Pair<State<C>, State<C>> s = i.state(states);
-                final State<C> a = s.l();
-                final State<C> b = s.r();
-                assert a != b;
-                if (a.changeIteration == ctx.iter || b.changeIteration == ctx.iter) {
-                    i.score = scoring.score(a, b, states);
+                if (s.l().transitions == null || s.r().transitions == null) return true;
+                if (ctx.incompatible.contains(i.row, i.col)) return true;
+                if (ctx.mutated.containsKey(s.l()) || ctx.mutated.containsKey(s.r())) {
+                    i.score = scoring.score(s.l(), s.r(), states);
                 }
-                assert i.score >= -1 : i.score;
                 return i.score == -1;
             });
-            ctx.iter++;
-            score.sort(Comparator.comparingInt(a -> -a.score));
-            for (int j = 0; j < score.size(); j++) {
-                final Index i = score.get(j);
+            pairs.sort(order);
+            for (Index i : pairs) {
                 if (policy.shouldMerge(i, states)) {
                     final Pair<State<C>, State<C>> s = i.state(states);
                     ctx.mergedWith.clear();
                     ctx.mutated.clear();
-                    assert validateGraph(transducer, ctx);
                     if (ostiaMerge(s.l(), s.r(), ctx, merge)) {
                         transducer = ctx.mergeDestination(transducer);
-                        assert transducer.isInitial;
-                        assert transducer.incoming != null;
-                        assert transducer.transitions != null;
                         continue outer;
-//                    } else {
-//                        notMergeable[j] = true;
-//                        assert notMergeable[j];
+                    } else {
+                        ctx.incompatible.add(i.row, i.col);
                     }
                 }
             }
             break;
         }
-//        LearnLibCompatibility.visualize(tr.specs.convertCustomGraphToRanged(asGraph(tr.specs, transducer, i -> i + 1, i -> i), LexUnicodeSpecification.E::getToExclsuive));
         assert validateGraph(transducer, ctx);
         return transducer;
     }
 
-
     public static <C> boolean validateGraph(State<C> a, FoldContext<C> ctx) {
         final HashMap<State<C>, HashMap<State<C>, ArrayList<Integer>>> visited = new HashMap<>();
         final Stack<State<C>> stack = new Stack<>();
@@ -229,20 +451,21 @@ public class OSTIAArbitraryOrder {
     }
 
     public static class FoldContext<C> {
-        final ArrayList<Index> score;
-        //        final boolean[] notMergeable;
         final ArrayList<State<C>> states;
         final HashMap<State<C>, StateCopy<C>> mutated = new HashMap<>();
+        /**
+         * Merging only ever adds constraints (outputs become fixed, pushback becomes blocked by
+         * new loops and incoming edges), so a pair of states that failed to merge once, will never
+         * be mergeable again.
+         */
+        final IncompatiblePairs incompatible = new IncompatiblePairs();
         final LinkedHashMap<State<C>, State<C>> mergedWith = new LinkedHashMap<>();
-        int iter = 0;
 
         public StateCopy<C> mutated(State<C> s) {
             return mutated.computeIfAbsent(s, StateCopy::new);
         }
 
-        public FoldContext(ArrayList<Index> score, ArrayList<State<C>> states) {
-            this.score = score;
-//            this.notMergeable = notMergeable;
+        public FoldContext(ArrayList<State<C>> states) {
             this.states = states;
         }
 
@@ -278,19 +501,11 @@ public class OSTIAArbitraryOrder {
     private static <C> boolean ostiaMerge(State<C> a, State<C> b, FoldContext<C> ctx, BiFunction<C, C, C> merge) {
         assert a != b;
         if (ostiaFold(a, b, ctx)) {
-            final BitSet wasMerged = new BitSet(ctx.states.size());
             for (Map.Entry<State<C>, State<C>> ab : ctx.mergedWith.entrySet()) {
                 final State<C> mergeSource = ab.getKey();
                 final State<C> mergeDestination = ab.getValue();
                 mergeDestination.ptt = merge.apply(mergeDestination.ptt, mergeSource.ptt);
-                wasMerged.set(mergeSource.index);
             }
-            ctx.score.removeIf(i -> {
-                final IntPair c = MatrixIndexing.lowerTriagleCell(i.stateIndices);
-                return //isNotMergeable(c.l, c.r, ctx.notMergeable) ||
-                        wasMerged.get(c.r) ||
-                                wasMerged.get(c.l);
-            });
             for (Map.Entry<State<C>, StateCopy<C>> e : ctx.mutated.entrySet()) {
                 final State<C> s = e.getKey();
                 final StateCopy<C> c = e.getValue();
@@ -299,7 +514,6 @@ public class OSTIAArbitraryOrder {
                     s.transitions = null;
                     continue;
                 }
-                s.changeIteration = ctx.iter;
                 s.incoming = c.incoming;
                 s.kind = c.kind;
                 for (int symbol = 0; symbol < c.transitions.length; symbol++) {
@@ -324,9 +538,9 @@ public class OSTIAArbitraryOrder {
         final State<C> prev = ctx.mergedWith.put(b, a);
         assert prev == null;
         // tiny optimisation
-//        if (isNotMergeable(a.index, b.index, ctx.notMergeable)) {
-//            return false;
-//        }
+        if (ctx.incompatible.contains(a.index, b.index)) {
+            return false;
+        }
         //merge state output and kind
         if (copyB.kind == OSTIAState.Kind.ACCEPTING) {
             if (copyA.kind == OSTIAState.Kind.UNKNOWN) {
@@ -626,7 +840,9 @@ public class OSTIAArbitraryOrder {
                         assert Util.exists(source.transitions[symbol], t -> t.target == original);
                         for (final Edge<C> incomingToThis : source.transitions[symbol]) {
                             if (incomingToThis.target == original) {
-                                assert incomingToThis.isKnown;
+                                if (!incomingToThis.isKnown) {//output of unknown edge has nothing to cut
+                                    return false;
+                                }
                                 final IntQueue suffix = incomingToThis.cutSuffix(len);
                                 if (!IntQueue.equals(suffix, prefix)) {
                                     return false;
@@ -853,7 +1069,6 @@ public class OSTIAArbitraryOrder {
         public @Nullable Edge<C>[] transitions;
         public C ptt;
         public final IntSeq shortest;
-        int changeIteration = 0;
 
         public State(int alphabetSize, IntSeq shortest) {
             super.out = null;
@@ -35,9 +35,19 @@ public class OSTIACompress {
 
 
     public static void ostia(State transducer) {
+        ostia(transducer, Budget.unlimited().enter(Budget.Phase.LEARN));
+    }
+
+    /**
+     * @param budget checked before every attempted fold. If it gets exceeded, {@link Budget.Exceeded} is thrown
+     *               and the transducer is left partially folded. It must be discarded then.
+     */
+    public static void ostia(State transducer, Budget.Scope budget) {
         final Queue<Blue> blue = new LinkedList<>();
         final Set<State> red = new LinkedHashSet<>();
         assert OSTIAState.isTree(transducer);
+        OSTIAState.indexAllStates(transducer, (i, s) -> s.index = i);
+        final IncompatiblePairs incompatible = new IncompatiblePairs();
         red.add(transducer);
         addBlueStates(transducer, blue);
         assert uniqueItems(blue);
@@ -54,7 +64,8 @@ public class OSTIACompress {
             assert disjoint(blue, red);
 
             for (State redState : red) {
-                if (ostiaFold(redState, blueState)) {
+                budget.check();
+                if (ostiaFold(redState, blueState, incompatible)) {
                     next.parent.transitions[next.symbol].target = redState;
                     assert disjoint(blue, red);
                     assert uniqueItems(blue);
@@ -75,10 +86,37 @@ public class OSTIACompress {
 
 
 
+    /**
+     * Same as {@link OSTIACompress#ostiaFold(State, State, IncompatiblePairs)} but without caching incompatible pairs,
+     * because states of arbitrary transducer might not be indexed.
+     */
     public static boolean ostiaFold(State red, State blue) {
+        return ostiaFold(red, blue, null);
+    }
+
+    /**
+     * Checks whether red state and blue state recognize exactly the same (finite) language with the same outputs.
+     * Merging never changes the language of any state, so once a pair is found incompatible, it remains
+     * incompatible forever. Such pairs are remembered, because the same subtrees are compared over and over again
+     * (first when a blue state is checked against every red state and later when its
+     * descendants become blue themselves).
+     *
+     * @param incompatible pairs of indices of states known to be incompatible. If null, nothing is cached.
+     */
+    static boolean ostiaFold(State red, State blue, IncompatiblePairs incompatible) {
         assert red != blue;
         assert blue.kind!= OSTIAState.Kind.REJECTING; // UNKNOWN is treated here as REJECTING by default
         assert red.kind!= OSTIAState.Kind.REJECTING;
+        if (incompatible == null) return ostiaFoldUncached(red, blue, null);
+        if (incompatible.contains(red.index, blue.index)) return false;
+        if (!ostiaFoldUncached(red, blue, incompatible)) {
+            incompatible.add(red.index, blue.index);
+            return false;
+        }
+        return true;
+    }
+
+    private static boolean ostiaFoldUncached(State red, State blue, IncompatiblePairs incompatible) {
         if(blue.kind!=red.kind)return false;
         if (blue.kind == OSTIAState.Kind.ACCEPTING) {
             if (!IntQueue.equals(red.out, blue.out)) {
@@ -97,7 +135,7 @@ public class OSTIACompress {
                 if(!IntQueue.equals(transitionBlue.out,transitionRed.out)){
                    return false;
                 }
-                if(!ostiaFold(transitionRed.target,transitionBlue.target)){
+                if(!ostiaFold(transitionRed.target,transitionBlue.target, incompatible)){
                     return false;
                 }
             }
@@ -187,6 +225,7 @@ public class OSTIACompress {
         OSTIAState.Kind kind = Kind.UNKNOWN;
         @Nullable IntQueue out;
         @Nullable Edge[] transitions;
+        int index;
 
         @Override
         public String toString() {
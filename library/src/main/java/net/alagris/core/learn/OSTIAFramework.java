@@ -4,6 +4,7 @@ import net.alagris.core.*;
 import net.alagris.lib.ExternalFunctionsFromSolomonoff;
 
 import java.util.Objects;
+import java.util.function.Predicate;
 
 public class OSTIAFramework<N, G extends IntermediateGraph<Pos, LexUnicodeSpecification.E, LexUnicodeSpecification.P, N>>
         implements LearningFramework<Pair<OSTIA.State, IntEmbedding>, Pos, LexUnicodeSpecification.E, LexUnicodeSpecification.P, Integer, IntSeq,N, G> {
@@ -15,7 +16,7 @@ public class OSTIAFramework<N, G extends IntermediateGraph<Pos, LexUnicodeSpecif
 
     @Override
     public Pair<OSTIA.State, IntEmbedding> makeHypothesis(FuncArg.Informant<G,IntSeq> text) {
-        return ExternalFunctionsFromSolomonoff.inferOSTIA(text);
+        return ExternalFunctionsFromSolomonoff.inferOSTIA(text, specs.budget());
     }
 
     @Override
@@ -23,6 +24,11 @@ public class OSTIAFramework<N, G extends IntermediateGraph<Pos, LexUnicodeSpecif
         return Objects.equals(OSTIAState.run(hypothesis.l(),hypothesis.r(), newUnseenExample.l()), newUnseenExample.r());
     }
 
+    @Override
+    public Predicate<Pair<IntSeq, IntSeq>> compileTester(Pair<OSTIA.State, IntEmbedding> hypothesis) {
+        return LearningFramework.optimisedTester(specs, compileHypothesis(hypothesis));
+    }
+
     @Override
     public G compileHypothesis(Pair<OSTIA.State, IntEmbedding> hypothesis) {
         return specs.convertCustomGraphToIntermediate(OSTIAState.asGraph(specs, hypothesis.l(), hypothesis.r()::retrieve, x -> Pos.NONE));
@@ -155,8 +155,8 @@ public class OSTIAWithDomain {
             return null;
         }
 
-        public void apply(ArrayList<Integer>[] mockSparseMatrix, Map<State, StateCopy> merged) {
-            for (State redState : merged.keySet()) {
+        public void apply(ArrayList<Integer>[] mockSparseMatrix, Set<State> merged) {
+            for (State redState : merged) {
                 final ArrayList<Integer> newlyReachableDomainStates = mockSparseMatrix[redState.index];
                 if(newlyReachableDomainStates!=null) {
                     assert Collections.disjoint(sparseMatrix[redState.index], newlyReachableDomainStates) : sparseMatrix[redState.index] + " " + newlyReachableDomainStates + " " + redState;
@@ -181,6 +181,7 @@ public class OSTIAWithDomain {
         assert validateBlueAndRed(transducer, red, blue);
         assert domain.isDeterministic() == null;
         final Product domainProductTransducer = new Product(transducer, alph, specs, domain);
+        final FoldContext ctx = new FoldContext(true);
 
         blue:
         while (!blue.isEmpty()) {
@@ -195,9 +196,8 @@ public class OSTIAWithDomain {
             for (State redState : red) {
                 final ArrayList<Integer>[] mockSparseMatrix = domainProductTransducer.merge(redState,next.parent,next.symbol, blueState, alph, specs, domain);
                 if (mockSparseMatrix != null) {
-                    final Map<State, StateCopy> merged = ostiaMerge(next, redState, blue, red);
-                    if (merged != null) {
-                        domainProductTransducer.apply(mockSparseMatrix, merged);
+                    if (ostiaMerge(next, redState, blue, red, ctx)) {
+                        domainProductTransducer.apply(mockSparseMatrix, ctx.touched);
                         assert disjoint(blue, red);
                         assert uniqueItems(blue);
                         continue blue;
@@ -0,0 +1,72 @@
+package net.alagris.core.learn;
+
+import java.util.Arrays;
+
+/**
+ * Trail of modified fields. Merging algorithms can modify states in-place and
+ * record the previous value of every field they overwrite. If the merge turns out to be
+ * impossible, the trail is rolled back in reverse order. If it succeeds, the trail is simply dropped.
+ * This is much cheaper than copying all states touched by every (mostly failing) merge attempt.
+ * Every entry is stored in three parallel arrays, so recording does not allocate anything (apart from
+ * occasional growth of the arrays).
+ */
+final class UndoLog {
+
+    /**
+     * Knows how to write back the old value of a field identified by some algorithm-specific integer.
+     */
+    interface Restorer {
+        void restore(Object owner, int field, Object oldValue);
+    }
+
+    private final Restorer restorer;
+    private Object[] owners = new Object[64];
+    private Object[] oldValues = new Object[64];
+    private int[] fields = new int[64];
+    private int size = 0;
+
+    UndoLog(Restorer restorer) {
+        this.restorer = restorer;
+    }
+
+    /**
+     * Must be called before the field is overwritten
+     */
+    void record(Object owner, int field, Object oldValue) {
+        if (size == owners.length) {
+            owners = Arrays.copyOf(owners, size * 2);
+            oldValues = Arrays.copyOf(oldValues, size * 2);
+            fields = Arrays.copyOf(fields, size * 2);
+        }
+        owners[size] = owner;
+        oldValues[size] = oldValue;
+        fields[size] = field;
+        size++;
+    }
+
+    int size() {
+        return size;
+    }
+
+    /**
+     * Undoes all modifications recorded since the log had the given size
+     */
+    void rollback(int mark) {
+        assert mark <= size;
+        while (size > mark) {
+            size--;
+            restorer.restore(owners[size], fields[size], oldValues[size]);
+            owners[size] = null;
+            oldValues[size] = null;
+        }
+    }
+
+    /**
+     * Accepts all modifications. The log becomes empty.
+     */
+    void commit() {
+        Arrays.fill(owners, 0, size, null);
+        Arrays.fill(oldValues, 0, size, null);
+        size = 0;
+    }
+}
@@ -40,6 +40,161 @@ public class Config {
         assert false:prev+" "+transition;
     };
 
+    /**
+     * Metrics are disabled by default. Pass an instance of {@link Metrics.Recorder} in order to collect
+     * statistics of evaluation and compilation.
+     */
+    public Metrics metrics = Metrics.DISABLED;
+
+    public Config setMetrics(Metrics metrics) {
+        this.metrics = metrics;
+        return this;
+    }
+
+    /**
+     * Concatenation and Kleene closure of union of many words would connect every word's last
+     * vertex with every initial vertex. Above this many connections, the equivalent last vertices are
+     * merged first (see {@link Specification#mergeFinalLeaves}). Use {@link Long#MAX_VALUE} to disable it.
+     */
+    public long mergeFinalLeavesThreshold = 1 << 12;
+
+    public Config setMergeFinalLeavesThreshold(long threshold) {
+        this.mergeFinalLeavesThreshold = threshold;
+        return this;
+    }
+
+    /**
+     * If positive, {@link Solomonoff#run} and {@link Solomonoff#runPipeline} remember up to this many
+     * most recently used results of each transducer and pipeline (see {@link ResultCache}).
+     * Caches are discarded whenever the transducer is redefined.
+     */
+    public int resultCacheSize = 0;
+
+    public Config setResultCacheSize(int size) {
+        this.resultCacheSize = size;
+        return this;
+    }
+
+    /**
+     * Settings of {@link Solomonoff#runBeam} (see {@link LexUnicodeSpecification#evaluateBeam}).
+     * Beam width is the maximal number of states kept in superposition after each symbol.
+     * Budgets are disabled when not positive. If verification is enabled, every pruned evaluation
+     * is repeated exactly in order to report whether pruning changed the output.
+     */
+    public int beamWidth = 64;
+    public long beamBudgetNanos = 0;
+    public long beamBudgetExpansions = 0;
+    public boolean beamVerify = false;
+
+    public Config setBeamWidth(int beamWidth) {
+        this.beamWidth = beamWidth;
+        return this;
+    }
+
+    public Config setBeamBudget(long nanos, long expansions) {
+        this.beamBudgetNanos = nanos;
+        this.beamBudgetExpansions = expansions;
+        return this;
+    }
+
+    public Config setBeamVerify(boolean verify) {
+        this.beamVerify = verify;
+        return this;
+    }
+
+    /**
+     * Number of threads used by {@link LexUnicodeSpecification#importATT(java.io.File, char)}
+     * to parse AT&amp;T files (see {@link net.alagris.core.ATTImporter}).
+     */
+    public int importThreads = Runtime.getRuntime().availableProcessors();
+
+    public Config setImportThreads(int threads) {
+        this.importThreads = threads;
+        return this;
+    }
+
+    /**
+     * If true, all equal outputs within every optimised or decompressed graph share the same instance
+     * stored in {@link net.alagris.core.OutputArena} of that graph.
+     */
+    public boolean internOutputs = true;
+
+    public Config setInternOutputs(boolean internOutputs) {
+        this.internOutputs = internOutputs;
+        return this;
+    }
+
+    /**
+     * Release mode is meant for production. States of compiled transducers and pipelines do not remember
+     * their own positions in source code. Instead all of them point to the definition of their variable (or pipeline).
+     * Compilation errors still point to the right definition but not to the exact state within it.
+     */
+    public boolean releaseMode = false;
+
+    public Config setReleaseMode(boolean releaseMode) {
+        this.releaseMode = releaseMode;
+        return this;
+    }
+
+    /**
+     * Transducers with more states are not turned into generated classes by
+     * {@link Solomonoff#compileEvaluator(String)}
+     */
+    public int generatedEvaluatorMaxStates = 2048;
+
+    public Config setGeneratedEvaluatorMaxStates(int maxStates) {
+        this.generatedEvaluatorMaxStates = maxStates;
+        return this;
+    }
+
+    /**
+     * Adjacent stages of every registered pipeline are fused into single transducers
+     * (see {@link net.alagris.core.PipelineFusion}) as long as the result has at most this many states.
+     * Fusion is disabled if not positive.
+     */
+    public int pipelineFusionMaxStates = 0;
+
+    public Config setPipelineFusionMaxStates(int maxStates) {
+        this.pipelineFusionMaxStates = maxStates;
+        return this;
+    }
+
+    /**
+     * If false (default), inference by the variants of OSTIA that merge states in arbitrary order
+     * (max overlap, max compatible, max deep overlap and their compressing versions) considers all pairs
+     * of states and stores their scores, which takes time and memory quadratic in the size of the prefix tree
+     * transducer (samples with more than about 65 thousand prefix tree states are rejected). If true, only the
+     * pairs of states with equal outgoing symbols and outputs are considered (see
+     * {@link net.alagris.core.learn.OSTIAArbitraryOrder#SIGNATURE_OUTGOING_SYMBOLS_AND_OUTPUTS}) and they are
+     * scored lazily in linear memory, which is much faster for large samples, but may learn different transducers.
+     */
+    public boolean approximateMergeCandidates = false;
+
+    public Config setApproximateMergeCandidates(boolean approximate) {
+        this.approximateMergeCandidates = approximate;
+        return this;
+    }
+
+    /**
+     * Limits on every single run of powerset construction, composition, product, generation and inference
+     * (see {@link net.alagris.core.Budget}). Compilation fails with
+     * {@link net.alagris.core.CompilationError.BudgetExceeded} when any of them is exceeded.
+     * Limits are disabled when not positive. Inference (by every variant of OSTIA) only merges states of the
+     * prefix tree transducer, so it is bounded by time and may be cancelled, but states and edges are not counted.
+     */
+    public long budgetMaxStates = 0;
+    public long budgetMaxEdges = 0;
+    public long budgetMaxMillis = 0;
+    public long budgetMaxBytes = 0;
+
+    public Config setBudget(long maxStates, long maxEdges, long maxMillis, long maxBytes) {
+        this.budgetMaxStates = maxStates;
+        this.budgetMaxEdges = maxEdges;
+        this.budgetMaxMillis = maxMillis;
+        this.budgetMaxBytes = maxBytes;
+        return this;
+    }
+
     public static Config config() {
         return new Config();
     }
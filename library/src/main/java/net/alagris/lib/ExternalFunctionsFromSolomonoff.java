@@ -43,16 +43,20 @@ public class ExternalFunctionsFromSolomonoff {
         };
     }
     public static <N, G extends IntermediateGraph<Pos, E, P, N>> Pair<OSTIA.State, IntEmbedding> inferOSTIA(Iterable<Pair<IntSeq, IntSeq>> text) {
+        return inferOSTIA(text, Budget.unlimited());
+    }
+
+    public static <N, G extends IntermediateGraph<Pos, E, P, N>> Pair<OSTIA.State, IntEmbedding> inferOSTIA(Iterable<Pair<IntSeq, IntSeq>> text, Budget budget) {
         final IntEmbedding e = new IntEmbedding(text.iterator());
         final OSTIA.State ptt = OSTIA.buildPtt(e, text.iterator());
-        OSTIA.ostia(ptt);
+        OSTIA.ostia(ptt, budget.enter(Budget.Phase.LEARN));
         return Pair.of(ptt, e);
     }
 
-    public static <N, G extends IntermediateGraph<Pos, E, P, N>> Pair<OSTIACompress.State, IntEmbedding> compressOSTIA(Iterable<Pair<IntSeq, IntSeq>> text) {
+    public static <N, G extends IntermediateGraph<Pos, E, P, N>> Pair<OSTIACompress.State, IntEmbedding> compressOSTIA(Iterable<Pair<IntSeq, IntSeq>> text, Budget budget) {
         final IntEmbedding e = new IntEmbedding(text.iterator());
         final OSTIACompress.State ptt = OSTIACompress.buildPtt(e, text.iterator());
-        OSTIACompress.ostia(ptt);
+        OSTIACompress.ostia(ptt, budget.enter(Budget.Phase.LEARN));
         return Pair.of(ptt, e);
     }
 
@@ -69,7 +73,7 @@ public class ExternalFunctionsFromSolomonoff {
     public static <N, G extends IntermediateGraph<Pos, E, P, N>> void addExternalOSTIA(
             LexUnicodeSpecification<N, G> spec) {
         spec.registerExternalFunction("ostia", (pos, text) -> {
-            final Pair<OSTIA.State, IntEmbedding> result = inferOSTIA(FuncArg.unaryInformantFunction(pos, text));
+            final Pair<OSTIA.State, IntEmbedding> result = inferOSTIA(FuncArg.unaryInformantFunction(pos, text), spec.budget());
             // text is consumed
             return spec.convertCustomGraphToIntermediate(OSTIAState.asGraph(spec, result.l(), result.r()::retrieve, x -> pos));
         });
@@ -78,7 +82,7 @@ public class ExternalFunctionsFromSolomonoff {
     public static <N, G extends IntermediateGraph<Pos, E, P, N>> void addExternalOSTIACompress(
             LexUnicodeSpecification<N, G> spec) {
         spec.registerExternalFunction("ostiaCompress", (pos, text) -> {
-            final Pair<OSTIACompress.State, IntEmbedding> result = compressOSTIA(FuncArg.unaryInformantFunction(pos, text));
+            final Pair<OSTIACompress.State, IntEmbedding> result = compressOSTIA(FuncArg.unaryInformantFunction(pos, text), spec.budget());
             // text is consumed
             return spec.convertCustomGraphToIntermediate(OSTIAState.asGraph(spec, result.l(), result.r()::retrieve, x -> pos));
         });
@@ -359,6 +363,18 @@ public class ExternalFunctionsFromSolomonoff {
         });
     }
 
+    public static <N, G extends IntermediateGraph<Pos, E, P, N>> void addExternalImportOpenFst(
+            LexUnicodeSpecification<N, G> spec) {
+        spec.registerExternalFunction("importFST", (pos, text) -> {
+            final String path = IntSeq.toUnicodeString(FuncArg.unaryInformantFunction(pos, text).get(0).l());
+            try (InputStream stream = new BufferedInputStream(new FileInputStream(pos.resolveRelative(path)))) {
+                return spec.importOpenFst(pos, stream);
+            } catch (IOException e) {
+                throw new CompilationError.ParseException(pos, e);
+            }
+        });
+    }
+
     public static <N, G extends IntermediateGraph<Pos, E, P, N>> void addExternalParseATT(
             LexUnicodeSpecification<N, G> spec) {
         spec.registerExternalFunction("parseATT", (pos, text) -> {
@@ -373,32 +389,38 @@ public class ExternalFunctionsFromSolomonoff {
     public static <N, G extends IntermediateGraph<Pos, LexUnicodeSpecification.E, LexUnicodeSpecification.P, N>> Pair<OSTIAArbitraryOrder.State<OSTIAArbitraryOrder.StatePTT>, IntEmbedding>
     inferOSTIAMaxOverlap(Iterable<Pair<IntSeq, IntSeq>> text,
                          OSTIAArbitraryOrder.ScoringFunction<OSTIAArbitraryOrder.StatePTT> scoring,
-                         OSTIAArbitraryOrder.MergingPolicy<OSTIAArbitraryOrder.StatePTT> policy) {
+                         OSTIAArbitraryOrder.MergingPolicy<OSTIAArbitraryOrder.StatePTT> policy,
+                         Budget budget, boolean approximate) {
         final IntEmbedding e = new IntEmbedding(text.iterator());
         OSTIAArbitraryOrder.State<OSTIAArbitraryOrder.StatePTT> ptt = OSTIAArbitraryOrder.buildPtt(e, text.iterator());
         OSTIAArbitraryOrder.buildSamplePtt(ptt);
-        ptt = OSTIAArbitraryOrder.ostia(ptt, scoring, policy, OSTIAArbitraryOrder.StatePTT::add);
+        ptt = OSTIAArbitraryOrder.ostia(ptt, scoring, policy, OSTIAArbitraryOrder.StatePTT::add,
+                approximate, budget.enter(Budget.Phase.LEARN));
         return Pair.of(ptt, e);
     }
     public static <N, G extends IntermediateGraph<Pos, LexUnicodeSpecification.E, LexUnicodeSpecification.P, N>> Pair<OSTIAArbitraryOrder.State<Void>, IntEmbedding>
     inferOSTIAMaxDeepOverlap(Iterable<Pair<IntSeq, IntSeq>> text,
                              OSTIAArbitraryOrder.ScoringFunction<Void> scoring,
-                             OSTIAArbitraryOrder.MergingPolicy<Void> policy) {
+                             OSTIAArbitraryOrder.MergingPolicy<Void> policy,
+                             Budget budget, boolean approximate) {
         final IntEmbedding e = new IntEmbedding(text.iterator());
         OSTIAArbitraryOrder.State<Void> ptt = OSTIAArbitraryOrder.buildPtt(e, text.iterator());
-        ptt = OSTIAArbitraryOrder.ostia(ptt, scoring, policy, (a, b) -> null);
+        ptt = OSTIAArbitraryOrder.ostia(ptt, scoring, policy, (a, b) -> null,
+                approximate, budget.enter(Budget.Phase.LEARN));
         return Pair.of(ptt, e);
     }
 
     public static <N, G extends IntermediateGraph<Pos, LexUnicodeSpecification.E, LexUnicodeSpecification.P, N>> Pair<OSTIAArbitraryOrder.State<OSTIAArbitraryOrder.StatePTT>, IntEmbedding>
     compressOSTIAMaxOverlap(Iterable<Pair<IntSeq, IntSeq>> text,
                          OSTIAArbitraryOrder.ScoringFunction<OSTIAArbitraryOrder.StatePTT> scoring,
-                         OSTIAArbitraryOrder.MergingPolicy<OSTIAArbitraryOrder.StatePTT> policy) {
+                         OSTIAArbitraryOrder.MergingPolicy<OSTIAArbitraryOrder.StatePTT> policy,
+                         Budget budget, boolean approximate) {
         final IntEmbedding e = new IntEmbedding(text.iterator());
         OSTIAArbitraryOrder.State<OSTIAArbitraryOrder.StatePTT> ptt = OSTIAArbitraryOrder.buildPtt(e, text.iterator());
         OSTIAArbitraryOrder.buildSamplePtt(ptt);
         OSTIAState.setAllUnknownStatesAs(ptt, OSTIAState.Kind.REJECTING); // this is the crucial part
-        ptt = OSTIAArbitraryOrder.ostia(ptt, scoring, policy, OSTIAArbitraryOrder.StatePTT::add);
+        ptt = OSTIAArbitraryOrder.ostia(ptt, scoring, policy, OSTIAArbitraryOrder.StatePTT::add,
+                approximate, budget.enter(Budget.Phase.LEARN));
         return Pair.of(ptt, e);
     }
 
@@ -408,7 +430,7 @@ public class ExternalFunctionsFromSolomonoff {
     public static <N, G extends IntermediateGraph<Pos, LexUnicodeSpecification.E, LexUnicodeSpecification.P, N>> void addExternalOSTIAMaxOverlap(
             LexUnicodeSpecification<N, G> spec) {
         spec.registerExternalFunction("ostiaMaxOverlap", (pos, text) -> {
-            final Pair<OSTIAArbitraryOrder.State<OSTIAArbitraryOrder.StatePTT>, IntEmbedding> result = inferOSTIAMaxOverlap(FuncArg.unaryInformantFunction(pos, text), OSTIAArbitraryOrder.SCORING_MAX_OVERLAP, OSTIAArbitraryOrder.POLICY_GREEDY());
+            final Pair<OSTIAArbitraryOrder.State<OSTIAArbitraryOrder.StatePTT>, IntEmbedding> result = inferOSTIAMaxOverlap(FuncArg.unaryInformantFunction(pos, text), OSTIAArbitraryOrder.SCORING_MAX_OVERLAP, OSTIAArbitraryOrder.POLICY_GREEDY(), spec.budget(), spec.approximateMergeCandidates());
             final G g = spec.convertCustomGraphToIntermediate(OSTIAState.asGraph(spec, result.l(), result.r()::retrieve, x -> pos));
             return g;
         });
@@ -417,7 +439,7 @@ public class ExternalFunctionsFromSolomonoff {
     public static <N, G extends IntermediateGraph<Pos, LexUnicodeSpecification.E, LexUnicodeSpecification.P, N>> void addExternalOSTIAMaxCompatible(
             LexUnicodeSpecification<N, G> spec) {
         spec.registerExternalFunction("ostiaMaxCompatible", (pos, text) -> {
-            final Pair<OSTIAArbitraryOrder.State<OSTIAArbitraryOrder.StatePTT>, IntEmbedding> result = inferOSTIAMaxOverlap(FuncArg.unaryInformantFunction(pos, text), OSTIAArbitraryOrder.SCORING_MAX_COMPATIBLE, OSTIAArbitraryOrder.POLICY_GREEDY());
+            final Pair<OSTIAArbitraryOrder.State<OSTIAArbitraryOrder.StatePTT>, IntEmbedding> result = inferOSTIAMaxOverlap(FuncArg.unaryInformantFunction(pos, text), OSTIAArbitraryOrder.SCORING_MAX_COMPATIBLE, OSTIAArbitraryOrder.POLICY_GREEDY(), spec.budget(), spec.approximateMergeCandidates());
             final G g = spec.convertCustomGraphToIntermediate(OSTIAState.asGraph(spec, result.l(), result.r()::retrieve, x -> pos));
             return g;
         });
@@ -426,7 +448,7 @@ public class ExternalFunctionsFromSolomonoff {
     public static <N, G extends IntermediateGraph<Pos, LexUnicodeSpecification.E, LexUnicodeSpecification.P, N>> void addExternalOSTIAMaxDeepOverlap(
             LexUnicodeSpecification<N, G> spec) {
         spec.registerExternalFunction("ostiaMaxDeepOverlap", (pos, text) -> {
-            final Pair<OSTIAArbitraryOrder.State<Void>, IntEmbedding> result = inferOSTIAMaxDeepOverlap(FuncArg.unaryInformantFunction(pos, text), OSTIAArbitraryOrder.SCORING_MAX_DEEP_OVERLAP(), OSTIAArbitraryOrder.POLICY_GREEDY());
+            final Pair<OSTIAArbitraryOrder.State<Void>, IntEmbedding> result = inferOSTIAMaxDeepOverlap(FuncArg.unaryInformantFunction(pos, text), OSTIAArbitraryOrder.SCORING_MAX_DEEP_OVERLAP(), OSTIAArbitraryOrder.POLICY_GREEDY(), spec.budget(), spec.approximateMergeCandidates());
             final G g = spec.convertCustomGraphToIntermediate(OSTIAState.asGraph(spec, result.l(), result.r()::retrieve, x -> pos));
             return g;
         });
@@ -435,7 +457,7 @@ public class ExternalFunctionsFromSolomonoff {
     public static <N, G extends IntermediateGraph<Pos, LexUnicodeSpecification.E, LexUnicodeSpecification.P, N>> void addExternalOSTIAMaxCompatibleInputs(
             LexUnicodeSpecification<N, G> spec) {
         spec.registerExternalFunction("ostiaMaxCompatibleInputs", (pos, text) -> {
-            final Pair<OSTIAArbitraryOrder.State<OSTIAArbitraryOrder.StatePTT>, IntEmbedding> result = inferOSTIAMaxOverlap(FuncArg.unaryInformantFunction(pos, text), OSTIAArbitraryOrder.SCORING_MAX_COMPATIBLE_INPUTS, OSTIAArbitraryOrder.POLICY_GREEDY());
+            final Pair<OSTIAArbitraryOrder.State<OSTIAArbitraryOrder.StatePTT>, IntEmbedding> result = inferOSTIAMaxOverlap(FuncArg.unaryInformantFunction(pos, text), OSTIAArbitraryOrder.SCORING_MAX_COMPATIBLE_INPUTS, OSTIAArbitraryOrder.POLICY_GREEDY(), spec.budget(), spec.approximateMergeCandidates());
             final G g = spec.convertCustomGraphToIntermediate(OSTIAState.asGraph(spec, result.l(), result.r()::retrieve, x -> pos));
             return g;
         });
@@ -444,7 +466,7 @@ public class ExternalFunctionsFromSolomonoff {
     public static <N, G extends IntermediateGraph<Pos, LexUnicodeSpecification.E, LexUnicodeSpecification.P, N>> void addExternalOSTIAMaxCompatibleInputsAndOutputs(
             LexUnicodeSpecification<N, G> spec) {
         spec.registerExternalFunction("ostiaMaxCompatibleInputsAndOutputs", (pos, text) -> {
-            final Pair<OSTIAArbitraryOrder.State<OSTIAArbitraryOrder.StatePTT>, IntEmbedding> result = inferOSTIAMaxOverlap(FuncArg.unaryInformantFunction(pos, text), OSTIAArbitraryOrder.SCORING_MAX_COMPATIBLE_INPUTS_AND_OUTPUTS, OSTIAArbitraryOrder.POLICY_GREEDY());
+            final Pair<OSTIAArbitraryOrder.State<OSTIAArbitraryOrder.StatePTT>, IntEmbedding> result = inferOSTIAMaxOverlap(FuncArg.unaryInformantFunction(pos, text), OSTIAArbitraryOrder.SCORING_MAX_COMPATIBLE_INPUTS_AND_OUTPUTS, OSTIAArbitraryOrder.POLICY_GREEDY(), spec.budget(), spec.approximateMergeCandidates());
             final G g = spec.convertCustomGraphToIntermediate(OSTIAState.asGraph(spec, result.l(), result.r()::retrieve, x -> pos));
             return g;
         });
@@ -453,7 +475,7 @@ public class ExternalFunctionsFromSolomonoff {
     public static <N, G extends IntermediateGraph<Pos, LexUnicodeSpecification.E, LexUnicodeSpecification.P, N>> void addExternalOSTIAConservative(
             LexUnicodeSpecification<N, G> spec) {
         spec.registerExternalFunction("ostiaConservative", (pos, text) -> {
-            final Pair<OSTIAArbitraryOrder.State<OSTIAArbitraryOrder.StatePTT>, IntEmbedding> result = inferOSTIAMaxOverlap(FuncArg.unaryInformantFunction(pos, text), OSTIAArbitraryOrder.SCORING_MAX_OVERLAP, OSTIAArbitraryOrder.POLICY_THRESHOLD(1));
+            final Pair<OSTIAArbitraryOrder.State<OSTIAArbitraryOrder.StatePTT>, IntEmbedding> result = inferOSTIAMaxOverlap(FuncArg.unaryInformantFunction(pos, text), OSTIAArbitraryOrder.SCORING_MAX_OVERLAP, OSTIAArbitraryOrder.POLICY_THRESHOLD(1), spec.budget(), spec.approximateMergeCandidates());
             final G g = spec.convertCustomGraphToIntermediate(OSTIAState.asGraph(spec, result.l(), result.r()::retrieve, x -> pos));
             return g;
         });
@@ -462,7 +484,7 @@ public class ExternalFunctionsFromSolomonoff {
     public static <N, G extends IntermediateGraph<Pos, LexUnicodeSpecification.E, LexUnicodeSpecification.P, N>> void addExternalOSTIAMaxOverlapCompress(
             LexUnicodeSpecification<N, G> spec) {
         spec.registerExternalFunction("ostiaMaxOverlapCompress", (pos, text) -> {
-            final Pair<OSTIAArbitraryOrder.State<OSTIAArbitraryOrder.StatePTT>, IntEmbedding> result = compressOSTIAMaxOverlap(FuncArg.unaryInformantFunction(pos, text), OSTIAArbitraryOrder.SCORING_MAX_OVERLAP, OSTIAArbitraryOrder.POLICY_GREEDY());
+            final Pair<OSTIAArbitraryOrder.State<OSTIAArbitraryOrder.StatePTT>, IntEmbedding> result = compressOSTIAMaxOverlap(FuncArg.unaryInformantFunction(pos, text), OSTIAArbitraryOrder.SCORING_MAX_OVERLAP, OSTIAArbitraryOrder.POLICY_GREEDY(), spec.budget(), spec.approximateMergeCandidates());
             final G g = spec.convertCustomGraphToIntermediate(OSTIAState.asGraph(spec, result.l(), result.r()::retrieve, x -> pos));
             return g;
         });
@@ -471,7 +493,7 @@ public class ExternalFunctionsFromSolomonoff {
     public static <N, G extends IntermediateGraph<Pos, LexUnicodeSpecification.E, LexUnicodeSpecification.P, N>> void addExternalOSTIAMaxDeepOverlapCompress(
             LexUnicodeSpecification<N, G> spec) {
         spec.registerExternalFunction("ostiaMaxDeepOverlapCompress", (pos, text) -> {
-            final Pair<OSTIAArbitraryOrder.State<Void>, IntEmbedding> result = inferOSTIAMaxDeepOverlap(FuncArg.unaryInformantFunction(pos, text).filterOutNegative(), OSTIAArbitraryOrder.SCORING_DEEP_COMPRESS(), OSTIAArbitraryOrder.POLICY_GREEDY());
+            final Pair<OSTIAArbitraryOrder.State<Void>, IntEmbedding> result = inferOSTIAMaxDeepOverlap(FuncArg.unaryInformantFunction(pos, text).filterOutNegative(), OSTIAArbitraryOrder.SCORING_DEEP_COMPRESS(), OSTIAArbitraryOrder.POLICY_GREEDY(), spec.budget(), spec.approximateMergeCandidates());
             final G g = spec.convertCustomGraphToIntermediate(OSTIAState.asGraph(spec, result.l(), result.r()::retrieve, x -> pos));
             return g;
         });
@@ -480,7 +502,7 @@ public class ExternalFunctionsFromSolomonoff {
     public static <N, G extends IntermediateGraph<Pos, LexUnicodeSpecification.E, LexUnicodeSpecification.P, N>> void addExternalOSTIAInOutOneToOne(
             LexUnicodeSpecification<N, G> spec) {
         spec.registerExternalFunction("ostiaInOutOneToOne", (pos, text) -> {
-            final Pair<OSTIAArbitraryOrder.State<OSTIAArbitraryOrder.StatePTT>, IntEmbedding> result = inferOSTIAMaxOverlap(FuncArg.unaryInformantFunction(pos, text), OSTIAArbitraryOrder.SCORING_MAX_OVERLAP, OSTIAArbitraryOrder.POLICY_GREEDY());
+            final Pair<OSTIAArbitraryOrder.State<OSTIAArbitraryOrder.StatePTT>, IntEmbedding> result = inferOSTIAMaxOverlap(FuncArg.unaryInformantFunction(pos, text), OSTIAArbitraryOrder.SCORING_MAX_OVERLAP, OSTIAArbitraryOrder.POLICY_GREEDY(), spec.budget(), spec.approximateMergeCandidates());
             final G g = spec.convertCustomGraphToIntermediate(OSTIAState.asGraph(spec, result.l(), result.r()::retrieve, x -> pos));
             return g;
         });
@@ -575,6 +597,8 @@ public class ExternalFunctionsFromSolomonoff {
                     }
                     if (path.endsWith(".py")) {
                         datasets.add(LazyDataset.loadDatasetFromPython(f, separator, scriptArgs));
+                    } else if (path.endsWith(".bin")) {
+                        datasets.add(LazyDataset.loadDatasetFromBinary(f, false));
                     } else {
                         datasets.add(LazyDataset.loadDatasetFromFile(f, separator));
                     }
@@ -7,6 +7,13 @@ import net.alagris.core.LexUnicodeSpecification.*;
 import org.antlr.v4.runtime.CharStream;
 import org.antlr.v4.runtime.CommonTokenStream;
 
+import java.io.File;
+import java.io.IOException;
+import java.io.Reader;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
 import static net.alagris.core.LexUnicodeSpecification.*;
 
 /**
@@ -16,6 +23,24 @@ public class Solomonoff<N, G extends IntermediateGraph<Pos, E, P, N>> {
     public final LexUnicodeSpecification<N, G> specs;
     public final ParserListener<Var<N, G>, Pos, E, P, Integer, IntSeq, Integer, N, G> listener;
     public final SolomonoffGrammarParser parser;
+    private final int resultCacheSize;
+    private final int generatedEvaluatorMaxStates;
+    /**
+     * Result caches are keyed by name of transducer (or @ followed by name of pipeline).
+     * Each cache remembers the object it was created for, so that redefinition of
+     * the transducer makes the old cache obsolete.
+     */
+    private final ConcurrentHashMap<String, CacheOf<?>> resultCaches = new ConcurrentHashMap<>();
+
+    private static final class CacheOf<V> {
+        final Object source;
+        final ResultCache<V> cache;
+
+        CacheOf(Object source, ResultCache<V> cache) {
+            this.source = source;
+            this.cache = cache;
+        }
+    }
 
 
     public void addAllExternalFunctionsFromLearnLib() {
@@ -39,6 +64,7 @@ public class Solomonoff<N, G extends IntermediateGraph<Pos, E, P, N>> {
         ExternalFunctionsFromSolomonoff.addExternalImport(specs);
         ExternalFunctionsFromSolomonoff.addExternalImportATT(specs);
         ExternalFunctionsFromSolomonoff.addExternalParseATT(specs);
+        ExternalFunctionsFromSolomonoff.addExternalImportOpenFst(specs);
         ExternalFunctionsFromSolomonoff.addExternalStringFile(specs);
         ExternalFunctionsFromSolomonoff.addExternalDropEpsilon(specs);
         ExternalFunctionsFromSolomonoff.addExternalCompose(specs);
@@ -81,6 +107,8 @@ public class Solomonoff<N, G extends IntermediateGraph<Pos, E, P, N>> {
         }
         if(config.useLearnLib)addAllExternalFunctionsFromLearnLib();
         parser = ParserListener.makeParser(null);
+        resultCacheSize = config.resultCacheSize;
+        generatedEvaluatorMaxStates = config.generatedEvaluatorMaxStates;
     }
 
     public void setInput(CharStream source) {
@@ -89,7 +117,13 @@ public class Solomonoff<N, G extends IntermediateGraph<Pos, E, P, N>> {
 
     public void parse(CharStream source) throws CompilationError {
         setInput(source);
-        listener.runCompiler(parser);
+        final long begin = specs.metrics.isEnabled() ? System.nanoTime() : 0;
+        try {
+            listener.runCompiler(parser);
+        } finally {
+            if (specs.metrics.isEnabled())
+                specs.metrics.compilePhase(Metrics.Phase.PARSE, System.nanoTime() - begin);
+        }
     }
 
     public void parseREPL(CharStream source) throws CompilationError {
@@ -135,11 +169,132 @@ public class Solomonoff<N, G extends IntermediateGraph<Pos, E, P, N>> {
     }
 
     public IntSeq run(String name, IntSeq input) {
-        return specs.evaluate(getOptimalTransducer(name), input);
+        final RangedGraph<Pos, Integer, E, P> g = getOptimalTransducer(name);
+        if (resultCacheSize <= 0 || g == null) return specs.evaluate(g, input);
+        return this.<IntSeq>resultCache(name, g).get(input, in -> specs.evaluate(g, in));
+    }
+
+    /**
+     * Evaluates all inputs with shared prefixes computed only once
+     * (see {@link net.alagris.core.LexUnicodeSpecification#evaluateBatch}).
+     *
+     * @return outputs in the same order as inputs (null for rejected inputs)
+     */
+    public IntSeq[] runBatch(String name, List<? extends Seq<Integer>> inputs) {
+        return specs.evaluateBatch(getOptimalTransducer(name), inputs);
+    }
+
+    /**
+     * Replaces all leftmost-longest matches of the transducer in the text (see {@link StreamingReplacer}).
+     *
+     * @return number of performed replacements
+     */
+    public long replaceAll(String name, Reader in, Appendable out) throws IOException {
+        return new StreamingReplacer(specs, getOptimalTransducer(name)).replaceAll(in, out);
+    }
+
+    public String replaceAll(String name, String text) {
+        return new StreamingReplacer(specs, getOptimalTransducer(name)).replaceAll(text);
+    }
+
+    /**
+     * Evaluates with the superposition width and budget limited according to {@link Config}
+     * (see {@link net.alagris.core.LexUnicodeSpecification#evaluateBeam}).
+     */
+    public BeamResult runBeam(String name, IntSeq input) {
+        return specs.evaluateBeam(getOptimalTransducer(name), input);
+    }
+
+    /**
+     * Compiles transducer into a {@link Bimachine}, which evaluates in linear time without superposition.
+     *
+     * @return null if there is no such transducer or any of the two automata of bimachine would exceed maxStates
+     */
+    public Bimachine compileBimachine(String name, int maxStates) {
+        final RangedGraph<Pos, Integer, E, P> g = getOptimalTransducer(name);
+        return g == null ? null : Bimachine.compile(specs, g, maxStates);
+    }
+
+    /**
+     * Generates dedicated class that evaluates the transducer (see {@link GeneratedEvaluator}). It is worth it only for
+     * the few hottest deterministic transducers, because compilation takes a while. Transducers with more states than
+     * allowed by {@link Config#generatedEvaluatorMaxStates} fall back to generic evaluation.
+     *
+     * @return null if there is no such transducer
+     */
+    public GeneratedEvaluator compileEvaluator(String name) {
+        final RangedGraph<Pos, Integer, E, P> g = getOptimalTransducer(name);
+        return g == null ? null : GeneratedEvaluator.compile(specs, g, generatedEvaluatorMaxStates);
     }
 
     public Seq<Integer> runPipeline(String name, IntSeq input) {
-        return specs.evaluate(getPipeline(name), input);
+        final Pipeline<Pos, Integer, E, P, N, G> p = getPipeline(name);
+        if (resultCacheSize <= 0 || p == null) return specs.evaluate(p, input);
+        return this.<Seq<Integer>>resultCache('@' + name, p).get(input, in -> specs.evaluate(p, in));
+    }
+
+    @SuppressWarnings("unchecked")
+    private <V> ResultCache<V> resultCache(String key, Object source) {
+        final CacheOf<?> c = resultCaches.get(key);
+        if (c != null && c.source == source) return (ResultCache<V>) c.cache;
+        return (ResultCache<V>) resultCaches.compute(key, (k, prev) ->
+                prev != null && prev.source == source ? prev : new CacheOf<>(source, new ResultCache<V>(resultCacheSize))).cache;
+    }
+
+    /**
+     * @param name name of transducer or @ followed by name of pipeline
+     * @return null if caching is disabled or the transducer was not evaluated yet (since its last redefinition)
+     */
+    public ResultCache<?> getResultCache(String name) {
+        final CacheOf<?> c = resultCaches.get(name);
+        if (c == null) return null;
+        final Object current = name.startsWith("@") ? getPipeline(name.substring(1)) : getOptimalTransducer(name);
+        return c.source == current ? c.cache : null;
+    }
+
+    /**
+     * Evaluates every line of input file in parallel and writes results to output file.
+     * See {@link ShardedEvaluator}. Both graph and pipeline evaluation is thread safe, so all
+     * worker threads share the same transducer.
+     *
+     * @param name if it starts with @ then it refers to pipeline, otherwise it's transducer
+     * @return null if there is no such transducer or pipeline
+     */
+    public ShardedEvaluator.Stats runFile(String name, File input, File output, ShardedEvaluator evaluator) throws IOException, InterruptedException {
+        if (name.startsWith("@")) {
+            final Pipeline<Pos, Integer, E, P, N, G> p = getPipeline(name.substring(1));
+            if (p == null) return null;
+            return evaluator.evaluate(input, output, () -> in -> specs.evaluate(p, in));
+        } else {
+            final RangedGraph<Pos, Integer, E, P> g = getOptimalTransducer(name);
+            if (g == null) return null;
+            return evaluator.evaluate(input, output, () -> in -> specs.evaluate(g, in));
+        }
+    }
+
+    /**
+     * Same as {@link Solomonoff#runFile} but uses tabular evaluation. Each worker thread
+     * allocates its own stateToIndex and outputBuffer.
+     */
+    public ShardedEvaluator.Stats runTabularFile(String name, File input, File output, ShardedEvaluator evaluator, int bufferSize) throws IOException, InterruptedException {
+        if (name.startsWith("@")) {
+            final Pipeline<Pos, Integer, E, P, N, G> p = getPipeline(name.substring(1));
+            if (p == null) return null;
+            final int maxStates = Pipeline.foldAutomata(p, 0, (max, aut) -> Math.max(max, aut.g.size()));
+            return evaluator.evaluate(input, output, () -> {
+                final byte[] stateToIndex = new byte[maxStates];
+                final int[] outputBuffer = new int[bufferSize];
+                return in -> specs.evaluateTabular(p, in, stateToIndex, outputBuffer);
+            });
+        } else {
+            final RangedGraph<Pos, Integer, E, P> g = getOptimalTransducer(name);
+            if (g == null) return null;
+            return evaluator.evaluate(input, output, () -> {
+                final byte[] stateToIndex = new byte[g.size()];
+                final int[] outputBuffer = new int[bufferSize];
+                return in -> specs.evaluateTabularReturnRef(g, stateToIndex, outputBuffer, g.initial, in);
+            });
+        }
     }
 
     public Var<N, G> getTransducer(String id) {
@@ -164,6 +319,84 @@ public class Solomonoff<N, G extends IntermediateGraph<Pos, E, P, N>> {
         return v == null ? null : specs.getOptimised(v);
     }
 
+    /**
+     * Measures memory occupied by outputs of optimised transducer (see {@link OutputArena}).
+     *
+     * @return null if there is no such transducer
+     */
+    public OutputArena.Report measureOutputs(String name) throws CompilationError {
+        final RangedGraph<Pos, Integer, E, P> g = getOptimisedTransducer(name);
+        return g == null ? null : OutputArena.measure(g);
+    }
+
+    /**
+     * Estimates memory retained by optimised transducer (see {@link MemoryFootprint}). If intermediate is true,
+     * the intermediate graph of variable is measured instead.
+     *
+     * @return null if there is no such transducer
+     */
+    public MemoryFootprint memoryFootprint(String name, boolean intermediate) throws CompilationError {
+        final Var<N, G> v = specs.borrowVariable(name);
+        if (v == null) return null;
+        return intermediate ? MemoryFootprint.of(v.graph) : MemoryFootprint.of(specs.getOptimised(v));
+    }
+
+    /**
+     * Estimates memory retained by all automata of pipeline (see {@link MemoryFootprint}).
+     *
+     * @return null if there is no such pipeline
+     */
+    public MemoryFootprint pipelineMemoryFootprint(String name) {
+        final Pipeline<Pos, Integer, E, P, N, G> p = getPipeline(name);
+        return p == null ? null : MemoryFootprint.of(p);
+    }
+
+    /**
+     * Lists fusions applied to pipeline when it was registered (see {@link PipelineFusion}).
+     *
+     * @param name should not contain the @ sign
+     * @return empty if fusion is disabled, nothing could be fused or there is no such pipeline
+     */
+    public List<PipelineFusion.Fusion> appliedFusions(String name) {
+        return specs.appliedFusions(name);
+    }
+
+    /**
+     * Summarises statistics collected by {@link Metrics.Recorder}. Transducers are listed by their variable names
+     * and automata of pipelines are listed by the name of pipeline and their position in source code.
+     *
+     * @return null if metrics are disabled or are not recorded in memory
+     */
+    public String metricsReport() {
+        if (!(specs.metrics instanceof Metrics.Recorder)) return null;
+        final Metrics.Recorder recorder = (Metrics.Recorder) specs.metrics;
+        final StringBuilder sb = new StringBuilder();
+        for (Metrics.Phase phase : Metrics.Phase.values()) {
+            sb.append(phase).append(": ").append(recorder.phaseCount(phase)).append(" times, total ")
+                    .append(recorder.phaseNanos(phase) / 1000000).append(" ms\n");
+        }
+        sb.append("ambiguity resolutions: ").append(recorder.ambiguityResolutions.sum()).append('\n');
+        for (Var<N, G> var : specs.variableAssignments.values()) {
+            final RangedGraph<Pos, Integer, E, P> g = var.getOptimal();
+            if (g == null) continue;
+            final Metrics.TransducerStats stats = recorder.statsIfPresent(g);
+            if (stats != null) sb.append(var.name).append(": ").append(stats).append('\n');
+        }
+        for (Map.Entry<String, Pipeline<Pos, Integer, E, P, N, G>> pipeline : specs.pipelines.entrySet()) {
+            Pipeline.foldAutomata(pipeline.getValue(), sb, (str, aut) -> {
+                final Metrics.TransducerStats stats = recorder.statsIfPresent(aut.g);
+                if (stats != null)
+                    str.append('@').append(pipeline.getKey()).append(" (").append(aut.meta).append("): ").append(stats).append('\n');
+                return str;
+            });
+        }
+        for (String name : resultCaches.keySet()) {
+            final ResultCache<?> cache = getResultCache(name);
+            if (cache != null) sb.append(name).append(" cache: ").append(cache).append('\n');
+        }
+        return sb.toString();
+    }
+
     /**
      * @param name should not contain the @ sign as it is already implied by this
      *             methods
@@ -0,0 +1,191 @@
+package net.alagris.lib;
+
+import net.alagris.core.*;
+import net.alagris.core.LexUnicodeSpecification.E;
+import net.alagris.core.LexUnicodeSpecification.P;
+import net.alagris.core.LexUnicodeSpecification.Var;
+import net.alagris.core.Specification.RangedGraph;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Registry of compiled transducers and pipelines that can be safely read by many threads while
+ * new versions are being published. Every version is an immutable {@link Snapshot}. A grammar is compiled
+ * (possibly in background) by a separate {@link Solomonoff} instance and then all of its transducers and
+ * pipelines are published at once with a single atomic swap. Readers that obtained the previous snapshot
+ * keep using it until they finish, so there is never any moment when only some of the rules are updated.
+ * Reading the current snapshot costs a single volatile read and takes no locks.
+ * <br>
+ * Every grammar gets a sequence number when it is submitted for publication. Grammars may finish compiling
+ * out of order, but a grammar is never published over another one that was submitted later.
+ */
+public class TransducerRegistry<N, G extends IntermediateGraph<Pos, E, P, N>> {
+
+    public static class Snapshot<N, G extends IntermediateGraph<Pos, E, P, N>> {
+        /**
+         * Incremented with every publication. The initial empty snapshot has version 0.
+         */
+        public final long version;
+        /**
+         * Sequence number of the submission that produced this snapshot
+         */
+        private final long sequence;
+        private final LexUnicodeSpecification<N, G> specs;
+        private final Map<String, RangedGraph<Pos, Integer, E, P>> transducers;
+        private final Map<String, Pipeline<Pos, Integer, E, P, N, G>> pipelines;
+        private final int resultCacheSize;
+        /**
+         * Caches belong to a snapshot, so publishing a new version invalidates them all at once
+         */
+        private final ConcurrentHashMap<String, ResultCache<?>> resultCaches = new ConcurrentHashMap<>();
+
+        private Snapshot(long version, long sequence, LexUnicodeSpecification<N, G> specs,
+                         Map<String, RangedGraph<Pos, Integer, E, P>> transducers,
+                         Map<String, Pipeline<Pos, Integer, E, P, N, G>> pipelines,
+                         int resultCacheSize) {
+            this.version = version;
+            this.sequence = sequence;
+            this.specs = specs;
+            this.transducers = transducers;
+            this.pipelines = pipelines;
+            this.resultCacheSize = resultCacheSize;
+        }
+
+        /**
+         * @return null if there is no such transducer
+         */
+        public RangedGraph<Pos, Integer, E, P> getTransducer(String name) {
+            return transducers.get(name);
+        }
+
+        /**
+         * @param name should not contain the @ sign
+         * @return null if there is no such pipeline
+         */
+        public Pipeline<Pos, Integer, E, P, N, G> getPipeline(String name) {
+            return pipelines.get(name);
+        }
+
+        public Set<String> transducerNames() {
+            return transducers.keySet();
+        }
+
+        public Set<String> pipelineNames() {
+            return pipelines.keySet();
+        }
+
+        /**
+         * @return null if there is no such transducer or the input is rejected
+         */
+        public IntSeq run(String name, IntSeq input) {
+            final RangedGraph<Pos, Integer, E, P> g = transducers.get(name);
+            if (g == null) return null;
+            if (resultCacheSize <= 0) return specs.evaluate(g, input);
+            return this.<IntSeq>resultCache(name).get(input, in -> specs.evaluate(g, in));
+        }
+
+        /**
+         * @return null if there is no such pipeline or the input is rejected
+         */
+        public Seq<Integer> runPipeline(String name, IntSeq input) {
+            final Pipeline<Pos, Integer, E, P, N, G> p = pipelines.get(name);
+            if (p == null) return null;
+            if (resultCacheSize <= 0) return specs.evaluate(p, input);
+            return this.<Seq<Integer>>resultCache('@' + name).get(input, in -> specs.evaluate(p, in));
+        }
+
+        @SuppressWarnings("unchecked")
+        private <V> ResultCache<V> resultCache(String key) {
+            final ResultCache<?> c = resultCaches.get(key);
+            if (c != null) return (ResultCache<V>) c;
+            return (ResultCache<V>) resultCaches.computeIfAbsent(key, k -> new ResultCache<V>(resultCacheSize));
+        }
+
+        /**
+         * @param name name of transducer or @ followed by name of pipeline
+         * @return null if caching is disabled or nothing was evaluated yet
+         */
+        public ResultCache<?> getResultCache(String name) {
+            return resultCaches.get(name);
+        }
+
+        /**
+         * The specification that compiled this snapshot. It must not be used for parsing anymore.
+         */
+        public LexUnicodeSpecification<N, G> specification() {
+            return specs;
+        }
+    }
+
+    private final AtomicReference<Snapshot<N, G>> current;
+    private final AtomicLong submissions = new AtomicLong();
+    private final int resultCacheSize;
+
+    public TransducerRegistry() {
+        this(0);
+    }
+
+    /**
+     * @param resultCacheSize if positive, every transducer and pipeline of each snapshot gets its
+     *                        own {@link ResultCache} of this capacity
+     */
+    public TransducerRegistry(int resultCacheSize) {
+        this.resultCacheSize = resultCacheSize;
+        current = new AtomicReference<>(new Snapshot<>(0, 0, null, Collections.emptyMap(), Collections.emptyMap(), resultCacheSize));
+    }
+
+    /**
+     * The snapshot should be obtained once per request (or batch of requests) and reused,
+     * so that all evaluations of the request see the same version of rules.
+     */
+    public Snapshot<N, G> current() {
+        return current.get();
+    }
+
+    /**
+     * Optimises all variables of the compiler and publishes them together with all its pipelines.
+     * The compiler must not be used anymore after this call, because its transducers are now shared
+     * with concurrent readers.
+     *
+     * @return the new current snapshot or, if a grammar submitted later has already been published in the meantime,
+     * that newer snapshot (in which case nothing is published)
+     */
+    public Snapshot<N, G> publish(Solomonoff<N, G> compiled) throws CompilationError {
+        return publish(compiled, submissions.incrementAndGet());
+    }
+
+    private Snapshot<N, G> publish(Solomonoff<N, G> compiled, long sequence) throws CompilationError {
+        final Snapshot<N, G> newer = current.get();
+        if (newer.sequence > sequence) return newer;
+        final HashMap<String, RangedGraph<Pos, Integer, E, P>> transducers = new HashMap<>(compiled.specs.variableAssignments.size());
+        for (Var<N, G> var : compiled.specs.variableAssignments.values()) {
+            transducers.put(var.name, compiled.specs.getOptimised(var));
+        }
+        final Map<String, RangedGraph<Pos, Integer, E, P>> t = Collections.unmodifiableMap(transducers);
+        final Map<String, Pipeline<Pos, Integer, E, P, N, G>> p = Collections.unmodifiableMap(new HashMap<>(compiled.specs.pipelines));
+        return current.updateAndGet(prev -> prev.sequence > sequence ? prev
+                : new Snapshot<>(prev.version + 1, sequence, compiled.specs, t, p, resultCacheSize));
+    }
+
+    /**
+     * Compiles a grammar on the given executor and publishes it once compilation succeeds. If compilation
+     * fails, the current snapshot stays untouched and the returned future completes exceptionally.
+     * The sequence number is taken by this call, so if another grammar is submitted afterwards and its compilation
+     * finishes first, this grammar is never published and the future completes with the newer snapshot.
+     *
+     * @param compile produces fully parsed compiler. It should create a fresh {@link Solomonoff} instance.
+     */
+    public CompletableFuture<Snapshot<N, G>> compileAndPublish(Callable<Solomonoff<N, G>> compile, Executor executor) {
+        final long sequence = submissions.incrementAndGet();
+        return CompletableFuture.supplyAsync(() -> {
+            try {
+                return publish(compile.call(), sequence);
+            } catch (Exception e) {
+                throw new CompletionException(e);
+            }
+        }, executor);
+    }
+}
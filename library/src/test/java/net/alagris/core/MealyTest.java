@@ -1,14 +1,21 @@
 package net.alagris.core;
 
+import net.alagris.core.learn.BinaryDataset;
+import net.alagris.core.learn.LazyDataset;
+import net.alagris.core.learn.LearningFramework;
 import net.alagris.core.learn.OSTIA;
+import net.alagris.core.learn.OSTIAArbitraryOrder;
+import net.alagris.core.learn.OSTIACompress;
 import net.alagris.core.learn.OSTIAState;
 import net.alagris.lib.Config;
 import net.alagris.lib.ArrayBacked;
 import net.alagris.lib.HashMapBacked;
 import net.alagris.lib.Solomonoff;
+import net.alagris.lib.TransducerRegistry;
 import org.antlr.v4.runtime.CharStreams;
 import org.checkerframework.checker.nullness.qual.Nullable;
 import org.junit.ComparisonFailure;
+import org.github.jamm.MemoryMeter;
 import org.junit.jupiter.api.Test;
 
 import net.alagris.core.LexUnicodeSpecification.E;
@@ -21,7 +28,20 @@ import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.StringReader;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
 import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import javax.tools.ToolProvider;
 
 public class MealyTest {
 
@@ -1468,4 +1488,980 @@ public class MealyTest {
 
         }
     }
+
+    /**
+     * Random inputs of length below maxLength over the alphabet of consecutive symbols starting at first.
+     * Inputs are generated from a fixed seed, so failures are reproducible.
+     */
+    static List<IntSeq> randomInputs(long seed, int count, int maxLength, char first, int alphabetSize) {
+        final Random rnd = new Random(seed);
+        final ArrayList<IntSeq> inputs = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            final int[] in = new int[rnd.nextInt(maxLength)];
+            for (int j = 0; j < in.length; j++) in[j] = first + rnd.nextInt(alphabetSize);
+            inputs.add(new IntSeq(in));
+        }
+        return inputs;
+    }
+
+    @Test
+    void testRegistry() throws Exception {
+        final TransducerRegistry<ArrayIntermediateGraph.N<Pos, E>, ArrayIntermediateGraph<Pos, E, P>> registry = new TransducerRegistry<>();
+        assertEquals(0, registry.current().version);
+        final ArrayBacked v1 = new ArrayBacked(Config.config());
+        v1.parse(CharStreams.fromString("f = 'a':'1' @p = 'b':'2'"));
+        registry.publish(v1);
+        final TransducerRegistry.Snapshot<ArrayIntermediateGraph.N<Pos, E>, ArrayIntermediateGraph<Pos, E, P>> old = registry.current();
+        final TransducerRegistry.Snapshot<ArrayIntermediateGraph.N<Pos, E>, ArrayIntermediateGraph<Pos, E, P>> next = registry.compileAndPublish(() -> {
+            final ArrayBacked v2 = new ArrayBacked(Config.config());
+            v2.parse(CharStreams.fromString("f = 'a':'3' @p = 'b':'4'"));
+            return v2;
+        }, Runnable::run).get();
+        assertEquals(1, old.version);
+        assertEquals(2, next.version);
+        assertSame(next, registry.current());
+        assertEquals("1", IntSeq.toUnicodeString(old.run("f", new IntSeq("a"))));
+        assertEquals("2", IntSeq.toUnicodeString(old.runPipeline("p", new IntSeq("b"))));
+        assertEquals("3", IntSeq.toUnicodeString(next.run("f", new IntSeq("a"))));
+        assertEquals("4", IntSeq.toUnicodeString(next.runPipeline("p", new IntSeq("b"))));
+        assertNull(next.run("g", new IntSeq("a")));
+
+        //the older grammar finishes compiling last and must not replace the newer one
+        final ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            final CountDownLatch newerPublished = new CountDownLatch(1);
+            final CompletableFuture<TransducerRegistry.Snapshot<ArrayIntermediateGraph.N<Pos, E>, ArrayIntermediateGraph<Pos, E, P>>> older = registry.compileAndPublish(() -> {
+                final ArrayBacked v3 = new ArrayBacked(Config.config());
+                v3.parse(CharStreams.fromString("f = 'a':'5'"));
+                assertTrue(newerPublished.await(30, TimeUnit.SECONDS));
+                return v3;
+            }, executor);
+            final TransducerRegistry.Snapshot<ArrayIntermediateGraph.N<Pos, E>, ArrayIntermediateGraph<Pos, E, P>> newer = registry.compileAndPublish(() -> {
+                final ArrayBacked v4 = new ArrayBacked(Config.config());
+                v4.parse(CharStreams.fromString("f = 'a':'6'"));
+                return v4;
+            }, executor).get();
+            newerPublished.countDown();
+            assertSame(newer, older.get());
+            assertSame(newer, registry.current());
+            assertEquals(3, newer.version);
+            assertEquals("6", IntSeq.toUnicodeString(registry.current().run("f", new IntSeq("a"))));
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    void testResultCache() throws Exception {
+        final ArrayBacked tr = new ArrayBacked(Config.config().setResultCacheSize(2));
+        tr.parse(CharStreams.fromString("f = 'a':'1' | 'b':'2' | 'c':'3' @p = 'a':'x'"));
+        assertEquals("1", tr.run("f", "a"));
+        assertEquals("1", tr.run("f", "a"));
+        assertNull(tr.run("f", new IntSeq("d")));
+        assertNull(tr.run("f", new IntSeq("d")));
+        assertEquals("2", tr.run("f", "b"));
+        assertEquals("3", tr.run("f", "c"));
+        assertEquals("x", tr.runPipeline("p", "a"));
+        assertEquals("x", tr.runPipeline("p", "a"));
+        final ResultCache<?> f = tr.getResultCache("f");
+        assertEquals(2, f.hits());
+        assertEquals(4, f.misses());
+        assertTrue(f.evictions() > 0);
+        assertEquals(1, tr.getResultCache("@p").hits());
+        tr.specs.removeVariable("f");
+        tr.parse(CharStreams.fromString("f = 'a':'9'"));
+        assertNull(tr.getResultCache("f"));
+        assertEquals("9", tr.run("f", "a"));
+    }
+
+    @Test
+    void testBatch() throws Exception {
+        final ArrayBacked tr = new ArrayBacked(Config.config());
+        tr.parse(CharStreams.fromString("f = ('a':'x' | 'a' 'b':'y' 2 | 'b')* ('c':'z')?"));
+        final String[] inputs = {"ab", "", "abab", "aab", "d", "abc", "ab", "ba", "abd", "aabc", "a"};
+        final ArrayList<IntSeq> seqs = new ArrayList<>();
+        for (String in : inputs) seqs.add(new IntSeq(in));
+        final IntSeq[] outputs = tr.runBatch("f", seqs);
+        assertEquals(inputs.length, outputs.length);
+        for (int i = 0; i < inputs.length; i++) {
+            assertEquals(inputs[i], tr.run("f", seqs.get(i)), outputs[i]);
+        }
+    }
+
+    @Test
+    void testReplaceAll() throws Exception {
+        final ArrayBacked tr = new ArrayBacked(Config.config());
+        tr.parse(CharStreams.fromString("f = 'ab':'X' | 'abc':'Y' | 'bcd':'Z' | 'c':'C' | 'cc' 1 | 'cc':'W' 2"));
+        assertEquals("", tr.replaceAll("f", ""));
+        assertEquals("xyz", tr.replaceAll("f", "xyz"));
+        assertEquals("X", tr.replaceAll("f", "ab"));
+        assertEquals("Yd", tr.replaceAll("f", "abcd"));
+        assertEquals("xZ", tr.replaceAll("f", "xbcd"));
+        assertEquals("XX-C", tr.replaceAll("f", "abab-c"));
+        assertEquals("WC", tr.replaceAll("f", "ccc"));
+        assertEquals("aX", tr.replaceAll("f", "aab"));
+        assertEquals("\uD83D\uDE00X\uD83D\uDE00", tr.replaceAll("f", "\uD83D\uDE00ab\uD83D\uDE00"));
+        final StringBuilder longText = new StringBuilder();
+        final StringBuilder expected = new StringBuilder();
+        for (int i = 0; i < 10000; i++) {
+            longText.append("zabcab");
+            expected.append("zYX");
+        }
+        final StringBuilder out = new StringBuilder();
+        assertEquals(20000, tr.replaceAll("f", new StringReader(longText.toString()), out));
+        assertEquals(expected.toString(), out.toString());
+    }
+
+    @Test
+    void testBeam() throws Exception {
+        final ArrayBacked tr = new ArrayBacked(Config.config().setBeamWidth(1).setBeamVerify(true));
+        tr.parse(CharStreams.fromString("f = 3 'a':'1' ('b':'x')* 'c' | 1 'a':'2' ('b':'y')* 'd'"));
+        final BeamResult kept = tr.runBeam("f", new IntSeq("abbc"));
+        assertEquals(BeamResult.Status.PRUNED, kept.status);
+        assertEquals("1xx", IntSeq.toUnicodeString(kept.output));
+        assertFalse(kept.changedByPruning);
+        assertEquals(2, kept.maxWidth);
+        final BeamResult lost = tr.runBeam("f", new IntSeq("abbd"));
+        assertEquals(BeamResult.Status.PRUNED, lost.status);
+        assertNull(lost.output);
+        assertTrue(lost.changedByPruning);
+        final BeamResult exact = tr.specs.evaluateBeam(tr.getOptimalTransducer("f"), new IntSeq("abbd"), 0, 0, 0, true);
+        assertEquals(BeamResult.Status.EXACT, exact.status);
+        assertEquals("2yy", IntSeq.toUnicodeString(exact.output));
+        final BeamResult aborted = tr.specs.evaluateBeam(tr.getOptimalTransducer("f"), new IntSeq("abbc"), 0, 0, 3, false);
+        assertEquals(BeamResult.Status.OUT_OF_BUDGET, aborted.status);
+        assertEquals(2, aborted.consumed);
+        assertTrue(IntSeq.toUnicodeString(aborted.output).startsWith("1"));
+    }
+
+    @Test
+    void testBimachine() throws Exception {
+        final ArrayBacked tr = new ArrayBacked(Config.config());
+        tr.parse(CharStreams.fromString("f = ([a-c]:'x' | 'a':'y' 1 | 'b' [a-c]:<0> 2)* ('c':'z' 3 | 'a' 1 | 'c' 'c':'w' 4)"));
+        final Bimachine b = tr.compileBimachine("f", 1000);
+        assertNotNull(b);
+        for (IntSeq input : randomInputs(7, 2000, 12, 'a', 4)) {
+            assertEquals(IntSeq.toUnicodeString(input), tr.run("f", input), b.evaluate(input));
+        }
+        assertTrue(b.size() > 1 && b.rightSize() > 1);
+        assertNull(tr.compileBimachine("f", 1));
+        //outputs depend on symbols arbitrarily far to the right, so no sequential transducer could do that
+        tr.parse(CharStreams.fromString("g1 = ('a':'1' 1 | 'a' 'b':'2' 2 | [a-c]:<0>)* 'c':'!' \n" +
+                "g2 = (. 'a':'A' 3 | [b-d]:<0> . 1 | 'd':'D')* ('b':'E' | 'cc':'F' 2) \n" +
+                "g3 = 'a'* 'b':'x' 'a'* 'c':'y' | ('a':'z')* 'b' ('a':'w')* 'd':'v' 1 \n" +
+                "g4 = ('a':'x' 'b'* 'c' | 'a' ('b':'y')* 'd')*"));
+        for (String name : new String[]{"g1", "g2", "g3", "g4"}) {
+            final Bimachine g = tr.compileBimachine(name, 1000);
+            int accepted = 0;
+            for (IntSeq input : randomInputs(name.hashCode(), 3000, 12, 'a', 4)) {
+                final IntSeq expected = tr.run(name, input);
+                assertEquals(name + " " + IntSeq.toUnicodeString(input), expected, g.evaluate(input));
+                if (expected != null) accepted++;
+            }
+            assertTrue(name, accepted > 0);
+        }
+        //long inputs built of accepted pieces, some of them spoiled in the middle
+        final ExecutorService chunkPool = Executors.newFixedThreadPool(4);
+        try {
+            for (String name : new String[]{"f", "g1", "g4"}) {
+                final Bimachine g = tr.compileBimachine(name, 1000);
+                final List<IntSeq> pieces = new ArrayList<>();
+                for (IntSeq piece : randomInputs(name.hashCode() + 1, 3000, 12, 'a', 4)) {
+                    if (tr.run(name, piece) != null && piece.size() > 0) pieces.add(piece);
+                }
+                final Random pick = new Random(name.hashCode());
+                int accepted = 0;
+                for (int i = 0; i < 12; i++) {
+                    final ArrayList<Integer> in = new ArrayList<>();
+                    while (in.size() < 6000) {
+                        for (int symbol : pieces.get(pick.nextInt(pieces.size()))) in.add(symbol);
+                    }
+                    if (i % 3 == 0) in.set(pick.nextInt(in.size()), (int) 'd');
+                    final IntSeq input = new IntSeq(in.stream().mapToInt(x -> x).toArray());
+                    final IntSeq expected = tr.run(name, input);
+                    assertEquals(name + " " + i, expected, g.evaluate(input));
+                    assertEquals(name + " " + i, expected, g.evaluateParallel(input, 2 + i % 4, chunkPool));
+                    if (expected != null) accepted++;
+                }
+                assertTrue(name, accepted >= 8);
+            }
+        } finally {
+            chunkPool.shutdown();
+        }
+        final Random rnd = new Random(7);
+        final ExecutorService pool = Executors.newFixedThreadPool(3);
+        try {
+            for (int i = 0; i < 20; i++) {
+                final int[] in = new int[5000 + rnd.nextInt(5000)];
+                for (int j = 0; j < in.length; j++) in[j] = 'a' + rnd.nextInt(i % 2 == 0 ? 3 : 4);
+                in[in.length - 1] = 'c';
+                final IntSeq input = new IntSeq(in);
+                final IntSeq expected = tr.run("f", input);
+                assertEquals(expected, b.evaluate(input));
+                assertEquals(expected, b.evaluateParallel(input, 1 + i % 5, pool));
+            }
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    @Test
+    void testImportATT() throws Exception {
+        final ArrayBacked tr = new ArrayBacked(Config.config().setImportThreads(4));
+        final Random rnd = new Random(11);
+        final String[] outputs = {"", "x", "yy", "żółw", "𝕄"};
+        final ArrayList<String> lines = new ArrayList<>();
+        final int states = 4000;
+        for (int state = 0; state < states; state++) {
+            for (char symbol = 'a'; symbol <= 'd'; symbol++) {
+                if (rnd.nextInt(5) == 0) continue;
+                final String target = rnd.nextInt(50) == 0 ? "fin" : String.valueOf(rnd.nextInt(states));
+                lines.add(state + " " + target + " " + symbol + " " + rnd.nextInt(3) + " " + outputs[rnd.nextInt(outputs.length)]);
+            }
+            if (rnd.nextInt(3) == 0) lines.add(state + "   " + rnd.nextInt(3) + " " + outputs[rnd.nextInt(outputs.length)]);
+            if (state % 100 == 0) lines.add("# comment");
+        }
+        lines.add("fin   0 end");
+        final File file = File.createTempFile("import", ".att");
+        file.deleteOnExit();
+        Files.write(file.toPath(), lines, StandardCharsets.UTF_8);
+        final Specification.RangedGraph<Pos, Integer, E, P> expected = tr.specs.optimiseGraph(tr.specs.importATT(file.getPath(), lines.iterator(), ' '));
+        final Specification.RangedGraph<Pos, Integer, E, P> imported = tr.specs.optimiseGraph(tr.specs.importATT(file, ' '));
+        final Specification.RangedGraph<Pos, Integer, E, P> direct = tr.specs.importOptimisedATT(file, ' ');
+        for (IntSeq input : randomInputs(11, 2000, 20, 'a', 4)) {
+            final Seq<Integer> out = tr.specs.evaluate(expected, input);
+            assertEquals(IntSeq.toUnicodeString(input), out, tr.specs.evaluate(imported, input));
+            assertEquals(IntSeq.toUnicodeString(input), out, tr.specs.evaluate(direct, input));
+        }
+        //non-ASCII separators fall back to reading line by line in both variants
+        final File arrows = File.createTempFile("import", ".att");
+        arrows.deleteOnExit();
+        final ArrayList<String> arrowLines = new ArrayList<>();
+        for (String line : lines) arrowLines.add(line.replace(' ', '→'));
+        Files.write(arrows.toPath(), arrowLines, StandardCharsets.UTF_8);
+        final Specification.RangedGraph<Pos, Integer, E, P> arrowImported = tr.specs.optimiseGraph(tr.specs.importATT(arrows, '→'));
+        final Specification.RangedGraph<Pos, Integer, E, P> arrowDirect = tr.specs.importOptimisedATT(arrows, '→');
+        for (IntSeq input : randomInputs(13, 500, 20, 'a', 4)) {
+            final Seq<Integer> out = tr.specs.evaluate(expected, input);
+            assertEquals(IntSeq.toUnicodeString(input), out, tr.specs.evaluate(arrowImported, input));
+            assertEquals(IntSeq.toUnicodeString(input), out, tr.specs.evaluate(arrowDirect, input));
+        }
+        final ATTImporter importer = ATTImporter.parse(file, ' ', 4);
+        assertEquals(5, importer.outputCount());
+        Files.write(file.toPath(), Arrays.asList("0 1 a 0 x", "1 2 b q"), StandardCharsets.UTF_8);
+        try {
+            ATTImporter.parse(file, ' ', 1);
+            fail();
+        } catch (CompilationError.ParseException e) {
+            assertTrue(e.getMessage(), e.getMessage().contains("'q' at row 2 is not a valid weight!"));
+        }
+    }
+
+    @Test
+    void testOpenFst() throws Exception {
+        final ArrayBacked tr = new ArrayBacked(Config.config());
+        tr.parse(CharStreams.fromString("f = ('a':'xyz' 2 | [b-d]:<0> 1 | 'b':'q' 3)* ('c':'end' | [a-b] :'fin') 1"));
+        final Specification.RangedGraph<Pos, Integer, E, P> original = tr.getOptimalTransducer("f");
+        for (boolean constFst : new boolean[]{false, true}) {
+            final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            tr.specs.exportOpenFst(original, bytes, constFst);
+            final Specification.RangedGraph<Pos, Integer, E, P> imported = tr.specs.optimiseGraph(
+                    tr.specs.importOpenFst(Pos.NONE, new ByteArrayInputStream(bytes.toByteArray())));
+            for (IntSeq input : randomInputs(5, 2000, 10, 'a', 5)) {
+                assertEquals(IntSeq.toUnicodeString(input), tr.specs.evaluate(original, input), tr.specs.evaluate(imported, input));
+            }
+            assertNull(tr.specs.evaluate(imported, IntSeq.Epsilon));
+            assertEquals(new IntSeq("xyzend"), tr.specs.evaluate(imported, new IntSeq("ac")));
+        }
+        //binaries of openfst.txt (without symbol tables) that were not produced by the exporter. fstcompile was not
+        //available, so they were written by hand following the layout of vector and const FSTs (the last one with
+        //16-byte alignment, as with --fst_align). Compatibility with binaries of real OpenFst remains unverified.
+        for (String fixture : new String[]{"openfst_vector.fst", "openfst_const.fst", "openfst_const_aligned.fst"}) {
+            final Specification.RangedGraph<Pos, Integer, E, P> compiled;
+            try (InputStream in = Files.newInputStream(new File("src/test/resources/f/" + fixture).toPath())) {
+                compiled = tr.specs.optimiseGraph(tr.specs.importOpenFst(Pos.NONE, in));
+            }
+            assertNull(fixture, tr.specs.evaluate(compiled, IntSeq.Epsilon));
+            assertNull(fixture, tr.specs.evaluate(compiled, new IntSeq("b")));
+            assertNull(fixture, tr.specs.evaluate(compiled, new IntSeq("aa")));
+            //cheaper final state wins and input epsilon arc is removed
+            assertEquals(fixture, new IntSeq("xz"), tr.specs.evaluate(compiled, new IntSeq("a")));
+            assertEquals(fixture, new IntSeq("xyz"), tr.specs.evaluate(compiled, new IntSeq("ab")));
+            assertEquals(fixture, new IntSeq("xyyyz"), tr.specs.evaluate(compiled, new IntSeq("abbb")));
+        }
+    }
+
+    @Test
+    void testOutputArena() throws Exception {
+        final String source = "f = ('a':'xyz' 2 | 'b':'xyz' 1 | 'c':'q' 3 | 'd':'xyz')* ('e':'xyz' | 'f':'q') 1";
+        final ArrayBacked plain = new ArrayBacked(Config.config().setInternOutputs(false));
+        plain.parse(CharStreams.fromString(source));
+        final ArrayBacked interned = new ArrayBacked(Config.config());
+        interned.parse(CharStreams.fromString(source));
+        final Specification.RangedGraph<Pos, Integer, E, P> p = plain.getOptimisedTransducer("f");
+        final Specification.RangedGraph<Pos, Integer, E, P> i = interned.getOptimisedTransducer("f");
+        for (IntSeq input : randomInputs(7, 1000, 8, 'a', 6)) {
+            assertEquals(IntSeq.toUnicodeString(input), plain.specs.evaluate(p, input), interned.specs.evaluate(i, input));
+        }
+        final OutputArena.Report before = OutputArena.measure(p);
+        final OutputArena.Report after = interned.measureOutputs("f");
+        assertEquals(before.outputs, after.outputs);
+        assertTrue(before + " " + after, after.instances < before.instances);
+        assertTrue(before + " " + after, after.bytes < before.bytes);
+        final IntSeq xyz = outputInstance(i, new IntSeq("xyz"));
+        assertNotNull(xyz);
+        for (E e : allEdges(i)) if (e.getOut().equals(xyz)) assertSame(xyz, e.getOut());
+        //arenas are scoped per graph, so nothing is retained once the graph is gone
+        interned.parse(CharStreams.fromString(source.replace("f =", "g =")));
+        final IntSeq other = outputInstance(interned.getOptimisedTransducer("g"), xyz);
+        assertEquals(xyz, other);
+        assertNotSame(xyz, other);
+        //small graphs do not pin a whole block
+        final OutputArena arena = new OutputArena();
+        assertSame(arena.intern(new IntSeq("xyz")), arena.intern(new IntSeq("xyz")));
+        assertTrue(arena.allocatedBytes() < 4 * OutputArena.DEFAULT_BLOCK_SIZE / 16);
+    }
+
+    private static List<E> allEdges(Specification.RangedGraph<Pos, Integer, E, P> g) {
+        final List<E> edges = new ArrayList<>();
+        for (List<Specification.Range<Integer, List<Specification.RangedGraph.Trans<E>>>> ranges : g.graph) {
+            for (Specification.Range<Integer, List<Specification.RangedGraph.Trans<E>>> range : ranges) {
+                for (Specification.RangedGraph.Trans<E> tr : range.edges()) edges.add(tr.edge);
+            }
+        }
+        return edges;
+    }
+
+    private static IntSeq outputInstance(Specification.RangedGraph<Pos, Integer, E, P> g, IntSeq out) {
+        for (E e : allEdges(g)) if (e.getOut().equals(out)) return e.getOut();
+        return null;
+    }
+
+    @Test
+    void testReleaseMode() throws Exception {
+        final String source = "f = ('a':'x' | 'b' 'c':'yy' 2 | [d-f] :'z')* 'g' 1\n" +
+                "h = !!f\n" +
+                "@p = runtime assert [a-g]* ; ('a':'x' | 'b':'y' | [c-h])* ; ('x':'1' | 'y':'2' | [c-h])*";
+        final ArrayBacked dev = new ArrayBacked(Config.config());
+        dev.parse(CharStreams.fromString(source));
+        final ArrayBacked rel = new ArrayBacked(Config.config().setReleaseMode(true));
+        rel.parse(CharStreams.fromString(source));
+        final Var<?, ?> f = rel.getTransducer("f");
+        final Specification.RangedGraph<Pos, Integer, E, P> g = rel.getOptimisedTransducer("f");
+        for (Pos state : g.indexToState) assertSame(f.pos, state);
+        //the graph shared by h keeps the positions of f
+        final Var<ArrayIntermediateGraph.N<Pos, E>, ArrayIntermediateGraph<Pos, E, P>> h = rel.getTransducer("h");
+        assertSame(f.graph, h.graph);
+        assertNotSame(f.pos, h.pos);
+        for (ArrayIntermediateGraph.N<Pos, E> vertex : h.graph.collectVertexSet(new HashSet<>(), n -> null, (n, e) -> null)) {
+            assertSame(f.pos, h.graph.getState(vertex));
+        }
+        Pipeline.foldAutomata(rel.getPipeline("p"), null, (x, aut) -> {
+            for (Pos state : aut.g.indexToState) assertSame(aut.meta, state);
+            return x;
+        });
+        final int assertions = Pipeline.foldAssertions(rel.getPipeline("p"), 0, (x, assertion) -> {
+            for (Pos state : assertion.g.indexToState) assertSame(assertion.meta, state);
+            return x + 1;
+        });
+        assertEquals(1, assertions);
+        for (IntSeq seq : randomInputs(11, 1000, 8, 'a', 8)) {
+            final String input = IntSeq.toUnicodeString(seq);
+            assertEquals(input, dev.run("f", input), rel.run("f", input));
+            assertEquals(input, dev.run("h", input), rel.run("h", input));
+            assertEquals(input, dev.runPipeline("p", input), rel.runPipeline("p", input));
+        }
+    }
+
+    @Test
+    void testGeneratedEvaluator() throws Exception {
+        final ArrayBacked tr = new ArrayBacked(Config.config());
+        tr.parse(CharStreams.fromString("f = ('a':'x' | 'b' 'c':'yyyyyyyyyyyy' | [d-f] | [h-z]:<0>'1')* 'g':'end' 1\n" +
+                "g = ('a':'x' | 'a' 'b':'y')*"));
+        final GeneratedEvaluator f = tr.compileEvaluator("f");
+        if (ToolProvider.getSystemJavaCompiler() != null) assertTrue(f.isGenerated());
+        final GeneratedEvaluator g = tr.compileEvaluator("g");
+        assertFalse(g.isGenerated());
+        for (IntSeq input : randomInputs(13, 2000, 10, 'a', 8)) {
+            assertEquals(IntSeq.toUnicodeString(input), tr.run("f", input), f.evaluate(input));
+            assertEquals(IntSeq.toUnicodeString(input), tr.run("g", input), g.evaluate(input));
+        }
+        assertNull(f.evaluate(IntSeq.Epsilon));
+        assertEquals(new IntSeq("end"), f.evaluate(new IntSeq("g")));
+        assertEquals(new IntSeq("xyyyyyyyyyyyyend"), f.evaluate(new IntSeq("abcg")));
+    }
+
+    @Test
+    void testPipelineFusion() throws Exception {
+        final String source = "@p = runtime assert [a-f]* ; ('a':'b' | 'b':'c' | [c-f])* ; " +
+                "('b':'x' | 'c':'yy' | [d-f]:<0>'z')* ; assert [a-z]* ; ('x':'1' | 'y':'2' | 'z':'3' | [d-f])*";
+        final ArrayBacked staged = new ArrayBacked(Config.config());
+        staged.parse(CharStreams.fromString(source));
+        final ArrayBacked fused = new ArrayBacked(Config.config().setPipelineFusionMaxStates(1000));
+        fused.parse(CharStreams.fromString(source));
+        assertTrue(staged.appliedFusions("p").isEmpty());
+        assertEquals(fused.appliedFusions("p").toString(), 4, fused.appliedFusions("p").size());
+        assertTrue(fused.appliedFusions("q").isEmpty());
+        assertTrue(fused.getPipeline("p") instanceof Pipeline.Automaton);
+        final ArrayBacked tight = new ArrayBacked(Config.config().setPipelineFusionMaxStates(2));
+        tight.parse(CharStreams.fromString(source));
+        assertTrue(tight.getPipeline("p") instanceof Pipeline.Composition);
+        for (IntSeq seq : randomInputs(17, 2000, 8, 'a', 7)) {
+            final String input = IntSeq.toUnicodeString(seq);
+            final String expected = staged.runPipeline("p", input);
+            assertEquals(input, expected, fused.runPipeline("p", input));
+            assertEquals(input, expected, tight.runPipeline("p", input));
+        }
+        //runtime assertion survives fusion
+        assertNull(fused.runPipeline("p", "g"));
+        assertEquals(staged.runPipeline("p", "abd"), fused.runPipeline("p", "abd"));
+        assertEquals("122", fused.runPipeline("p", "abd"));
+        //fusions are forgotten together with their pipeline
+        assertNotNull(fused.specs.removePipeline("p"));
+        assertTrue(fused.appliedFusions("p").isEmpty());
+        fused.parse(CharStreams.fromString("@p = ('a':'b')* ; ('b':'c')*"));
+        assertEquals(fused.appliedFusions("p").toString(), 1, fused.appliedFusions("p").size());
+        assertEquals("cc", fused.runPipeline("p", "aa"));
+    }
+
+    @Test
+    void testBudget() throws Exception {
+        //composition counts modulo 12, while both of its arguments have only a few states
+        final String source = "f = compose![('a':'a' 'a':'a' 'a':'a')*]![('a':'b' 'a':'b' 'a':'b' 'a':'b')*]";
+        final ArrayBacked unlimited = new ArrayBacked(Config.config());
+        unlimited.parse(CharStreams.fromString(source));
+        assertEquals("bbbbbbbbbbbb", unlimited.run("f", "aaaaaaaaaaaa"));
+        assertNull(unlimited.run("f", "aaaaaa"));
+        final ArrayBacked tight = new ArrayBacked(Config.config().setBudget(8, 0, 0, 0));
+        try {
+            tight.parse(CharStreams.fromString(source));
+            fail("composition should exceed the budget");
+        } catch (CompilationError.BudgetExceeded e) {
+            assertEquals("f", e.variable);
+            assertEquals(Budget.Phase.COMPOSE, e.phase);
+            assertEquals(Budget.Resource.STATES, e.resource);
+        }
+        final ArrayBacked cancelled = new ArrayBacked(Config.config());
+        cancelled.specs.budget().cancel();
+        try {
+            cancelled.parse(CharStreams.fromString(source));
+            fail("compilation should be cancelled");
+        } catch (CompilationError.BudgetExceeded e) {
+            assertEquals(Budget.Resource.CANCELLED, e.resource);
+        }
+        cancelled.specs.budget().reset();
+        cancelled.parse(CharStreams.fromString(source));
+        assertEquals("bbbbbbbbbbbb", cancelled.run("f", "aaaaaaaaaaaa"));
+
+        //the rhs is a nondeterministic automaton with exponentially large powerset
+        final String subtraction = "g = subtractNondet![[a-b]*]![[a-b]* 'a' [a-b] [a-b] [a-b] [a-b]]";
+        unlimited.parse(CharStreams.fromString(subtraction));
+        assertEquals("", unlimited.run("g", "bbbbb"));
+        assertNull(unlimited.run("g", "babbbb"));
+        try {
+            tight.parse(CharStreams.fromString(subtraction));
+            fail("subtraction should exceed the budget");
+        } catch (CompilationError.BudgetExceeded e) {
+            assertEquals("g", e.variable);
+            assertEquals(Budget.Phase.POWERSET, e.phase);
+            assertEquals(Budget.Resource.STATES, e.resource);
+        }
+        cancelled.specs.budget().cancel();
+        try {
+            cancelled.parse(CharStreams.fromString("h = ostiaCompress!('one':'1','two':'2')"));
+            fail("inference should be cancelled");
+        } catch (CompilationError.BudgetExceeded e) {
+            assertEquals("h", e.variable);
+            assertEquals(Budget.Phase.LEARN, e.phase);
+        }
+    }
+
+    @Test
+    void testSubtractNondetLazy() throws Exception {
+        //determinising the rhs eagerly would create 2^17 powerset states, way above the budget
+        final int n = 16;
+        final String bs = new String(new char[n]).replace("\0", "'b'");
+        final String anyAB = new String(new char[n]).replace("\0", "[a-b]");
+        final ArrayBacked tr = new ArrayBacked(Config.config().setBudget(64, 0, 0, 0));
+        tr.parse(CharStreams.fromString("l = 'ab':'x' | 'a' " + bs + ":'y'\n" +
+                "r = [a-b]* 'a' " + anyAB));
+        final Specification.RangedGraph<Pos, Integer, E, P> lhs = tr.getOptimisedTransducer("l");
+        final Specification.RangedGraph<Pos, Integer, E, P> rhs = tr.getOptimisedTransducer("r");
+        assertNotNull(rhs.isDeterministic());
+        final Specification.RangedGraph<Pos, Integer, E, P> diff = tr.specs.optimiseGraph(tr.specs.subtractNondet(lhs, rhs));
+        assertEquals(new IntSeq("x"), tr.specs.evaluate(diff, new IntSeq("ab")));
+        final String abs = "a" + new String(new char[n]).replace("\0", "b");
+        assertEquals(new IntSeq("y"), tr.specs.evaluate(lhs, new IntSeq(abs)));
+        assertNull(tr.specs.evaluate(diff, new IntSeq(abs)));
+        assertNull(tr.specs.evaluate(diff, new IntSeq("a")));
+        //only the pairs reachable from lhs states are built
+        assertTrue(diff.size() <= lhs.size());
+        try {
+            tr.specs.powerset(rhs);
+            fail("eager powerset should exceed the budget");
+        } catch (Budget.Exceeded e) {
+            assertEquals(Budget.Phase.POWERSET, e.phase);
+            assertEquals(Budget.Resource.STATES, e.resource);
+        }
+    }
+
+    @Test
+    void testMemoryFootprint() throws Exception {
+        final String source = "f = ('a':'xyz' | 'b':'xyz' | [c-f]:'xyz')* g = !!f 'z' !!f @p = !!f ; !!g";
+        final ArrayBacked interned = new ArrayBacked(Config.config());
+        interned.parse(CharStreams.fromString(source));
+        final ArrayBacked plain = new ArrayBacked(Config.config().setInternOutputs(false));
+        plain.parse(CharStreams.fromString(source));
+        final MemoryFootprint f = interned.memoryFootprint("f", false);
+        assertNull(interned.memoryFootprint("h", false));
+        assertNull(interned.pipelineMemoryFootprint("h"));
+        assertTrue(f.toString(), f.transitions() > 0 && f.outputs() > 0 && f.metadata() > 0);
+        assertEquals(f.transitions() + f.outputs() + f.metadata(), f.total());
+        assertTrue(plain.memoryFootprint("f", false).outputs() >= f.outputs());
+        assertTrue(interned.memoryFootprint("f", true).total() > 0);
+        final MemoryFootprint p = interned.pipelineMemoryFootprint("p");
+        final MemoryFootprint g = interned.memoryFootprint("g", false);
+        assertTrue(p.toString(), p.total() > f.total() && p.total() > g.total());
+        //interned outputs shared by both transducers are counted only once
+        final MemoryFootprint both = new MemoryFootprint()
+                .add(interned.getOptimisedTransducer("f")).add(interned.getOptimisedTransducer("g"));
+        assertTrue(both.toString(), both.transitions() <= f.transitions() + g.transitions());
+        assertTrue(both.toString(), both.outputs() < f.outputs() + g.outputs());
+        assertEquals(both.total(), both.add(interned.getOptimisedTransducer("f")).total());
+        //binary pipelines have no graphs of non-runtime assertions
+        final ArrayBacked asserted = new ArrayBacked(Config.config());
+        asserted.parse(CharStreams.fromString("@p = ('a':'b' | 'c')* ; assert [b-c]* ; ('b':'d' | 'c')*"));
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        asserted.specs.compressBinaryPipeline(asserted.getPipeline("p"), new DataOutputStream(bytes));
+        final Pipeline<Pos, Integer, E, P, ?, ?> decompressed = asserted.specs.decompressBinaryPipeline(Pos.NONE,
+                new DataInputStream(new ByteArrayInputStream(bytes.toByteArray())));
+        final MemoryFootprint loaded = MemoryFootprint.of(decompressed);
+        final MemoryFootprint original = asserted.pipelineMemoryFootprint("p");
+        assertTrue(loaded + " " + original, loaded.transitions() > 0 && loaded.transitions() < original.transitions());
+    }
+
+    @Test
+    void testMemoryFootprintCalibration() throws Exception {
+        //jamm computes shallow sizes from field offsets obtained through Unsafe, hence no agent is needed
+        final MemoryMeter meter = new MemoryMeter().withGuessing(MemoryMeter.Guess.ALWAYS_UNSAFE);
+        final ArrayBacked tr = new ArrayBacked(Config.config());
+        tr.parse(CharStreams.fromString("f = ('a':'xyz' | 'b' 2)* 'c'"));
+        final Specification.RangedGraph<Pos, Integer, E, P> g = tr.getOptimisedTransducer("f");
+        final Specification.RangedGraph.Trans<E> tr0 = g.graph.get(g.initial).stream()
+                .flatMap(r -> r.edges().stream()).findFirst().get();
+        final Specification.Range<Integer, ?> range = g.graph.get(g.initial).get(0);
+        final HashMap<Integer, Integer> map = new HashMap<>();
+        map.put(1, 1);
+        assertEquals(meter.measure(g), MemoryFootprint.RANGED_GRAPH);
+        assertEquals(meter.measure(g.graph), MemoryFootprint.ARRAY_LIST);
+        assertEquals(meter.measure(range), MemoryFootprint.RANGE);
+        assertEquals(meter.measure(tr0), MemoryFootprint.TRANS);
+        assertEquals(meter.measure(tr0.edge), MemoryFootprint.EDGE);
+        assertEquals(meter.measure(new P(IntSeq.Epsilon, 0)), MemoryFootprint.FINAL_EDGE);
+        assertEquals(meter.measure(new Pos("file", 1, 2)), MemoryFootprint.POS);
+        assertEquals(meter.measure(1000), MemoryFootprint.BOXED_INTEGER);
+        assertEquals(meter.measure(map.entrySet().iterator().next()), MemoryFootprint.HASH_MAP_NODE);
+        assertEquals(meter.measure(Pair.of(1, 2)), MemoryFootprint.PAIR);
+        assertEquals(meter.measure(new IntSeq("xyz")), OutputArena.INT_SEQ_BYTES);
+        for (int len : new int[]{0, 1, 5, 100}) {
+            assertEquals(meter.measure(new int[len]), OutputArena.arrayBytes(len));
+            assertEquals(meter.measure(new Object[len]), MemoryFootprint.referenceArrayBytes(len));
+        }
+    }
+
+    @Test
+    void testShardedEvaluator() throws Exception {
+        final ArrayBacked tr = new ArrayBacked(Config.config());
+        tr.parse(CharStreams.fromString("f = ('a':'x' | 'ż':'𝕄' | [b-c])* @p = !!f ; ('x':'y' | [b-c] | '𝕄')*"));
+        final String[] alphabet = {"a", "b", "c", "ż", "d"};
+        final Random rnd = new Random(23);
+        final StringBuilder text = new StringBuilder();
+        final ArrayList<String> lines = new ArrayList<>();
+        for (int i = 0; i < 500; i++) {
+            final StringBuilder line = new StringBuilder();
+            final int len = rnd.nextInt(6);
+            for (int j = 0; j < len; j++) line.append(alphabet[rnd.nextInt(alphabet.length)]);
+            lines.add(line.toString());
+            text.append(line);
+            //some lines end with CRLF
+            text.append(rnd.nextInt(4) == 0 ? "\r\n" : "\n");
+        }
+        //last line is not terminated
+        lines.add("ża");
+        text.append("ża");
+        final File input = File.createTempFile("sharded", ".txt");
+        final File output = File.createTempFile("sharded", ".out");
+        input.deleteOnExit();
+        output.deleteOnExit();
+        Files.write(input.toPath(), text.toString().getBytes(StandardCharsets.UTF_8));
+        try (FileChannel ch = FileChannel.open(input.toPath())) {
+            final byte[] bytes = Files.readAllBytes(input.toPath());
+            final ArrayList<Long> boundaries = ShardedEvaluator.findShardBoundaries(ch, bytes.length, 7);
+            assertEquals(0L, (long) boundaries.get(0));
+            assertEquals(bytes.length, (long) boundaries.get(boundaries.size() - 1));
+            for (int i = 1; i < boundaries.size() - 1; i++) {
+                assertEquals('\n', bytes[(int) (long) boundaries.get(i) - 1]);
+                assertTrue(boundaries.get(i) > boundaries.get(i - 1));
+            }
+        }
+        for (String name : new String[]{"f", "@p"}) {
+            final ArrayList<String> expected = new ArrayList<>();
+            long noMatches = 0;
+            for (String line : lines) {
+                final String out = name.startsWith("@") ? tr.runPipeline(name.substring(1), line) : tr.run(name, line);
+                if (out == null) noMatches++;
+                expected.add(out == null ? "#" : out);
+            }
+            for (int shardSize : new int[]{1, 7, 64, 1 << 20}) {
+                for (boolean tabular : new boolean[]{false, true}) {
+                    final ShardedEvaluator evaluator = new ShardedEvaluator(3, shardSize, "#");
+                    final ShardedEvaluator.Stats stats = tabular ? tr.runTabularFile(name, input, output, evaluator, 64)
+                            : tr.runFile(name, input, output, evaluator);
+                    assertEquals(lines.size(), stats.lines);
+                    assertEquals(noMatches, stats.noMatches);
+                    assertEquals(name + " " + shardSize + " " + tabular, expected, Files.readAllLines(output.toPath(), StandardCharsets.UTF_8));
+                }
+            }
+        }
+        assertNull(tr.runFile("g", input, output, new ShardedEvaluator(1)));
+    }
+
+    @Test
+    void testBinaryDataset() throws Exception {
+        final ArrayList<String> lines = new ArrayList<>();
+        final ArrayList<Pair<IntSeq, IntSeq>> examples = new ArrayList<>();
+        final Random rnd = new Random(29);
+        for (int i = 0; i < 300; i++) {
+            final String in = IntSeq.toUnicodeString(randomInputs(rnd.nextLong(), 1, 6, 'a', 4).get(0));
+            final int kind = rnd.nextInt(4);
+            //negative examples, empty outputs and non-BMP outputs
+            final String out = kind == 0 ? null : kind == 1 ? "" : kind == 2 ? "𝕄" + in : in.toUpperCase();
+            lines.add(out == null ? in : in + "\t" + out);
+            examples.add(Pair.of(new IntSeq(in), out == null ? null : new IntSeq(out)));
+        }
+        final File text = File.createTempFile("dataset", ".txt");
+        final File binary = File.createTempFile("dataset", ".bin");
+        text.deleteOnExit();
+        binary.deleteOnExit();
+        Files.write(text.toPath(), lines, StandardCharsets.UTF_8);
+        //the same conversion is performed by convert-dataset command
+        assertEquals(examples.size(), BinaryDataset.convert(LazyDataset.loadDatasetFromFile(text, "\t"), binary));
+        for (boolean memoryMapped : new boolean[]{false, true}) {
+            final LazyDataset<Pair<IntSeq, IntSeq>> loaded = LazyDataset.loadDatasetFromBinary(binary, memoryMapped);
+            //every pass yields the same examples
+            for (int pass = 0; pass < 2; pass++) {
+                loaded.begin();
+                for (Pair<IntSeq, IntSeq> expected : examples) {
+                    final Pair<IntSeq, IntSeq> actual = loaded.next();
+                    assertNotNull(actual);
+                    assertEquals(expected.l(), actual.l());
+                    assertEquals(expected.r(), actual.r());
+                }
+                assertNull(loaded.next());
+                loaded.close();
+            }
+            assertEquals(examples.size(), new BinaryDataset(binary, memoryMapped).size());
+        }
+        final File empty = File.createTempFile("dataset", ".bin");
+        empty.deleteOnExit();
+        assertEquals(0, BinaryDataset.convert(LazyDataset.loadDatasetFromFile(File.createTempFile("dataset", ".txt"), "\t"), empty));
+        final BinaryDataset none = new BinaryDataset(empty, true);
+        none.begin();
+        assertNull(none.next());
+        Files.write(empty.toPath(), new byte[]{1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 11, 12, 13, 14, 15, 16, 17, 18, 19, 20, 21, 22, 23, 24, 25, 26, 27, 28, 29, 30, 31, 32});
+        try {
+            new BinaryDataset(empty, false);
+            fail();
+        } catch (IOException e) {
+            assertTrue(e.getMessage(), e.getMessage().startsWith("Not a binary dataset"));
+        }
+    }
+
+    @Test
+    void testSharedVariableGraphs() throws Exception {
+        final ArrayBacked tr = new ArrayBacked(Config.config());
+        tr.parse(CharStreams.fromString("f = 'a':'x' | 'b':'y' g = !!f"));
+        final ArrayIntermediateGraph<Pos, E, P> fg = tr.getTransducer("f").graph;
+        //plain reference does not copy
+        assertSame(fg, tr.getTransducer("g").graph);
+        assertTrue(tr.specs.isOwnedByVariable(fg));
+        //mutating a shared graph copies it first
+        tr.parse(CharStreams.fromString("h = !!g 'c':'z'"));
+        final ArrayIntermediateGraph<Pos, E, P> hg = tr.getTransducer("h").graph;
+        assertNotSame(fg, hg);
+        assertEquals("x", tr.run("g", "a"));
+        assertNull(tr.run("g", "ac"));
+        assertEquals("yz", tr.run("h", "bc"));
+        //the graph stays owned while at least one variable holds it
+        assertNotNull(tr.specs.removeVariable("f"));
+        assertNull(tr.specs.removeVariable("f"));
+        assertTrue(tr.specs.isOwnedByVariable(fg));
+        assertEquals("y", tr.run("g", "b"));
+        assertNotNull(tr.specs.removeVariable("g"));
+        assertNull(tr.getTransducer("g"));
+        assertFalse(tr.specs.isOwnedByVariable(fg));
+        assertTrue(tr.specs.isOwnedByVariable(hg));
+        //consuming a variable transfers its graph
+        tr.parse(CharStreams.fromString("k = h 'd'"));
+        assertNull(tr.getTransducer("h"));
+        assertEquals("xz", tr.run("k", "acd"));
+        assertTrue(tr.specs.isOwnedByVariable(tr.getTransducer("k").graph));
+        final ArrayIntermediateGraph<Pos, E, P> kg = tr.getTransducer("k").graph;
+        tr.parse(CharStreams.fromString("l = !!k"));
+        tr.specs.removeAllVariables();
+        assertFalse(tr.specs.isOwnedByVariable(kg));
+        assertNull(tr.getTransducer("k"));
+        assertFalse(tr.specs.isOwnedByVariable(fg));
+        tr.parse(CharStreams.fromString("m = 'e':'2'"));
+        assertEquals("2", tr.run("m", "e"));
+    }
+
+    @Test
+    void testMetrics() throws Exception {
+        final Metrics.Recorder recorder = new Metrics.Recorder();
+        final ArrayBacked tr = new ArrayBacked(Config.config().setMetrics(recorder));
+        tr.parse(CharStreams.fromString("f = 'a' 'b' :'x' | 'a' 'c' :'y'"));
+        final Specification.RangedGraph<Pos, Integer, E, P> g = tr.getOptimalTransducer("f");
+        assertNull(recorder.statsIfPresent(g));
+        assertEquals("x", tr.run("f", "ab"));
+        assertEquals("y", tr.run("f", "ac"));
+        assertNull(tr.run("f", "ad"));
+        assertNull(tr.run("f", "b"));
+        assertNull(tr.run("f", ""));
+        final Metrics.TransducerStats stats = recorder.statsIfPresent(g);
+        assertNotNull(stats);
+        assertEquals(5, stats.evaluations.sum());
+        assertEquals(3, stats.rejections.sum());
+        //"b" empties the superposition after the first symbol, and "" consumes nothing
+        assertEquals(2 + 2 + 2 + 1, stats.steps.sum());
+        assertEquals(5, stats.latencyNanos.count());
+        assertEquals(5, stats.backtrackingTableSize.count());
+        //both branches survive 'a' but only one survives the second symbol
+        assertEquals(3 + 3 + 2 + 0, stats.backtrackingNodes.sum());
+        assertEquals(3, stats.backtrackingTableSize.max());
+        assertEquals(0, recorder.ambiguityResolutions.sum());
+    }
+
+    /**
+     * Reference implementation of active learning that tests examples one by one, exactly as it was done
+     * before examples were tested in parallel chunks
+     */
+    static <H, G extends IntermediateGraph<Pos, E, P, ArrayIntermediateGraph.N<Pos, E>>> H sequentialActiveLearning(
+            LearningFramework<H, Pos, E, P, Integer, IntSeq, ArrayIntermediateGraph.N<Pos, E>, G> framework,
+            FuncArg.Informant<G, IntSeq> examplesSeenSoFar, List<Pair<IntSeq, IntSeq>> dataset, int batchSize) {
+        final ArrayList<Pair<IntSeq, IntSeq>> counterexamples = new ArrayList<>();
+        H hypothesis = framework.makeHypothesis(examplesSeenSoFar);
+        boolean hadCounterexample = true;
+        while (hadCounterexample) {
+            hadCounterexample = false;
+            for (Pair<IntSeq, IntSeq> example : dataset) {
+                if (!framework.testHypothesis(hypothesis, example)) {
+                    hadCounterexample = true;
+                    counterexamples.add(example);
+                    if (counterexamples.size() >= batchSize) {
+                        examplesSeenSoFar.addAll(counterexamples);
+                        counterexamples.clear();
+                        hypothesis = framework.makeHypothesis(examplesSeenSoFar);
+                    }
+                }
+            }
+            if (counterexamples.size() > 0) {
+                examplesSeenSoFar.addAll(counterexamples);
+                counterexamples.clear();
+                hypothesis = framework.makeHypothesis(examplesSeenSoFar);
+            }
+        }
+        return hypothesis;
+    }
+
+    <H> void assertParallelActiveLearningIsSequential(ArrayBacked tr, String algorithm, List<Pair<IntSeq, IntSeq>> dataset,
+                                                      List<IntSeq> validation) throws Exception {
+        @SuppressWarnings("unchecked") final LearningFramework<H, Pos, E, P, Integer, IntSeq, ArrayIntermediateGraph.N<Pos, E>, ArrayIntermediateGraph<Pos, E, P>> framework =
+                (LearningFramework<H, Pos, E, P, Integer, IntSeq, ArrayIntermediateGraph.N<Pos, E>, ArrayIntermediateGraph<Pos, E, P>>) LearningFramework.forID(algorithm, tr.specs);
+        final FuncArg.Informant<ArrayIntermediateGraph<Pos, E, P>, IntSeq> sequentialExamples = new FuncArg.Informant<>();
+        sequentialExamples.addAll(dataset.subList(0, 3));
+        final Specification.RangedGraph<Pos, Integer, E, P> sequential = tr.specs.optimiseGraph(framework.compileHypothesis(
+                sequentialActiveLearning(framework, sequentialExamples, dataset, 2)));
+        for (int chunkSize : new int[]{1, 7, LearningFramework.DEFAULT_CHUNK_SIZE}) {
+            final FuncArg.Informant<ArrayIntermediateGraph<Pos, E, P>, IntSeq> parallelExamples = new FuncArg.Informant<>();
+            parallelExamples.addAll(dataset.subList(0, 3));
+            final Specification.RangedGraph<Pos, Integer, E, P> parallel = tr.specs.optimiseGraph(LearningFramework.activeLearning(
+                    framework, parallelExamples, LazyDataset.from(dataset), 2, chunkSize, log -> {
+                    }));
+            assertEquals(algorithm + " " + chunkSize, sequentialExamples, parallelExamples);
+            for (IntSeq in : validation) {
+                assertEquals(algorithm + " " + chunkSize + " " + in, tr.specs.evaluate(sequential, in), tr.specs.evaluate(parallel, in));
+            }
+        }
+    }
+
+    @Test
+    void testParallelActiveLearning() throws Exception {
+        final ArrayBacked tr = new ArrayBacked(Config.config());
+        tr.parse(CharStreams.fromString("t = ('a':'x' | 'b':'yy' | 'c')*"));
+        final ArrayList<Pair<IntSeq, IntSeq>> dataset = new ArrayList<>();
+        //some algorithms do not tolerate the same example being seen twice
+        for (IntSeq in : new LinkedHashSet<>(randomInputs(31, 300, 7, 'a', 3))) {
+            dataset.add(Pair.of(in, tr.run("t", in)));
+        }
+        final List<IntSeq> validation = randomInputs(32, 200, 9, 'a', 4);
+        assertParallelActiveLearningIsSequential(tr, "ostia", dataset, validation);
+        assertParallelActiveLearningIsSequential(tr, "ostia_compress", dataset, validation);
+        assertParallelActiveLearningIsSequential(tr, "ostia_max_overlap", dataset, validation);
+    }
+
+    @Test
+    void testOSTIACompressFold() throws Exception {
+        final IntEmbedding alph = new IntEmbedding('a', 'b');
+        final List<Pair<IntSeq, IntSeq>> sample = Arrays.asList(Pair.of(new IntSeq("a"), new IntSeq("x")),
+                Pair.of(new IntSeq("ab"), new IntSeq("xy")), Pair.of(new IntSeq("b"), new IntSeq("z")));
+        final List<Pair<IntSeq, IntSeq>> differentOutput = Arrays.asList(Pair.of(new IntSeq("a"), new IntSeq("x")),
+                Pair.of(new IntSeq("ab"), new IntSeq("xz")), Pair.of(new IntSeq("b"), new IntSeq("z")));
+        final List<Pair<IntSeq, IntSeq>> differentDomain = Arrays.asList(Pair.of(new IntSeq("a"), new IntSeq("x")),
+                Pair.of(new IntSeq("ab"), new IntSeq("xy")), Pair.of(new IntSeq("bb"), new IntSeq("z")));
+        //states of prefix tree are not indexed, so nothing may be cached between calls
+        final OSTIACompress.State ptt = OSTIACompress.buildPtt(alph, sample.iterator());
+        assertFalse(OSTIACompress.ostiaFold(ptt, OSTIACompress.buildPtt(alph, differentOutput.iterator())));
+        assertFalse(OSTIACompress.ostiaFold(ptt, OSTIACompress.buildPtt(alph, differentDomain.iterator())));
+        assertTrue(OSTIACompress.ostiaFold(ptt, OSTIACompress.buildPtt(alph, sample.iterator())));
+        assertTrue(OSTIACompress.ostiaFold(ptt, OSTIACompress.buildPtt(alph, sample.iterator())));
+    }
+
+    @Test
+    void testMergeFinalLeaves() throws Exception {
+        //words form a prefix code, each ending in its own final leaf. Some leaves have equal final edges,
+        //while others differ in weight or output
+        final String[] words = {"af", "bf", "abf", "baf", "cf", "ccf", "caf", "df", "ddf"};
+        final String grammar = "w = 'af':'x' | 'bf':'x' | 'abf':'y' | 'baf':'y' 1 | 'cf' | 'ccf' | 'caf':'z' 2 | 'df':'x' | 'ddf':<0> \n" +
+                "f = (!!w | 'e':'v')* 'g':'end' \n" +
+                "g = !!w !!w ('e' | !!w)? \n" +
+                "h = (!!w 'e':'v')* !!w";
+        final ArrayBacked merged = new ArrayBacked(Config.config().setMergeFinalLeavesThreshold(0));
+        final ArrayBacked unmerged = new ArrayBacked(Config.config().setMergeFinalLeavesThreshold(Long.MAX_VALUE));
+        final ArrayBacked byDefault = new ArrayBacked(Config.config());
+        merged.parse(CharStreams.fromString(grammar));
+        unmerged.parse(CharStreams.fromString(grammar));
+        byDefault.parse(CharStreams.fromString(grammar));
+        final Random rnd = new Random(41);
+        final List<IntSeq> inputs = randomInputs(42, 200, 8, 'a', 7);
+        for (int i = 0; i < 2000; i++) {
+            final StringBuilder in = new StringBuilder();
+            final int len = rnd.nextInt(5);
+            for (int j = 0; j < len; j++) {
+                in.append(words[rnd.nextInt(words.length)]);
+                if (rnd.nextInt(3) == 0) in.append('e');
+            }
+            if (rnd.nextBoolean()) in.append('g');
+            inputs.add(new IntSeq(in.toString()));
+        }
+        for (String name : new String[]{"w", "f", "g", "h"}) {
+            int accepted = 0;
+            for (IntSeq in : inputs) {
+                final IntSeq expected = unmerged.run(name, in);
+                assertEquals(name + " " + in, expected, merged.run(name, in));
+                assertEquals(name + " " + in, expected, byDefault.run(name, in));
+                if (expected != null) accepted++;
+            }
+            assertTrue(name, accepted > 0);
+        }
+        assertEquals("xyyvxend", merged.run("f", "afabfbafedfg"));
+        assertEquals("dx", merged.run("g", "ddfdfe"));
+        //merged leaves are not connected with initial vertices again and again
+        assertTrue(merged.memoryFootprint("h", true).transitions() < unmerged.memoryFootprint("h", true).transitions());
+    }
+
+    static ArrayList<Pair<IntSeq, IntSeq>> randomSample(long seed, int count, int maxLength) {
+        final Random rnd = new Random(seed);
+        final ArrayList<Pair<IntSeq, IntSeq>> sample = new ArrayList<>();
+        for (IntSeq in : new LinkedHashSet<>(randomInputs(seed, count, maxLength, 'a', 3))) {
+            if (rnd.nextInt(10) == 0) {
+                sample.add(Pair.of(in, null));
+            } else {
+                //a simple sequential function
+                final StringBuilder out = new StringBuilder();
+                for (int symbol : in) out.append(symbol == 'a' ? "x" : symbol == 'b' ? "yy" : "");
+                sample.add(Pair.of(in, new IntSeq(out)));
+            }
+        }
+        return sample;
+    }
+
+    static <C> void assertConsistent(ArrayList<Pair<IntSeq, IntSeq>> sample, IntEmbedding e, OSTIAArbitraryOrder.State<C> learned) {
+        for (Pair<IntSeq, IntSeq> example : sample) {
+            final IntSeq out = OSTIAArbitraryOrder.run(learned, Util.mapIterLazy(example.l().iterator(), e::embed));
+            if (example.r() == null) assertNull(example.l().toString(), out);
+            else assertEquals(example.l().toString(), example.r(), out);
+        }
+    }
+
+    @Test
+    void testOSTIAArbitraryOrderHeap() throws Exception {
+        //the indexed heap of all pairs must merge exactly the same pairs as the old scan over all pairs
+        final ArrayList<Pair<IntSeq, IntSeq>> sample = randomSample(11, 120, 8);
+        final IntEmbedding e = new IntEmbedding(sample.iterator());
+        final List<IntSeq> inputs = randomInputs(17, 1000, 10, 'a', 3);
+        final List<OSTIAArbitraryOrder.ScoringFunction<OSTIAArbitraryOrder.StatePTT>> scorings = Arrays.asList(
+                OSTIAArbitraryOrder.SCORING_MAX_OVERLAP, OSTIAArbitraryOrder.SCORING_MAX_COMPATIBLE,
+                OSTIAArbitraryOrder.SCORING_MAX_COMPATIBLE_INPUTS, OSTIAArbitraryOrder.SCORING_MAX_DEEP_OVERLAP());
+        for (OSTIAArbitraryOrder.ScoringFunction<OSTIAArbitraryOrder.StatePTT> scoring : scorings) for (int threshold : new int[]{0, 3000}) {
+            final OSTIAArbitraryOrder.State<OSTIAArbitraryOrder.StatePTT> scanPtt = OSTIAArbitraryOrder.buildPtt(e, sample.iterator());
+            OSTIAArbitraryOrder.buildSamplePtt(scanPtt);
+            final OSTIAArbitraryOrder.State<OSTIAArbitraryOrder.StatePTT> scan = OSTIAArbitraryOrder.ostiaExhaustive(
+                    scanPtt, scoring, OSTIAArbitraryOrder.POLICY_THRESHOLD(threshold), OSTIAArbitraryOrder.StatePTT::add);
+            final OSTIAArbitraryOrder.State<OSTIAArbitraryOrder.StatePTT> heapPtt = OSTIAArbitraryOrder.buildPtt(e, sample.iterator());
+            OSTIAArbitraryOrder.buildSamplePtt(heapPtt);
+            final OSTIAArbitraryOrder.State<OSTIAArbitraryOrder.StatePTT> heap = OSTIAArbitraryOrder.ostia(
+                    heapPtt, scoring, OSTIAArbitraryOrder.POLICY_THRESHOLD(threshold), OSTIAArbitraryOrder.StatePTT::add,
+                    false, Budget.unlimited().enter(Budget.Phase.LEARN));
+            assertConsistent(sample, e, heap);
+            for (IntSeq input : inputs) {
+                assertEquals(input.toString(), OSTIAArbitraryOrder.run(scan, Util.mapIterLazy(input.iterator(), e::embed)),
+                        OSTIAArbitraryOrder.run(heap, Util.mapIterLazy(input.iterator(), e::embed)));
+            }
+            //lazy scores are fresher than the stored ones, so only consistency is guaranteed
+            final OSTIAArbitraryOrder.State<OSTIAArbitraryOrder.StatePTT> lazyPtt = OSTIAArbitraryOrder.buildPtt(e, sample.iterator());
+            OSTIAArbitraryOrder.buildSamplePtt(lazyPtt);
+            assertConsistent(sample, e, OSTIAArbitraryOrder.ostia(
+                    lazyPtt, scoring, OSTIAArbitraryOrder.POLICY_THRESHOLD(threshold), OSTIAArbitraryOrder.StatePTT::add,
+                    OSTIAArbitraryOrder.SIGNATURE_ALL_PAIRS(), Budget.unlimited().enter(Budget.Phase.LEARN)));
+        }
+        //large prefix tree transducer. All pairs remain candidates unless approximation is requested
+        final ArrayList<Pair<IntSeq, IntSeq>> large = randomSample(23, 800, 10);
+        final IntEmbedding le = new IntEmbedding(large.iterator());
+        final List<IntSeq> largeInputs = randomInputs(29, 1000, 12, 'a', 3);
+        final OSTIAArbitraryOrder.State<OSTIAArbitraryOrder.StatePTT> scanPtt = OSTIAArbitraryOrder.buildPtt(le, large.iterator());
+        OSTIAArbitraryOrder.buildSamplePtt(scanPtt);
+        final OSTIAArbitraryOrder.State<OSTIAArbitraryOrder.StatePTT> scan = OSTIAArbitraryOrder.ostiaExhaustive(
+                scanPtt, OSTIAArbitraryOrder.SCORING_MAX_OVERLAP, OSTIAArbitraryOrder.POLICY_GREEDY(), OSTIAArbitraryOrder.StatePTT::add);
+        for (boolean approximate : new boolean[]{false, true}) {
+            final OSTIAArbitraryOrder.State<OSTIAArbitraryOrder.StatePTT> ptt = OSTIAArbitraryOrder.buildPtt(le, large.iterator());
+            OSTIAArbitraryOrder.buildSamplePtt(ptt);
+            final OSTIAArbitraryOrder.State<OSTIAArbitraryOrder.StatePTT> learned = OSTIAArbitraryOrder.ostia(
+                    ptt, OSTIAArbitraryOrder.SCORING_MAX_OVERLAP, OSTIAArbitraryOrder.POLICY_GREEDY(),
+                    OSTIAArbitraryOrder.StatePTT::add, approximate,
+                    Budget.unlimited().enter(Budget.Phase.LEARN));
+            assertConsistent(large, le, learned);
+            if (!approximate) {
+                for (IntSeq input : largeInputs) {
+                    assertEquals(input.toString(), OSTIAArbitraryOrder.run(scan, Util.mapIterLazy(input.iterator(), le::embed)),
+                            OSTIAArbitraryOrder.run(learned, Util.mapIterLazy(input.iterator(), le::embed)));
+                }
+            }
+        }
+        //approximation is opt-in for the external functions
+        final StringBuilder informant = new StringBuilder();
+        for (Pair<IntSeq, IntSeq> example : large) {
+            if (informant.length() > 0) informant.append(',');
+            informant.append('\'').append(IntSeq.toUnicodeString(example.l())).append("':");
+            informant.append(example.r() == null ? "[]" : "'" + IntSeq.toUnicodeString(example.r()) + "'");
+        }
+        for (boolean approximate : new boolean[]{false, true}) {
+            final ArrayBacked tr = new ArrayBacked(Config.config().setApproximateMergeCandidates(approximate));
+            tr.parse(CharStreams.fromString("f = ostiaMaxOverlap!(" + informant + ")"));
+            for (Pair<IntSeq, IntSeq> example : large) {
+                assertEquals(example.l().toString(), example.r() == null ? null : IntSeq.toUnicodeString(example.r()),
+                        tr.run("f", IntSeq.toUnicodeString(example.l())));
+            }
+        }
+    }
 }